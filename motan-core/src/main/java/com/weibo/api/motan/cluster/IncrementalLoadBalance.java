@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster;
+
+import java.util.List;
+
+import com.weibo.api.motan.rpc.Referer;
+
+/**
+ * 支持增量刷新的loadbalance，cluster刷新时同时传入新增和移除的referer，实现方可以只更新变化的部分。
+ *
+ * <pre>
+ * 		未实现该接口的loadbalance仍然通过onRefresh(referers)全量刷新。
+ * </pre>
+ */
+public interface IncrementalLoadBalance<T> extends LoadBalance<T> {
+
+    /**
+     * @param referers 刷新后的全部referer
+     * @param added 新增的referer
+     * @param removed 被移除的referer
+     */
+    void onRefresh(List<Referer<T>> referers, List<Referer<T>> added, List<Referer<T>> removed);
+}
@@ -16,29 +16,70 @@
 
 package com.weibo.api.motan.cluster.ha;
 
+import com.weibo.api.motan.closable.Closable;
+import com.weibo.api.motan.closable.ShutDownHook;
 import com.weibo.api.motan.cluster.LoadBalance;
 import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.DefaultThreadFactory;
 import com.weibo.api.motan.core.extension.SpiMeta;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.rpc.RpcContext;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.util.ExceptionUtil;
 import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.StatisticCallback;
+import com.weibo.api.motan.util.StatsUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Failover ha strategy.
  *
+ * <pre>
+ * 		配置了cluster级别的retryBudgetPercent（默认不限制）时，重试受retryBudgetPercent和minRetriesPerSecond限制，预算耗尽时不再重试，
+ * 		被跳过的重试次数通过StatsUtil的statisticCallback输出。
+ *
+ * 		异步调用（xxxAsync、CompletableFuture）返回FailoverResponseFuture，在前一次请求失败的回调中发起重试，
+ * 		重试在独立的线程池中执行，不占用调用线程和netty io线程。
+ * </pre>
+ *
  * @author fishermen
  * @version V1.0 created at: 2013-5-21
  */
 @SpiMeta(name = "failover")
-public class FailoverHaStrategy<T> extends AbstractHaStrategy<T> {
+public class FailoverHaStrategy<T> extends AbstractHaStrategy<T> implements StatisticCallback {
+
+    // 重试只负责发起下一次异步调用，不需要很多线程；线程和队列都有上限，过载时直接返回本次失败
+    private static final int RETRY_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int RETRY_QUEUE_SIZE = 1000;
+    private static ThreadPoolExecutor retryExecutor = new ThreadPoolExecutor(RETRY_THREADS, RETRY_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(RETRY_QUEUE_SIZE), new DefaultThreadFactory("motan-failover-retry", true));
+
+    static {
+        retryExecutor.allowCoreThreadTimeOut(true);
+        ShutDownHook.registerShutdownHook(new Closable() {
+            @Override
+            public void close() {
+                if (!retryExecutor.isShutdown()) {
+                    retryExecutor.shutdown();
+                }
+            }
+        });
+    }
 
     protected ThreadLocal<List<Referer<T>>> referersHolder = new ThreadLocal<List<Referer<T>>>() {
         @Override
@@ -47,6 +88,38 @@ public class FailoverHaStrategy<T> extends AbstractHaStrategy<T> {
         }
     };
 
+    // retryBudgetPercent<=0时为null，不限制重试
+    private volatile RequestBudget retryBudget = newRetryBudget(URLParamType.retryBudgetPercent.getIntValue(),
+            URLParamType.minRetriesPerSecond.getIntValue());
+    private int retryBudgetPercent = URLParamType.retryBudgetPercent.getIntValue();
+    private int minRetriesPerSecond = URLParamType.minRetriesPerSecond.getIntValue();
+    private long reportedSkipCount = 0;
+    // 只有启用重试预算时才注册statisticCallback
+    private boolean callbackRegistered = false;
+
+    @Override
+    public void setUrl(URL url) {
+        super.setUrl(url);
+        int percent = url.getIntParameter(URLParamType.retryBudgetPercent.getName(), URLParamType.retryBudgetPercent.getIntValue());
+        int minPerSecond =
+                url.getIntParameter(URLParamType.minRetriesPerSecond.getName(), URLParamType.minRetriesPerSecond.getIntValue());
+        // cluster每次refresh都会重新设置url，只有配置变化时才重建预算
+        if (percent != retryBudgetPercent || minPerSecond != minRetriesPerSecond) {
+            retryBudgetPercent = percent;
+            minRetriesPerSecond = minPerSecond;
+            retryBudget = newRetryBudget(percent, minPerSecond);
+        }
+        boolean needCallback = retryBudget != null;
+        if (needCallback != callbackRegistered) {
+            callbackRegistered = needCallback;
+            if (needCallback) {
+                StatsUtil.registryStatisticCallback(this);
+            } else {
+                StatsUtil.unRegistryStatisticCallback(this);
+            }
+        }
+    }
+
     @Override
     public Response call(Request request, LoadBalance<T> loadBalance) {
 
@@ -65,16 +138,33 @@ public class FailoverHaStrategy<T> extends AbstractHaStrategy<T> {
             tryCount = 0;
         }
 
+        RequestBudget budget = retryBudget;
+        if (tryCount > 0 && isAsyncCall()) {
+            int timeout =
+                    refUrl.getMethodParameter(request.getMethodName(), request.getParamtersDesc(), URLParamType.requestTimeout.getName(),
+                            URLParamType.requestTimeout.getIntValue());
+            // 等待结果的超时包含所有重试
+            FailoverResponseFuture future =
+                    new FailoverResponseFuture(request, timeout * (tryCount + 1), new ArrayList<Referer<T>>(referers), tryCount, budget);
+            future.call(0);
+            return future;
+        }
         for (int i = 0; i <= tryCount; i++) {
             Referer<T> refer = referers.get(i % referers.size());
             try {
                 request.setRetries(i);
-                return refer.call(request);
+                Response response = refer.call(request);
+                deposit(budget);
+                return response;
             } catch (RuntimeException e) {
                 // 对于业务异常，直接抛出
                 if (ExceptionUtil.isBizException(e)) {
+                    deposit(budget);
+                    throw e;
+                } else if (i >= tryCount || isDeadlineExceeded(RpcContext.getContext())) {
                     throw e;
-                } else if (i >= tryCount) {
+                } else if (budget != null && !budget.tryWithdraw()) {
+                    // 重试预算耗尽，不再重试，避免后端故障时请求量成倍放大
                     throw e;
                 }
                 LoggerUtil.warn(String.format("FailoverHaStrategy Call false for request:%s error=%s", request, e.getMessage()));
@@ -91,4 +181,158 @@ public class FailoverHaStrategy<T> extends AbstractHaStrategy<T> {
         return referers;
     }
 
+    public RequestBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    @Override
+    public String statisticCallback() {
+        RequestBudget budget = retryBudget;
+        if (budget == null || url == null) {
+            return null;
+        }
+        long skipCount = budget.getExhaustedCount();
+        long delta = skipCount - reportedSkipCount;
+        reportedSkipCount = skipCount;
+        if (delta <= 0) {
+            return null;
+        }
+        return String.format("identity: %s retry_budget_exhausted: %s retry_tokens: %.2f", url.getIdentity(), delta,
+                budget.getTokens());
+    }
+
+    private static boolean isAsyncCall() {
+        return RpcContext.getContext().isAsync();
+    }
+
+    /**
+     * 调用方设置的截止时间已过时重试也会失败，不再重试
+     */
+    private static boolean isDeadlineExceeded(RpcContext context) {
+        long deadline = context.getDeadline();
+        return deadline > 0 && deadline <= System.currentTimeMillis();
+    }
+
+    private void deposit(RequestBudget budget) {
+        if (budget != null) {
+            budget.deposit();
+        }
+    }
+
+    private static RequestBudget newRetryBudget(int percent, int minPerSecond) {
+        if (percent <= 0) {
+            return null;
+        }
+        return new RequestBudget(percent, RequestBudget.DEFAULT_MAX_TOKENS, minPerSecond);
+    }
+
+    /**
+     * 异步调用的failover：前一次请求失败时在回调中发起下一次请求，重试规则与同步调用一致
+     */
+    class FailoverResponseFuture extends DefaultResponseFuture {
+        private final List<Referer<T>> referers;
+        private final int tryCount;
+        private final RequestBudget budget;
+        // 重试在retryExecutor中执行，需要带上调用线程的context（如deadline）
+        private final RpcContext context;
+        private volatile ResponseFuture current;
+
+        FailoverResponseFuture(Request request, int timeout, List<Referer<T>> referers, int tryCount, RequestBudget budget) {
+            super(request, timeout);
+            this.referers = referers;
+            this.tryCount = tryCount;
+            this.budget = budget;
+            this.context = RpcContext.getContext().snapshot();
+        }
+
+        void call(final int i) {
+            if (!isDoing()) {
+                return;
+            }
+            Referer<T> refer = referers.get(i % referers.size());
+            RpcContext context = RpcContext.getContext();
+            boolean async = context.isAsync();
+            final Response response;
+            context.setAsync(true);
+            try {
+                request.setRetries(i);
+                response = refer.call(request);
+            } catch (RuntimeException e) {
+                onAttemptFailure(i, e);
+                return;
+            } finally {
+                context.setAsync(async);
+            }
+
+            if (response instanceof ResponseFuture) {
+                current = (ResponseFuture) response;
+                current.addListener(new FutureListener() {
+                    @Override
+                    public void operationComplete(Future future) throws Exception {
+                        onAttemptComplete(i, response);
+                    }
+                });
+            } else {
+                onAttemptComplete(i, response);
+            }
+        }
+
+        private void onAttemptComplete(int i, Response response) {
+            if (response.getException() == null) {
+                deposit(budget);
+                onSuccess(response);
+            } else {
+                onAttemptFailure(i, response.getException());
+            }
+        }
+
+        private void onAttemptFailure(final int i, Exception e) {
+            if (!isDoing()) {
+                // 调用方已取消或等待超时
+                return;
+            }
+            if (ExceptionUtil.isBizException(e)) {
+                deposit(budget);
+                fail(e);
+            } else if (i >= tryCount || isDeadlineExceeded(context)) {
+                fail(e);
+            } else if (budget != null && !budget.tryWithdraw()) {
+                fail(e);
+            } else {
+                LoggerUtil.warn(String.format("FailoverHaStrategy Call false for request:%s error=%s", request, e.getMessage()));
+                try {
+                    retryExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            RpcContext.restore(context);
+                            try {
+                                call(i + 1);
+                            } finally {
+                                RpcContext.destroy();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException re) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            DefaultResponse response = new DefaultResponse();
+            response.setException(e);
+            onFailure(response);
+        }
+
+        @Override
+        protected boolean cancel(Exception e) {
+            boolean cancelled = super.cancel(e);
+            ResponseFuture future = current;
+            if (cancelled && future != null) {
+                future.cancel();
+            }
+            return cancelled;
+        }
+    }
+
 }
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.weibo.api.motan.cluster.LoadBalance;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.extension.SpiMeta;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * Forking ha strategy.
+ *
+ * <pre>
+ * 		1) 同时向loadbalance选出的前forks个referer发送请求，以第一个成功（或业务异常）的结果为准，其余请求被取消；
+ * 		2) 请求以异步方式发出，由future的listener完成竞争，不额外占用线程；
+ * 		3) 同步调用等待竞争结果，异步调用（xxxAsync）直接返回竞争的future；
+ * 		4) forks通过方法级参数配置，forks<=1时退化为failfast。
+ * </pre>
+ */
+@SpiMeta(name = "forking")
+public class ForkingHaStrategy<T> extends AbstractHaStrategy<T> {
+
+    protected ThreadLocal<List<Referer<T>>> referersHolder = new ThreadLocal<List<Referer<T>>>() {
+        @Override
+        protected java.util.List<com.weibo.api.motan.rpc.Referer<T>> initialValue() {
+            return new ArrayList<Referer<T>>();
+        }
+    };
+
+    @Override
+    public Response call(Request request, LoadBalance<T> loadBalance) {
+        List<Referer<T>> referers = selectReferers(request, loadBalance);
+        if (referers.isEmpty()) {
+            throw new MotanServiceException(String.format("ForkingHaStrategy No referers for request:%s, loadbalance:%s", request,
+                    loadBalance));
+        }
+        URL refUrl = referers.get(0).getUrl();
+        String methodName = request.getMethodName();
+        String paramDesc = request.getParamtersDesc();
+        int forks = refUrl.getMethodParameter(methodName, paramDesc, URLParamType.forks.getName(), URLParamType.forks.getIntValue());
+        forks = Math.min(forks, referers.size());
+        if (forks <= 1) {
+            return referers.get(0).call(request);
+        }
+
+        int timeout =
+                refUrl.getMethodParameter(methodName, paramDesc, URLParamType.requestTimeout.getName(),
+                        URLParamType.requestTimeout.getIntValue());
+        RpcContext context = RpcContext.getContext();
+        boolean asyncCall = context.isAsync();
+
+        RaceResponseFuture race = new RaceResponseFuture(request, timeout);
+        context.setAsync(true);
+        try {
+            for (int i = 0; i < forks; i++) {
+                race.call(referers.get(i), request);
+            }
+        } finally {
+            context.setAsync(asyncCall);
+        }
+        race.seal();
+
+        return asyncCall ? race : new DefaultResponse(race);
+    }
+
+    protected List<Referer<T>> selectReferers(Request request, LoadBalance<T> loadBalance) {
+        List<Referer<T>> referers = referersHolder.get();
+        referers.clear();
+        loadBalance.selectToHolder(request, referers);
+        return referers;
+    }
+
+}
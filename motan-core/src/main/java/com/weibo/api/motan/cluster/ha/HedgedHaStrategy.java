@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.weibo.api.motan.cluster.LoadBalance;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.extension.SpiMeta;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.util.ReflectUtil;
+
+/**
+ * Hedged ha strategy.
+ *
+ * <pre>
+ * 		1) 只对配置了idempotent=true的方法生效，其余方法与failfast一致；
+ * 		2) 首个请求在hedgeDelay内未返回时，向另一个referer补发一次请求，以先返回的结果为准，另一个请求被取消；
+ * 		3) hedgeDelay未配置时使用该方法成功请求的p95耗时，样本不足时不补发；
+ * 		4) 补发请求数受hedgeBudgetPercent限制，避免后端整体变慢时请求量翻倍；
+ * 		5) 只对同步调用生效，异步调用（xxxAsync）直接返回首个请求的future。
+ * </pre>
+ */
+@SpiMeta(name = "hedged")
+public class HedgedHaStrategy<T> extends AbstractHaStrategy<T> {
+    // 计算p95所需的最少样本数
+    static final int MIN_SAMPLES = 100;
+    // p95的刷新间隔(ms)
+    static final long P95_REFRESH_INTERVAL = 1000;
+
+    protected ThreadLocal<List<Referer<T>>> referersHolder = new ThreadLocal<List<Referer<T>>>() {
+        @Override
+        protected java.util.List<com.weibo.api.motan.rpc.Referer<T>> initialValue() {
+            return new ArrayList<Referer<T>>();
+        }
+    };
+
+    private final ConcurrentHashMap<String, LatencyTracker> trackers = new ConcurrentHashMap<String, LatencyTracker>();
+    private volatile RequestBudget budget = new RequestBudget(URLParamType.hedgeBudgetPercent.getIntValue(),
+            RequestBudget.DEFAULT_MAX_TOKENS);
+    private int budgetPercent = URLParamType.hedgeBudgetPercent.getIntValue();
+
+    @Override
+    public void setUrl(URL url) {
+        super.setUrl(url);
+        int percent = url.getIntParameter(URLParamType.hedgeBudgetPercent.getName(), URLParamType.hedgeBudgetPercent.getIntValue());
+        // cluster每次refresh都会重新设置url，只有配置变化时才重建预算
+        if (percent != budgetPercent) {
+            budgetPercent = percent;
+            budget = new RequestBudget(percent, RequestBudget.DEFAULT_MAX_TOKENS);
+        }
+    }
+
+    @Override
+    public Response call(Request request, LoadBalance<T> loadBalance) {
+        List<Referer<T>> referers = selectReferers(request, loadBalance);
+        if (referers.isEmpty()) {
+            throw new MotanServiceException(String.format("HedgedHaStrategy No referers for request:%s, loadbalance:%s", request,
+                    loadBalance));
+        }
+        Referer<T> first = referers.get(0);
+        URL refUrl = first.getUrl();
+        String methodName = request.getMethodName();
+        String paramDesc = request.getParamtersDesc();
+        boolean idempotent =
+                refUrl.getMethodParameter(methodName, paramDesc, URLParamType.idempotent.getName(),
+                        URLParamType.idempotent.getBooleanValue());
+        if (!idempotent || referers.size() < 2 || isAsyncCall()) {
+            return first.call(request);
+        }
+
+        LatencyTracker tracker = getTracker(methodName, paramDesc);
+        int timeout =
+                refUrl.getMethodParameter(methodName, paramDesc, URLParamType.requestTimeout.getName(),
+                        URLParamType.requestTimeout.getIntValue());
+        long delay = getHedgeDelay(refUrl, methodName, paramDesc, tracker);
+        if (delay < 0) {
+            // 样本不足时不补发，只收集耗时
+            long start = System.currentTimeMillis();
+            Response response = first.call(request);
+            if (response.getException() == null) {
+                tracker.update(System.currentTimeMillis() - start);
+            }
+            return response;
+        }
+
+        RequestBudget currentBudget = budget;
+        currentBudget.deposit();
+        RpcContext context = RpcContext.getContext();
+        boolean asyncCall = context.isAsync();
+        // 以异步方式发出请求，由RaceResponseFuture等待先返回的结果
+        context.setAsync(true);
+        Response response;
+        try {
+            RaceResponseFuture race = new RaceResponseFuture(request, timeout);
+            long start = System.currentTimeMillis();
+            trackLatency(race.call(first, request), tracker, start, true);
+            if (!race.awaitAny(delay) && currentBudget.tryWithdraw()) {
+                start = System.currentTimeMillis();
+                trackLatency(race.call(referers.get(1), request), tracker, start, false);
+            }
+            race.seal();
+            response = race;
+        } finally {
+            context.setAsync(asyncCall);
+        }
+        return new DefaultResponse(response);
+    }
+
+    /**
+     * 记录单次请求（而不是整个race）的耗时，只统计成功的请求
+     */
+    private void trackLatency(Response response, final LatencyTracker tracker, final long start, final boolean primary) {
+        if (!(response instanceof Future)) {
+            if (response.getException() == null) {
+                tracker.update(System.currentTimeMillis() - start);
+            }
+            return;
+        }
+        ((Future) response).addListener(new FutureListener() {
+            @Override
+            public void operationComplete(Future future) throws Exception {
+                if (future.isCancelled()) {
+                    // 首个请求被补发的请求取消时，实际耗时至少为已等待的时间；补发的请求被取消时不统计
+                    if (primary) {
+                        tracker.update(System.currentTimeMillis() - start);
+                    }
+                } else if (future.getException() == null) {
+                    tracker.update(System.currentTimeMillis() - start);
+                }
+            }
+        });
+    }
+
+    public RequestBudget getBudget() {
+        return budget;
+    }
+
+    protected List<Referer<T>> selectReferers(Request request, LoadBalance<T> loadBalance) {
+        List<Referer<T>> referers = referersHolder.get();
+        referers.clear();
+        loadBalance.selectToHolder(request, referers);
+        return referers;
+    }
+
+    /**
+     * @return 补发前的等待时间，样本不足时返回-1
+     */
+    private long getHedgeDelay(URL refUrl, String methodName, String paramDesc, LatencyTracker tracker) {
+        int delay =
+                refUrl.getMethodParameter(methodName, paramDesc, URLParamType.hedgeDelay.getName(),
+                        URLParamType.hedgeDelay.getIntValue());
+        if (delay > 0) {
+            return delay;
+        }
+        long p95 = tracker.getP95();
+        return p95 < 0 ? -1 : Math.max(1, p95);
+    }
+
+    private LatencyTracker getTracker(String methodName, String paramDesc) {
+        String key = ReflectUtil.getMethodDesc(methodName, paramDesc);
+        LatencyTracker tracker = trackers.get(key);
+        if (tracker == null) {
+            tracker = new LatencyTracker();
+            LatencyTracker old = trackers.putIfAbsent(key, tracker);
+            if (old != null) {
+                tracker = old;
+            }
+        }
+        return tracker;
+    }
+
+    private static boolean isAsyncCall() {
+        return RpcContext.getContext().isAsync();
+    }
+
+    static class LatencyTracker {
+        private final Histogram histogram = new Histogram(new ExponentiallyDecayingReservoir());
+        private volatile long p95 = -1;
+        private volatile long lastRefreshTime = 0;
+
+        void update(long costMillis) {
+            histogram.update(costMillis);
+        }
+
+        long getP95() {
+            long now = System.currentTimeMillis();
+            if (now - lastRefreshTime >= P95_REFRESH_INTERVAL) {
+                lastRefreshTime = now;
+                if (histogram.getCount() >= MIN_SAMPLES) {
+                    p95 = (long) Math.ceil(histogram.getSnapshot().get95thPercentile());
+                }
+            }
+            return p95;
+        }
+    }
+}
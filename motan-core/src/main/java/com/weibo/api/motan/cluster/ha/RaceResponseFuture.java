@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.util.ExceptionUtil;
+
+/**
+ * 同一个request发往多个referer时，以第一个成功（或业务异常）的response作为结果，其余未完成的请求被取消。
+ *
+ * <pre>
+ * 		1) 通过addCandidate加入每一次调用的返回值，异步调用返回的Future通过listener参与竞争，不额外占用线程；
+ * 		2) seal()之后不再加入新的调用，此时如果所有调用都已失败，则以最后一个失败作为结果；
+ * 		3) awaitAny()用于等待任意一个调用结束，便于hedged策略在首个请求失败时立即补发。
+ * </pre>
+ */
+public class RaceResponseFuture extends DefaultResponseFuture {
+
+    private final List<Future> candidates = new CopyOnWriteArrayList<Future>();
+    private int pending = 0;
+    private boolean sealed = false;
+    private Response lastFailure = null;
+
+    private final FutureListener raceListener = new FutureListener() {
+        @Override
+        public void operationComplete(Future future) throws Exception {
+            onCandidateComplete((Response) future);
+        }
+    };
+
+    public RaceResponseFuture(Request request, int timeout) {
+        super(request, timeout);
+    }
+
+    /**
+     * 调用referer并加入竞争，referer抛出的异常作为失败的结果参与竞争
+     *
+     * @param referer
+     * @param request
+     * @return referer的返回值，抛出异常时为包含该异常的response
+     */
+    public <T> Response call(Referer<T> referer, Request request) {
+        Response response;
+        try {
+            response = referer.call(request);
+        } catch (RuntimeException e) {
+            DefaultResponse failure = new DefaultResponse(request.getRequestId());
+            failure.setException(e);
+            response = failure;
+        }
+        addCandidate(response);
+        return response;
+    }
+
+    public void addCandidate(Response response) {
+        synchronized (lock) {
+            pending++;
+        }
+        if (response instanceof Future) {
+            Future future = (Future) response;
+            candidates.add(future);
+            future.addListener(raceListener);
+        } else {
+            onCandidateComplete(response);
+        }
+    }
+
+    /**
+     * 不再加入新的调用
+     */
+    public void seal() {
+        Response failure = null;
+        synchronized (lock) {
+            sealed = true;
+            if (pending == 0) {
+                failure = lastFailure;
+            }
+        }
+        if (failure != null) {
+            tryFailure(failure);
+        }
+    }
+
+    /**
+     * 最多等待waitMillis毫秒，直到整体完成或者所有已发出的调用都已结束
+     *
+     * @param waitMillis
+     * @return 整体是否已经完成
+     */
+    public boolean awaitAny(long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized (lock) {
+            long waitTime = waitMillis;
+            while (waitTime > 0 && isDoing() && pending > 0) {
+                try {
+                    lock.wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                waitTime = deadline - System.currentTimeMillis();
+            }
+            return !isDoing();
+        }
+    }
+
+    @Override
+    protected boolean cancel(Exception e) {
+        boolean result = super.cancel(e);
+        if (result) {
+            cancelCandidates(null);
+        }
+        return result;
+    }
+
+    private void onCandidateComplete(Response response) {
+        Exception exception = response.getException();
+        if (exception == null || ExceptionUtil.isBizException(exception)) {
+            boolean win = exception == null ? trySuccess(response) : tryFailure(response);
+            if (win) {
+                cancelCandidates(response);
+            }
+            synchronized (lock) {
+                pending--;
+            }
+            return;
+        }
+
+        Response failure = null;
+        synchronized (lock) {
+            pending--;
+            lastFailure = response;
+            if (sealed && pending == 0) {
+                failure = response;
+            }
+            lock.notifyAll();
+        }
+        if (failure != null) {
+            tryFailure(failure);
+        }
+    }
+
+    private void cancelCandidates(Response winner) {
+        for (Future future : candidates) {
+            if (future != winner && !future.isDone() && !future.isCancelled()) {
+                future.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 额外请求（hedge、重试等）的令牌预算。
+ *
+ * <pre>
+ * 		1) 每个正常请求存入 percent/100 个令牌，每个额外请求取出 1 个令牌；
+ * 		2) 令牌数不超过maxTokens，避免长时间空闲后出现突发的额外请求；
+ * 		3) 令牌不足时，每秒仍允许minPerSecond个额外请求，保证低流量时也能重试；
+ * 		4) 以上都不满足时额外请求被拒绝，并计入 exhaustedCount。
+ * </pre>
+ */
+public class RequestBudget {
+    public static final int DEFAULT_MAX_TOKENS = 100;
+
+    // 令牌以千分之一为单位计数，避免浮点数的并发更新
+    private static final long SCALE = 1000;
+
+    private final long depositPerRequest;
+    private final long maxTokens;
+    private final AtomicLong tokens;
+    private final AtomicLong exhaustedCount = new AtomicLong(0);
+
+    private final int minPerSecond;
+    private volatile long floorSecond = 0;
+    private final AtomicInteger floorUsed = new AtomicInteger(0);
+
+    public RequestBudget(int percent, int maxTokens) {
+        this(percent, maxTokens, 0);
+    }
+
+    public RequestBudget(int percent, int maxTokens, int minPerSecond) {
+        this.depositPerRequest = Math.max(0, percent) * SCALE / 100;
+        this.maxTokens = Math.max(1, maxTokens) * SCALE;
+        this.tokens = new AtomicLong(this.maxTokens);
+        this.minPerSecond = minPerSecond;
+    }
+
+    public void deposit() {
+        if (depositPerRequest == 0) {
+            return;
+        }
+        for (;;) {
+            long current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+            long next = Math.min(maxTokens, current + depositPerRequest);
+            if (tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public boolean tryWithdraw() {
+        for (;;) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                if (tryWithdrawFloor()) {
+                    return true;
+                }
+                exhaustedCount.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryWithdrawFloor() {
+        if (minPerSecond <= 0) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != floorSecond) {
+            synchronized (this) {
+                if (second != floorSecond) {
+                    floorUsed.set(0);
+                    floorSecond = second;
+                }
+            }
+        }
+        return floorUsed.incrementAndGet() <= minPerSecond;
+    }
+
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    public double getTokens() {
+        return (double) tokens.get() / SCALE;
+    }
+}
@@ -16,10 +16,14 @@
 
 package com.weibo.api.motan.cluster.loadbalance;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
-import com.weibo.api.motan.cluster.LoadBalance;
+import com.weibo.api.motan.cluster.IncrementalLoadBalance;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.AvailabilityVersion;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.util.LoggerUtil;
@@ -33,10 +37,11 @@ import com.weibo.api.motan.util.MotanFrameworkUtil;
  * @version V1.0 created at: 2013-5-22
  */
 
-public abstract class AbstractLoadBalance<T> implements LoadBalance<T> {
+public abstract class AbstractLoadBalance<T> implements IncrementalLoadBalance<T> {
     public static final int MAX_REFERER_COUNT = 10;
 
     private List<Referer<T>> referers;
+    private volatile AvailableSnapshot<T> availableSnapshot;
 
     @Override
     public void onRefresh(List<Referer<T>> referers) {
@@ -44,6 +49,14 @@ public abstract class AbstractLoadBalance<T> implements LoadBalance<T> {
         this.referers = referers;
     }
 
+    /**
+     * 默认按全量刷新处理，需要增量维护内部状态的子类可以覆盖
+     */
+    @Override
+    public void onRefresh(List<Referer<T>> referers, List<Referer<T>> added, List<Referer<T>> removed) {
+        onRefresh(referers);
+    }
+
     @Override
     public Referer<T> select(Request request) {
         List<Referer<T>> referers = this.referers;
@@ -51,6 +64,11 @@ public abstract class AbstractLoadBalance<T> implements LoadBalance<T> {
         Referer<T> ref = null;
         if (referers.size() > 1) {
             ref = doSelect(request);
+            if (ref != null && !ref.isAvailable()) {
+                // 可用状态变化没有通知版本号的referer会让快照过期，丢弃快照后重新选择一次
+                availableSnapshot = null;
+                ref = doSelect(request);
+            }
 
         } else if (referers.size() == 1) {
             ref = referers.get(0).isAvailable() ? referers.get(0) : null;
@@ -87,6 +105,30 @@ public abstract class AbstractLoadBalance<T> implements LoadBalance<T> {
         return referers;
     }
 
+    /**
+     * 当前可用referer的快照。
+     * 
+     * <pre>
+     * 		referers刷新或所属服务的client可用状态变化（AvailabilityVersion递增）后，在下一次调用时重建快照；
+     * 		其余情况下直接返回同一个数组，选择referer时不需要逐个调用isAvailable()，也没有内存分配。
+     * 		返回的数组不能修改。
+     * 		自定义Referer的可用状态不经过AbstractNode或NettyClient变化时，需要调用AvailabilityVersion.increment()通知，
+     * 		否则快照中可能包含不可用的referer：select会对选中的referer再检查一次isAvailable()，selectToHolder的结果由HA策略在调用失败时跳过。
+     * </pre>
+     */
+    protected Referer<T>[] getAvailableReferers() {
+        List<Referer<T>> referers = this.referers;
+        AvailableSnapshot<T> snapshot = availableSnapshot;
+        if (snapshot == null || snapshot.referers != referers) {
+            snapshot = new AvailableSnapshot<T>(referers, AvailableSnapshot.versionsOf(referers));
+            availableSnapshot = snapshot;
+        } else if (snapshot.version != AvailableSnapshot.sum(snapshot.versions)) {
+            snapshot = new AvailableSnapshot<T>(referers, snapshot.versions);
+            availableSnapshot = snapshot;
+        }
+        return snapshot.availableReferers;
+    }
+
     @Override
     public void setWeightString(String weightString) {
         LoggerUtil.info("ignore weightString:" + weightString);
@@ -95,4 +137,44 @@ public abstract class AbstractLoadBalance<T> implements LoadBalance<T> {
     protected abstract Referer<T> doSelect(Request request);
 
     protected abstract void doSelectToHolder(Request request, List<Referer<T>> refersHolder);
+
+    private static class AvailableSnapshot<T> {
+        private final List<Referer<T>> referers;
+        // referers所属服务的版本号，通常只有一个
+        private final AvailabilityVersion[] versions;
+        // 版本号只增不减，和不变即没有任何状态变化
+        private final long version;
+        private final Referer<T>[] availableReferers;
+
+        @SuppressWarnings("unchecked")
+        AvailableSnapshot(List<Referer<T>> referers, AvailabilityVersion[] versions) {
+            this.referers = referers;
+            this.versions = versions;
+            // 先读取版本号再构建快照，构建过程中发生的状态变化会在下次调用时重建
+            this.version = sum(versions);
+            List<Referer<T>> available = new ArrayList<Referer<T>>(referers.size());
+            for (Referer<T> referer : referers) {
+                if (referer.isAvailable()) {
+                    available.add(referer);
+                }
+            }
+            this.availableReferers = available.toArray(new Referer[available.size()]);
+        }
+
+        static <T> AvailabilityVersion[] versionsOf(List<Referer<T>> referers) {
+            Set<AvailabilityVersion> versions = new LinkedHashSet<AvailabilityVersion>();
+            for (Referer<T> referer : referers) {
+                versions.add(AvailabilityVersion.of(referer.getUrl()));
+            }
+            return versions.toArray(new AvailabilityVersion[versions.size()]);
+        }
+
+        static long sum(AvailabilityVersion[] versions) {
+            long sum = 0;
+            for (AvailabilityVersion version : versions) {
+                sum += version.get();
+            }
+            return sum;
+        }
+    }
 }
@@ -47,31 +47,22 @@ public class ActiveWeightLoadBalance<T> extends AbstractLoadBalance<T> {
 
     @Override
     protected Referer<T> doSelect(Request request) {
-        List<Referer<T>> referers = getReferers();
+        Referer<T>[] referers = getAvailableReferers();
 
-        int refererSize = referers.size();
+        int refererSize = referers.length;
+        if (refererSize == 0) {
+            return null;
+        }
         int startIndex = ThreadLocalRandom.current().nextInt(refererSize);
-        int currentCursor = 0;
-        int currentAvailableCursor = 0;
+        int count = Math.min(refererSize, MAX_REFERER_COUNT);
 
         Referer<T> referer = null;
 
-        while (currentAvailableCursor < MAX_REFERER_COUNT && currentCursor < refererSize) {
-            Referer<T> temp = referers.get((startIndex + currentCursor) % refererSize);
-            currentCursor++;
-
-            if (!temp.isAvailable()) {
-                continue;
-            }
+        for (int i = 0; i < count; i++) {
+            Referer<T> temp = referers[(startIndex + i) % refererSize];
 
-            currentAvailableCursor++;
-
-            if (referer == null) {
+            if (referer == null || compare(referer, temp) > 0) {
                 referer = temp;
-            } else {
-                if (compare(referer, temp) > 0) {
-                    referer = temp;
-                }
             }
         }
 
@@ -80,24 +71,17 @@ public class ActiveWeightLoadBalance<T> extends AbstractLoadBalance<T> {
 
     @Override
     protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
-        List<Referer<T>> referers = getReferers();
+        Referer<T>[] referers = getAvailableReferers();
 
-        int refererSize = referers.size();
+        int refererSize = referers.length;
+        if (refererSize == 0) {
+            return;
+        }
         int startIndex = ThreadLocalRandom.current().nextInt(refererSize);
-        int currentCursor = 0;
-        int currentAvailableCursor = 0;
-
-        while (currentAvailableCursor < MAX_REFERER_COUNT && currentCursor < refererSize) {
-            Referer<T> temp = referers.get((startIndex + currentCursor) % refererSize);
-            currentCursor++;
-
-            if (!temp.isAvailable()) {
-                continue;
-            }
-
-            currentAvailableCursor++;
+        int count = Math.min(refererSize, MAX_REFERER_COUNT);
 
-            refersHolder.add(temp);
+        for (int i = 0; i < count; i++) {
+            refersHolder.add(referers[(startIndex + i) % refererSize]);
         }
 
         Collections.sort(refersHolder, new LowActivePriorityComparator<T>());
@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.extension.SpiMeta;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * "亲和路由" 负载均衡
+ *
+ * <pre>
+ * 		1） 调用方在调用前设置路由key：RpcContext.getContext().putAttribute(MotanConstants.ROUTING_KEY, userId)，
+ * 			key随request attachment传递，只对当前线程的下一次调用生效；未设置时按参数计算hash，与consistent相同。
+ *
+ * 		2） hash环：每个referer按host:port生成AFFINITY_VIRTUAL_NODES个虚拟节点，位置只由referer自身决定，
+ * 			增减其他referer时，只有落在变化节点上的key会迁移。
+ *
+ * 		3） 有界负载：referer的并发上限为 ceil(affinityLoadFactor% * (总并发 + 1) / 可用referer数)，
+ * 			达到上限的referer被跳过，热点key沿hash环溢出到下一个referer；全部达到上限时选择环上第一个可用referer。
+ *
+ * 		4） 沿hash环查找时每个referer只检查一次，所有referer都检查过后停止，不会遍历全部虚拟节点。
+ * </pre>
+ */
+@SpiMeta(name = "affinity")
+public class AffinityLoadBalance<T> extends AbstractLoadBalance<T> {
+
+    private volatile HashRing<T> ring;
+    private volatile int loadFactor = URLParamType.affinityLoadFactor.getIntValue();
+
+    @Override
+    public void onRefresh(List<Referer<T>> referers) {
+        updateLoadFactor(referers);
+        ring = HashRing.create(referers);
+        super.onRefresh(referers);
+    }
+
+    /**
+     * 虚拟节点的位置只由referer自身决定，增减referer时在原hash环上合并，不重新计算其余referer的节点
+     */
+    @Override
+    public void onRefresh(List<Referer<T>> referers, List<Referer<T>> added, List<Referer<T>> removed) {
+        HashRing<T> current = ring;
+        if (current == null) {
+            onRefresh(referers);
+            return;
+        }
+        updateLoadFactor(referers);
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            ring = current.update(added, removed);
+        }
+        super.onRefresh(referers);
+    }
+
+    private void updateLoadFactor(List<Referer<T>> referers) {
+        URL url = referers.isEmpty() ? null : referers.get(0).getUrl();
+        if (url != null) {
+            loadFactor = url.getIntParameter(URLParamType.affinityLoadFactor.getName(), URLParamType.affinityLoadFactor.getIntValue());
+        }
+    }
+
+    @Override
+    protected Referer<T> doSelect(Request request) {
+        HashRing<T> ring = this.ring;
+        Referer<T>[] available = getAvailableReferers();
+        if (available.length == 0) {
+            return null;
+        }
+        int capacity = getCapacity(available);
+        int start = ring.indexOf(getHash(request));
+
+        Referer<T> first = null;
+        // 第一个节点不满足时才记录已检查的referer
+        boolean[] probed = null;
+        int probedCount = 0;
+        for (int i = 0; i < ring.size() && probedCount < ring.refererCount(); i++) {
+            int index = start + i;
+            if (probed != null) {
+                int ordinal = ring.ordinal(index);
+                if (probed[ordinal]) {
+                    continue;
+                }
+                probed[ordinal] = true;
+                probedCount++;
+            }
+            Referer<T> ref = ring.get(index);
+            if (ref.isAvailable()) {
+                if (ref.activeRefererCount() < capacity) {
+                    return ref;
+                }
+                if (first == null) {
+                    first = ref;
+                }
+            }
+            if (probed == null) {
+                probed = new boolean[ring.refererCount()];
+                probed[ring.ordinal(index)] = true;
+                probedCount = 1;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
+        HashRing<T> ring = this.ring;
+        Referer<T>[] available = getAvailableReferers();
+        if (available.length == 0) {
+            return;
+        }
+        int capacity = getCapacity(available);
+        int start = ring.indexOf(getHash(request));
+        int count = Math.min(available.length, MAX_REFERER_COUNT);
+
+        // 达到并发上限的referer放在最后
+        List<Referer<T>> overloaded = null;
+        boolean[] probed = new boolean[ring.refererCount()];
+        int probedCount = 0;
+        for (int i = 0; i < ring.size() && probedCount < probed.length
+                && refersHolder.size() + (overloaded == null ? 0 : overloaded.size()) < count; i++) {
+            int index = start + i;
+            int ordinal = ring.ordinal(index);
+            if (probed[ordinal]) {
+                continue;
+            }
+            probed[ordinal] = true;
+            probedCount++;
+            Referer<T> ref = ring.get(index);
+            if (!ref.isAvailable()) {
+                continue;
+            }
+            if (ref.activeRefererCount() < capacity) {
+                refersHolder.add(ref);
+            } else {
+                if (overloaded == null) {
+                    overloaded = new ArrayList<Referer<T>>();
+                }
+                overloaded.add(ref);
+            }
+        }
+        if (overloaded != null) {
+            refersHolder.addAll(overloaded);
+        }
+    }
+
+    private int getCapacity(Referer<T>[] available) {
+        long total = 0;
+        for (Referer<T> ref : available) {
+            total += Math.max(ref.activeRefererCount(), 0);
+        }
+        long base = 100L * available.length;
+        return (int) Math.min(Integer.MAX_VALUE, (loadFactor * (total + 1) + base - 1) / base);
+    }
+
+    private long getHash(Request request) {
+        String routingKey = request.getAttachments().get(MotanConstants.ROUTING_KEY);
+        if (routingKey != null) {
+            return hash(routingKey);
+        }
+        if (request.getArguments() == null || request.getArguments().length == 0) {
+            return mix(request.hashCode());
+        }
+        return mix(Arrays.hashCode(request.getArguments()));
+    }
+
+    static long hash(String key) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        // murmur3 fmix64，使hash在环上分布均匀
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class HashRing<T> {
+        private static final Comparator<Node<?>> NODE_COMPARATOR = new Comparator<Node<?>>() {
+            @Override
+            public int compare(Node<?> node1, Node<?> node2) {
+                return node1.hash < node2.hash ? -1 : (node1.hash == node2.hash ? 0 : 1);
+            }
+        };
+
+        private final long[] hashes;
+        private final Referer<T>[] nodes;
+        // 节点所属referer的序号，用于查找时标记已检查的referer
+        private final int[] ordinals;
+        private final int refererCount;
+
+        static <T> HashRing<T> create(List<Referer<T>> referers) {
+            return new HashRing<T>(HashRing.<T>createNodes(referers));
+        }
+
+        @SuppressWarnings("unchecked")
+        private HashRing(List<Node<T>> sortedNodes) {
+            hashes = new long[sortedNodes.size()];
+            nodes = new Referer[sortedNodes.size()];
+            ordinals = new int[sortedNodes.size()];
+            Map<Referer<T>, Integer> ordinalMap = new IdentityHashMap<Referer<T>, Integer>();
+            for (int i = 0; i < sortedNodes.size(); i++) {
+                hashes[i] = sortedNodes.get(i).hash;
+                nodes[i] = sortedNodes.get(i).referer;
+                Integer ordinal = ordinalMap.get(nodes[i]);
+                if (ordinal == null) {
+                    ordinal = ordinalMap.size();
+                    ordinalMap.put(nodes[i], ordinal);
+                }
+                ordinals[i] = ordinal;
+            }
+            refererCount = ordinalMap.size();
+        }
+
+        private static <T> List<Node<T>> createNodes(List<Referer<T>> referers) {
+            List<Node<T>> list = new ArrayList<Node<T>>(referers.size() * MotanConstants.AFFINITY_VIRTUAL_NODES);
+            for (Referer<T> referer : referers) {
+                String identity = referer.getUrl().getServerPortStr();
+                for (int i = 0; i < MotanConstants.AFFINITY_VIRTUAL_NODES; i++) {
+                    list.add(new Node<T>(hash(identity + "#" + i), referer));
+                }
+            }
+            Collections.sort(list, NODE_COMPARATOR);
+            return list;
+        }
+
+        /**
+         * 去掉removed的节点，与added的节点按hash归并，得到新的hash环
+         */
+        HashRing<T> update(List<Referer<T>> added, List<Referer<T>> removed) {
+            Set<Referer<T>> removedSet = new HashSet<Referer<T>>(removed);
+            List<Node<T>> addedNodes = createNodes(added);
+            List<Node<T>> merged = new ArrayList<Node<T>>(nodes.length + addedNodes.size());
+            int j = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                if (removedSet.contains(nodes[i])) {
+                    continue;
+                }
+                while (j < addedNodes.size() && addedNodes.get(j).hash < hashes[i]) {
+                    merged.add(addedNodes.get(j++));
+                }
+                merged.add(new Node<T>(hashes[i], nodes[i]));
+            }
+            while (j < addedNodes.size()) {
+                merged.add(addedNodes.get(j++));
+            }
+            return new HashRing<T>(merged);
+        }
+
+        int size() {
+            return nodes.length;
+        }
+
+        Referer<T> get(int index) {
+            return nodes[index % nodes.length];
+        }
+
+        int ordinal(int index) {
+            return ordinals[index % ordinals.length];
+        }
+
+        int refererCount() {
+            return refererCount;
+        }
+
+        /**
+         * 顺时针方向第一个不小于hash的节点位置
+         */
+        int indexOf(long hash) {
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index >= hashes.length ? 0 : index;
+        }
+    }
+
+    private static class Node<T> {
+        private final long hash;
+        private final Referer<T> referer;
+
+        Node(long hash, Referer<T> referer) {
+            this.hash = hash;
+            this.referer = referer;
+        }
+    }
+}
@@ -63,70 +63,104 @@ public class LocalFirstLoadBalance<T> extends AbstractLoadBalance<T> {
         return ip;
     }
 
-    @Override
-    protected Referer<T> doSelect(Request request) {
-        List<Referer<T>> referers = getReferers();
-
-        List<Referer<T>> localReferers = searchLocalReferer(referers, NetUtils.getLocalAddress().getHostAddress());
-
-        if (!localReferers.isEmpty()) {
-            referers = localReferers;
-        }
-
-        int refererSize = referers.size();
-        Referer<T> referer = null;
-
-        for (int i = 0; i < refererSize; i++) {
-            Referer<T> temp = referers.get(i % refererSize);
-
-            if (!temp.isAvailable()) {
-                continue;
-            }
+    private volatile List<Referer<T>> localReferers = Collections.emptyList();
+    private volatile List<Referer<T>> remoteReferers = Collections.emptyList();
 
-            if (referer == null) {
-                referer = temp;
-            } else {
-                if (compare(referer, temp) > 0) {
-                    referer = temp;
-                }
+    @Override
+    public void onRefresh(List<Referer<T>> referers) {
+        // 本地、远程服务在refresh时划分，请求时不再解析ip
+        List<Referer<T>> local = searchLocalReferer(referers, NetUtils.getLocalAddress().getHostAddress());
+        List<Referer<T>> remote = new ArrayList<Referer<T>>(referers.size() - local.size());
+        Set<Referer<T>> localSet = new HashSet<Referer<T>>(local);
+        for (Referer<T> referer : referers) {
+            if (!localSet.contains(referer)) {
+                remote.add(referer);
             }
         }
+        localReferers = local;
+        remoteReferers = remote;
+        super.onRefresh(referers);
+    }
 
+    @Override
+    protected Referer<T> doSelect(Request request) {
+        Referer<T> referer = selectLowActive(localReferers);
+        if (referer == null) {
+            referer = selectLowActive(getReferers());
+        }
         return referer;
     }
 
     @Override
     protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
-        List<Referer<T>> referers = getReferers();
-
-        List<Referer<T>> localReferers = searchLocalReferer(referers, NetUtils.getLocalAddress().getHostAddress());
-
-        if (!localReferers.isEmpty()) {
-            Collections.sort(localReferers, new LowActivePriorityComparator<T>());
-            refersHolder.addAll(localReferers);
+        int from = refersHolder.size();
+        for (Referer<T> referer : localReferers) {
+            if (referer.isAvailable()) {
+                refersHolder.add(referer);
+            }
         }
+        sortLowActive(refersHolder, from);
 
+        List<Referer<T>> referers = remoteReferers;
         int refererSize = referers.size();
+        if (refererSize == 0) {
+            return;
+        }
         int startIndex = ThreadLocalRandom.current().nextInt(refererSize);
         int currentCursor = 0;
         int currentAvailableCursor = 0;
 
-        List<Referer<T>> remoteReferers = new ArrayList<Referer<T>>();
+        from = refersHolder.size();
         while (currentAvailableCursor < MAX_REFERER_COUNT && currentCursor < refererSize) {
             Referer<T> temp = referers.get((startIndex + currentCursor) % refererSize);
             currentCursor++;
 
-            if (!temp.isAvailable() || localReferers.contains(temp)) {
+            if (!temp.isAvailable()) {
                 continue;
             }
 
             currentAvailableCursor++;
 
-            remoteReferers.add(temp);
+            refersHolder.add(temp);
+        }
+        sortLowActive(refersHolder, from);
+    }
+
+    /**
+     * 对holder中from之后的部分按并发数原地插入排序。
+     * 参与排序的referer不超过MAX_REFERER_COUNT个，插入排序不需要额外分配，且并发数在排序中变化时也不会抛异常。
+     */
+    static <T> void sortLowActive(List<Referer<T>> holder, int from) {
+        for (int i = from + 1; i < holder.size(); i++) {
+            Referer<T> current = holder.get(i);
+            int active = current.activeRefererCount();
+            int j = i - 1;
+            while (j >= from && holder.get(j).activeRefererCount() > active) {
+                holder.set(j + 1, holder.get(j));
+                j--;
+            }
+            holder.set(j + 1, current);
+        }
+    }
+
+    private Referer<T> selectLowActive(List<Referer<T>> referers) {
+        Referer<T> referer = null;
+
+        for (Referer<T> temp : referers) {
+            if (!temp.isAvailable()) {
+                continue;
+            }
+
+            if (referer == null) {
+                referer = temp;
+            } else {
+                if (compare(referer, temp) > 0) {
+                    referer = temp;
+                }
+            }
         }
 
-        Collections.sort(remoteReferers, new LowActivePriorityComparator<T>());
-        refersHolder.addAll(remoteReferers);
+        return referer;
     }
 
     private List<Referer<T>> searchLocalReferer(List<Referer<T>> referers, String localhost) {
@@ -135,9 +169,7 @@ public class LocalFirstLoadBalance<T> extends AbstractLoadBalance<T> {
         for (Referer<T> referer : referers) {
             long tmp = ipToLong(referer.getUrl().getHost());
             if (local != 0 && local == tmp) {
-                if (referer.isAvailable()) {
-                    localReferers.add(referer);
-                }
+                localReferers.add(referer);
             }
         }
 
@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.extension.SpiMeta;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.util.NetUtils;
+
+/**
+ * "就近访问" 负载均衡，LocalFirst的泛化
+ *
+ * <pre>
+ * 		1） 层级划分：
+ * 			onRefresh时把referers按与client的距离划分为 同机、同zone、同idc、跨idc 四个层级，请求时不做任何字符串解析。
+ * 			server配置了zone/idc且client配置了localZone/localIdc时按配置比较，否则按ip前缀(zoneIpPrefix/idcIpPrefix)比较。
+ *
+ * 		2） 层级选择：
+ * 			优先使用最近的层级，层级内按ActiveWeight选择；
+ * 			当层级内可用referer比例低于localityMinHealthyPercent，或最空闲referer的并发数达到localityMaxActive时，溢出到下一层级。
+ * 			所有层级都不满足时，使用并发数最小的可用referer。
+ * </pre>
+ */
+@SpiMeta(name = "locality")
+public class LocalityLoadBalance<T> extends AbstractLoadBalance<T> {
+    static final int TIER_HOST = 0;
+    static final int TIER_ZONE = 1;
+    static final int TIER_IDC = 2;
+    static final int TIER_REMOTE = 3;
+
+    private volatile Tiers<T> tiers;
+
+    @Override
+    public void onRefresh(List<Referer<T>> referers) {
+        // 先替换tiers，保证select时getReferers()不为空的情况下tiers也已就绪
+        tiers = buildTiers(referers);
+        super.onRefresh(referers);
+    }
+
+    @Override
+    protected Referer<T> doSelect(Request request) {
+        Tiers<T> current = tiers;
+        Referer<T> fallback = null;
+
+        for (List<Referer<T>> tier : current.tiers) {
+            int size = tier.size();
+            int probes = Math.min(size, MAX_REFERER_COUNT);
+            int startIndex = ThreadLocalRandom.current().nextInt(size);
+            int available = 0;
+            Referer<T> best = null;
+
+            for (int i = 0; i < probes; i++) {
+                Referer<T> temp = tier.get((startIndex + i) % size);
+                if (!temp.isAvailable()) {
+                    continue;
+                }
+                available++;
+                if (best == null || best.activeRefererCount() > temp.activeRefererCount()) {
+                    best = temp;
+                }
+            }
+
+            if (best == null) {
+                continue;
+            }
+            if (current.isHealthy(available, probes) && !current.isSaturated(best)) {
+                return best;
+            }
+            if (fallback == null || fallback.activeRefererCount() > best.activeRefererCount()) {
+                fallback = best;
+            }
+        }
+
+        return fallback;
+    }
+
+    @Override
+    protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
+        Tiers<T> current = tiers;
+        // 候选直接写入holder：[正常层级...][溢出层级...]，normalEnd为正常层级的结束位置
+        int base = refersHolder.size();
+        int normalEnd = base;
+
+        for (List<Referer<T>> tier : current.tiers) {
+            int limit = MAX_REFERER_COUNT - (refersHolder.size() - base);
+            if (limit <= 0) {
+                break;
+            }
+
+            int size = tier.size();
+            int startIndex = ThreadLocalRandom.current().nextInt(size);
+            int probes = 0;
+            int from = refersHolder.size();
+
+            while (refersHolder.size() - from < limit && probes < size) {
+                Referer<T> temp = tier.get((startIndex + probes) % size);
+                probes++;
+                if (temp.isAvailable()) {
+                    refersHolder.add(temp);
+                }
+            }
+
+            int count = refersHolder.size() - from;
+            if (count == 0) {
+                continue;
+            }
+            LocalFirstLoadBalance.sortLowActive(refersHolder, from);
+
+            if (current.isHealthy(count, probes) && !current.isSaturated(refersHolder.get(from))) {
+                if (from > normalEnd) {
+                    // 正常层级的referer移到已有的溢出referer之前
+                    Collections.rotate(refersHolder.subList(normalEnd, refersHolder.size()), count);
+                }
+                normalEnd += count;
+            }
+        }
+    }
+
+    private Tiers<T> buildTiers(List<Referer<T>> referers) {
+        URL config = referers.isEmpty() ? null : referers.get(0).getUrl();
+        Tiers<T> result = new Tiers<T>();
+        String localZone = getParameter(config, URLParamType.localZone);
+        String localIdc = getParameter(config, URLParamType.localIdc);
+        int zoneIpPrefix = getIntParameter(config, URLParamType.zoneIpPrefix);
+        int idcIpPrefix = getIntParameter(config, URLParamType.idcIpPrefix);
+        result.minHealthyPercent = getIntParameter(config, URLParamType.localityMinHealthyPercent);
+        result.maxActive = getIntParameter(config, URLParamType.localityMaxActive);
+
+        long localIp = LocalFirstLoadBalance.ipToLong(NetUtils.getLocalAddress().getHostAddress());
+        List<List<Referer<T>>> tierList = new ArrayList<List<Referer<T>>>();
+        for (int i = 0; i <= TIER_REMOTE; i++) {
+            tierList.add(new ArrayList<Referer<T>>());
+        }
+
+        for (Referer<T> referer : referers) {
+            URL url = referer.getUrl();
+            int tier = TIER_REMOTE;
+            if (url != null) {
+                long ip = LocalFirstLoadBalance.ipToLong(url.getHost());
+                if (localIp != 0 && localIp == ip) {
+                    tier = TIER_HOST;
+                } else if (isSameLocation(localZone, getParameter(url, URLParamType.zone), localIp, ip, zoneIpPrefix)) {
+                    tier = TIER_ZONE;
+                } else if (isSameLocation(localIdc, getParameter(url, URLParamType.idc), localIp, ip, idcIpPrefix)) {
+                    tier = TIER_IDC;
+                }
+            }
+            tierList.get(tier).add(referer);
+        }
+
+        // 空层级不参与选择
+        for (List<Referer<T>> tier : tierList) {
+            if (!tier.isEmpty()) {
+                result.tiers.add(tier);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSameLocation(String local, String remote, long localIp, long remoteIp, int ipPrefix) {
+        if (!local.isEmpty() && !remote.isEmpty()) {
+            return local.equals(remote);
+        }
+        if (localIp == 0 || remoteIp == 0 || ipPrefix <= 0) {
+            return false;
+        }
+        long mask = ipPrefix >= 32 ? 0xFFFFFFFFL : (0xFFFFFFFFL << (32 - ipPrefix)) & 0xFFFFFFFFL;
+        return (localIp & mask) == (remoteIp & mask);
+    }
+
+    private static String getParameter(URL url, URLParamType param) {
+        return url == null ? param.getValue() : url.getParameter(param.getName(), param.getValue());
+    }
+
+    private static int getIntParameter(URL url, URLParamType param) {
+        return url == null ? param.getIntValue() : url.getIntParameter(param.getName(), param.getIntValue());
+    }
+
+    static class Tiers<T> {
+        final List<List<Referer<T>>> tiers = new ArrayList<List<Referer<T>>>();
+        int minHealthyPercent;
+        int maxActive;
+
+        boolean isHealthy(int available, int probes) {
+            return available * 100 >= probes * minHealthyPercent;
+        }
+
+        boolean isSaturated(Referer<T> referer) {
+            return maxActive > 0 && referer.activeRefererCount() >= maxActive;
+        }
+    }
+}
@@ -35,28 +35,23 @@ public class RandomLoadBalance<T> extends AbstractLoadBalance<T> {
 
     @Override
     protected Referer<T> doSelect(Request request) {
-        List<Referer<T>> referers = getReferers();
-
-        int idx = (int) (ThreadLocalRandom.current().nextDouble() * referers.size());
-        for (int i = 0; i < referers.size(); i++) {
-            Referer<T> ref = referers.get((i + idx) % referers.size());
-            if (ref.isAvailable()) {
-                return ref;
-            }
+        Referer<T>[] referers = getAvailableReferers();
+        if (referers.length == 0) {
+            return null;
         }
-        return null;
+        return referers[ThreadLocalRandom.current().nextInt(referers.length)];
     }
 
     @Override
     protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
-        List<Referer<T>> referers = getReferers();
+        Referer<T>[] referers = getAvailableReferers();
+        if (referers.length == 0) {
+            return;
+        }
 
-        int idx = (int) (ThreadLocalRandom.current().nextDouble() * referers.size());
-        for (int i = 0; i < referers.size(); i++) {
-            Referer<T> referer = referers.get((i + idx) % referers.size());
-            if (referer.isAvailable()) {
-                refersHolder.add(referer);
-            }
+        int idx = ThreadLocalRandom.current().nextInt(referers.length);
+        for (int i = 0; i < referers.length; i++) {
+            refersHolder.add(referers[(i + idx) % referers.length]);
         }
     }
 }
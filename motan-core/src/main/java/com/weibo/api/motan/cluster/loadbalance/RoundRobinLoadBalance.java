@@ -38,29 +38,24 @@ public class RoundRobinLoadBalance<T> extends AbstractLoadBalance<T> {
 
     @Override
     protected Referer<T> doSelect(Request request) {
-        List<Referer<T>> referers = getReferers();
-
-        int index = getNextPositive();
-        for (int i = 0; i < referers.size(); i++) {
-            Referer<T> ref = referers.get((i + index) % referers.size());
-            if (ref.isAvailable()) {
-                return ref;
-            }
+        Referer<T>[] referers = getAvailableReferers();
+        if (referers.length == 0) {
+            return null;
         }
-        return null;
+        return referers[getNextPositive() % referers.length];
     }
 
     @Override
     protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
-        List<Referer<T>> referers = getReferers();
+        Referer<T>[] referers = getAvailableReferers();
+        if (referers.length == 0) {
+            return;
+        }
 
         int index = getNextPositive();
-        for (int i = 0, count = 0; i < referers.size() && count < MAX_REFERER_COUNT; i++) {
-            Referer<T> referer = referers.get((i + index) % referers.size());
-            if (referer.isAvailable()) {
-                refersHolder.add(referer);
-                count++;
-            }
+        int count = Math.min(referers.length, MAX_REFERER_COUNT);
+        for (int i = 0; i < count; i++) {
+            refersHolder.add(referers[(i + index) % referers.length]);
         }
     }
 
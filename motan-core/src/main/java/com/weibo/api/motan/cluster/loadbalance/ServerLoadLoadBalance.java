@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.core.extension.SpiMeta;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.ServerLoadAware;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * "server负载反馈" 负载均衡
+ *
+ * <pre>
+ * 		1） server在response中回传工作线程池的负载百分比，client端只看activeRefererCount时无法感知其他client带来的压力；
+ *
+ * 		2） 选择策略：
+ * 			与ActiveWeight相同，从随机位置开始取最多MAX_REFERER_COUNT个可用referer进行比较；
+ * 			负载达到serverLoadThreshold的referer只在没有其他候选时才会被选择；
+ * 			其余referer按 (activeRefererCount + 1) * (100 + serverLoad) 从小到大排序，负载未知时按0计算。
+ *
+ * 		3） 配合loadFeedback=true使用时，空闲的client也会通过心跳定期更新server负载。
+ * </pre>
+ */
+@SpiMeta(name = "serverLoad")
+public class ServerLoadLoadBalance<T> extends AbstractLoadBalance<T> {
+
+    private volatile int threshold = URLParamType.serverLoadThreshold.getIntValue();
+    private final Comparator<Referer<T>> comparator = new Comparator<Referer<T>>() {
+        @Override
+        public int compare(Referer<T> referer1, Referer<T> referer2) {
+            return ServerLoadLoadBalance.this.compare(referer1, referer2);
+        }
+    };
+
+    @Override
+    public void onRefresh(List<Referer<T>> referers) {
+        URL url = referers.isEmpty() ? null : referers.get(0).getUrl();
+        if (url != null) {
+            threshold = url.getIntParameter(URLParamType.serverLoadThreshold.getName(), URLParamType.serverLoadThreshold.getIntValue());
+        }
+        super.onRefresh(referers);
+    }
+
+    @Override
+    protected Referer<T> doSelect(Request request) {
+        Referer<T>[] referers = getAvailableReferers();
+
+        int refererSize = referers.length;
+        if (refererSize == 0) {
+            return null;
+        }
+        int startIndex = ThreadLocalRandom.current().nextInt(refererSize);
+        int count = Math.min(refererSize, MAX_REFERER_COUNT);
+
+        Referer<T> referer = null;
+
+        for (int i = 0; i < count; i++) {
+            Referer<T> temp = referers[(startIndex + i) % refererSize];
+
+            if (referer == null || compare(referer, temp) > 0) {
+                referer = temp;
+            }
+        }
+
+        return referer;
+    }
+
+    @Override
+    protected void doSelectToHolder(Request request, List<Referer<T>> refersHolder) {
+        Referer<T>[] referers = getAvailableReferers();
+
+        int refererSize = referers.length;
+        if (refererSize == 0) {
+            return;
+        }
+        int startIndex = ThreadLocalRandom.current().nextInt(refererSize);
+        int count = Math.min(refererSize, MAX_REFERER_COUNT);
+
+        for (int i = 0; i < count; i++) {
+            refersHolder.add(referers[(startIndex + i) % refererSize]);
+        }
+
+        Collections.sort(refersHolder, comparator);
+    }
+
+    private int compare(Referer<T> referer1, Referer<T> referer2) {
+        int load1 = getServerLoad(referer1);
+        int load2 = getServerLoad(referer2);
+        boolean hot1 = load1 >= threshold;
+        boolean hot2 = load2 >= threshold;
+        if (hot1 != hot2) {
+            return hot1 ? 1 : -1;
+        }
+        long score1 = (referer1.activeRefererCount() + 1L) * (100 + Math.max(load1, 0));
+        long score2 = (referer2.activeRefererCount() + 1L) * (100 + Math.max(load2, 0));
+        return score1 < score2 ? -1 : (score1 == score2 ? 0 : 1);
+    }
+
+    private static int getServerLoad(Referer<?> referer) {
+        return referer instanceof ServerLoadAware ? ((ServerLoadAware) referer).getServerLoad() : -1;
+    }
+}
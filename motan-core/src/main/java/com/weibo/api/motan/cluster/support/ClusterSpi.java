@@ -18,6 +18,7 @@ package com.weibo.api.motan.cluster.support;
 
 import com.weibo.api.motan.cluster.Cluster;
 import com.weibo.api.motan.cluster.HaStrategy;
+import com.weibo.api.motan.cluster.IncrementalLoadBalance;
 import com.weibo.api.motan.cluster.LoadBalance;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.SpiMeta;
@@ -27,9 +28,13 @@ import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.rpc.*;
 import com.weibo.api.motan.util.CollectionUtil;
 import com.weibo.api.motan.util.ExceptionUtil;
+import com.weibo.api.motan.util.StatisticCallback;
+import com.weibo.api.motan.util.StatsUtil;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -89,6 +94,9 @@ public class ClusterSpi<T> implements Cluster<T> {
         for (Referer<T> referer : this.referers) {
             referer.destroy();
         }
+        if (haStrategy instanceof StatisticCallback) {
+            StatsUtil.unRegistryStatisticCallback((StatisticCallback) haStrategy);
+        }
     }
 
     @Override
@@ -119,27 +127,43 @@ public class ClusterSpi<T> implements Cluster<T> {
             return;
         }
 
-        loadBalance.onRefresh(referers);
         List<Referer<T>> oldReferers = this.referers;
+        List<Referer<T>> added = new ArrayList<Referer<T>>();
+        List<Referer<T>> removed = new ArrayList<Referer<T>>();
+        diff(oldReferers, referers, added, removed);
+
+        if (loadBalance instanceof IncrementalLoadBalance) {
+            ((IncrementalLoadBalance<T>) loadBalance).onRefresh(referers, added, removed);
+        } else {
+            loadBalance.onRefresh(referers);
+        }
         this.referers = referers;
         haStrategy.setUrl(getUrl());
 
+        if (!removed.isEmpty()) {
+            RefererSupports.delayDestroy(removed);
+        }
+    }
+
+    /**
+     * 通过hash set计算新增和移除的referer，避免大集群下List.contains带来的O(N^2)开销
+     */
+    private void diff(List<Referer<T>> oldReferers, List<Referer<T>> newReferers, List<Referer<T>> added, List<Referer<T>> removed) {
         if (oldReferers == null || oldReferers.isEmpty()) {
+            added.addAll(newReferers);
             return;
         }
-
-        List<Referer<T>> delayDestroyReferers = new ArrayList<Referer<T>>();
-
-        for (Referer<T> referer : oldReferers) {
-            if (referers.contains(referer)) {
-                continue;
+        Set<Referer<T>> oldSet = new HashSet<Referer<T>>(oldReferers);
+        Set<Referer<T>> newSet = new HashSet<Referer<T>>(newReferers);
+        for (Referer<T> referer : newReferers) {
+            if (!oldSet.contains(referer)) {
+                added.add(referer);
             }
-
-            delayDestroyReferers.add(referer);
         }
-
-        if (!delayDestroyReferers.isEmpty()) {
-            RefererSupports.delayDestroy(delayDestroyReferers);
+        for (Referer<T> referer : oldReferers) {
+            if (!newSet.contains(referer)) {
+                removed.add(referer);
+            }
         }
     }
 
@@ -34,11 +34,12 @@ import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.util.CollectionUtil;
 import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.StringTools;
-import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -56,7 +57,8 @@ public class ClusterSupport<T> implements NotifyListener {
     private URL url;
     private Class<T> interfaceClass;
     private Protocol protocol;
-    private ConcurrentHashMap<URL, List<Referer<T>>> registryReferers = new ConcurrentHashMap<URL, List<Referer<T>>>();
+    // registryUrl -> (serviceUrl -> referer)，按serviceUrl索引，notify时O(1)复用已有referer
+    private ConcurrentHashMap<URL, Map<URL, Referer<T>>> registryReferers = new ConcurrentHashMap<URL, Map<URL, Referer<T>>>();
 
 
     public ClusterSupport(Class<T> interfaceClass, List<URL> registryUrls) {
@@ -139,6 +141,7 @@ public class ClusterSupport<T> implements NotifyListener {
      * <pre>
      * 1 notify的执行需要串行
      * 2 notify通知都是全量通知，在设入新的referer后，cluster需要把不再使用的referer进行回收，避免资源泄漏;
+     *   已有referer按serviceUrl索引复用，provider没有增减时不刷新cluster；
      * 3 如果该registry对应的referer数量为0，而没有其他可用的referers，那就忽略该次通知；
      * 4 此处对protoco进行decorator处理，当前为增加filters
      * </pre>
@@ -163,31 +166,45 @@ public class ClusterSupport<T> implements NotifyListener {
         // 判断urls中是否包含权重信息，并通知loadbalance。
         processWeights(urls);
 
-        List<Referer<T>> newReferers = new ArrayList<Referer<T>>();
+        List<URL> serviceUrls = new ArrayList<URL>(urls.size());
         for (URL u : urls) {
-            if (!u.canServe(url)) {
+            if (u.canServe(url)) {
+                serviceUrls.add(u);
+            }
+        }
+        serviceUrls = selectSubset(serviceUrls);
+
+        Map<URL, Referer<T>> oldReferers = registryReferers.get(registryUrl);
+        Map<URL, Referer<T>> newReferers = new LinkedHashMap<URL, Referer<T>>();
+        boolean changed = false;
+        for (URL u : serviceUrls) {
+            if (newReferers.containsKey(u)) {
                 continue;
             }
-            Referer<T> referer = getExistingReferer(u, registryReferers.get(registryUrl));
+            Referer<T> referer = oldReferers == null ? null : oldReferers.get(u);
             if (referer == null) {
                 // careful u: serverURL, refererURL的配置会被serverURL的配置覆盖
                 URL refererURL = u.createCopy();
                 mergeClientConfigs(refererURL);
                 referer = protocol.refer(interfaceClass, refererURL, u);
+                changed = true;
             }
             if (referer != null) {
-                newReferers.add(referer);
+                newReferers.put(u, referer);
             }
         }
 
-        if (CollectionUtil.isEmpty(newReferers)) {
+        if (newReferers.isEmpty()) {
             onRegistryEmpty(registryUrl);
             return;
         }
 
         // 此处不销毁referers，由cluster进行销毁
         registryReferers.put(registryUrl, newReferers);
-        refreshCluster();
+        // provider没有增减时不需要刷新cluster
+        if (changed || oldReferers == null || oldReferers.size() != newReferers.size()) {
+            refreshCluster();
+        }
     }
 
     /**
@@ -209,6 +226,30 @@ public class ClusterSupport<T> implements NotifyListener {
         }
     }
 
+    /**
+     * 开启subsetSize时，只为确定性选出的provider子集创建referer，避免大集群下连接数为 client数*provider数
+     *
+     * @param serviceUrls
+     * @return
+     */
+    private List<URL> selectSubset(List<URL> serviceUrls) {
+        int subsetSize = url.getIntParameter(URLParamType.subsetSize.getName(), URLParamType.subsetSize.getIntValue());
+        if (subsetSize <= 0 || serviceUrls.size() <= subsetSize) {
+            return serviceUrls;
+        }
+        String clientId = url.getParameter(URLParamType.subsetClientId.getName(), URLParamType.subsetClientId.getValue());
+        if (StringUtils.isBlank(clientId)) {
+            clientId = url.getHost();
+        }
+        List<URL> subset = RendezvousSubset.select(clientId, serviceUrls, subsetSize);
+        LoggerUtil.info("ClusterSupport select subset: service={} clientId={} total={} subset={}", url.getIdentity(), clientId,
+                serviceUrls.size(), subset.size());
+        if (LoggerUtil.isDebugEnabled()) {
+            LoggerUtil.debug("ClusterSupport subset urls: service={} urls={}", url.getIdentity(), getIdentities(subset));
+        }
+        return subset;
+    }
+
     private void onRegistryEmpty(URL excludeRegistryUrl) {
         boolean noMoreOtherRefers = registryReferers.size() == 1 && registryReferers.containsKey(excludeRegistryUrl);
         if (noMoreOtherRefers) {
@@ -230,18 +271,6 @@ public class ClusterSupport<T> implements NotifyListener {
         return decorateProtocol;
     }
 
-    private Referer<T> getExistingReferer(URL url, List<Referer<T>> referers) {
-        if (referers == null) {
-            return null;
-        }
-        for (Referer<T> r : referers) {
-            if (ObjectUtils.equals(url, r.getUrl()) || ObjectUtils.equals(url, r.getServiceUrl())) {
-                return r;
-            }
-        }
-        return null;
-    }
-
     /**
      * refererURL的扩展参数中，除了application、module外，其他参数被client覆盖， 如果client没有则使用referer的参数
      *
@@ -258,8 +287,8 @@ public class ClusterSupport<T> implements NotifyListener {
 
     private void refreshCluster() {
         List<Referer<T>> referers = new ArrayList<Referer<T>>();
-        for (List<Referer<T>> refs : registryReferers.values()) {
-            referers.addAll(refs);
+        for (Map<URL, Referer<T>> refs : registryReferers.values()) {
+            referers.addAll(refs.values());
         }
         cluster.onRefresh(referers);
     }
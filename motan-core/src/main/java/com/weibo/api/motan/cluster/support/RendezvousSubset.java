@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * 基于rendezvous hashing(HRW)的确定性子集选择。
+ *
+ * <pre>
+ * 		1) 对每个provider计算 hash(clientId, host:port)，取得分最高的subsetSize个；
+ * 		2) 同一个clientId总是得到相同的子集，provider增减时只影响被增减的节点所在的位置；
+ * 		3) hash均匀时每个provider被选中的概率都是 subsetSize/N，各provider承担的client数近似均匀。
+ * </pre>
+ */
+public class RendezvousSubset {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * @param clientId
+     * @param urls provider列表
+     * @param subsetSize
+     * @return 按原顺序排列的子集，subsetSize<=0或不小于urls数量时返回全部urls
+     */
+    public static List<URL> select(String clientId, List<URL> urls, int subsetSize) {
+        if (subsetSize <= 0 || urls.size() <= subsetSize) {
+            return urls;
+        }
+
+        long clientHash = hash(FNV_OFFSET, clientId);
+        long[] scores = new long[urls.size()];
+        for (int i = 0; i < urls.size(); i++) {
+            URL u = urls.get(i);
+            scores[i] = score(clientHash, u.getHost() + ":" + u.getPort());
+        }
+
+        long[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[sorted.length - subsetSize];
+
+        int equalNeeded = subsetSize;
+        for (long score : scores) {
+            if (score > threshold) {
+                equalNeeded--;
+            }
+        }
+        List<URL> subset = new ArrayList<URL>(subsetSize);
+        for (int i = 0; i < urls.size(); i++) {
+            if (scores[i] > threshold) {
+                subset.add(urls.get(i));
+            } else if (scores[i] == threshold && equalNeeded > 0) {
+                subset.add(urls.get(i));
+                equalNeeded--;
+            }
+        }
+        return subset;
+    }
+
+    private static long score(long clientHash, String providerKey) {
+        return fmix64(hash(clientHash, providerKey));
+    }
+
+    private static long hash(long seed, String value) {
+        long h = seed;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    // murmur3 finalizer，打散FNV结果的低位相关性
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -24,8 +24,12 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanFrameworkException;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.StageTimes;
 
 /**
  * @author maijunsheng
@@ -50,6 +54,31 @@ public abstract class AbstractCodec implements Codec {
         return serialize.deserialize(value, type);
     }
 
+    /**
+     * response末尾附带server各阶段耗时
+     *
+     * @param encodeStart 开始编码response的时间(System.nanoTime)
+     * @return 需要设置的flag，没有写入时返回0
+     */
+    protected byte writeStageTrailer(ObjectOutput output, Response response, long encodeStart) throws IOException {
+        StageTimes stageTimes = response instanceof DefaultResponse ? ((DefaultResponse) response).getStageTimes() : null;
+        if (stageTimes == null) {
+            return 0;
+        }
+        stageTimes.set(StageTimes.Stage.SERVER_ENCODE, (System.nanoTime() - encodeStart) / 1000);
+        stageTimes.writeServerStages(output);
+        return MotanConstants.FLAG_STAGE_TRAILER;
+    }
+
+    protected void readStageTrailer(ObjectInput input, byte flag, DefaultResponse response) throws IOException {
+        if ((flag & MotanConstants.FLAG_STAGE_TRAILER) == 0) {
+            return;
+        }
+        StageTimes stageTimes = new StageTimes();
+        stageTimes.readServerStages(input);
+        response.setStageTimes(stageTimes);
+    }
+
     public ObjectOutput createOutput(OutputStream outputStream) {
         try {
             return new ObjectOutputStream(outputStream);
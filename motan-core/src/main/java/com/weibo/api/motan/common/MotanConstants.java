@@ -99,6 +99,14 @@ public class MotanConstants {
     public static final byte FLAG_RESPONSE_EXCEPTION = 0x05;
     public static final byte FLAG_RESPONSE_ATTACHMENT = 0x07;
     public static final byte FLAG_OTHER = (byte) 0xFF;
+    // response body末尾附带server各阶段耗时，不影响flag & 0x07的消息类型判断，旧版本client会忽略
+    public static final byte FLAG_STAGE_TRAILER = 0x08;
+    // client开启stageTimes时在request attachment中要求server回传各阶段耗时
+    public static final String ATTACHMENT_STAGE_TIMES = "_S";
+    // server通过response attachment回传的负载百分比
+    public static final String ATTACHMENT_SERVER_LOAD = "_L";
+    // server负载的有效期(ms)，超过该时间未更新视为未知
+    public static final int SERVER_LOAD_EXPIRE_TIME = 3000;
     /**
      * heartbeat constants start
      */
@@ -106,6 +114,8 @@ public class MotanConstants {
     public static final String HEARTBEAT_INTERFACE_NAME = "com.weibo.api.motan.rpc.heartbeat";
     public static final String HEARTBEAT_METHOD_NAME = "heartbeat";
     public static final String HHEARTBEAT_PARAM = ReflectUtil.EMPTY_PARAM;
+    // 开启loadFeedback时，client空闲超过该时间(ms)会发送心跳以获取server负载
+    public static final int SERVER_LOAD_REFRESH_PERIOD = 1000;
     /**
      * heartbeat constants end
      */
@@ -119,6 +129,14 @@ public class MotanConstants {
      * 默认的consistent的hash的数量
      */
     public static final int DEFAULT_CONSISTENT_HASH_BASE_LOOP = 1000;
+    /**
+     * affinity负载均衡中每个referer在hash环上的虚拟节点数
+     */
+    public static final int AFFINITY_VIRTUAL_NODES = 160;
+    /**
+     * 亲和路由key，调用方通过RpcContext attribute设置，随request attachment传递
+     */
+    public static final String ROUTING_KEY = "_rk";
 
     private MotanConstants() {
     }
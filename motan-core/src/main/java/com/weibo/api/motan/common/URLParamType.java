@@ -69,6 +69,10 @@ public enum URLParamType {
     group("group", "default_rpc"), 
     clientGroup("clientGroup", "default_rpc"), 
     accessLog("accessLog", false),
+    // access log缓冲区满时的处理方式：drop丢弃并计数，block等待
+    accessLogOverflow("accessLogOverflow", "drop"),
+    // 是否统计client、server各阶段耗时，client开启时要求server回传，server开启时才会回传
+    stageTimes("stageTimes", false),
 
     // 0为不做并发限制
     actives("actives", 0),
@@ -86,6 +90,29 @@ public enum URLParamType {
     cluster("cluster", MotanConstants.DEFAULT_VALUE), 
     loadbalance("loadbalance", "activeWeight"), 
     haStrategy("haStrategy", "failover"), 
+    // 每个client只连接确定性选出的subsetSize个provider，<=0时连接全部provider
+    subsetSize("subsetSize", 0),
+    // 子集选择使用的client标识，默认为client的ip
+    subsetClientId("subsetClientId", ""),
+    // server所在的zone(机架/可用区)和idc，由server端配置
+    zone("zone", ""),
+    idc("idc", ""),
+    // client所在的zone和idc，locality负载均衡据此划分referer层级
+    localZone("localZone", ""),
+    localIdc("localIdc", ""),
+    // 未配置zone/idc时，ip前缀位数相同视为同zone/同idc，<=0时不按ip判断
+    zoneIpPrefix("zoneIpPrefix", 24),
+    idcIpPrefix("idcIpPrefix", 16),
+    // locality层级中可用referer低于该百分比时溢出到下一层级
+    localityMinHealthyPercent("localityMinHealthyPercent", 50),
+    // locality层级中最空闲的referer并发数达到该值时溢出到下一层级，0为不限制
+    localityMaxActive("localityMaxActive", 0),
+    // client空闲时通过心跳获取server负载，供serverLoad负载均衡使用
+    loadFeedback("loadFeedback", false),
+    // server负载百分比达到该值时，serverLoad负载均衡只在没有其他可用server时才选择它
+    serverLoadThreshold("serverLoadThreshold", 80),
+    // affinity负载均衡中单个referer的并发上限为平均并发的百分比，超过后同一key溢出到hash环上的下一个referer
+    affinityLoadFactor("affinityLoadFactor", 125),
     protocol("protocol", MotanConstants.PROTOCOL_MOTAN), 
     path("path", ""), 
     host("host", ""), 
@@ -104,6 +131,18 @@ public enum URLParamType {
     module("module", MotanConstants.FRAMEWORK_NAME),
 
     retries("retries", 0), 
+    // 方法是否幂等，会重复发送请求的ha策略（如hedged）只对幂等方法生效
+    idempotent("idempotent", false),
+    // hedged策略补发请求前的等待时间(ms)，<=0时使用该方法统计的p95耗时
+    hedgeDelay("hedgeDelay", 0),
+    // hedged补发请求数占正常请求数的最大百分比
+    hedgeBudgetPercent("hedgeBudgetPercent", 10),
+    // forking策略同时发送请求的referer数
+    forks("forks", 2),
+    // failover重试数占成功请求数的最大百分比，<=0时不限制重试（默认）
+    retryBudgetPercent("retryBudgetPercent", 0),
+    // 重试预算耗尽时每秒仍允许的最少重试次数
+    minRetriesPerSecond("minRetriesPerSecond", 10),
     async("async", false), 
     mock("mock", "false"), 
     mean("mean", "2"), 
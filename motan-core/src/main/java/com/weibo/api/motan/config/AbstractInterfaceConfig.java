@@ -103,6 +103,12 @@ public class AbstractInterfaceConfig extends AbstractConfig {
     // 是否记录访问日志，true记录，false不记录
     protected String accessLog;
 
+    // access log缓冲区满时的处理方式：drop丢弃，block等待
+    protected String accessLogOverflow;
+
+    // 是否统计各阶段耗时
+    protected Boolean stageTimes;
+
     // 是否进行check，如果为true，则在监测失败后抛异常
     protected String check;
 
@@ -183,6 +189,22 @@ public class AbstractInterfaceConfig extends AbstractConfig {
         this.accessLog = accessLog;
     }
 
+    public String getAccessLogOverflow() {
+        return accessLogOverflow;
+    }
+
+    public void setAccessLogOverflow(String accessLogOverflow) {
+        this.accessLogOverflow = accessLogOverflow;
+    }
+
+    public Boolean getStageTimes() {
+        return stageTimes;
+    }
+
+    public void setStageTimes(Boolean stageTimes) {
+        this.stageTimes = stageTimes;
+    }
+
     public List<RegistryConfig> getRegistries() {
         return registries;
     }
@@ -33,6 +33,12 @@ public class MethodConfig extends AbstractConfig {
     private Integer actives;
     // 参数类型（逗号分隔）
     private String argumentTypes;
+    // 方法是否幂等
+    private Boolean idempotent;
+    // hedged策略补发请求前的等待时间(ms)
+    private Integer hedgeDelay;
+    // forking策略同时发送请求的referer数
+    private Integer forks;
 
     @ConfigDesc(excluded = true)
     public String getName() {
@@ -75,4 +81,28 @@ public class MethodConfig extends AbstractConfig {
     public void setArgumentTypes(String argumentTypes) {
         this.argumentTypes = argumentTypes;
     }
+
+    public Boolean getIdempotent() {
+        return idempotent;
+    }
+
+    public void setIdempotent(Boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public Integer getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    public void setHedgeDelay(Integer hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public Integer getForks() {
+        return forks;
+    }
+
+    public void setForks(Integer forks) {
+        this.forks = forks;
+    }
 }
@@ -16,24 +16,29 @@
 
 package com.weibo.api.motan.filter;
 
+import java.util.Map;
+
 import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.Activation;
 import com.weibo.api.motan.core.extension.SpiMeta;
 import com.weibo.api.motan.rpc.Caller;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Provider;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
-import com.weibo.api.motan.util.LoggerUtil;
-import com.weibo.api.motan.util.NetUtils;
-import com.weibo.api.motan.util.StringTools;
+import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.rpc.URL;
 
 /**
  * <pre>
  * Access log filter
  *
  * 统计整个call的执行状况，尽量到最上层，最后执行.
- * 此filter会对性能产生一定影响，请求量较大时建议关闭。
+ * 日志由AccessLogWriter在后台线程中批量写出，缓冲区满时按accessLogOverflow丢弃或等待。
+ * 异步调用在response future完成时记录。
+ * 同步和异步调用使用相同的成功标准：没有抛出异常，且response中没有异常（包括业务异常）。
  *
  * </pre>
  * 
@@ -47,18 +52,31 @@ public class AccessLogFilter implements Filter {
     private String side;
 
     @Override
-    public Response filter(Caller<?> caller, Request request) {
+    public Response filter(final Caller<?> caller, final Request request) {
         boolean needLog = caller.getUrl().getBooleanParameter(URLParamType.accessLog.getName(), URLParamType.accessLog.getBooleanValue());
         if (needLog) {
-            long t1 = System.currentTimeMillis();
+            final long t1 = System.currentTimeMillis();
             boolean success = false;
+            boolean async = false;
             try {
                 Response response = caller.call(request);
-                success = true;
+                if (response instanceof ResponseFuture) {
+                    async = true;
+                    ((ResponseFuture) response).addListener(new FutureListener() {
+                        @Override
+                        public void operationComplete(Future future) throws Exception {
+                            logAccess(caller, request, System.currentTimeMillis() - t1, future.getException() == null);
+                        }
+                    });
+                } else {
+                    success = response != null && response.getException() == null;
+                }
                 return response;
             } finally {
-                long consumeTime = System.currentTimeMillis() - t1;
-                logAccess(caller, request, consumeTime, success);
+                if (!async) {
+                    long consumeTime = System.currentTimeMillis() - t1;
+                    logAccess(caller, request, consumeTime, success);
+                }
             }
         } else {
             return caller.call(request);
@@ -71,37 +89,28 @@ public class AccessLogFilter implements Filter {
             setSide(side);
         }
 
-        StringBuilder builder = new StringBuilder(128);
-        append(builder, side);
-        append(builder, caller.getUrl().getParameter(URLParamType.application.getName()));
-        append(builder, caller.getUrl().getParameter(URLParamType.module.getName()));
-        append(builder, NetUtils.getLocalAddress().getHostAddress());
-        append(builder, request.getInterfaceName());
-        append(builder, request.getMethodName());
-        append(builder, request.getParamtersDesc());
+        // 请求线程中只获取原始字段，格式化及写日志在AccessLogWriter的后台线程中进行
+        URL url = caller.getUrl();
+        String application = url.getParameter(URLParamType.application.getName());
+        String module = url.getParameter(URLParamType.module.getName());
+        String remoteHost, remoteApplication, remoteModule;
         // 对于client，url中的remote ip, application, module,referer 和 service获取的地方不同
         if (MotanConstants.NODE_TYPE_REFERER.equals(side)) {
-            append(builder, caller.getUrl().getHost());
-            append(builder, caller.getUrl().getParameter(URLParamType.application.getName()));
-            append(builder, caller.getUrl().getParameter(URLParamType.module.getName()));
+            remoteHost = url.getHost();
+            remoteApplication = application;
+            remoteModule = module;
         } else {
-            append(builder, request.getAttachments().get(URLParamType.host.getName()));
-            append(builder, request.getAttachments().get(URLParamType.application.getName()));
-            append(builder, request.getAttachments().get(URLParamType.module.getName()));
+            Map<String, String> attachments = request.getAttachments();
+            remoteHost = attachments.get(URLParamType.host.getName());
+            remoteApplication = attachments.get(URLParamType.application.getName());
+            remoteModule = attachments.get(URLParamType.module.getName());
         }
+        boolean block = AccessLogWriter.OVERFLOW_BLOCK.equals(url.getParameter(URLParamType.accessLogOverflow.getName(),
+                URLParamType.accessLogOverflow.getValue()));
 
-        append(builder, success);
-        append(builder, request.getAttachments().get(URLParamType.requestIdFromClient.getName()));
-        append(builder, consumeTime);
-
-        LoggerUtil.accessLog(builder.substring(0, builder.length() - 1));
-    }
-
-    private void append(StringBuilder builder, Object field) {
-        if (field != null) {
-            builder.append(StringTools.urlEncode(field.toString()));
-        }
-        builder.append(MotanConstants.SEPERATOR_ACCESS_LOG);
+        AccessLogWriter.getInstance().offer(side, application, module, request.getInterfaceName(), request.getMethodName(),
+                request.getParamtersDesc(), remoteHost, remoteApplication, remoteModule, success,
+                request.getAttachments().get(URLParamType.requestIdFromClient.getName()), consumeTime, block);
     }
 
     public String getSide() {
@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.filter;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.weibo.api.motan.closable.Closable;
+import com.weibo.api.motan.closable.ShutDownHook;
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.MetricsCallback;
+import com.weibo.api.motan.util.NetUtils;
+import com.weibo.api.motan.util.OpenMetricsWriter;
+import com.weibo.api.motan.util.StatisticCallback;
+import com.weibo.api.motan.util.StatsUtil;
+import com.weibo.api.motan.util.StringTools;
+
+/**
+ * 异步批量写access log。
+ *
+ * <pre>
+ * 		1) 请求线程只把原始字段写入预分配的环形缓冲区，格式化（url encode、拼接）及写日志在后台线程中批量进行；
+ * 		2) 多个请求线程通过CAS申请槽位，写完字段后发布，后台线程按顺序消费，空闲时park，有新日志时由请求线程唤醒；
+ * 		3) 缓冲区满时按accessLogOverflow处理：drop丢弃并计数（默认），block等待后台线程腾出空间；
+ * 		4) 丢弃的数量通过统计回调输出到日志及metrics。
+ * </pre>
+ */
+public class AccessLogWriter implements StatisticCallback, MetricsCallback {
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final AccessLogWriter INSTANCE = new AccessLogWriter(DEFAULT_BUFFER_SIZE);
+
+    private final Entry[] entries;
+    private final int mask;
+    // 下一个申请的序号
+    private final AtomicLong claimSequence = new AtomicLong();
+    // 下一个消费的序号
+    private volatile long consumeSequence;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private volatile boolean stopped;
+    private String localHost;
+
+    public static AccessLogWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param bufferSize 缓冲区大小，向上取整为2的幂
+     */
+    public AccessLogWriter(int bufferSize) {
+        int size = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * 在请求线程中调用，只记录原始字段
+     *
+     * @param block 缓冲区满时是否等待，否则丢弃
+     * @return 是否成功放入缓冲区
+     */
+    public boolean offer(String side, String application, String module, String interfaceName, String methodName,
+            String paramDesc, String remoteHost, String remoteApplication, String remoteModule, boolean success,
+            String requestIdFromClient, long consumeTime, boolean block) {
+        if (stopped) {
+            return false;
+        }
+        long sequence;
+        while (true) {
+            sequence = claimSequence.get();
+            if (sequence - consumeSequence > mask) {
+                if (!block || stopped) {
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+                wakeUpConsumer();
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                continue;
+            }
+            if (claimSequence.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Entry entry = entries[(int) (sequence & mask)];
+        entry.side = side;
+        entry.application = application;
+        entry.module = module;
+        entry.interfaceName = interfaceName;
+        entry.methodName = methodName;
+        entry.paramDesc = paramDesc;
+        entry.remoteHost = remoteHost;
+        entry.remoteApplication = remoteApplication;
+        entry.remoteModule = remoteModule;
+        entry.success = success;
+        entry.requestIdFromClient = requestIdFromClient;
+        entry.consumeTime = consumeTime;
+        entry.published = sequence;
+
+        if (consumer == null) {
+            startConsumer();
+        }
+        if (consumerWaiting) {
+            wakeUpConsumer();
+        }
+        return true;
+    }
+
+    private void wakeUpConsumer() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void startConsumer() {
+        if (consumer != null || stopped) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "motan-access-log-writer");
+        thread.setDaemon(true);
+        consumer = thread;
+        thread.start();
+        StatsUtil.registryStatisticCallback(this);
+        ShutDownHook.registerShutdownHook(new Closable() {
+            @Override
+            public void close() {
+                AccessLogWriter.this.close();
+            }
+        });
+    }
+
+    private void consume() {
+        StringBuilder builder = new StringBuilder(256);
+        while (true) {
+            int count = drain(builder);
+            if (count > 0) {
+                continue;
+            }
+            if (stopped) {
+                // 关闭前写完已发布的日志
+                drain(builder);
+                return;
+            }
+            consumerWaiting = true;
+            if (!isPublished(consumeSequence)) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * 写出所有已发布的日志
+     *
+     * @return 写出的条数
+     */
+    private int drain(StringBuilder builder) {
+        int count = 0;
+        long sequence = consumeSequence;
+        while (isPublished(sequence)) {
+            Entry entry = entries[(int) (sequence & mask)];
+            builder.setLength(0);
+            entry.format(builder, getLocalHost());
+            entry.clear();
+            consumeSequence = ++sequence;
+            try {
+                write(builder.toString());
+            } catch (Exception e) {
+                LoggerUtil.warn("AccessLogWriter write Error: " + e.getMessage());
+            }
+            count++;
+        }
+        writtenCount.addAndGet(count);
+        return count;
+    }
+
+    private boolean isPublished(long sequence) {
+        return entries[(int) (sequence & mask)].published == sequence;
+    }
+
+    /**
+     * 写一条格式化好的日志
+     */
+    protected void write(String line) {
+        LoggerUtil.accessLog(line);
+    }
+
+    private String getLocalHost() {
+        if (localHost == null) {
+            InetAddress address = NetUtils.getLocalAddress();
+            if (address == null) {
+                return "";
+            }
+            localHost = StringTools.urlEncode(address.getHostAddress());
+        }
+        return localHost;
+    }
+
+    /**
+     * 停止后台线程，已放入缓冲区的日志会写完
+     */
+    public void close() {
+        stopped = true;
+        StatsUtil.unRegistryStatisticCallback(this);
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * 缓冲区中等待写出的日志数
+     */
+    public long getPendingCount() {
+        return Math.max(claimSequence.get() - consumeSequence, 0);
+    }
+
+    @Override
+    public String statisticCallback() {
+        long dropped = getDroppedCount();
+        if (dropped == 0) {
+            return null;
+        }
+        return String.format("access log writer: written: %s dropped: %s pending: %s", getWrittenCount(), dropped,
+                getPendingCount());
+    }
+
+    @Override
+    public void collectMetrics(OpenMetricsWriter writer) {
+        writer.counter("motan_access_log_written", "Access log lines written.").sample(getWrittenCount());
+        writer.counter("motan_access_log_dropped", "Access log lines dropped because the buffer was full.").sample(
+                getDroppedCount());
+        writer.gauge("motan_access_log_pending", "Access log lines waiting to be written.").sample(getPendingCount());
+    }
+
+    private static class Entry {
+        // 发布后为该槽位的序号
+        volatile long published = -1;
+        String side;
+        String application;
+        String module;
+        String interfaceName;
+        String methodName;
+        String paramDesc;
+        String remoteHost;
+        String remoteApplication;
+        String remoteModule;
+        boolean success;
+        String requestIdFromClient;
+        long consumeTime;
+
+        void format(StringBuilder builder, String localHost) {
+            append(builder, side);
+            append(builder, application);
+            append(builder, module);
+            builder.append(localHost).append(MotanConstants.SEPERATOR_ACCESS_LOG);
+            append(builder, interfaceName);
+            append(builder, methodName);
+            append(builder, paramDesc);
+            append(builder, remoteHost);
+            append(builder, remoteApplication);
+            append(builder, remoteModule);
+            builder.append(success).append(MotanConstants.SEPERATOR_ACCESS_LOG);
+            append(builder, requestIdFromClient);
+            builder.append(consumeTime);
+        }
+
+        private static void append(StringBuilder builder, String field) {
+            if (field != null) {
+                builder.append(StringTools.urlEncode(field));
+            }
+            builder.append(MotanConstants.SEPERATOR_ACCESS_LOG);
+        }
+
+        void clear() {
+            side = application = module = interfaceName = methodName = paramDesc = null;
+            remoteHost = remoteApplication = remoteModule = requestIdFromClient = null;
+        }
+    }
+}
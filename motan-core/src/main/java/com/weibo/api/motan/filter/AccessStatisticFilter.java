@@ -16,11 +16,14 @@
 
 package com.weibo.api.motan.filter;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.core.extension.SpiMeta;
 import com.weibo.api.motan.rpc.*;
 import com.weibo.api.motan.util.ExceptionUtil;
 import com.weibo.api.motan.util.MotanFrameworkUtil;
+import com.weibo.api.motan.util.AccessStatisticItem;
 import com.weibo.api.motan.util.StatsUtil;
 import com.weibo.api.motan.util.StatsUtil.AccessStatus;
 
@@ -32,26 +35,40 @@ import com.weibo.api.motan.util.StatsUtil.AccessStatus;
 public class AccessStatisticFilter implements Filter {
     protected static Application RPC_SERVICES = new Application(ApplicationInfo.STATISTIC, "rpc_service");
 
+    // 方法名 -> 该方法（各重载）的统计项，避免每次调用拼接统计名和查找统计项。filter按caller创建，通常只对应一个caller
+    private final ConcurrentHashMap<String, MethodStatistic[]> methodStatistics = new ConcurrentHashMap<String, MethodStatistic[]>();
+
     @Override
-    public Response filter(Caller<?> caller, Request request) {
-        long start = System.currentTimeMillis();
+    public Response filter(final Caller<?> caller, final Request request) {
+        final long start = System.currentTimeMillis();
+        // 延迟分布使用微秒精度
+        final long startNanos = System.nanoTime();
         AccessStatus accessStatus = AccessStatus.NORMAL;
         boolean specialException = true;
+        boolean async = false;
         long bizProcessTime = 0;
 
         try {
             Response response = caller.call(request);
 
+            if (response instanceof ResponseFuture) {
+                // 异步调用在完成时统计
+                async = true;
+                final ResponseFuture future = (ResponseFuture) response;
+                future.addListener(new FutureListener() {
+                    @Override
+                    public void operationComplete(Future f) throws Exception {
+                        accessStatistic(caller, request, start, startNanos, System.currentTimeMillis(), future.getProcessTime(),
+                                getAccessStatus(future.getException()));
+                    }
+                });
+                return response;
+            }
+
             if (response == null) {
                 accessStatus = AccessStatus.OTHER_EXCEPTION;
             } else {
-                if (response.getException() != null) {
-                    if (ExceptionUtil.isBizException(response.getException())) {
-                        accessStatus = AccessStatus.BIZ_EXCEPTION;
-                    } else {
-                        accessStatus = AccessStatus.OTHER_EXCEPTION;
-                    }
-                }
+                accessStatus = getAccessStatus(response.getException());
 
                 specialException = false;
                 bizProcessTime = response.getProcessTime();
@@ -59,23 +76,102 @@ public class AccessStatisticFilter implements Filter {
 
             return response;
         } finally {
-            long end = System.currentTimeMillis();
+            if (!async) {
+                long end = System.currentTimeMillis();
 
-            if (specialException) {
-                accessStatus = AccessStatus.OTHER_EXCEPTION;
-                bizProcessTime = end - start;
+                if (specialException) {
+                    accessStatus = AccessStatus.OTHER_EXCEPTION;
+                    bizProcessTime = end - start;
+                }
+
+                accessStatistic(caller, request, start, startNanos, end, bizProcessTime, accessStatus);
             }
+        }
+    }
 
-            Application application;
+    private AccessStatus getAccessStatus(Exception exception) {
+        if (exception == null) {
+            return AccessStatus.NORMAL;
+        }
+        return ExceptionUtil.isBizException(exception) ? AccessStatus.BIZ_EXCEPTION : AccessStatus.OTHER_EXCEPTION;
+    }
+
+    private void accessStatistic(Caller<?> caller, Request request, long start, long startNanos, long end, long bizProcessTime,
+            AccessStatus accessStatus) {
+        long costMicros = (System.nanoTime() - startNanos) / 1000;
+        try {
+            MethodStatistic statistic = getMethodStatistic(caller, request);
+            if (statistic.serviceItem != null) {
+                statistic.serviceItem.statistic(end, end - start, costMicros, bizProcessTime, accessStatus);
+            }
+            statistic.item.statistic(end, end - start, costMicros, bizProcessTime, accessStatus);
+        } catch (Exception e) {
+        }
+    }
+
+    private MethodStatistic getMethodStatistic(Caller<?> caller, Request request) {
+        String paramDesc = request.getParamtersDesc() == null ? "" : request.getParamtersDesc();
+        MethodStatistic[] statistics = methodStatistics.get(request.getMethodName());
+        if (statistics != null) {
+            for (MethodStatistic statistic : statistics) {
+                if (statistic.matches(caller, request.getInterfaceName(), paramDesc)) {
+                    return statistic;
+                }
+            }
+        }
+        return addMethodStatistic(caller, request, paramDesc);
+    }
+
+    private synchronized MethodStatistic addMethodStatistic(Caller<?> caller, Request request, String paramDesc) {
+        MethodStatistic[] statistics = methodStatistics.get(request.getMethodName());
+        int size = statistics == null ? 0 : statistics.length;
+        for (int i = 0; i < size; i++) {
+            if (statistics[i].matches(caller, request.getInterfaceName(), paramDesc)) {
+                return statistics[i];
+            }
+        }
+        MethodStatistic statistic = new MethodStatistic(caller, request, paramDesc);
+        MethodStatistic[] updated = new MethodStatistic[size + 1];
+        if (size > 0) {
+            System.arraycopy(statistics, 0, updated, 0, size);
+        }
+        updated[size] = statistic;
+        methodStatistics.put(request.getMethodName(), updated);
+        return statistic;
+    }
+
+    /**
+     * 预先解析的方法统计项。
+     * 
+     * <pre>
+     * 		统计名中的group在创建时从request中解析，之后不再逐次解析：
+     * 		同一caller的请求group是固定的，referer的group来自其url，provider只会收到路由到本group的请求。
+     * </pre>
+     */
+    private static class MethodStatistic {
+        private final Caller<?> caller;
+        private final String interfaceName;
+        private final String paramDesc;
+        private final AccessStatisticItem item;
+        // provider额外统计到rpc_service
+        private final AccessStatisticItem serviceItem;
+
+        MethodStatistic(Caller<?> caller, Request request, String paramDesc) {
+            this.caller = caller;
+            this.interfaceName = request.getInterfaceName();
+            this.paramDesc = paramDesc;
             String statName =
                     caller.getUrl().getProtocol() + MotanConstants.PROTOCOL_SEPARATOR + MotanFrameworkUtil.getGroupMethodString(request);
-            if (caller instanceof Provider) {
-                application = RPC_SERVICES;
-                StatsUtil.accessStatistic(statName, application, end, end - start, bizProcessTime, accessStatus);
-            }
-            application = ApplicationInfo.getApplication(caller.getUrl());
-            StatsUtil.accessStatistic(statName, application, end, end - start, bizProcessTime, accessStatus);
+            this.item = StatsUtil.getStatisticItem(statName, ApplicationInfo.getApplication(caller.getUrl()));
+            this.serviceItem = caller instanceof Provider ? StatsUtil.getStatisticItem(statName, RPC_SERVICES) : null;
+        }
+
+        boolean matches(Caller<?> caller, String interfaceName, String paramDesc) {
+            return this.caller == caller && this.paramDesc.equals(paramDesc) && equals(this.interfaceName, interfaceName);
+        }
 
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
         }
     }
 }
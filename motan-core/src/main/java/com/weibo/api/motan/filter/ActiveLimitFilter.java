@@ -16,15 +16,21 @@
 
 package com.weibo.api.motan.filter;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.Activation;
 import com.weibo.api.motan.core.extension.SpiMeta;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.rpc.Caller;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ResponseFuture;
 import com.weibo.api.motan.rpc.RpcStats;
+import com.weibo.api.motan.rpc.URL;
 
 /**
  * 
@@ -36,29 +42,121 @@ import com.weibo.api.motan.rpc.RpcStats;
 @SpiMeta(name = "active")
 @Activation(sequence = 1)
 public class ActiveLimitFilter implements Filter {
+    // filter为PROTOTYPE，每个referer/provider一个实例，服务及方法的统计项只解析一次
+    private volatile StatHolder statHolder;
 
     @Override
-    public Response filter(Caller<?> caller, Request request) {
+    public Response filter(final Caller<?> caller, final Request request) {
+        StatHolder holder = getStatHolder(caller.getUrl());
+        final RpcStats.ServiceStat stat = holder.stat;
         int maxAcvitivyCount = caller.getUrl().getIntParameter(URLParamType.actives.getName(), URLParamType.actives.getIntValue());
         if (maxAcvitivyCount > 0) {
-            int activeCount = RpcStats.getServiceStat(caller.getUrl()).getActiveCount();
+            int activeCount = stat.getActiveCount();
             if (activeCount >= maxAcvitivyCount) {
                 throw new MotanServiceException(String.format("Request(%s) active count exceed the limit (%s), referer:%s", request,
                         maxAcvitivyCount, caller.getUrl()), MotanErrorMsgConstant.SERVICE_REJECT);
             }
         }
 
-        long startTime = System.currentTimeMillis();
-        RpcStats.beforeCall(caller.getUrl(), request);
+        final RpcStats.StatInfo methodStat = holder.getMethodStat(request.getMethodName(), request.getParamtersDesc());
+        final long startTime = System.currentTimeMillis();
+        stat.beforeCall();
+        methodStat.beforeCall();
         try {
             Response rs = caller.call(request);
-            RpcStats.afterCall(caller.getUrl(), request, true, System.currentTimeMillis() - startTime);
+            if (rs instanceof ResponseFuture) {
+                // 异步调用在完成时才结束计数
+                ((ResponseFuture) rs).addListener(new FutureListener() {
+                    @Override
+                    public void operationComplete(Future future) throws Exception {
+                        afterCall(stat, methodStat, future.getException() == null, startTime);
+                    }
+                });
+            } else {
+                afterCall(stat, methodStat, true, startTime);
+            }
             return rs;
         } catch (RuntimeException re) {
-            RpcStats.afterCall(caller.getUrl(), request, false, System.currentTimeMillis() - startTime);
+            afterCall(stat, methodStat, false, startTime);
             throw re;
         }
 
     }
 
+    private StatHolder getStatHolder(URL url) {
+        StatHolder holder = statHolder;
+        if (holder == null || holder.url != url || holder.stat.isRemoved()) {
+            holder = new StatHolder(url, RpcStats.getServiceStat(url));
+            statHolder = holder;
+        }
+        return holder;
+    }
+
+    private static void afterCall(RpcStats.StatInfo stat, RpcStats.StatInfo methodStat, boolean success, long startTime) {
+        long procTimeMills = System.currentTimeMillis() - startTime;
+        stat.afterCall(success, procTimeMills);
+        methodStat.afterCall(success, procTimeMills);
+    }
+
+    /**
+     * 服务的统计项及已解析的方法统计项：方法名 -> 各参数描述的统计项，每次调用只查找一次map
+     */
+    private static class StatHolder {
+        private final URL url;
+        private final RpcStats.ServiceStat stat;
+        private final ConcurrentHashMap<String, MethodStat[]> methodStats = new ConcurrentHashMap<String, MethodStat[]>();
+
+        StatHolder(URL url, RpcStats.ServiceStat stat) {
+            this.url = url;
+            this.stat = stat;
+        }
+
+        RpcStats.StatInfo getMethodStat(String methodName, String methodParaDesc) {
+            String paramDesc = methodParaDesc == null ? "" : methodParaDesc;
+            MethodStat[] stats = methodStats.get(methodName);
+            if (stats != null) {
+                for (MethodStat methodStat : stats) {
+                    if (methodStat.paramDesc.equals(paramDesc) && !methodStat.stat.isRemoved()) {
+                        return methodStat.stat;
+                    }
+                }
+            }
+            return addMethodStat(methodName, paramDesc);
+        }
+
+        // 首次调用或统计项被cleaner清理后重新解析，写时复制
+        private synchronized RpcStats.StatInfo addMethodStat(String methodName, String paramDesc) {
+            MethodStat[] stats = methodStats.get(methodName);
+            int size = stats == null ? 0 : stats.length;
+            int index = size;
+            for (int i = 0; i < size; i++) {
+                if (stats[i].paramDesc.equals(paramDesc)) {
+                    if (!stats[i].stat.isRemoved()) {
+                        return stats[i].stat;
+                    }
+                    index = i;
+                    break;
+                }
+            }
+            MethodStat methodStat = new MethodStat(paramDesc, stat.getMethodStat(methodName, paramDesc));
+            MethodStat[] updated = new MethodStat[index == size ? size + 1 : size];
+            if (size > 0) {
+                System.arraycopy(stats, 0, updated, 0, size);
+            }
+            updated[index] = methodStat;
+            methodStats.put(methodName, updated);
+            return methodStat.stat;
+        }
+    }
+
+    private static class MethodStat {
+        private final String paramDesc;
+        private final RpcStats.StatInfo stat;
+
+        MethodStat(String paramDesc, RpcStats.StatInfo stat) {
+            this.paramDesc = paramDesc;
+            this.stat = stat;
+        }
+    }
+
 }
@@ -232,7 +232,7 @@ public class CompressRpcCodec extends AbstractCodec {
 
         try {
             if (isResponse) {
-                return decodeResponse(body, dataType, requestId, data[2], serialization);
+                return decodeResponse(body, flag, requestId, data[2], serialization);
             } else {
                 return decodeRequest(body, requestId, remoteIp, serialization);
             }
@@ -411,6 +411,7 @@ public class CompressRpcCodec extends AbstractCodec {
                         channel.getUrl().getParameter(URLParamType.serialize.getName(), URLParamType.serialize.getValue()));
 
         byte flag = 0;
+        long encodeStart = System.nanoTime();
 
         output.writeLong(value.getProcessTime());
 
@@ -428,7 +429,8 @@ public class CompressRpcCodec extends AbstractCodec {
             if (attachments != null) {
                 String signed = attachments.get(ATTACHMENT_SIGN);
                 String unSigned = attachments.get(UN_ATTACHMENT_SIGN);
-                attachments.clear(); // 除了attachment签名外不返回其他信息。
+                String serverLoad = attachments.get(MotanConstants.ATTACHMENT_SERVER_LOAD);
+                attachments.clear(); // 除了attachment签名和server负载外不返回其他信息。
 
                 if (StringUtils.isNotBlank(signed)) {
                     attachments.put(ATTACHMENT_SIGN, signed);
@@ -436,6 +438,9 @@ public class CompressRpcCodec extends AbstractCodec {
                 if (StringUtils.isNotBlank(unSigned)) {
                     attachments.put(UN_ATTACHMENT_SIGN, unSigned);
                 }
+                if (StringUtils.isNotBlank(serverLoad)) {
+                    attachments.put(MotanConstants.ATTACHMENT_SERVER_LOAD, serverLoad);
+                }
             }
             if (attachments != null && !attachments.isEmpty()) {// 需要回传附加数据
                 addAttachment(output, attachments);
@@ -445,6 +450,7 @@ public class CompressRpcCodec extends AbstractCodec {
             }
             flag = MotanConstants.FLAG_RESPONSE_ATTACHMENT; // v2版本flag
         }
+        flag |= writeStageTrailer(output, value, encodeStart);
 
         output.flush();
 
@@ -634,7 +640,7 @@ public class CompressRpcCodec extends AbstractCodec {
     /**
      * 
      * @param body
-     * @param dataType
+     * @param flag
      * @param requestId
      * @param rpcProtocolVersion rpc协议的版本号，不同版本可能有不同的序列化方式
      * @param serialization
@@ -642,8 +648,9 @@ public class CompressRpcCodec extends AbstractCodec {
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private Object decodeResponse(byte[] body, byte dataType, long requestId, byte rpcProtocolVersion, Serialization serialization)
+    private Object decodeResponse(byte[] body, byte flag, long requestId, byte rpcProtocolVersion, Serialization serialization)
             throws IOException, ClassNotFoundException {
+        byte dataType = (byte) (flag & MASK);
 
 
         ObjectInput input = createInput(getInputStream(body));
@@ -655,6 +662,7 @@ public class CompressRpcCodec extends AbstractCodec {
         response.setProcessTime(processTime);
 
         if (dataType == MotanConstants.FLAG_RESPONSE_VOID) {
+            readStageTrailer(input, flag, response);
             return response;
         }
 
@@ -669,6 +677,9 @@ public class CompressRpcCodec extends AbstractCodec {
             response.setValue(result);
             Map<String, String> attachment = decodeRequestAttachments(input);
             checkAttachment(attachment);
+            if (attachment != null && attachment.containsKey(MotanConstants.ATTACHMENT_SERVER_LOAD)) {
+                response.setAttachment(MotanConstants.ATTACHMENT_SERVER_LOAD, attachment.get(MotanConstants.ATTACHMENT_SERVER_LOAD));
+            }
         } else if (dataType == MotanConstants.FLAG_RESPONSE_EXCEPTION) {
             response.setException((Exception) result);
         } else {
@@ -677,6 +688,7 @@ public class CompressRpcCodec extends AbstractCodec {
         }
 
         response.setRequestId(requestId);
+        readStageTrailer(input, flag, response);
 
         input.close();
 
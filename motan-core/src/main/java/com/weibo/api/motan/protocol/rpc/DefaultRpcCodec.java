@@ -136,7 +136,7 @@ public class DefaultRpcCodec extends AbstractCodec {
         try {
             // 解码
             if (isResponse) { // response
-                return decodeResponse(body, dataType, requestId, serialization);
+                return decodeResponse(body, flag, requestId, serialization);
             } else {
                 return decodeRequest(body, requestId, serialization);
             }
@@ -245,6 +245,7 @@ public class DefaultRpcCodec extends AbstractCodec {
                         channel.getUrl().getParameter(URLParamType.serialize.getName(), URLParamType.serialize.getValue()));
 
         byte flag = 0;
+        long encodeStart = System.nanoTime();
 
         // 写入处理时间
         output.writeLong(value.getProcessTime());
@@ -264,6 +265,9 @@ public class DefaultRpcCodec extends AbstractCodec {
             flag = MotanConstants.FLAG_RESPONSE;
         }
 
+        // 附带server各阶段耗时
+        flag |= writeStageTrailer(output, value, encodeStart);
+
         // 清空缓冲区获取数据
         output.flush();
 
@@ -388,8 +392,9 @@ public class DefaultRpcCodec extends AbstractCodec {
         return attachments;
     }
 
-    private Object decodeResponse(byte[] body, byte dataType, long requestId, Serialization serialization) throws IOException,
+    private Object decodeResponse(byte[] body, byte flag, long requestId, Serialization serialization) throws IOException,
             ClassNotFoundException {
+        byte dataType = (byte) (flag & MASK);
 
         // 通过对象输入流创建对象输入
         ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
@@ -405,6 +410,7 @@ public class DefaultRpcCodec extends AbstractCodec {
 
         // 如果响应类型是VOID直接返回
         if (dataType == MotanConstants.FLAG_RESPONSE_VOID) {
+            readStageTrailer(input, flag, response);
             return response;
         }
 
@@ -426,6 +432,7 @@ public class DefaultRpcCodec extends AbstractCodec {
         }
 
         response.setRequestId(requestId);
+        readStageTrailer(input, flag, response);
 
         // 关闭输入流
         input.close();
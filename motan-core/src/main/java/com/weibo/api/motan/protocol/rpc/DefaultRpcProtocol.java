@@ -33,6 +33,7 @@ import com.weibo.api.motan.rpc.Provider;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ServerLoadAware;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.transport.Client;
 import com.weibo.api.motan.transport.EndpointFactory;
@@ -149,7 +150,7 @@ public class DefaultRpcProtocol extends AbstractProtocol {
      * @param <T>
      * @author maijunsheng
      */
-    class DefaultRpcReferer<T> extends AbstractReferer<T> {
+    class DefaultRpcReferer<T> extends AbstractReferer<T> implements ServerLoadAware {
         private Client client;
         private EndpointFactory endpointFactory;
 
@@ -203,6 +204,11 @@ public class DefaultRpcProtocol extends AbstractProtocol {
             return client.isAvailable();
         }
 
+        @Override
+        public int getServerLoad() {
+            return client instanceof ServerLoadAware ? ((ServerLoadAware) client).getServerLoad() : -1;
+        }
+
         @Override
         public void destroy() {
             endpointFactory.safeReleaseResource(client, url);
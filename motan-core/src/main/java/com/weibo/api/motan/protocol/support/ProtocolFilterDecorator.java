@@ -38,6 +38,7 @@ import com.weibo.api.motan.rpc.Provider;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ServerLoadAware;
 import com.weibo.api.motan.rpc.URL;
 
 /**
@@ -80,7 +81,7 @@ public class ProtocolFilterDecorator implements Protocol {
         for (Filter filter : filters) {
             final Filter f = filter;
             final Referer<T> lf = lastRef;
-            lastRef = new Referer<T>() {
+            lastRef = new FilterReferer<T>() {
                 @Override
                 public Response call(Request request) {
                     Activation activation = f.getClass().getAnnotation(Activation.class);
@@ -130,11 +131,20 @@ public class ProtocolFilterDecorator implements Protocol {
                 public URL getServiceUrl() {
                     return lf.getServiceUrl();
                 }
+
+                @Override
+                public int getServerLoad() {
+                    return lf instanceof ServerLoadAware ? ((ServerLoadAware) lf).getServerLoad() : -1;
+                }
             };
         }
         return lastRef;
     }
 
+    // filter包装后的referer，需要透传被包装referer的server负载
+    private abstract static class FilterReferer<T> implements Referer<T>, ServerLoadAware {
+    }
+
     private <T> Provider<T> decorateWithFilter(Provider<T> provider, URL url) {
         List<Filter> filters = getFilters(url, MotanConstants.NODE_TYPE_SERVICE);
         if (filters == null || filters.size() == 0) {
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.proxy;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.util.ExceptionUtil;
+import com.weibo.api.motan.util.LoggerUtil;
+
+/**
+ * 返回值为CompletableFuture/CompletionStage的接口方法使用的future。
+ *
+ * <pre>
+ * 		1) 通过ResponseFuture的listener完成，调用线程不会阻塞；
+ * 		2) 异常处理与同步调用一致：业务异常以原始异常完成，其他异常在throwException=false时以null完成；
+ * 		3) 回调在完成response的线程（通常是netty io线程）中执行，耗时的后续处理应使用xxxAsync方法切换到业务线程池；
+ * 		4) cancel时同时取消底层的ResponseFuture。
+ * </pre>
+ *
+ * 只在接口中声明了CompletableFuture返回值时才会加载，不影响jdk8以下的运行环境。
+ */
+class CompletableResponseFuture extends CompletableFuture<Object> {
+
+    private final ResponseFuture responseFuture;
+    private final boolean throwException;
+
+    private CompletableResponseFuture(ResponseFuture responseFuture, boolean throwException) {
+        this.responseFuture = responseFuture;
+        this.throwException = throwException;
+    }
+
+    static CompletableFuture<Object> create(final Response response, boolean throwException) {
+        if (!(response instanceof ResponseFuture)) {
+            CompletableResponseFuture future = new CompletableResponseFuture(null, throwException);
+            future.complete(response);
+            return future;
+        }
+
+        final CompletableResponseFuture future = new CompletableResponseFuture((ResponseFuture) response, throwException);
+        ((ResponseFuture) response).addListener(new FutureListener() {
+            @Override
+            public void operationComplete(Future f) throws Exception {
+                future.complete(response);
+            }
+        });
+        return future;
+    }
+
+    static CompletableFuture<Object> failed(Throwable t) {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private void complete(Response response) {
+        Exception e = response.getException();
+        if (e == null) {
+            complete(response.getValue());
+        } else if (ExceptionUtil.isBizException(e)) {
+            completeExceptionally(RefererInvocationHandler.unwrapBizException(e));
+        } else if (!throwException) {
+            LoggerUtil.warn("CompletableResponseFuture complete false, so return default value: requestId=" + response.getRequestId(), e);
+            complete(null);
+        } else {
+            completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && responseFuture != null) {
+            responseFuture.cancel();
+        }
+        return cancelled;
+    }
+}
@@ -19,9 +19,11 @@ package com.weibo.api.motan.proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.weibo.api.motan.cluster.Cluster;
 import com.weibo.api.motan.common.MotanConstants;
@@ -29,12 +31,18 @@ import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.ExtensionLoader;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.Application;
 import com.weibo.api.motan.rpc.ApplicationInfo;
 import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
 import com.weibo.api.motan.rpc.ResponseFuture;
 import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.switcher.Switcher;
 import com.weibo.api.motan.switcher.SwitcherService;
 import com.weibo.api.motan.util.ExceptionUtil;
@@ -42,6 +50,7 @@ import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.MotanFrameworkUtil;
 import com.weibo.api.motan.util.ReflectUtil;
 import com.weibo.api.motan.util.RequestIdGenerator;
+import com.weibo.api.motan.util.RpcEvents;
 
 /**
  * 
@@ -52,9 +61,12 @@ import com.weibo.api.motan.util.RequestIdGenerator;
 public class RefererInvocationHandler<T> implements InvocationHandler {
 
     private List<Cluster<T>> clusters;
+    private List<ClusterInfo<T>> clusterInfos;
     private Class<T> clz;
     private SwitcherService switcherService = null;
     private String interfaceName;
+    // 方法的调用元数据在refer时生成，调用时不再进行反射和字符串处理
+    private final ConcurrentHashMap<Method, MethodInfo> methodInfos = new ConcurrentHashMap<Method, MethodInfo>();
 
     public RefererInvocationHandler(Class<T> clz, Cluster<T> cluster) {
         this.clz = clz;
@@ -77,79 +89,118 @@ public class RefererInvocationHandler<T> implements InvocationHandler {
                 this.clusters.get(0).getUrl().getParameter(URLParamType.switcherService.getName(), URLParamType.switcherService.getValue());
         switcherService = ExtensionLoader.getExtensionLoader(SwitcherService.class).getExtension(switchName);
         interfaceName = MotanFrameworkUtil.removeAsyncSuffix(clz.getName());
+        clusterInfos = new ArrayList<ClusterInfo<T>>(clusters.size());
+        for (Cluster<T> cluster : clusters) {
+            clusterInfos.add(new ClusterInfo<T>(cluster));
+        }
+        for (Method method : clz.getMethods()) {
+            methodInfos.put(method, new MethodInfo(method, isLocalMethod(method, clz)));
+        }
+        for (Method method : Object.class.getMethods()) {
+            methodInfos.put(method, new MethodInfo(method, isLocalMethod(method, clz)));
+        }
+    }
+
+    private MethodInfo getMethodInfo(Method method) {
+        MethodInfo info = methodInfos.get(method);
+        if (info == null) {
+            // 非接口声明的方法（如Object中的protected方法）在首次调用时生成
+            info = new MethodInfo(method, isLocalMethod(method, clz));
+            MethodInfo old = methodInfos.putIfAbsent(method, info);
+            if (old != null) {
+                info = old;
+            }
+        }
+        return info;
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        if (isLocalMethod(method)) {
-            if ("toString".equals(method.getName())) {
+        MethodInfo info = getMethodInfo(method);
+        if (info.local) {
+            if ("toString".equals(info.methodName)) {
                 return clustersToString();
             }
             throw new MotanServiceException("can not invoke local method:" + method.getName());
         }
+        if (info.completable) {
+            // 返回CompletableFuture的方法不向调用方抛出异常，全部通过future返回
+            try {
+                return invokeRemote(info, args);
+            } catch (Throwable t) {
+                return CompletableResponseFuture.failed(t);
+            }
+        }
+        return invokeRemote(info, args);
+    }
+
+    private Object invokeRemote(MethodInfo info, Object[] args) throws Throwable {
         DefaultRequest request = new DefaultRequest();
         request.setRequestId(RequestIdGenerator.getRequestId());
         request.setArguments(args);
-        String methodName = method.getName();
-        boolean async = false;
-        if (methodName.endsWith(MotanConstants.ASYNC_SUFFIX) && method.getReturnType().equals(ResponseFuture.class)) {
-            methodName = MotanFrameworkUtil.removeAsyncSuffix(methodName);
-            async = true;
-        }
-        RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, async);
-        request.setMethodName(methodName);
-        request.setParamtersDesc(ReflectUtil.getMethodParamDesc(method));
+        boolean async = info.async;
+        RpcContext.getContext().setAsync(async);
+        request.setMethodName(info.methodName);
+        request.setParamtersDesc(info.paramDesc);
         request.setInterfaceName(interfaceName);
-        request.setAttachment(URLParamType.requestIdFromClient.getName(), String.valueOf(RequestIdGenerator.getRequestIdFromClient()));
+        long requestIdFromClient = RequestIdGenerator.getRequestIdFromClient();
+        // 亲和路由key只对当前线程的下一次调用生效
+        Object routingKey = RpcContext.getContext().getAttribute(MotanConstants.ROUTING_KEY);
+        if (routingKey != null) {
+            RpcContext.getContext().revomeAttribute(MotanConstants.ROUTING_KEY);
+        }
 
         // 当 referer配置多个protocol的时候，比如A,B,C，
         // 那么正常情况下只会使用A，如果A被开关降级，那么就会使用B，B也被降级，那么会使用C
-        for (Cluster<T> cluster : clusters) {
-            String protocolSwitcher = MotanConstants.PROTOCOL_SWITCHER_PREFIX + cluster.getUrl().getProtocol();
-
-            Switcher switcher = switcherService.getSwitcher(protocolSwitcher);
+        for (ClusterInfo<T> clusterInfo : clusterInfos) {
+            Cluster<T> cluster = clusterInfo.cluster;
+            Switcher switcher = switcherService.getSwitcher(clusterInfo.protocolSwitcher);
 
             if (switcher != null && !switcher.isOn()) {
                 continue;
             }
 
-            request.setAttachment(URLParamType.version.getName(), cluster.getUrl().getVersion());
-            request.setAttachment(URLParamType.clientGroup.getName(), cluster.getUrl().getGroup());
-            // 带上client的application和module
-            request.setAttachment(URLParamType.application.getName(), ApplicationInfo.getApplication(cluster.getUrl()).getApplication());
-            request.setAttachment(URLParamType.module.getName(), ApplicationInfo.getApplication(cluster.getUrl()).getModule());
+            // 共享cluster的attachment模板，只有本次调用特有的attachment才会复制
+            request.setSharedAttachments(clusterInfo.getAttachments());
+            if (requestIdFromClient != 0) {
+                request.setAttachment(URLParamType.requestIdFromClient.getName(), String.valueOf(requestIdFromClient));
+            }
+            if (routingKey != null) {
+                request.setAttachment(MotanConstants.ROUTING_KEY, routingKey.toString());
+            }
             Response response = null;
-            boolean throwException =
-                    Boolean.parseBoolean(cluster.getUrl().getParameter(URLParamType.throwException.getName(),
-                            URLParamType.throwException.getValue()));
+            boolean throwException = clusterInfo.throwException;
+            // client调用可能在回调线程中结束，只记录开始时间，结束时提交事件
+            long eventStart = 0;
+            if (RpcEvents.isEnabled(RpcEvents.Type.CLIENT_CALL)) {
+                eventStart = System.nanoTime();
+                RpcContext.getContext().setServerUrl(null);
+            }
             try {
                 response = cluster.call(request);
-                if (async && response instanceof ResponseFuture) {
+                if (info.completable) {
+                    return CompletableResponseFuture.create(response, throwException);
+                } else if (async && response instanceof ResponseFuture) {
                     return response;
                 } else {
                     return response.getValue();
                 }
             } catch (RuntimeException e) {
                 if (ExceptionUtil.isBizException(e)) {
-                    Throwable t = e.getCause();
-                    // 只抛出Exception，防止抛出远程的Error
-                    if (t != null && t instanceof Exception) {
-                        throw t;
-                    } else {
-                        String msg =
-                                t == null ? "biz exception cause is null" : ("biz exception cause is throwable error:" + t.getClass()
-                                        + ", errmsg:" + t.getMessage());
-                        throw new MotanServiceException(msg, MotanErrorMsgConstant.SERVICE_DEFAULT_ERROR);
-                    }
+                    throw unwrapBizException(e);
                 } else if (!throwException) {
                     LoggerUtil.warn("RefererInvocationHandler invoke false, so return default value: uri=" + cluster.getUrl().getUri()
                             + " " + MotanFrameworkUtil.toString(request), e);
-                    return getDefaultReturnValue(method.getReturnType());
+                    return info.completable ? CompletableResponseFuture.create(new DefaultResponse(), true) : info.defaultReturnValue;
                 } else {
                     LoggerUtil.error(
                             "RefererInvocationHandler invoke Error: uri=" + cluster.getUrl().getUri() + " "
                                     + MotanFrameworkUtil.toString(request), e);
                     throw e;
                 }
+            } finally {
+                if (eventStart != 0) {
+                    emitCallEvent(eventStart, info, request, (async || info.completable) ? response : null);
+                }
             }
         }
 
@@ -157,16 +208,56 @@ public class RefererInvocationHandler<T> implements InvocationHandler {
                 + MotanFrameworkUtil.toString(request), MotanErrorMsgConstant.SERVICE_UNFOUND);
 
     }
+
+    /**
+     * 提交client调用事件，异步调用在response完成时提交
+     * 
+     * @param future 异步调用返回的response，同步调用为null
+     */
+    private void emitCallEvent(final long startNanos, final MethodInfo info, final Request request, Response future) {
+        URL serverUrl = RpcContext.getContext().getServerUrl();
+        final String remoteAddress = serverUrl == null ? null : serverUrl.getServerPortStr();
+        if (future instanceof ResponseFuture) {
+            ((ResponseFuture) future).addListener(new FutureListener() {
+                @Override
+                public void operationComplete(Future f) throws Exception {
+                    RpcEvents.emit(RpcEvents.Type.CLIENT_CALL, System.nanoTime() - startNanos, interfaceName, info.methodName,
+                            remoteAddress, request.getRequestId(), 0);
+                }
+            });
+        } else {
+            RpcEvents.emit(RpcEvents.Type.CLIENT_CALL, System.nanoTime() - startNanos, interfaceName, info.methodName,
+                    remoteAddress, request.getRequestId(), 0);
+        }
+    }
     
+    /**
+     * 业务异常只抛出原始的Exception，防止抛出远程的Error
+     */
+    static Exception unwrapBizException(Exception e) {
+        Throwable t = e.getCause();
+        if (t != null && t instanceof Exception) {
+            return (Exception) t;
+        }
+        String msg =
+                t == null ? "biz exception cause is null" : ("biz exception cause is throwable error:" + t.getClass() + ", errmsg:"
+                        + t.getMessage());
+        return new MotanServiceException(msg, MotanErrorMsgConstant.SERVICE_DEFAULT_ERROR);
+    }
+
     /**
      * tostring,equals,hashCode,finalize等接口未声明的方法不进行远程调用
      * @param method
      * @return
      */
     public boolean isLocalMethod(Method method){
+        return getMethodInfo(method).local;
+    }
+
+    private static boolean isLocalMethod(Method method, Class<?> clz){
         if(method.getDeclaringClass().equals(Object.class)){
             try{
-                Method interfaceMethod = clz.getDeclaredMethod(method.getName(), method.getParameterTypes());
+                clz.getDeclaredMethod(method.getName(), method.getParameterTypes());
                 return false;
             }catch(Exception e){
                 return true;
@@ -187,13 +278,88 @@ public class RefererInvocationHandler<T> implements InvocationHandler {
         return sb.toString();
     }
 
-    private Object getDefaultReturnValue(Class<?> returnType) {
+    private static Object getDefaultReturnValue(Class<?> returnType) {
         if (returnType != null && returnType.isPrimitive()) {
             return PrimitiveDefault.getDefaultReturnValue(returnType);
         }
         return null;
     }
 
+    /**
+     * cluster调用时不变的信息
+     */
+    private static class ClusterInfo<T> {
+        private final Cluster<T> cluster;
+        private final String protocolSwitcher;
+        private final boolean throwException;
+        private volatile Map<String, String> attachments;
+
+        ClusterInfo(Cluster<T> cluster) {
+            this.cluster = cluster;
+            this.protocolSwitcher = MotanConstants.PROTOCOL_SWITCHER_PREFIX + cluster.getUrl().getProtocol();
+            this.throwException =
+                    Boolean.parseBoolean(cluster.getUrl().getParameter(URLParamType.throwException.getName(),
+                            URLParamType.throwException.getValue()));
+        }
+
+        /**
+         * 只读的attachment模板，首次调用时生成
+         */
+        Map<String, String> getAttachments() {
+            Map<String, String> result = attachments;
+            if (result == null) {
+                URL url = cluster.getUrl();
+                Application application = ApplicationInfo.getApplication(url);
+                result = new HashMap<String, String>();
+                result.put(URLParamType.version.getName(), url.getVersion());
+                result.put(URLParamType.clientGroup.getName(), url.getGroup());
+                // 与DefaultRpcReferer设置的server端group一致时不会触发复制
+                result.put(URLParamType.group.getName(), url.getGroup());
+                // 带上client的application和module
+                result.put(URLParamType.application.getName(), application.getApplication());
+                result.put(URLParamType.module.getName(), application.getModule());
+                result.put(URLParamType.requestIdFromClient.getName(), URLParamType.requestIdFromClient.getValue());
+                result = Collections.unmodifiableMap(result);
+                attachments = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 方法调用时不变的元数据
+     */
+    private static class MethodInfo {
+        private final String methodName;
+        private final String paramDesc;
+        private final boolean async;
+        // 返回值为CompletableFuture/CompletionStage
+        private final boolean completable;
+        private final boolean local;
+        private final Object defaultReturnValue;
+
+        MethodInfo(Method method, boolean local) {
+            String name = method.getName();
+            boolean async = false;
+            if (name.endsWith(MotanConstants.ASYNC_SUFFIX) && method.getReturnType().equals(ResponseFuture.class)) {
+                name = MotanFrameworkUtil.removeAsyncSuffix(name);
+                async = true;
+            }
+            this.completable = isCompletableReturnType(method.getReturnType());
+            this.methodName = name;
+            this.paramDesc = ReflectUtil.getMethodParamDesc(method);
+            this.async = async || completable;
+            this.local = local;
+            this.defaultReturnValue = getDefaultReturnValue(method.getReturnType());
+        }
+
+        // 按类名判断，jdk8以下的运行环境不会加载CompletableFuture
+        private static boolean isCompletableReturnType(Class<?> returnType) {
+            return "java.util.concurrent.CompletableFuture".equals(returnType.getName())
+                    || "java.util.concurrent.CompletionStage".equals(returnType.getName());
+        }
+    }
+
     private static class PrimitiveDefault {
         private static boolean defaultBoolean;
         private static char defaultChar;
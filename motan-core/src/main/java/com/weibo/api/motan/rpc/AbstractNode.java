@@ -31,9 +31,11 @@ public abstract class AbstractNode implements Node {
 
     protected volatile boolean init = false;
     protected volatile boolean available = false;
+    private final AvailabilityVersion availabilityVersion;
 
     public AbstractNode(URL url) {
         this.url = url;
+        this.availabilityVersion = AvailabilityVersion.of(url);
     }
 
     @Override
@@ -54,6 +56,7 @@ public abstract class AbstractNode implements Node {
 
             init = true;
             available = true;
+            availabilityVersion.increment();
         }
     }
 
@@ -65,7 +68,10 @@ public abstract class AbstractNode implements Node {
     }
 
     public void setAvailable(boolean available) {
-        this.available = available;
+        if (this.available != available) {
+            this.available = available;
+            availabilityVersion.increment();
+        }
     }
 
     public URL getUrl() {
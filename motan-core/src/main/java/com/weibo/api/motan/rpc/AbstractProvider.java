@@ -20,6 +20,7 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.ReflectUtil;
 
 /**
@@ -34,6 +35,8 @@ public abstract class AbstractProvider<T> implements Provider<T> {
     protected boolean close = false;
 
     protected Map<String, Method> methodMap = new HashMap<String, Method>();
+    // methodName -> (paramDesc -> method)，查找时不需要拼接methodDesc
+    private Map<String, Map<String, Method>> methodIndex = new HashMap<String, Map<String, Method>>();
 
     public AbstractProvider(URL url, Class<T> clz) {
         this.url = url;
@@ -87,9 +90,9 @@ public abstract class AbstractProvider<T> implements Provider<T> {
     }
 
     protected Method lookup(Request request) {
-        String methodDesc = ReflectUtil.getMethodDesc(request.getMethodName(), request.getParamtersDesc());
+        Map<String, Method> methods = methodIndex.get(request.getMethodName());
 
-        return methodMap.get(methodDesc);
+        return methods == null ? null : methods.get(request.getParamtersDesc());
     }
 
     private void initMethodMap(Class<T> clz) {
@@ -98,6 +101,22 @@ public abstract class AbstractProvider<T> implements Provider<T> {
         for (Method method : methods) {
             String methodDesc = ReflectUtil.getMethodDesc(method);
             methodMap.put(methodDesc, method);
+
+            Map<String, Method> overloads = methodIndex.get(method.getName());
+            if (overloads == null) {
+                overloads = new HashMap<String, Method>();
+                methodIndex.put(method.getName(), overloads);
+            }
+            overloads.put(ReflectUtil.getMethodParamDesc(method), method);
+
+            // 跳过Method.invoke每次调用时的访问检查。
+            // 调用仍使用反射：以-source 1.6编译时javac不支持MethodHandle.invokeExact这类签名多态调用，
+            // 只能退化为invokeWithArguments，装箱和参数适配的开销比inflation后的Method.invoke更大
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                LoggerUtil.warn("AbstractProvider setAccessible fail: method=" + methodDesc + ", " + e.getMessage());
+            }
         }
     }
 
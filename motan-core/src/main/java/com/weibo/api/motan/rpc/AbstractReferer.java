@@ -58,6 +58,7 @@ public abstract class AbstractReferer<T> extends AbstractNode implements Referer
                     + " " + MotanFrameworkUtil.toString(request));
         }
 
+        RpcContext.getContext().setServerUrl(url);
         incrActiveCount(request);
         Response response = null;
         try {
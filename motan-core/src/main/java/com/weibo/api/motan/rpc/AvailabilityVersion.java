@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.weibo.api.motan.util.MotanFrameworkUtil;
+
+/**
+ * 服务维度的client可用状态版本号。
+ *
+ * <pre>
+ * 		同一服务（group/interface/version）的client在可用与不可用之间切换时递增版本号，loadbalance据此判断可用referer快照是否需要重建，
+ * 		版本号不变时选择referer不需要逐个调用isAvailable()。其他服务的状态变化不会使快照失效。
+ * 		版本号对象按服务缓存，node与loadbalance在创建或刷新时获取一次，请求时不再查找。
+ * </pre>
+ */
+public class AvailabilityVersion {
+
+    private static final ConcurrentMap<String, AvailabilityVersion> VERSIONS = new ConcurrentHashMap<String, AvailabilityVersion>();
+
+    private final AtomicLong version = new AtomicLong(0);
+
+    private AvailabilityVersion() {}
+
+    /**
+     * 获取url所属服务的版本号，url为null时返回同一个默认版本号
+     */
+    public static AvailabilityVersion of(URL url) {
+        String key = url == null ? "" : MotanFrameworkUtil.getServiceKey(url);
+        AvailabilityVersion result = VERSIONS.get(key);
+        if (result == null) {
+            AvailabilityVersion created = new AvailabilityVersion();
+            result = VERSIONS.putIfAbsent(key, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    public long get() {
+        return version.get();
+    }
+
+    public void increment() {
+        version.incrementAndGet();
+    }
+}
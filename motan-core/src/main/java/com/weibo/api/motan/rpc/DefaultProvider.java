@@ -31,6 +31,9 @@ import com.weibo.api.motan.util.LoggerUtil;
  */
 @SpiMeta(name = "motan")
 public class DefaultProvider<T> extends AbstractProvider<T> {
+    // jdk8以下的运行环境为null
+    private static final Class<?> COMPLETION_STAGE_CLASS = loadCompletionStageClass();
+
     protected T proxyImpl;
 
     public DefaultProvider(T proxyImpl, URL url, Class<T> clz) {
@@ -55,6 +58,10 @@ public class DefaultProvider<T> extends AbstractProvider<T> {
 
         try {
             Object value = method.invoke(proxyImpl, request.getArguments());
+            if (value != null && COMPLETION_STAGE_CLASS != null && COMPLETION_STAGE_CLASS.isInstance(value)) {
+                // 异步服务方法，完成时再写回response，不占用工作线程
+                return ProviderResponseFuture.create(request, value);
+            }
             response.setValue(value);
         } catch (Exception e) {
             if (e.getCause() != null) {
@@ -78,4 +85,12 @@ public class DefaultProvider<T> extends AbstractProvider<T> {
         return response;
     }
 
+    private static Class<?> loadCompletionStageClass() {
+        try {
+            return Class.forName("java.util.concurrent.CompletionStage");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
 }
@@ -39,7 +39,11 @@ public class DefaultRequest implements Serializable, Request {
     private String paramtersDesc;
     private Object[] arguments;
     private Map<String, String> attachments;
+    // attachments是多个request共享的只读模板，修改前需要先复制
+    private boolean sharedAttachments;
     private int retries = 0;
+    // 各阶段耗时，只在本地使用，不参与序列化
+    private transient StageTimes stageTimes;
 
     private long requestId;
 
@@ -86,6 +90,12 @@ public class DefaultRequest implements Serializable, Request {
     public void setAttachment(String key, String value) {
         if (this.attachments == null) {
             this.attachments = new HashMap<String, String>();
+        } else if (sharedAttachments) {
+            if (value != null && value.equals(attachments.get(key))) {
+                return;
+            }
+            this.attachments = new HashMap<String, String>(attachments);
+            sharedAttachments = false;
         }
 
         this.attachments.put(key, value);
@@ -93,6 +103,21 @@ public class DefaultRequest implements Serializable, Request {
 
     public void setAttachments(Map<String, String> attachments) {
         this.attachments = attachments;
+        this.sharedAttachments = false;
+    }
+
+    /**
+     * 引用共享的attachment模板（copy on write）。
+     * 
+     * <pre>
+     * 		模板在多个request间共享，不能修改；调用setAttachment时才复制一份，值相同时不复制。
+     * </pre>
+     * 
+     * @param attachments 只读的attachment模板
+     */
+    public void setSharedAttachments(Map<String, String> attachments) {
+        this.attachments = attachments;
+        this.sharedAttachments = true;
     }
 
     public long getRequestId() {
@@ -115,6 +140,17 @@ public class DefaultRequest implements Serializable, Request {
         this.retries = retries;
     }
 
+    /**
+     * 各阶段耗时，没有开启stageTimes时为null
+     */
+    public StageTimes getStageTimes() {
+        return stageTimes;
+    }
+
+    public void setStageTimes(StageTimes stageTimes) {
+        this.stageTimes = stageTimes;
+    }
+
     @Override
     public byte getRpcProtocolVersion() {
         return rpcProtocolVersion;
@@ -39,6 +39,8 @@ public class DefaultResponse implements Response, Serializable {
     private long requestId;
     private long processTime;
     private int timeout;
+    // 各阶段耗时，server编码时以trailer回传，client解码时读取
+    private transient StageTimes stageTimes;
 
     private Map<String, String> attachments;// rpc协议版本兼容时可以回传一些额外的信息
 
@@ -127,6 +129,14 @@ public class DefaultResponse implements Response, Serializable {
         this.attachments = attachments;
     }
 
+    public StageTimes getStageTimes() {
+        return stageTimes;
+    }
+
+    public void setStageTimes(StageTimes stageTimes) {
+        this.stageTimes = stageTimes;
+    }
+
     @Override
     public byte getRpcProtocolVersion() {
         return rpcProtocolVersion;
@@ -0,0 +1,325 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.weibo.api.motan.common.FutureState;
+import com.weibo.api.motan.exception.MotanErrorMsgConstant;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.protocol.rpc.RpcProtocolVersion;
+import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.MotanFrameworkUtil;
+
+/**
+ * 与transport无关的response future，由调用方通过onSuccess/onFailure设置结果。
+ *
+ * <pre>
+ * 		getValue()的语义与NettyResponseFuture一致：超过timeout仍未完成则取消并抛出timeout异常。
+ * </pre>
+ */
+public class DefaultResponseFuture implements ResponseFuture {
+    protected volatile FutureState state = FutureState.DOING;
+
+    protected final Object lock = new Object();
+
+    protected Object result = null;
+    protected Exception exception = null;
+
+    protected long createTime = System.currentTimeMillis();
+    protected int timeout = 0;
+    protected long processTime = 0;
+
+    protected Request request;
+    protected List<FutureListener> listeners;
+    protected Map<String, String> attachments;
+    protected byte rpcProtocolVersion = RpcProtocolVersion.VERSION_1.getVersion();
+
+    public DefaultResponseFuture(Request request, int timeout) {
+        this.request = request;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void onSuccess(Response response) {
+        trySuccess(response);
+    }
+
+    @Override
+    public void onFailure(Response response) {
+        tryFailure(response);
+    }
+
+    /**
+     * @return true表示本次设置生效，false表示future已经完成或取消
+     */
+    protected boolean trySuccess(Response response) {
+        synchronized (lock) {
+            if (!isDoing()) {
+                return false;
+            }
+            this.result = response.getValue();
+            this.processTime = response.getProcessTime();
+            if (!response.getAttachments().isEmpty()) {
+                getOrCreateAttachments().putAll(response.getAttachments());
+            }
+            state = FutureState.DONE;
+            lock.notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    protected boolean tryFailure(Response response) {
+        synchronized (lock) {
+            if (!isDoing()) {
+                return false;
+            }
+            this.exception = response.getException();
+            this.processTime = response.getProcessTime();
+            state = FutureState.DONE;
+            lock.notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    @Override
+    public Object getValue() {
+        synchronized (lock) {
+            if (!isDoing()) {
+                return getValueOrThrowable();
+            }
+
+            if (timeout <= 0) {
+                try {
+                    lock.wait();
+                } catch (Exception e) {
+                    cancel(new MotanServiceException("DefaultResponseFuture getValue InterruptedException : "
+                            + MotanFrameworkUtil.toString(request) + " cost=" + (System.currentTimeMillis() - createTime), e));
+                }
+                return getValueOrThrowable();
+            }
+
+            long waitTime = timeout - (System.currentTimeMillis() - createTime);
+            while (waitTime > 0 && isDoing()) {
+                try {
+                    lock.wait(waitTime);
+                } catch (InterruptedException e) {
+                }
+                waitTime = timeout - (System.currentTimeMillis() - createTime);
+            }
+
+            if (isDoing()) {
+                timeoutSoCancel();
+            }
+            return getValueOrThrowable();
+        }
+    }
+
+    /**
+     * 最多等待waitMillis毫秒，不会因为超时而取消future
+     *
+     * @param waitMillis
+     * @return future是否已经完成
+     */
+    public boolean await(long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized (lock) {
+            long waitTime = waitMillis;
+            while (waitTime > 0 && isDoing()) {
+                try {
+                    lock.wait(waitTime);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                waitTime = deadline - System.currentTimeMillis();
+            }
+            return !isDoing();
+        }
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public boolean cancel() {
+        Exception e = new MotanServiceException("DefaultResponseFuture task cancel: " + MotanFrameworkUtil.toString(request) + " cost="
+                + (System.currentTimeMillis() - createTime), MotanErrorMsgConstant.SERVICE_TASK_CANCEL);
+        return cancel(e);
+    }
+
+    protected boolean cancel(Exception e) {
+        synchronized (lock) {
+            if (!isDoing()) {
+                return false;
+            }
+
+            state = FutureState.CANCELLED;
+            exception = e;
+            lock.notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    protected void timeoutSoCancel() {
+        this.processTime = System.currentTimeMillis() - createTime;
+        cancel(new MotanServiceException("DefaultResponseFuture request timeout: " + MotanFrameworkUtil.toString(request) + " cost="
+                + (System.currentTimeMillis() - createTime), MotanErrorMsgConstant.SERVICE_TIMEOUT));
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state.isCancelledState();
+    }
+
+    @Override
+    public boolean isDone() {
+        return state.isDoneState();
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return isDone() && (exception == null);
+    }
+
+    @Override
+    public void addListener(FutureListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("FutureListener is null");
+        }
+
+        boolean notifyNow = false;
+        synchronized (lock) {
+            if (!isDoing()) {
+                notifyNow = true;
+            } else {
+                if (listeners == null) {
+                    listeners = new ArrayList<FutureListener>(1);
+                }
+
+                listeners.add(listener);
+            }
+        }
+
+        if (notifyNow) {
+            notifyListener(listener);
+        }
+    }
+
+    @Override
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    public FutureState getState() {
+        return state;
+    }
+
+    protected boolean isDoing() {
+        return state.isDoingState();
+    }
+
+    private void notifyListeners() {
+        if (listeners != null) {
+            for (FutureListener listener : listeners) {
+                notifyListener(listener);
+            }
+        }
+    }
+
+    private void notifyListener(FutureListener listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (Throwable t) {
+            LoggerUtil.error("DefaultResponseFuture notifyListener Error: " + listener.getClass().getSimpleName(), t);
+        }
+    }
+
+    private Object getValueOrThrowable() {
+        if (exception != null) {
+            throw (exception instanceof RuntimeException) ? (RuntimeException) exception : new MotanServiceException(
+                    exception.getMessage(), exception);
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getRequestId() {
+        return request == null ? 0 : request.getRequestId();
+    }
+
+    @Override
+    public long getProcessTime() {
+        return processTime;
+    }
+
+    @Override
+    public void setProcessTime(long time) {
+        this.processTime = time;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, String> getAttachments() {
+        return attachments != null ? attachments : Collections.EMPTY_MAP;
+    }
+
+    @Override
+    public void setAttachment(String key, String value) {
+        synchronized (lock) {
+            getOrCreateAttachments().put(key, value);
+        }
+    }
+
+    private Map<String, String> getOrCreateAttachments() {
+        if (attachments == null) {
+            attachments = new HashMap<String, String>();
+        }
+        return attachments;
+    }
+
+    @Override
+    public void setRpcProtocolVersion(byte rpcProtocolVersion) {
+        this.rpcProtocolVersion = rpcProtocolVersion;
+    }
+
+    @Override
+    public byte getRpcProtocolVersion() {
+        return rpcProtocolVersion;
+    }
+}
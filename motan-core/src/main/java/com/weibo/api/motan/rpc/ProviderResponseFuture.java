@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import com.weibo.api.motan.exception.MotanBizException;
+import com.weibo.api.motan.exception.MotanServiceException;
+
+/**
+ * 服务方法返回CompletableFuture/CompletionStage时的response。
+ *
+ * <pre>
+ * 		服务方法返回后工作线程即被释放，CompletionStage完成时通过listener写回response；
+ * 		异常的处理与同步方法一致：Exception转为业务异常，Error转为MotanServiceException。
+ * </pre>
+ *
+ * 只在服务方法返回CompletionStage时才会加载，不影响jdk8以下的运行环境。
+ */
+class ProviderResponseFuture extends DefaultResponseFuture {
+
+    private ProviderResponseFuture(Request request) {
+        super(request, 0);
+        // 与DefaultProvider一致，回传rpc版本和attachment信息方便codec使用
+        setRpcProtocolVersion(request.getRpcProtocolVersion());
+        attachments = new HashMap<String, String>(request.getAttachments());
+    }
+
+    static ResponseFuture create(Request request, Object completionStage) {
+        final ProviderResponseFuture future = new ProviderResponseFuture(request);
+        ((CompletionStage<?>) completionStage).whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable t) {
+                if (t == null) {
+                    future.onSuccess(new DefaultResponse(value));
+                    return;
+                }
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                DefaultResponse response = new DefaultResponse();
+                if (cause instanceof Exception) {
+                    response.setException(new MotanBizException("provider call process error", cause));
+                } else {
+                    response.setException(new MotanServiceException("provider has encountered a fatal error!", cause));
+                }
+                future.onFailure(response);
+            }
+        });
+        return future;
+    }
+}
@@ -19,19 +19,31 @@ package com.weibo.api.motan.rpc;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 
 /**
  * rpc session context
  * 
+ * <pre>
+ * 		1) 每次请求一个context实例，init创建新实例，destroy后再getContext得到新实例；已获取的context引用不会被之后的请求修改；
+ * 		2) 常用的信息使用类型化的字段：async标记、deadline、clientRequestId、serverUrl，其他信息使用attribute（按需创建map）；
+ * 		3) 跨线程传递：在原线程调用snapshot()复制一份，在目标线程中通过restore(snapshot)恢复，执行完后调用destroy()。
+ * </pre>
+ * 
  * @author maijunsheng
  * 
  */
 public class RpcContext {
-    private Map<Object, Object> attribute = new HashMap<Object, Object>();
+    private Map<Object, Object> attribute;
     private Request request;
     private Response response;
     private String clientRequestId = null;
+    private boolean async;
+    // 调用的截止时间（System.currentTimeMillis()），0表示不限制
+    private long deadline;
+    // client端最近一次请求实际调用的server（referer的url），由AbstractReferer在调用时设置
+    private URL serverUrl;
 
     private static final ThreadLocal<RpcContext> localContext = new ThreadLocal<RpcContext>() {
         protected RpcContext initialValue() {
@@ -62,6 +74,42 @@ public class RpcContext {
         localContext.remove();
     }
 
+    /**
+     * 复制当前context，用于传递到其他线程
+     * @return 与线程无关的context副本
+     */
+    public RpcContext snapshot() {
+        RpcContext copy = new RpcContext();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * 在当前线程中恢复snapshot()得到的context（复制为新实例，不共享snapshot），使用完后需要调用destroy()
+     * @param snapshot
+     * @return 当前线程的context
+     */
+    public static RpcContext restore(RpcContext snapshot) {
+        RpcContext context = new RpcContext();
+        if (snapshot != null) {
+            context.copyFrom(snapshot);
+        }
+        localContext.set(context);
+        return context;
+    }
+
+    private void copyFrom(RpcContext other) {
+        if (other.attribute != null && !other.attribute.isEmpty()) {
+            attribute = new HashMap<Object, Object>(other.attribute);
+        }
+        request = other.request;
+        response = other.response;
+        clientRequestId = other.clientRequestId;
+        async = other.async;
+        deadline = other.deadline;
+        serverUrl = other.serverUrl;
+    }
+
     /**
      * clientRequestId > request.id 
      * @return
@@ -75,15 +123,32 @@ public class RpcContext {
     }
     
     public void putAttribute(Object key, Object value){
+        // 兼容通过attribute设置async标记
+        if (MotanConstants.ASYNC_SUFFIX.equals(key)) {
+            async = Boolean.TRUE.equals(value);
+            return;
+        }
+        if (attribute == null) {
+            attribute = new HashMap<Object, Object>();
+        }
         attribute.put(key, value);
     }
     
     public Object getAttribute(Object key) {
-        return attribute.get(key);
+        if (MotanConstants.ASYNC_SUFFIX.equals(key)) {
+            return async;
+        }
+        return attribute == null ? null : attribute.get(key);
     }
     
     public void revomeAttribute(Object key){
-        attribute.remove(key);
+        if (MotanConstants.ASYNC_SUFFIX.equals(key)) {
+            async = false;
+            return;
+        }
+        if (attribute != null) {
+            attribute.remove(key);
+        }
     }
 
     public Request getRequest() {
@@ -109,5 +174,37 @@ public class RpcContext {
     public void setClientRequestId(String clientRequestId) {
         this.clientRequestId = clientRequestId;
     }
-    
+
+    /**
+     * 当前调用是否为异步调用（返回ResponseFuture）
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * 设置调用的截止时间，client端请求超时时间不会超过截止时间。
+     * 对当前线程之后的调用都生效，直到destroy()或设置为0
+     * @param deadline System.currentTimeMillis()时间，0表示不限制
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public URL getServerUrl() {
+        return serverUrl;
+    }
+
+    public void setServerUrl(URL serverUrl) {
+        this.serverUrl = serverUrl;
+    }
+
 }
@@ -18,10 +18,16 @@ package com.weibo.api.motan.rpc;
 
 import com.weibo.api.motan.closable.Closable;
 import com.weibo.api.motan.closable.ShutDownHook;
+import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.OpenMetricsWriter;
+import com.weibo.api.motan.util.SlidingWindowStat;
 
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -29,6 +35,14 @@ import java.util.concurrent.atomic.AtomicLong;
  * 
  * rpc call statistic.
  *
+ * <pre>
+ * 		1) 按服务(uri)及方法统计正在处理的请求数、累计调用数、失败数及耗时；
+ * 		2) 最近的统计使用滑动窗口（默认10个1秒的bucket），提供成功率、平均耗时及p99，供负载均衡、限流等使用；
+ * 		3) 调用方可以缓存getServiceStat/ServiceStat.getMethodStat返回的统计项，每次调用不再拼接key、查找map，
+ *          统计项被清理后（isRemoved）需要重新获取；
+ * 		4) cleaner定期清理长时间没有调用的统计项。
+ * </pre>
+ *
  * @author fishermen
  * @version V1.0 created at: 2013-5-23
  */
@@ -36,10 +50,11 @@ import java.util.concurrent.atomic.AtomicLong;
 public class RpcStats {
 
     private static final String SEPERATOR_METHOD_AND_PARAM = "|";
+    // 统计项超过该时间没有调用且没有正在处理的请求时被清理
+    static final long IDLE_EXPIRE_MILLIS = 10 * 60 * 1000L;
+    private static final long CLEAN_PERIOD_SECONDS = 60;
 
-    private static ConcurrentHashMap<String, StatInfo> serviceStat = new ConcurrentHashMap<String, RpcStats.StatInfo>();
-    private static ConcurrentHashMap<String, ConcurrentHashMap<String, StatInfo>> methodStat =
-            new ConcurrentHashMap<String, ConcurrentHashMap<String, StatInfo>>();
+    private static ConcurrentHashMap<String, ServiceStat> serviceStat = new ConcurrentHashMap<String, ServiceStat>();
 
     private static ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(1);
     static{
@@ -51,6 +66,7 @@ public class RpcStats {
                 }
             }
         });
+        startCleaner();
     }
     /**
      * call before invoke the request
@@ -59,9 +75,9 @@ public class RpcStats {
      * @param request
      */
     public static void beforeCall(URL url, Request request) {
-        String uri = url.getUri();
-        onBeforeCall(getServiceStat(uri));
-        onBeforeCall(getMethodStat(uri, request.getMethodName(), request.getParamtersDesc()));
+        ServiceStat stat = getServiceStat(url);
+        stat.beforeCall();
+        stat.getMethodStat(request.getMethodName(), request.getParamtersDesc()).beforeCall();
     }
 
     /**
@@ -73,72 +89,84 @@ public class RpcStats {
      * @param procTimeMills
      */
     public static void afterCall(URL url, Request request, boolean success, long procTimeMills) {
-        String uri = url.getUri();
-        onAfterCall(getServiceStat(uri), success, procTimeMills);
-        onAfterCall(getMethodStat(uri, request.getMethodName(), request.getParamtersDesc()), success, procTimeMills);
+        ServiceStat stat = getServiceStat(url);
+        stat.afterCall(success, procTimeMills);
+        stat.getMethodStat(request.getMethodName(), request.getParamtersDesc()).afterCall(success, procTimeMills);
     }
 
-    public static StatInfo getServiceStat(URL url) {
+    public static ServiceStat getServiceStat(URL url) {
         return getServiceStat(url.getUri());
     }
 
     public static StatInfo getMethodStat(URL url, Request request) {
-        return getMethodStat(url.getUri(), request.getMethodName(), request.getParamtersDesc());
+        return getServiceStat(url).getMethodStat(request.getMethodName(), request.getParamtersDesc());
     }
 
-    private static StatInfo getServiceStat(String uri) {
-        StatInfo stat = serviceStat.get(uri);
+    private static ServiceStat getServiceStat(String uri) {
+        ServiceStat stat = serviceStat.get(uri);
         if (stat == null) {
-            stat = new StatInfo();
-            serviceStat.putIfAbsent(uri, stat);
-            stat = serviceStat.get(uri);
+            stat = new ServiceStat();
+            ServiceStat old = serviceStat.putIfAbsent(uri, stat);
+            if (old != null) {
+                stat = old;
+            }
         }
         return stat;
     }
 
-    private static StatInfo getMethodStat(String uri, String methodName, String methodParaDesc) {
-        ConcurrentHashMap<String, StatInfo> sstats = methodStat.get(uri);
-        if (sstats == null) {
-            sstats = new ConcurrentHashMap<String, StatInfo>();
-            methodStat.putIfAbsent(uri, sstats);
-            sstats = methodStat.get(uri);
-        }
-
-        String methodNameAndParams = methodName + SEPERATOR_METHOD_AND_PARAM + methodParaDesc;
-        StatInfo mstat = sstats.get(methodNameAndParams);
-        if (mstat == null) {
-            mstat = new StatInfo();
-            sstats.putIfAbsent(methodNameAndParams, mstat);
-            mstat = sstats.get(methodNameAndParams);
+    /**
+     * 输出服务和方法的调用计数、失败计数、累计耗时以及正在处理的请求数
+     *
+     * @param writer
+     */
+    public static void collectMetrics(OpenMetricsWriter writer) {
+        OpenMetricsWriter.Family requests = writer.counter("motan_rpc_requests", "Completed rpc calls.");
+        OpenMetricsWriter.Family failures = writer.counter("motan_rpc_failures", "Failed rpc calls.");
+        OpenMetricsWriter.Family time = writer.counter("motan_rpc_time_seconds", "Total processing time of completed rpc calls.");
+        OpenMetricsWriter.Family active = writer.gauge("motan_rpc_active", "Rpc calls in flight.");
+
+        for (Map.Entry<String, ServiceStat> entry : serviceStat.entrySet()) {
+            collectMetrics(entry.getValue(), entry.getKey(), null, requests, failures, time, active);
+            for (Map.Entry<String, ConcurrentHashMap<String, StatInfo>> methodEntry : entry.getValue().methodStat.entrySet()) {
+                for (Map.Entry<String, StatInfo> paramEntry : methodEntry.getValue().entrySet()) {
+                    collectMetrics(paramEntry.getValue(), entry.getKey(),
+                            methodEntry.getKey() + SEPERATOR_METHOD_AND_PARAM + paramEntry.getKey(), requests, failures, time, active);
+                }
+            }
         }
-        return mstat;
-    }
-
-    private static void onBeforeCall(StatInfo statInfo) {
-        statInfo.activeCount.incrementAndGet();
     }
 
-    private static void onAfterCall(StatInfo statInfo, boolean success, long procTimeMills) {
-        statInfo.activeCount.decrementAndGet();
-        if (!success) {
-            statInfo.failCount.incrementAndGet();
-        }
-        statInfo.totalCountTime.inc(1, procTimeMills);
-        statInfo.latestCountTime.inc(1, procTimeMills);
+    private static void collectMetrics(StatInfo stat, String service, String method, OpenMetricsWriter.Family requests,
+            OpenMetricsWriter.Family failures, OpenMetricsWriter.Family time, OpenMetricsWriter.Family active) {
+        requests.sample(stat.totalCountTime.getCount(), "service", service, "method", method);
+        failures.sample(stat.getFailCount(), "service", service, "method", method);
+        time.sample(stat.totalCountTime.getTimeMills() / 1000.0, "service", service, "method", method);
+        active.sample(stat.getActiveCount(), "service", service, "method", method);
     }
 
     private static void startCleaner() {
-
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cleanIdleStats(System.currentTimeMillis());
+                } catch (Exception e) {
+                    LoggerUtil.warn("RpcStats clean idle stats Error: " + e.getMessage());
+                }
+            }
+        }, CLEAN_PERIOD_SECONDS, CLEAN_PERIOD_SECONDS, TimeUnit.SECONDS);
     }
 
-    private static void cleanLatestStat() {
-        if (serviceStat.size() == 0) {
-            return;
-        }
-        for (StatInfo si : serviceStat.values()) {
-            si.resetLatestStat();
+    static void cleanIdleStats(long currentTimeMillis) {
+        Iterator<Map.Entry<String, ServiceStat>> it = serviceStat.entrySet().iterator();
+        while (it.hasNext()) {
+            ServiceStat stat = it.next().getValue();
+            stat.cleanIdleMethods(currentTimeMillis);
+            if (stat.isIdle(currentTimeMillis) && !stat.hasMethodStat()) {
+                stat.removed = true;
+                it.remove();
+            }
         }
-
     }
 
     public static class StatInfo {
@@ -146,7 +174,24 @@ public class RpcStats {
         private AtomicInteger activeCount = new AtomicInteger();
         private AtomicLong failCount = new AtomicLong();
         private CountTime totalCountTime = new CountTime();
-        private CountTime latestCountTime = new CountTime();
+        private SlidingWindowStat window = new SlidingWindowStat();
+        private volatile long lastCallTime = System.currentTimeMillis();
+        volatile boolean removed;
+
+        public void beforeCall() {
+            activeCount.incrementAndGet();
+        }
+
+        public void afterCall(boolean success, long procTimeMills) {
+            long now = System.currentTimeMillis();
+            activeCount.decrementAndGet();
+            if (!success) {
+                failCount.incrementAndGet();
+            }
+            totalCountTime.inc(1, procTimeMills);
+            window.record(now, success, procTimeMills);
+            lastCallTime = now;
+        }
 
         public int getActiveCount() {
             return activeCount.get();
@@ -160,12 +205,89 @@ public class RpcStats {
             return totalCountTime;
         }
 
+        /**
+         * 滑动窗口内的调用数及耗时
+         */
         public CountTime getLatestCountTime() {
-            return latestCountTime;
+            SlidingWindowStat.Snapshot snapshot = getWindowSnapshot();
+            CountTime countTime = new CountTime();
+            countTime.inc(snapshot.getCount(), snapshot.getTimeMills());
+            return countTime;
+        }
+
+        /**
+         * 滑动窗口的快照，包括成功率、平均耗时及耗时分位值
+         */
+        public SlidingWindowStat.Snapshot getWindowSnapshot() {
+            return window.getSnapshot(System.currentTimeMillis());
         }
 
         public void resetLatestStat() {
-            latestCountTime.reset();
+            window.reset();
+        }
+
+        /**
+         * 已被cleaner清理，缓存的统计项需要重新获取
+         */
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        boolean isIdle(long currentTimeMillis) {
+            return activeCount.get() == 0 && currentTimeMillis - lastCallTime > IDLE_EXPIRE_MILLIS;
+        }
+    }
+
+    /**
+     * 服务的统计，包含各方法的统计
+     */
+    public static class ServiceStat extends StatInfo {
+        // 方法名 -> 参数描述 -> 统计
+        private ConcurrentHashMap<String, ConcurrentHashMap<String, StatInfo>> methodStat =
+                new ConcurrentHashMap<String, ConcurrentHashMap<String, StatInfo>>();
+
+        public StatInfo getMethodStat(String methodName, String methodParaDesc) {
+            ConcurrentHashMap<String, StatInfo> stats = methodStat.get(methodName);
+            if (stats == null) {
+                stats = new ConcurrentHashMap<String, StatInfo>();
+                ConcurrentHashMap<String, StatInfo> old = methodStat.putIfAbsent(methodName, stats);
+                if (old != null) {
+                    stats = old;
+                }
+            }
+            String paramDesc = methodParaDesc == null ? "" : methodParaDesc;
+            StatInfo stat = stats.get(paramDesc);
+            if (stat == null) {
+                stat = new StatInfo();
+                StatInfo old = stats.putIfAbsent(paramDesc, stat);
+                if (old != null) {
+                    stat = old;
+                }
+            }
+            return stat;
+        }
+
+        // 方法名的数量有限，只清理方法名下的统计项
+        private void cleanIdleMethods(long currentTimeMillis) {
+            for (ConcurrentHashMap<String, StatInfo> stats : methodStat.values()) {
+                Iterator<StatInfo> it = stats.values().iterator();
+                while (it.hasNext()) {
+                    StatInfo stat = it.next();
+                    if (stat.isIdle(currentTimeMillis)) {
+                        stat.removed = true;
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        private boolean hasMethodStat() {
+            for (ConcurrentHashMap<String, StatInfo> stats : methodStat.values()) {
+                if (!stats.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -178,7 +300,7 @@ public class RpcStats {
             timeMills = new AtomicLong();
         }
 
-        private void inc(int incCount, long incTimeMills) {
+        private void inc(long incCount, long incTimeMills) {
             count.getAndAdd(incCount);
             timeMills.getAndAdd(incTimeMills);
         }
@@ -187,6 +309,10 @@ public class RpcStats {
             return count.get();
         }
 
+        public long getTimeMills() {
+            return timeMills.get();
+        }
+
         public void reset() {
             count.set(0);
             timeMills.set(0);
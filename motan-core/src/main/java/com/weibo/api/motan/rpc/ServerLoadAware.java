@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+/**
+ * 能够感知server负载的client/referer。
+ *
+ * <pre>
+ * 		server在response attachment中回传工作线程池的负载百分比，client保存最近一次的值，
+ * 		负载均衡可以据此避开繁忙的server，而不只是依赖本client的activeRefererCount。
+ * </pre>
+ */
+public interface ServerLoadAware {
+
+    /**
+     * @return server最近回传的负载百分比(0-100)，未知或已过期时返回-1
+     */
+    int getServerLoad();
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * 一次rpc调用在client、server各阶段的耗时（微秒）。
+ *
+ * <pre>
+ * 		1) client: 编码请求、等待写出、解码响应；
+ * 		2) server: 解码请求、在业务线程池排队、业务处理、编码响应，编码响应时以trailer的形式附在response body末尾回传给client；
+ * 		3) network为总耗时减去其他各阶段，包括网络传输及两端io线程的处理时间，只在收到server阶段耗时时计算。
+ * </pre>
+ */
+public class StageTimes {
+
+    public enum Stage {
+        CLIENT_ENCODE("client_encode"),
+        CLIENT_WRITE("client_write"),
+        SERVER_DECODE("server_decode"),
+        SERVER_QUEUE("server_queue"),
+        SERVER_BIZ("server_biz"),
+        SERVER_ENCODE("server_encode"),
+        CLIENT_DECODE("client_decode"),
+        NETWORK("network");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static final Stage[] STAGES = Stage.values();
+
+    // trailer中的阶段及顺序，新增阶段只能追加在末尾
+    private static final Stage[] SERVER_STAGES = new Stage[] {Stage.SERVER_DECODE, Stage.SERVER_QUEUE, Stage.SERVER_BIZ,
+            Stage.SERVER_ENCODE};
+
+    private final long[] micros = new long[STAGES.length];
+    private boolean hasServerStages;
+
+    public void set(Stage stage, long micros) {
+        this.micros[stage.ordinal()] = micros;
+    }
+
+    public long get(Stage stage) {
+        return micros[stage.ordinal()];
+    }
+
+    /**
+     * 是否包含server回传的阶段耗时
+     */
+    public boolean hasServerStages() {
+        return hasServerStages;
+    }
+
+    /**
+     * trailer: 阶段数(byte) + 每个阶段的耗时(int, 微秒)
+     */
+    public void writeServerStages(ObjectOutput output) throws IOException {
+        output.writeByte(SERVER_STAGES.length);
+        for (Stage stage : SERVER_STAGES) {
+            output.writeInt((int) Math.min(get(stage), Integer.MAX_VALUE));
+        }
+    }
+
+    public void readServerStages(ObjectInput input) throws IOException {
+        int count = input.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            int value = input.readInt();
+            // 忽略不认识的阶段，兼容更新版本的server
+            if (i < SERVER_STAGES.length) {
+                set(SERVER_STAGES[i], value);
+            }
+        }
+        hasServerStages = true;
+    }
+
+    /**
+     * client收到响应后计算network阶段
+     *
+     * @param totalMicros client发起请求到收到响应的总耗时
+     */
+    public void computeNetwork(long totalMicros) {
+        if (!hasServerStages) {
+            return;
+        }
+        long network = totalMicros;
+        for (Stage stage : STAGES) {
+            if (stage != Stage.NETWORK) {
+                network -= get(stage);
+            }
+        }
+        set(Stage.NETWORK, Math.max(network, 0));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : STAGES) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(stage.getName()).append(": ").append(get(stage)).append("us");
+        }
+        return sb.toString();
+    }
+}
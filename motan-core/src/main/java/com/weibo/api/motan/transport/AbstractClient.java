@@ -20,10 +20,13 @@ import java.net.InetSocketAddress;
 
 import com.weibo.api.motan.codec.Codec;
 import com.weibo.api.motan.common.ChannelState;
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.ExtensionLoader;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ServerLoadAware;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.MotanFrameworkUtil;
@@ -33,7 +36,7 @@ import com.weibo.api.motan.util.MotanFrameworkUtil;
  * @version 创建时间：2013-5-21
  * 
  */
-public abstract class AbstractClient implements Client {
+public abstract class AbstractClient implements Client, ServerLoadAware {
 
     protected InetSocketAddress localAddress;
     protected InetSocketAddress remoteAddress;
@@ -42,6 +45,10 @@ public abstract class AbstractClient implements Client {
     protected Codec codec;
 
     protected volatile ChannelState state = ChannelState.UNINIT;
+    // server最近回传的负载百分比，-1为未知
+    private volatile int serverLoad = -1;
+    private volatile long serverLoadTime = 0;
+    private volatile long lastResponseTime = 0;
 
     public AbstractClient(URL url) {
         this.url = url;
@@ -66,6 +73,38 @@ public abstract class AbstractClient implements Client {
         throw new MotanFrameworkException("heartbeat not support: " + MotanFrameworkUtil.toString(request));
     }
 
+    @Override
+    public int getServerLoad() {
+        if (System.currentTimeMillis() - serverLoadTime > MotanConstants.SERVER_LOAD_EXPIRE_TIME) {
+            return -1;
+        }
+        return serverLoad;
+    }
+
+    public long getLastResponseTime() {
+        return lastResponseTime;
+    }
+
+    /**
+     * 收到server的response时调用，记录response中回传的server负载
+     * 
+     * @param response
+     */
+    protected void onResponse(Response response) {
+        long now = System.currentTimeMillis();
+        lastResponseTime = now;
+        String load = response.getAttachments().get(MotanConstants.ATTACHMENT_SERVER_LOAD);
+        if (load == null) {
+            return;
+        }
+        try {
+            serverLoad = Integer.parseInt(load);
+            serverLoadTime = now;
+        } catch (NumberFormatException e) {
+            LoggerUtil.warn("AbstractClient illegal server load: " + load + ", url=" + url.getUri());
+        }
+    }
+
     public void setLocalAddress(InetSocketAddress localAddress) {
         this.localAddress = localAddress;
     }
@@ -32,6 +32,7 @@ import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.core.extension.ExtensionLoader;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.transport.AbstractClient;
 import com.weibo.api.motan.transport.Client;
 import com.weibo.api.motan.transport.Endpoint;
 import com.weibo.api.motan.transport.EndpointManager;
@@ -61,8 +62,8 @@ public class HeartbeatClientEndpointManager implements EndpointManager{
                     Client endpoint = entry.getKey();
 
                     try {
-                        // 如果节点是存活状态，那么没必要走心跳
-                        if (endpoint.isAvailable()) {
+                        // 如果节点是存活状态，那么没必要走心跳；开启loadFeedback时空闲的节点需要通过心跳获取server负载
+                        if (endpoint.isAvailable() && !needLoadFeedback(endpoint)) {
                             continue;
                         }
 
@@ -116,6 +117,15 @@ public class HeartbeatClientEndpointManager implements EndpointManager{
         endpoints.remove(endpoint);
     }
 
+    private boolean needLoadFeedback(Client endpoint) {
+        if (!(endpoint instanceof AbstractClient)
+                || !endpoint.getUrl().getBooleanParameter(URLParamType.loadFeedback.getName(), URLParamType.loadFeedback.getBooleanValue())) {
+            return false;
+        }
+        long idleTime = System.currentTimeMillis() - ((AbstractClient) endpoint).getLastResponseTime();
+        return idleTime >= MotanConstants.SERVER_LOAD_REFRESH_PERIOD;
+    }
+
     public Set<Client> getClients() {
         return Collections.unmodifiableSet(endpoints.keySet());
     }
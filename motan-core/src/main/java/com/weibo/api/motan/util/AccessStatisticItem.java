@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
+import com.weibo.api.motan.util.StatsUtil.AccessStatus;
+
+/**
+ * 单个统计项（name|application|module）的按秒访问统计。
+ *
+ * <pre>
+ * 		1) 计数按线程分散到多个stripe上，每个stripe是一个按秒循环使用的环，减少多线程更新同一计数的竞争；
+ * 		2) 环上每个位置记录所属的秒，进入新的一秒时由首个写入的线程通过CAS重置该位置，不需要加锁；
+ * 		3) 读取时只累加所属秒在统计周期内的位置，过期的数据自然被忽略；
+ * 		4) 延迟以微秒记录到按统计周期划分的LatencyRecorder中，同时记录到所属application的LatencyRecorder，直方图同样按stripe分散；
+ * 		5) 每个stripe在环之后还有一个累计计数的位置，只增不减，不受统计周期和clearStatistic影响，用于导出counter指标。
+ * </pre>
+ *
+ * 通过StatsUtil.getStatisticItem获取后可以缓存，调用时不需要再拼接和查找统计名。
+ */
+public class AccessStatisticItem {
+    private static final int COST_TIME = 0;
+    private static final int BIZ_TIME = 1;
+    private static final int TOTAL_COUNT = 2;
+    private static final int SLOW_COUNT = 3;
+    private static final int BIZ_EXCEPTION_COUNT = 4;
+    private static final int OTHER_EXCEPTION_COUNT = 5;
+    private static final int SECOND = 6;
+    // 每秒占用8个long（64字节），不同秒的数据不在同一个缓存行上
+    private static final int SLOT_SIZE = 8;
+    // 正在重置的位置
+    private static final long RESETTING = -1;
+
+    // 没有使用LongAdder：本类总会被加载，而jdk8才有的API只用在按需加载的类中（如CompletableResponseFuture）
+    private static final int MAX_STRIPES = 8;
+    // LatencyRecorder使用相同的stripe划分
+    static final int STRIPES = getStripes();
+
+    private final String name;
+    private final String application;
+    private final String module;
+    private final int length;
+    // 累计计数在stripe中的起始位置
+    private final int totals;
+    private final AtomicLongArray[] stripes;
+
+    private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+    private final LatencyRecorder appLatencyRecorder;
+
+    public AccessStatisticItem(String name, String application, String module) {
+        this(name, application, module, MotanConstants.STATISTIC_PEROID + 2);
+    }
+
+    AccessStatisticItem(String name, String application, String module, int length) {
+        this.name = name;
+        this.application = application;
+        this.module = module;
+        this.length = length;
+        this.totals = length * SLOT_SIZE;
+        this.stripes = new AtomicLongArray[STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new AtomicLongArray(totals + SLOT_SIZE);
+        }
+        this.appLatencyRecorder = StatsUtil.getAppLatencyRecorder(application, module);
+    }
+
+    /**
+     * currentTimeMillis: 此刻记录的时间 (ms) costTimeMillis: 这次操作的耗时 (ms)
+     *
+     * @param currentTimeMillis
+     * @param costTimeMillis
+     * @param bizProcessTime
+     * @param accessStatus
+     */
+    public void statistic(long currentTimeMillis, long costTimeMillis, long bizProcessTime, AccessStatus accessStatus) {
+        statistic(currentTimeMillis, costTimeMillis, costTimeMillis * 1000, bizProcessTime, accessStatus);
+    }
+
+    /**
+     * @param currentTimeMillis 此刻记录的时间 (ms)
+     * @param costTimeMillis 这次操作的耗时 (ms)
+     * @param costTimeMicros 这次操作的耗时 (us)，用于延迟分布统计
+     * @param bizProcessTime
+     * @param accessStatus
+     */
+    public void statistic(long currentTimeMillis, long costTimeMillis, long costTimeMicros, long bizProcessTime,
+            AccessStatus accessStatus) {
+        long second = currentTimeMillis / 1000;
+        AtomicLongArray cells = stripes[getStripe()];
+        int base = getIndex(second) * SLOT_SIZE;
+        incrementCounts(cells, totals, costTimeMillis, accessStatus);
+
+        if (cells.get(base + SECOND) != second && !rollover(cells, base, second)) {
+            // 记录时间早于该位置当前所属的秒，数据已经过期
+            return;
+        }
+
+        cells.addAndGet(base + COST_TIME, costTimeMillis);
+        cells.addAndGet(base + BIZ_TIME, bizProcessTime);
+        incrementCounts(cells, base, costTimeMillis, accessStatus);
+        latencyRecorder.record(currentTimeMillis, costTimeMicros);
+        appLatencyRecorder.record(currentTimeMillis, costTimeMicros);
+    }
+
+    private static void incrementCounts(AtomicLongArray cells, int base, long costTimeMillis, AccessStatus accessStatus) {
+        cells.incrementAndGet(base + TOTAL_COUNT);
+
+        if (costTimeMillis >= MotanConstants.SLOW_COST) {
+            cells.incrementAndGet(base + SLOW_COUNT);
+        }
+
+        if (accessStatus == AccessStatus.BIZ_EXCEPTION) {
+            cells.incrementAndGet(base + BIZ_EXCEPTION_COUNT);
+        } else if (accessStatus == AccessStatus.OTHER_EXCEPTION) {
+            cells.incrementAndGet(base + OTHER_EXCEPTION_COUNT);
+        }
+    }
+
+    /**
+     * 这一秒的第一条统计，把对应位置的数据置0
+     *
+     * @return false: 该位置已经属于更新的一秒
+     */
+    private boolean rollover(AtomicLongArray cells, int base, long second) {
+        while (true) {
+            long current = cells.get(base + SECOND);
+            if (current == second) {
+                return true;
+            }
+            if (current > second) {
+                return false;
+            }
+            if (current != RESETTING && cells.compareAndSet(base + SECOND, current, RESETTING)) {
+                for (int i = 0; i < SECOND; i++) {
+                    cells.set(base + i, 0);
+                }
+                cells.set(base + SECOND, second);
+                return true;
+            }
+            // 其他线程正在重置，重置只有几次写操作
+            Thread.yield();
+        }
+    }
+
+    AccessStatisticResult getStatisticResult(long currentTimeMillis, int peroidSecond) {
+        // 当前这秒还没完全结束，因此数据不全，统计从上一秒开始，往前推移peroidSecond
+        long startSecond = currentTimeMillis / 1000 - 1;
+
+        AccessStatisticResult result = new AccessStatisticResult();
+
+        for (int i = 0; i < peroidSecond; i++) {
+            long second = startSecond - i;
+            int base = getIndex(second) * SLOT_SIZE;
+            long count = 0;
+
+            for (AtomicLongArray cells : stripes) {
+                if (cells.get(base + SECOND) != second) {
+                    continue;
+                }
+                result.costTime += cells.get(base + COST_TIME);
+                result.bizTime += cells.get(base + BIZ_TIME);
+                count += cells.get(base + TOTAL_COUNT);
+                result.slowCount += cells.get(base + SLOW_COUNT);
+                result.bizExceptionCount += cells.get(base + BIZ_EXCEPTION_COUNT);
+                result.otherExceptionCount += cells.get(base + OTHER_EXCEPTION_COUNT);
+            }
+
+            result.totalCount += count;
+            if (count > result.maxCount) {
+                result.maxCount = (int) count;
+            }
+            if (count < result.minCount || result.minCount == -1) {
+                result.minCount = (int) count;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 创建以来的累计计数：请求数、慢请求数、业务异常数、其他异常数，只增不减
+     */
+    public long[] getTotalCounts() {
+        long[] counts = new long[4];
+        for (AtomicLongArray cells : stripes) {
+            counts[0] += cells.get(totals + TOTAL_COUNT);
+            counts[1] += cells.get(totals + SLOW_COUNT);
+            counts[2] += cells.get(totals + BIZ_EXCEPTION_COUNT);
+            counts[3] += cells.get(totals + OTHER_EXCEPTION_COUNT);
+        }
+        return counts;
+    }
+
+    void clearStatistic(long currentTimeMillis, int peroidSecond) {
+        long startSecond = currentTimeMillis / 1000 - 1;
+
+        for (int i = 0; i < peroidSecond; i++) {
+            long second = startSecond - i;
+            int base = getIndex(second) * SLOT_SIZE;
+            for (AtomicLongArray cells : stripes) {
+                // 标记为不属于任何一秒，下次写入时重置
+                cells.compareAndSet(base + SECOND, second, 0);
+            }
+        }
+    }
+
+    /**
+     * 上一个完整统计周期的延迟分布（微秒）
+     */
+    public IntervalHistogram getLastLatencyInterval(long currentTimeMillis) {
+        return latencyRecorder.getLastInterval(currentTimeMillis);
+    }
+
+    /**
+     * 以OpenMetrics histogram（秒）输出已结束周期的累计延迟分布
+     */
+    public void writeLatencyHistogram(OpenMetricsWriter.Family family, String... labels) {
+        latencyRecorder.writeHistogram(family, 1000000.0, labels);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getApplication() {
+        return application;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    private int getIndex(long second) {
+        return (int) (second % length);
+    }
+
+    static int getStripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    private static int getStripes() {
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        int stripes = 1;
+        while (stripes < cpus) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
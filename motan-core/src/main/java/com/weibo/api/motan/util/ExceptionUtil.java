@@ -18,6 +18,7 @@ package com.weibo.api.motan.util;
 
 import com.weibo.api.motan.exception.MotanAbstractException;
 import com.weibo.api.motan.exception.MotanBizException;
+import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 
 /**
  * @author maijunsheng
@@ -51,4 +52,15 @@ public class ExceptionUtil {
     public static boolean isMotanException(Exception e) {
         return e instanceof MotanAbstractException;
     }
+
+    /**
+     * 是否调用方主动取消（非超时）导致的异常，例如hedged策略取消较慢的请求
+     * 
+     * @param e
+     * @return
+     */
+    public static boolean isCancelException(Exception e) {
+        return e instanceof MotanAbstractException
+                && ((MotanAbstractException) e).getErrorCode() == MotanErrorMsgConstant.SERVICE_TASK_CANCEL_ERROR_CODE;
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.Locale;
+
+import com.google.common.io.BaseEncoding;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
+
+/**
+ * 以HdrHistogram log格式（1.3版本）输出周期直方图，可以使用HdrHistogram的HistogramLogReader读取并离线聚合。
+ *
+ * <pre>
+ * 		1) 每行一个周期直方图：Tag=统计项,开始时间(秒),周期长度(秒),最大值(毫秒),base64编码的压缩直方图；
+ * 		2) 时间戳为绝对时间（BaseTime为0），直方图的值单位为微秒。
+ * </pre>
+ */
+public class HistogramLogWriter {
+    private static final double MAX_VALUE_UNIT_RATIO = 1000.0;
+
+    private final PrintStream log;
+
+    public HistogramLogWriter(PrintStream log) {
+        this.log = log;
+    }
+
+    public synchronized void outputLogFormatVersion() {
+        log.format(Locale.US, "#[Histogram log format version 1.3]%n");
+    }
+
+    public synchronized void outputStartTime(long startTimeMillis) {
+        log.format(Locale.US, "#[StartTime: %.3f (seconds since epoch), %s]%n", startTimeMillis / 1000.0, new Date(startTimeMillis));
+        log.format(Locale.US, "#[BaseTime: %.3f (seconds since epoch)]%n", 0.0);
+    }
+
+    public synchronized void outputLegend() {
+        log.println("\"StartTimestamp\",\"Interval_Length\",\"Interval_Max\",\"Interval_Compressed_Histogram\"");
+    }
+
+    public synchronized void outputIntervalHistogram(String tag, IntervalHistogram interval) {
+        LatencyHistogram histogram = interval.getHistogram();
+        String encoded = BaseEncoding.base64().encode(histogram.encodeCompressed());
+        if (tag != null) {
+            log.print("Tag=");
+            log.print(toTag(tag));
+            log.print(',');
+        }
+        log.format(Locale.US, "%.3f,%.3f,%.3f,%s%n", interval.getStartTimeMillis() / 1000.0, interval.getIntervalMillis() / 1000.0,
+                histogram.getMaxValue() / MAX_VALUE_UNIT_RATIO, encoded);
+        log.flush();
+    }
+
+    /**
+     * tag中不能包含逗号和空白字符
+     */
+    static String toTag(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ',') {
+                sb.append(';');
+            } else if (Character.isWhitespace(c)) {
+                sb.append('_');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
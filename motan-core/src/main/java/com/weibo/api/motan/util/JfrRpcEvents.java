@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import com.weibo.api.motan.util.RpcEvents.Type;
+
+/**
+ * RpcEvents的JFR实现，只在jdk.jfr可用时由RpcEvents加载。
+ *
+ * 依赖jdk.jfr，构建JDK不支持JFR时由no-jfr profile排除，不参与编译。
+ * 事件未启用时isEnabled只读取JFR维护的静态状态，通过每种事件的一个只读实例判断。
+ */
+final class JfrRpcEvents implements RpcEvents.Backend {
+    // 按Type的顺序，只用于判断事件是否启用，不会提交
+    private static final RpcEvent[] PROBES = new RpcEvent[Type.values().length];
+    // 按Type的顺序，通过elapsed提交的事件的阈值（纳秒），这类事件的持续时间为0，jfc中的threshold对其无效
+    private static final long[] ELAPSED_THRESHOLDS = new long[Type.values().length];
+
+    static {
+        for (Type type : Type.values()) {
+            PROBES[type.ordinal()] = create(type);
+        }
+        ELAPSED_THRESHOLDS[Type.CLIENT_CALL.ordinal()] = TimeUnit.MILLISECONDS.toNanos(10);
+        ELAPSED_THRESHOLDS[Type.QUEUE_WAIT.ordinal()] = TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    JfrRpcEvents() {}
+
+    @Override
+    public boolean isEnabled(Type type) {
+        return PROBES[type.ordinal()].isEnabled();
+    }
+
+    static RpcEvent create(Type type) {
+        switch (type) {
+            case CLIENT_CALL:
+                return new ClientCallEvent();
+            case SERVER_DISPATCH:
+                return new ServerDispatchEvent();
+            case QUEUE_WAIT:
+                return new QueueWaitEvent();
+            case ENCODE:
+                return new EncodeEvent();
+            case DECODE:
+                return new DecodeEvent();
+            case TIMEOUT:
+                return new TimeoutEvent();
+            case REJECT:
+                return new RejectEvent();
+            default:
+                throw new IllegalArgumentException("unknown rpc event type: " + type);
+        }
+    }
+
+    @Override
+    public Object begin(Type type) {
+        RpcEvent event = create(type);
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void emit(Type type, String service, String method, Object remoteAddress, long requestId, long size) {
+        commit(create(type), service, method, remoteAddress, requestId, size);
+    }
+
+    @Override
+    public void emit(Type type, long elapsedNanos, String service, String method, Object remoteAddress, long requestId, long size) {
+        if (elapsedNanos < ELAPSED_THRESHOLDS[type.ordinal()]) {
+            return;
+        }
+        RpcEvent event = create(type);
+        event.elapsed = elapsedNanos;
+        commit(event, service, method, remoteAddress, requestId, size);
+    }
+
+    @Override
+    public void commit(Object obj, String service, String method, Object remoteAddress, long requestId, long size) {
+        RpcEvent event = (RpcEvent) obj;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.service = service;
+        event.method = method;
+        event.remoteAddress = remoteAddress == null ? null : remoteAddress.toString();
+        event.requestId = requestId;
+        event.size = size;
+        event.commit();
+    }
+
+    @Category({"Motan", "RPC"})
+    @StackTrace(false)
+    abstract static class RpcEvent extends Event {
+        @Label("Service")
+        String service;
+
+        @Label("Method")
+        String method;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Request Id")
+        long requestId;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Elapsed")
+        @Description("Elapsed time of a stage that does not begin and end on the same thread.")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("motan.ClientCall")
+    @Label("Motan Client Call")
+    @Description("Rpc call made through a referer proxy, including retries and async completion.")
+    static class ClientCallEvent extends RpcEvent {
+    }
+
+    @Name("motan.ServerDispatch")
+    @Label("Motan Server Dispatch")
+    @Description("Processing of a request in the server executor.")
+    @Threshold("10 ms")
+    static class ServerDispatchEvent extends RpcEvent {
+    }
+
+    @Name("motan.QueueWait")
+    @Label("Motan Queue Wait")
+    @Description("Time a request waited in the server executor queue.")
+    static class QueueWaitEvent extends RpcEvent {
+    }
+
+    @Name("motan.Encode")
+    @Label("Motan Encode")
+    @Description("Encoding of a request or response.")
+    @Threshold("1 ms")
+    static class EncodeEvent extends RpcEvent {
+    }
+
+    @Name("motan.Decode")
+    @Label("Motan Decode")
+    @Description("Decoding of a request or response.")
+    @Threshold("1 ms")
+    static class DecodeEvent extends RpcEvent {
+    }
+
+    @Name("motan.Timeout")
+    @Label("Motan Timeout")
+    @Description("Client request cancelled because of timeout.")
+    static class TimeoutEvent extends RpcEvent {
+    }
+
+    @Name("motan.Reject")
+    @Label("Motan Reject")
+    @Description("Request rejected because the server executor is full.")
+    static class RejectEvent extends RpcEvent {
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+/**
+ * 延迟直方图，按HdrHistogram的分桶方式记录微秒值。
+ *
+ * <pre>
+ * 		1) 分桶与HdrHistogram(lowest=1, highest=HIGHEST_TRACKABLE_VALUE, significantDigits)一致，默认2位有效数字，相对误差不超过1%，
+ * 			不对样本做衰减或抽样，多个直方图可以直接合并（计数相加）；
+ * 		2) 计数使用AtomicLongArray，多线程记录不需要加锁；超过最大值的记录按最大值统计；
+ * 		3) encodeCompressed输出HdrHistogram V2压缩格式，可以被HdrHistogram的HistogramLogReader读取后离线聚合。
+ * </pre>
+ */
+public class LatencyHistogram {
+    // 60秒
+    public static final long HIGHEST_TRACKABLE_VALUE = 60L * 1000 * 1000;
+    public static final int SIGNIFICANT_DIGITS = 2;
+
+    private static final int V2_ENCODING_COOKIE = 0x1c849303 | 0x10;
+    private static final int V2_COMPRESSED_ENCODING_COOKIE = 0x1c849304 | 0x10;
+
+    private final int significantDigits;
+    private final int subBucketCount;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+    private final int countsLength;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * @param significantDigits 有效数字位数，1: 相对误差不超过10%，2: 相对误差不超过1%
+     */
+    public LatencyHistogram(int significantDigits) {
+        if (significantDigits < 1 || significantDigits > 3) {
+            throw new IllegalArgumentException("significantDigits must be 1 ~ 3");
+        }
+        this.significantDigits = significantDigits;
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        subBucketCount = 1 << subBucketCountMagnitude;
+        subBucketHalfCount = subBucketCount / 2;
+        subBucketMask = subBucketCount - 1;
+        leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+        long smallestUntrackableValue = subBucketCount;
+        int bucketCount = 1;
+        while (smallestUntrackableValue <= HIGHEST_TRACKABLE_VALUE) {
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        countsLength = (bucketCount + 1) * subBucketHalfCount;
+        counts = new AtomicLongArray(countsLength);
+    }
+
+    /**
+     * 记录一个值（微秒）
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > HIGHEST_TRACKABLE_VALUE) {
+            value = HIGHEST_TRACKABLE_VALUE;
+        }
+        counts.incrementAndGet(countsIndex(value));
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * 合并另一个直方图的计数，两个直方图的有效数字位数必须相同
+     */
+    public void add(LatencyHistogram other) {
+        if (other.significantDigits != significantDigits) {
+            throw new IllegalArgumentException("significantDigits not match: " + significantDigits + " != " + other.significantDigits);
+        }
+        for (int i = 0; i < countsLength; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        long otherMax = other.maxValue.get();
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram(significantDigits);
+        copy.add(this);
+        return copy;
+    }
+
+    public void reset() {
+        for (int i = 0; i < countsLength; i++) {
+            counts.set(i, 0);
+        }
+        maxValue.set(0);
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < countsLength; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < countsLength; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += count * (double) medianEquivalentValue(valueFromIndex(i));
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * 把计数按上界累加到bucketCounts中：bucketCounts[i]累加(bounds[i-1], bounds[i]]内的计数，最后一个位置累加超过所有上界的计数
+     *
+     * @param bounds 升序排列的上界
+     * @param bucketCounts 长度为bounds.length + 1
+     * @return 所有值的和（按桶的中间值估算）
+     */
+    public double addBucketCounts(long[] bounds, long[] bucketCounts) {
+        double sum = 0;
+        int bucket = 0;
+        for (int i = 0; i < countsLength; i++) {
+            long count = counts.get(i);
+            if (count == 0) {
+                continue;
+            }
+            long value = valueFromIndex(i);
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            bucketCounts[bucket] += count;
+            sum += count * (double) medianEquivalentValue(value);
+        }
+        return sum;
+    }
+
+    /**
+     * 百分位值，与HdrHistogram一致返回所在桶的最大等价值
+     *
+     * @param percentile 0 ~ 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        double requested = Math.min(Math.max(percentile, 0), 100);
+        long countAtPercentile = Math.max(1, (long) (requested / 100 * total + 0.5));
+        long totalToCurrentIndex = 0;
+        for (int i = 0; i < countsLength; i++) {
+            totalToCurrentIndex += counts.get(i);
+            if (totalToCurrentIndex >= countAtPercentile) {
+                long value = valueFromIndex(i);
+                return requested == 0 ? value : Math.min(highestEquivalentValue(value), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * HdrHistogram V2压缩格式（deflate）
+     */
+    public byte[] encodeCompressed() {
+        int countsLimit = countsIndex(maxValue.get()) + 1;
+        // header 40字节，每个计数最多9字节
+        ByteBuffer buffer = ByteBuffer.allocate(40 + countsLimit * 9);
+        buffer.putInt(V2_ENCODING_COOKIE);
+        buffer.putInt(0);
+        buffer.putInt(0); // normalizingIndexOffset
+        buffer.putInt(significantDigits);
+        buffer.putLong(1); // lowestDiscernibleValue
+        buffer.putLong(HIGHEST_TRACKABLE_VALUE);
+        buffer.putDouble(1.0); // integerToDoubleValueConversionRatio
+        int payloadStart = buffer.position();
+        int index = 0;
+        while (index < countsLimit) {
+            long count = counts.get(index++);
+            int zeros = 0;
+            if (count == 0) {
+                zeros = 1;
+                while (index < countsLimit && counts.get(index) == 0) {
+                    zeros++;
+                    index++;
+                }
+            }
+            putZigZag(buffer, zeros > 1 ? -zeros : count);
+        }
+        buffer.putInt(4, buffer.position() - payloadStart);
+        int length = buffer.position();
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(buffer.array(), 0, length);
+            deflater.finish();
+            byte[] compressed = new byte[length + 64];
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    byte[] larger = new byte[compressed.length * 2];
+                    System.arraycopy(compressed, 0, larger, 0, compressedLength);
+                    compressed = larger;
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            ByteBuffer result = ByteBuffer.allocate(8 + compressedLength);
+            result.putInt(V2_COMPRESSED_ENCODING_COOKIE);
+            result.putInt(compressedLength);
+            result.put(compressed, 0, compressedLength);
+            return result.array();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    int countsIndex(long value) {
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+        return bucketBaseIndex + subBucketIndex - subBucketHalfCount;
+    }
+
+    long valueFromIndex(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    private long sizeOfEquivalentValueRange(long value) {
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return 1L << (subBucketIndex >= subBucketCount ? bucketIndex + 1 : bucketIndex);
+    }
+
+    private long highestEquivalentValue(long value) {
+        return value + sizeOfEquivalentValueRange(value) - 1;
+    }
+
+    private long medianEquivalentValue(long value) {
+        return value + (sizeOfEquivalentValueRange(value) >> 1);
+    }
+
+    /**
+     * ZigZag LEB128，第9个字节使用全部8位，与HdrHistogram的ZigZagEncoding一致
+     */
+    private static void putZigZag(ByteBuffer buffer, long value) {
+        value = (value << 1) ^ (value >> 63);
+        for (int i = 0; i < 8; i++) {
+            if ((value >>> 7) == 0) {
+                buffer.put((byte) value);
+                return;
+            }
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
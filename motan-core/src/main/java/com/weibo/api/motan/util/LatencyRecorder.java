@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.weibo.api.motan.common.MotanConstants;
+
+/**
+ * 按统计周期记录延迟直方图。
+ *
+ * <pre>
+ * 		1) 时间按STATISTIC_PEROID对齐划分为周期，相邻两个周期交替使用两组LatencyHistogram；
+ * 		2) 每个直方图记录所属的周期，进入新周期时由首个写入的线程通过CAS重置，与AccessStatisticItem的按秒统计方式相同；
+ * 		3) 读取上一个完整周期的快照，不影响正在写入的周期；
+ * 		4) 每个结束的周期在被读取或被重置前按固定上界累加一次，作为OpenMetrics histogram输出的累计分布；
+ * 		5) 每个周期的直方图按线程分散到多个stripe上（与AccessStatisticItem的计数相同），读取时合并，
+ * 		   stripe在首次写入时才创建，只占用实际有并发写入的stripe的内存。
+ * </pre>
+ */
+public class LatencyRecorder {
+    private static final long RESETTING = -1;
+    // 延迟分布的默认上界（微秒）：1ms ~ 10s
+    public static final long[] LATENCY_BUCKETS = new long[] {1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000};
+
+    private final long intervalMillis;
+    private final int significantDigits;
+    // 周期index * STRIPES + stripe，首次写入时创建
+    private final AtomicReferenceArray<LatencyHistogram> histograms;
+    // 直方图当前所属的周期
+    private final AtomicLongArray intervals = new AtomicLongArray(2);
+    // 最近一次读取的快照，同一周期内重复读取（日志、metrics）时复用
+    private volatile IntervalHistogram lastInterval;
+    // 直方图中已经累加到bucketCounts的周期
+    private final AtomicLongArray accumulatedIntervals = new AtomicLongArray(2);
+    private final long[] bucketBounds;
+    private final long[] bucketCounts;
+    private double bucketSum;
+
+    public LatencyRecorder() {
+        this(MotanConstants.STATISTIC_PEROID * 1000L);
+    }
+
+    LatencyRecorder(long intervalMillis) {
+        this(intervalMillis, LatencyHistogram.SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * @param intervalMillis 周期长度
+     * @param significantDigits 直方图的有效数字位数，见LatencyHistogram
+     */
+    public LatencyRecorder(long intervalMillis, int significantDigits) {
+        this(intervalMillis, significantDigits, LATENCY_BUCKETS);
+    }
+
+    /**
+     * @param intervalMillis 周期长度
+     * @param significantDigits 直方图的有效数字位数，见LatencyHistogram
+     * @param bucketBounds 累计分布的上界，升序排列
+     */
+    public LatencyRecorder(long intervalMillis, int significantDigits, long[] bucketBounds) {
+        this.intervalMillis = intervalMillis;
+        this.significantDigits = significantDigits;
+        this.bucketBounds = bucketBounds;
+        this.bucketCounts = new long[bucketBounds.length + 1];
+        this.histograms = new AtomicReferenceArray<LatencyHistogram>(2 * AccessStatisticItem.STRIPES);
+        // 每个周期的第一个stripe直接创建
+        histograms.set(0, new LatencyHistogram(significantDigits));
+        histograms.set(AccessStatisticItem.STRIPES, new LatencyHistogram(significantDigits));
+    }
+
+    /**
+     * @param currentTimeMillis 记录的时间
+     * @param valueMicros 延迟（微秒）
+     */
+    public void record(long currentTimeMillis, long valueMicros) {
+        long interval = currentTimeMillis / intervalMillis;
+        int index = (int) (interval & 1);
+        if (intervals.get(index) != interval && !rollover(index, interval)) {
+            return;
+        }
+        getStripeHistogram(index * AccessStatisticItem.STRIPES + AccessStatisticItem.getStripe()).recordValue(valueMicros);
+    }
+
+    private LatencyHistogram getStripeHistogram(int i) {
+        LatencyHistogram histogram = histograms.get(i);
+        if (histogram == null) {
+            histograms.compareAndSet(i, null, new LatencyHistogram(significantDigits));
+            histogram = histograms.get(i);
+        }
+        return histogram;
+    }
+
+    private boolean rollover(int index, long interval) {
+        while (true) {
+            long current = intervals.get(index);
+            if (current == interval) {
+                return true;
+            }
+            if (current > interval) {
+                // 记录时间过旧，该直方图已经属于更新的周期
+                return false;
+            }
+            if (current != RESETTING && intervals.compareAndSet(index, current, RESETTING)) {
+                accumulate(index, current, null);
+                for (int i = index * AccessStatisticItem.STRIPES; i < (index + 1) * AccessStatisticItem.STRIPES; i++) {
+                    LatencyHistogram histogram = histograms.get(i);
+                    if (histogram != null) {
+                        histogram.reset();
+                    }
+                }
+                intervals.set(index, interval);
+                return true;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 上一个完整周期的直方图快照，返回的直方图可能被共享，调用方不应修改
+     *
+     * @param currentTimeMillis
+     * @return 上一个周期没有记录时返回null
+     */
+    public IntervalHistogram getLastInterval(long currentTimeMillis) {
+        long interval = currentTimeMillis / intervalMillis - 1;
+        int index = (int) (interval & 1);
+        if (intervals.get(index) != interval) {
+            return null;
+        }
+        IntervalHistogram last = lastInterval;
+        if (last != null && last.getStartTimeMillis() == interval * intervalMillis) {
+            return last;
+        }
+        LatencyHistogram copy = merge(index);
+        // 复制过程中被重置时数据不完整
+        if (intervals.get(index) != interval) {
+            return null;
+        }
+        accumulate(index, interval, copy);
+        last = new IntervalHistogram(interval * intervalMillis, intervalMillis, copy);
+        lastInterval = last;
+        return last;
+    }
+
+    /**
+     * 合并一个周期所有stripe的直方图
+     */
+    private LatencyHistogram merge(int index) {
+        LatencyHistogram merged = new LatencyHistogram(significantDigits);
+        for (int i = index * AccessStatisticItem.STRIPES; i < (index + 1) * AccessStatisticItem.STRIPES; i++) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null) {
+                merged.add(histogram);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param histogram 该周期合并后的直方图，为null时在需要累加时合并
+     */
+    private void accumulate(int index, long interval, LatencyHistogram histogram) {
+        long accumulated = accumulatedIntervals.get(index);
+        if (accumulated >= interval || !accumulatedIntervals.compareAndSet(index, accumulated, interval)) {
+            return;
+        }
+        if (histogram == null) {
+            histogram = merge(index);
+        }
+        synchronized (bucketCounts) {
+            bucketSum += histogram.addBucketCounts(bucketBounds, bucketCounts);
+        }
+    }
+
+    /**
+     * 以OpenMetrics histogram输出已结束周期的累计分布
+     *
+     * @param family histogram类型的family
+     * @param unit 上界和值除以unit后输出，如微秒输出为秒时为1e6
+     * @param labels 见OpenMetricsWriter.Family#sample
+     */
+    public void writeHistogram(OpenMetricsWriter.Family family, double unit, String... labels) {
+        synchronized (bucketCounts) {
+            family.histogram(bucketBounds, bucketCounts, bucketSum, unit, labels);
+        }
+    }
+
+    /**
+     * 一个统计周期的直方图
+     */
+    public static class IntervalHistogram {
+        private final long startTimeMillis;
+        private final long intervalMillis;
+        private final LatencyHistogram histogram;
+
+        public IntervalHistogram(long startTimeMillis, long intervalMillis, LatencyHistogram histogram) {
+            this.startTimeMillis = startTimeMillis;
+            this.intervalMillis = intervalMillis;
+            this.histogram = histogram;
+        }
+
+        public long getStartTimeMillis() {
+            return startTimeMillis;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+}
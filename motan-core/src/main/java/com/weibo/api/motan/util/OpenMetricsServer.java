@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.weibo.api.motan.closable.Closable;
+import com.weibo.api.motan.closable.ShutDownHook;
+
+/**
+ * 内嵌的metrics http服务，GET /metrics 以OpenMetrics文本格式返回StatsUtil.collectMetrics的结果。
+ *
+ * <pre>
+ * 		1) 使用JDK自带的HttpServer，不依赖外部组件；
+ * 		2) 单线程处理请求，并发的抓取依次执行，OpenMetricsWriter在多次抓取之间复用；
+ * 		3) 设置系统属性motan.metrics.port后随StatsUtil自动启动，也可以直接调用start。
+ * </pre>
+ */
+public class OpenMetricsServer {
+    public static final String PORT_KEY = "motan.metrics.port";
+    public static final String PATH = "/metrics";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int port;
+    private final OpenMetricsWriter writer = new OpenMetricsWriter();
+    private final StringBuilder buffer = new StringBuilder();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public OpenMetricsServer(int port) {
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "motan-metrics-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleScrape(exchange);
+            }
+        });
+        server.start();
+        ShutDownHook.registerShutdownHook(new Closable() {
+            @Override
+            public void close() {
+                OpenMetricsServer.this.stop();
+            }
+        });
+        LoggerUtil.info("OpenMetricsServer started: port=" + getPort());
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        executor.shutdown();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * 实际监听的端口，port为0时由系统分配
+     */
+    public synchronized int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    /**
+     * 一次抓取的完整输出
+     */
+    public synchronized byte[] scrape() {
+        writer.reset();
+        StatsUtil.collectMetrics(writer);
+        buffer.setLength(0);
+        writer.writeTo(buffer);
+        return buffer.toString().getBytes(UTF_8);
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body;
+            try {
+                body = scrape();
+            } catch (Exception e) {
+                LoggerUtil.warn("OpenMetricsServer scrape Error: " + e.getMessage());
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", OpenMetricsWriter.CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 配置了motan.metrics.port时启动
+     */
+    static OpenMetricsServer startIfConfigured() {
+        Integer port = Integer.getInteger(PORT_KEY);
+        if (port == null) {
+            return null;
+        }
+        OpenMetricsServer server = new OpenMetricsServer(port);
+        try {
+            server.start();
+            return server;
+        } catch (Exception e) {
+            LoggerUtil.error("OpenMetricsServer start Error: port=" + port, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 以OpenMetrics文本格式输出指标。
+ *
+ * <pre>
+ * 		1) 同一指标的样本按family分组输出，多个数据源（如多个NettyServer）写入同一个family时不会重复输出TYPE/HELP；
+ * 		2) family及其缓冲在多次输出之间复用，reset后再次写入不需要重新分配；
+ * 		3) 非线程安全，由调用方保证同一时刻只有一个线程写入。
+ * </pre>
+ */
+public class OpenMetricsWriter {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    public Family gauge(String name, String help) {
+        return family(name, "gauge", help);
+    }
+
+    /**
+     * counter的样本名自动加上_total后缀
+     */
+    public Family counter(String name, String help) {
+        return family(name, "counter", help);
+    }
+
+    /**
+     * histogram的样本通过Family#histogram输出_bucket、_count、_sum
+     */
+    public Family histogram(String name, String help) {
+        return family(name, "histogram", help);
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, type, help);
+            families.put(name, family);
+        }
+        return family;
+    }
+
+    /**
+     * 清空样本，保留family
+     */
+    public void reset() {
+        for (Family family : families.values()) {
+            family.samples.setLength(0);
+        }
+    }
+
+    public void writeTo(StringBuilder out) {
+        for (Family family : families.values()) {
+            if (family.samples.length() == 0) {
+                continue;
+            }
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append(family.samples);
+        }
+        out.append("# EOF\n");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        writeTo(sb);
+        return sb.toString();
+    }
+
+    public static class Family {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final String sampleName;
+        private final StringBuilder samples = new StringBuilder();
+
+        private Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.sampleName = "counter".equals(type) ? name + "_total" : name;
+        }
+
+        /**
+         * @param value
+         * @param labels 标签名、标签值交替排列，值为null的标签不输出
+         */
+        public Family sample(long value, String... labels) {
+            appendName(sampleName, labels, null, null);
+            samples.append(value).append('\n');
+            return this;
+        }
+
+        public Family sample(double value, String... labels) {
+            appendName(sampleName, labels, null, null);
+            appendDouble(value);
+            samples.append('\n');
+            return this;
+        }
+
+        /**
+         * 输出一组histogram样本
+         *
+         * @param bounds 升序排列的上界
+         * @param bucketCounts 各上界区间内（非累计）的计数，最后一个为超过所有上界的计数
+         * @param sum 所有值的和
+         * @param unit 上界和值除以unit后输出，如微秒输出为秒时为1e6
+         * @param labels 见sample
+         */
+        public Family histogram(long[] bounds, long[] bucketCounts, double sum, double unit, String... labels) {
+            long count = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                count += bucketCounts[i];
+                appendName(name + "_bucket", labels, "le", i < bounds.length ? String.valueOf(bounds[i] / unit) : "+Inf");
+                samples.append(count).append('\n');
+            }
+            appendName(name + "_count", labels, null, null);
+            samples.append(count).append('\n');
+            appendName(name + "_sum", labels, null, null);
+            appendDouble(sum / unit);
+            samples.append('\n');
+            return this;
+        }
+
+        private void appendDouble(double value) {
+            if (Double.isNaN(value)) {
+                samples.append("NaN");
+            } else if (Double.isInfinite(value)) {
+                samples.append(value > 0 ? "+Inf" : "-Inf");
+            } else {
+                samples.append(value);
+            }
+        }
+
+        private void appendName(String sampleName, String[] labels, String extraLabel, String extraValue) {
+            samples.append(sampleName);
+            boolean first = true;
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (labels[i + 1] == null) {
+                    continue;
+                }
+                samples.append(first ? '{' : ',').append(labels[i]).append("=\"");
+                appendEscaped(labels[i + 1]);
+                samples.append('"');
+                first = false;
+            }
+            if (extraLabel != null) {
+                samples.append(first ? '{' : ',').append(extraLabel).append("=\"").append(extraValue).append('"');
+                first = false;
+            }
+            if (!first) {
+                samples.append('}');
+            }
+            samples.append(' ');
+        }
+
+        private void appendEscaped(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    samples.append('\\').append(c);
+                } else if (c == '\n') {
+                    samples.append("\\n");
+                } else {
+                    samples.append(c);
+                }
+            }
+        }
+    }
+}
@@ -18,14 +18,22 @@ package com.weibo.api.motan.util;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.RpcContext;
+
 
 /**
  * 通过requestId能够知道大致请求的时间
  * 
  * <pre>
- * 		目前是 currentTimeMillis * (2^20) + offset.incrementAndGet()
+ * 		目前是 currentTimeMillis * (2^20) + count，count取值[1, 2^20)
  * 
  * 		通过 requestId / (2^20 * 1000) 能够得到秒
+ * 
+ * 		1) 每个线程每次从全局的offset申请一段连续的count（BLOCK_SIZE个），用完前不再访问全局计数，也不创建对象；
+ * 		2) 不同线程的count段互不重叠，同一线程内requestId单调递增；
+ * 		3) count用完一轮（2^20）后在下一毫秒重新开始，offset的高32位记录轮次，线程发现轮次变化时丢弃手中的count段。
  *
  * </pre>
  * 
@@ -36,7 +44,17 @@ public class RequestIdGenerator {
     protected static final AtomicLong offset = new AtomicLong(0);
     protected static final int BITS = 20;
     protected static final long MAX_COUNT_PER_MILLIS = 1 << BITS;
+    // 线程每次申请的count数
+    protected static final int BLOCK_SIZE = 256;
+    private static final int GENERATION_SHIFT = 32;
+    private static final long POSITION_MASK = (1L << GENERATION_SHIFT) - 1;
 
+    private static final ThreadLocal<Block> localBlock = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block();
+        }
+    };
 
     /**
      * 获取 requestId
@@ -45,22 +63,79 @@ public class RequestIdGenerator {
      */
     public static long getRequestId() {
         long currentTime = System.currentTimeMillis();
-        long count = offset.incrementAndGet();
-        while(count >= MAX_COUNT_PER_MILLIS){
-            synchronized (RequestIdGenerator.class){
-                if(offset.get() >= MAX_COUNT_PER_MILLIS){
-                    offset.set(0);
-                }
+        Block block = localBlock.get();
+        long current = offset.get();
+        if (block.next > block.end || block.generation != (current >>> GENERATION_SHIFT)
+                || (current & POSITION_MASK) < block.end) {
+            allocate(block);
+            currentTime = System.currentTimeMillis();
+        }
+        return (currentTime << BITS) + block.next++;
+    }
+
+    private static void allocate(Block block) {
+        while (true) {
+            long end = offset.addAndGet(BLOCK_SIZE);
+            long endPosition = end & POSITION_MASK;
+            long start = endPosition - BLOCK_SIZE + 1;
+            if (start < MAX_COUNT_PER_MILLIS) {
+                block.generation = end >>> GENERATION_SHIFT;
+                block.next = start;
+                block.end = Math.min(endPosition, MAX_COUNT_PER_MILLIS - 1);
+                return;
             }
-            count = offset.incrementAndGet();
+            reset(end);
         }
-        return (currentTime << BITS) + count;
     }
 
+    private static void reset(long observed) {
+        synchronized (RequestIdGenerator.class) {
+            long current = offset.get();
+            if ((current >>> GENERATION_SHIFT) != (observed >>> GENERATION_SHIFT)
+                    || (current & POSITION_MASK) < MAX_COUNT_PER_MILLIS) {
+                // 其他线程已经重置
+                return;
+            }
+            // 等到下一毫秒再开始新的一轮，避免与同一毫秒内上一轮的requestId重复
+            long now = System.currentTimeMillis();
+            while (System.currentTimeMillis() <= now) {
+                Thread.yield();
+            }
+            offset.set(((current >>> GENERATION_SHIFT) + 1) << GENERATION_SHIFT);
+        }
+    }
+
+    /**
+     * 获取最初发起调用的client的requestId，用于在多级调用中传递
+     * 
+     * <pre>
+     * 		1) 当前请求已经带有上游传来的requestIdFromClient时，继续向下游传递；
+     * 		2) 否则当前线程正在处理的请求即为最初的请求，使用它的requestId；
+     * 		3) 不在处理请求的线程中时返回0。
+     * </pre>
+     * 
+     * @return
+     */
     public static long getRequestIdFromClient() {
-        // TODO 上下文 requestid
-        return 0;
+        RpcContext context = RpcContext.getContext();
+        String clientRequestId = context.getClientRequestId();
+        if (clientRequestId != null && !URLParamType.requestIdFromClient.getValue().equals(clientRequestId)) {
+            try {
+                return Long.parseLong(clientRequestId);
+            } catch (NumberFormatException e) {
+                LoggerUtil.warn("RequestIdGenerator parse requestIdFromClient fail: " + clientRequestId);
+            }
+        }
+        Request request = context.getRequest();
+        return request == null ? 0 : request.getRequestId();
+    }
 
+    private static class Block {
+        long generation = -1;
+        // 下一个可用的count
+        long next = 1;
+        // 最后一个可用的count
+        long end = 0;
     }
 
 }
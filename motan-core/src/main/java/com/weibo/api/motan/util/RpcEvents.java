@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+/**
+ * rpc调用的Java Flight Recorder事件。
+ *
+ * <pre>
+ * 		1) 事件：client调用、server处理、业务线程池排队、编码、解码、超时、拒绝，事件名为motan.*，分类为Motan/RPC；
+ * 		2) JDK不支持JFR（jdk.jfr）或设置了-Dmotan.jfr=false时不产生任何事件，也不加载JFR相关的类；
+ * 		   构建JDK不支持JFR时不编译JFR实现JfrRpcEvents（no-jfr profile），没有该实现时同样不产生事件；
+ * 		3) 没有正在进行的recording或事件未启用时，begin返回null，不创建事件对象；
+ * 		4) 事件带有默认的阈值（如编码1ms），可以在jfc配置中通过threshold、enabled调整；
+ * 		5) 开始和结束不在同一线程的阶段（client调用可能在回调线程中结束，业务线程池排队），开始时只记录System.nanoTime()，
+ * 		   结束时通过emit(type, elapsedNanos, ...)提交，耗时记录在elapsed字段中（事件自身的持续时间为0），
+ * 		   使用固定的阈值（client调用10ms，排队1ms），jfc中只能通过enabled开关。
+ * </pre>
+ *
+ * 使用方式：
+ *
+ * <pre>
+ * Object event = RpcEvents.begin(RpcEvents.Type.ENCODE);
+ * try {
+ *     ...
+ * } finally {
+ *     RpcEvents.commit(event, service, method, remoteAddress, requestId, size);
+ * }
+ * </pre>
+ */
+public final class RpcEvents {
+    public static final String ENABLE_KEY = "motan.jfr";
+
+    public enum Type {
+        CLIENT_CALL, SERVER_DISPATCH, QUEUE_WAIT, ENCODE, DECODE, TIMEOUT, REJECT
+    }
+
+    /**
+     * 事件的实现，由JfrRpcEvents提供
+     */
+    interface Backend {
+        boolean isEnabled(Type type);
+
+        Object begin(Type type);
+
+        void commit(Object event, String service, String method, Object remoteAddress, long requestId, long size);
+
+        void emit(Type type, String service, String method, Object remoteAddress, long requestId, long size);
+
+        void emit(Type type, long elapsedNanos, String service, String method, Object remoteAddress, long requestId, long size);
+    }
+
+    private static final String JFR_BACKEND = "com.weibo.api.motan.util.JfrRpcEvents";
+
+    // 不可用时为null
+    private static final Backend BACKEND = loadBackend();
+
+    private RpcEvents() {}
+
+    private static Backend loadBackend() {
+        if ("false".equalsIgnoreCase(System.getProperty(ENABLE_KEY))) {
+            return null;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Backend) Class.forName(JFR_BACKEND).newInstance();
+        } catch (Throwable e) {
+            // JDK不支持JFR，或构建时没有编译JFR实现
+            return null;
+        }
+    }
+
+    /**
+     * 事件是否在当前的recording中启用
+     */
+    public static boolean isEnabled(Type type) {
+        return BACKEND != null && BACKEND.isEnabled(type);
+    }
+
+    /**
+     * 开始一个有持续时间的事件
+     *
+     * @return 事件未启用时返回null
+     */
+    public static Object begin(Type type) {
+        if (!isEnabled(type)) {
+            return null;
+        }
+        return BACKEND.begin(type);
+    }
+
+    /**
+     * 结束begin返回的事件，耗时超过阈值时提交；event为null时什么也不做
+     *
+     * @param remoteAddress 对端地址，提交时才转换为字符串
+     * @param size 消息的字节数，未知时为0
+     */
+    public static void commit(Object event, String service, String method, Object remoteAddress, long requestId, long size) {
+        if (event == null) {
+            return;
+        }
+        BACKEND.commit(event, service, method, remoteAddress, requestId, size);
+    }
+
+    /**
+     * 提交一个没有持续时间的事件，如超时、拒绝
+     */
+    public static void emit(Type type, String service, String method, Object remoteAddress, long requestId, long size) {
+        if (!isEnabled(type)) {
+            return;
+        }
+        BACKEND.emit(type, service, method, remoteAddress, requestId, size);
+    }
+
+    /**
+     * 提交一个在其他线程或更早开始的事件，耗时小于该类事件的阈值时不提交
+     *
+     * @param elapsedNanos 从开始到现在的耗时（System.nanoTime()之差）
+     */
+    public static void emit(Type type, long elapsedNanos, String service, String method, Object remoteAddress, long requestId,
+            long size) {
+        if (!isEnabled(type)) {
+            return;
+        }
+        BACKEND.emit(type, elapsedNanos, service, method, remoteAddress, requestId, size);
+    }
+}
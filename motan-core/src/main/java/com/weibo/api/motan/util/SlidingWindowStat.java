@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 滑动窗口内的调用数、失败数、耗时及耗时分布。
+ *
+ * <pre>
+ * 		1) 窗口由bucketCount个bucket组成，每个bucket记录bucketMillis内的调用，默认10个1秒的bucket；
+ * 		2) bucket循环使用，进入新的时间段时由首个写入的线程通过CAS重置，与LatencyRecorder的方式相同；
+ * 		3) 耗时分布使用1位有效数字的LatencyHistogram，读取快照时合并窗口内的bucket；
+ * 		4) 快照按bucket缓存，同一个bucket时间段内重复读取（负载均衡、限流等）时复用，数据最多滞后一个bucket。
+ * </pre>
+ */
+public class SlidingWindowStat {
+    public static final int DEFAULT_BUCKET_COUNT = 10;
+    public static final long DEFAULT_BUCKET_MILLIS = 1000;
+
+    private static final long RESETTING = -1;
+    private static final int SIGNIFICANT_DIGITS = 1;
+
+    private final int bucketCount;
+    private final long bucketMillis;
+    // 每个bucket当前所属的时间段
+    private final AtomicLongArray buckets;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray failCounts;
+    private final AtomicLongArray timeMills;
+    private final LatencyHistogram[] latencies;
+    private volatile Snapshot lastSnapshot;
+
+    public SlidingWindowStat() {
+        this(DEFAULT_BUCKET_COUNT, DEFAULT_BUCKET_MILLIS);
+    }
+
+    public SlidingWindowStat(int bucketCount, long bucketMillis) {
+        this.bucketCount = bucketCount;
+        this.bucketMillis = bucketMillis;
+        this.buckets = new AtomicLongArray(bucketCount);
+        this.counts = new AtomicLongArray(bucketCount);
+        this.failCounts = new AtomicLongArray(bucketCount);
+        this.timeMills = new AtomicLongArray(bucketCount);
+        this.latencies = new LatencyHistogram[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            latencies[i] = new LatencyHistogram(SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /**
+     * @param currentTimeMillis 调用完成的时间
+     * @param success 是否成功
+     * @param costMills 耗时（毫秒）
+     */
+    public void record(long currentTimeMillis, boolean success, long costMills) {
+        long bucket = currentTimeMillis / bucketMillis;
+        int index = (int) (bucket % bucketCount);
+        if (buckets.get(index) != bucket && !rollover(index, bucket)) {
+            return;
+        }
+        counts.incrementAndGet(index);
+        if (!success) {
+            failCounts.incrementAndGet(index);
+        }
+        timeMills.addAndGet(index, costMills);
+        latencies[index].recordValue(costMills * 1000);
+    }
+
+    private boolean rollover(int index, long bucket) {
+        while (true) {
+            long current = buckets.get(index);
+            if (current == bucket) {
+                return true;
+            }
+            if (current > bucket) {
+                // 记录时间过旧，该bucket已经属于更新的时间段
+                return false;
+            }
+            if (current != RESETTING && buckets.compareAndSet(index, current, RESETTING)) {
+                counts.set(index, 0);
+                failCounts.set(index, 0);
+                timeMills.set(index, 0);
+                latencies[index].reset();
+                buckets.set(index, bucket);
+                return true;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 截止currentTimeMillis的窗口快照，返回的快照可能被共享，调用方不应修改其中的直方图
+     */
+    public Snapshot getSnapshot(long currentTimeMillis) {
+        long bucket = currentTimeMillis / bucketMillis;
+        Snapshot last = lastSnapshot;
+        if (last != null && last.bucket == bucket) {
+            return last;
+        }
+        long count = 0, failCount = 0, time = 0;
+        LatencyHistogram histogram = new LatencyHistogram(SIGNIFICANT_DIGITS);
+        for (int i = 0; i < bucketCount; i++) {
+            long b = buckets.get(i);
+            if (b <= bucket - bucketCount || b > bucket) {
+                continue;
+            }
+            count += counts.get(i);
+            failCount += failCounts.get(i);
+            time += timeMills.get(i);
+            histogram.add(latencies[i]);
+        }
+        last = new Snapshot(bucket, count, failCount, time, histogram);
+        lastSnapshot = last;
+        return last;
+    }
+
+    /**
+     * 清空窗口
+     */
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.set(i, 0);
+        }
+        lastSnapshot = null;
+    }
+
+    public long getWindowMillis() {
+        return bucketCount * bucketMillis;
+    }
+
+    /**
+     * 窗口的快照
+     */
+    public static class Snapshot {
+        private final long bucket;
+        private final long count;
+        private final long failCount;
+        private final long timeMills;
+        private final LatencyHistogram histogram;
+
+        Snapshot(long bucket, long count, long failCount, long timeMills, LatencyHistogram histogram) {
+            this.bucket = bucket;
+            this.count = count;
+            this.failCount = failCount;
+            this.timeMills = timeMills;
+            this.histogram = histogram;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailCount() {
+            return failCount;
+        }
+
+        public long getTimeMills() {
+            return timeMills;
+        }
+
+        /**
+         * 窗口内没有调用时为1
+         */
+        public double getSuccessRate() {
+            return count == 0 ? 1 : (double) (count - failCount) / count;
+        }
+
+        public double getMeanMills() {
+            return count == 0 ? 0 : (double) timeMills / count;
+        }
+
+        /**
+         * 耗时分位值（毫秒），相对误差不超过10%
+         */
+        public double getPercentileMills(double percentile) {
+            return histogram.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        public double getP99Mills() {
+            return getPercentileMills(99);
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.rpc.StageTimes;
+import com.weibo.api.motan.rpc.StageTimes.Stage;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
+
+/**
+ * 单个方法在client端统计的分阶段耗时分布。
+ *
+ * <pre>
+ * 		1) 每个阶段一个LatencyRecorder，按统计周期输出；
+ * 		2) 阶段数量较多，直方图使用1位有效数字（相对误差不超过10%），减少每个方法占用的内存；
+ * 		3) server未回传阶段耗时时（如旧版本server），只统计client端的阶段。
+ * </pre>
+ *
+ * 通过StatsUtil.getStageStatisticItem获取后可以缓存。
+ */
+public class StageStatisticItem {
+    private static final int SIGNIFICANT_DIGITS = 1;
+    // 各阶段耗时多在毫秒以下，histogram的桶边界（微秒）比整体延迟更细
+    public static final long[] STAGE_BUCKETS = new long[] {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000};
+
+    private final String name;
+    private final LatencyRecorder[] recorders;
+
+    public StageStatisticItem(String name) {
+        this.name = name;
+        this.recorders = new LatencyRecorder[StageTimes.STAGES.length];
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new LatencyRecorder(MotanConstants.STATISTIC_PEROID * 1000L, SIGNIFICANT_DIGITS, STAGE_BUCKETS);
+        }
+    }
+
+    public void statistic(long currentTimeMillis, StageTimes stageTimes) {
+        boolean hasServerStages = stageTimes.hasServerStages();
+        for (Stage stage : StageTimes.STAGES) {
+            if (!hasServerStages && !isClientStage(stage)) {
+                continue;
+            }
+            recorders[stage.ordinal()].record(currentTimeMillis, stageTimes.get(stage));
+        }
+    }
+
+    /**
+     * 上一个完整统计周期某个阶段的耗时分布（微秒）
+     */
+    public IntervalHistogram getLastInterval(Stage stage, long currentTimeMillis) {
+        return recorders[stage.ordinal()].getLastInterval(currentTimeMillis);
+    }
+
+    /**
+     * 以OpenMetrics histogram（秒）输出某个阶段已结束周期的累计耗时分布
+     */
+    public void writeHistogram(Stage stage, OpenMetricsWriter.Family family, String... labels) {
+        recorders[stage.ordinal()].writeHistogram(family, 1000000.0, labels);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static boolean isClientStage(Stage stage) {
+        return stage == Stage.CLIENT_ENCODE || stage == Stage.CLIENT_WRITE || stage == Stage.CLIENT_DECODE;
+    }
+}
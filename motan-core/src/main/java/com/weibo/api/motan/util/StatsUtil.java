@@ -16,22 +16,21 @@
 
 package com.weibo.api.motan.util;
 
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.Snapshot;
 import com.weibo.api.motan.closable.Closable;
 import com.weibo.api.motan.closable.ShutDownHook;
 import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.rpc.Application;
 import com.weibo.api.motan.rpc.ApplicationInfo;
+import com.weibo.api.motan.rpc.RpcStats;
+import com.weibo.api.motan.rpc.StageTimes;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
 import com.weibo.api.motan.util.StatsUtil.AccessStatus;
 
 import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 
@@ -45,6 +44,15 @@ public class StatsUtil {
     protected static List<StatisticCallback> statisticCallbacks = new CopyOnWriteArrayList<StatisticCallback>();
     public static String SEPARATE = "\\|";
     protected static ScheduledFuture<?> scheduledFuture;
+    // client端按方法统计的分阶段耗时
+    protected static ConcurrentMap<String, StageStatisticItem> stageStatistics = new ConcurrentHashMap<String, StageStatisticItem>();
+    // application|module的延迟分布
+    protected static ConcurrentMap<String, LatencyRecorder> appLatencyRecorders = new ConcurrentHashMap<String, LatencyRecorder>();
+    // 设置后每个统计周期以HdrHistogram log格式输出延迟分布
+    private static volatile HistogramLogWriter histogramLogWriter;
+    private static long lastHistogramLogInterval = 0;
+    // 配置了motan.metrics.port时启动的metrics http服务
+    protected static OpenMetricsServer metricsServer;
 
     static {
         scheduledFuture = executorService.scheduleAtFixedRate(new Runnable() {
@@ -53,6 +61,8 @@ public class StatsUtil {
             public void run() {
                 // access statistic
                 logAccessStatistic(true);
+                // stage
+                logStageStatistic();
                 // memory
                 logMemoryStatistic();
                 // callbacks
@@ -67,6 +77,7 @@ public class StatsUtil {
                 }
             }
         });
+        metricsServer = OpenMetricsServer.startIfConfigured();
     }
 
     public static void registryStatisticCallback(StatisticCallback callback) {
@@ -114,27 +125,94 @@ public class StatsUtil {
             application = new Application(URLParamType.application.getValue(), URLParamType.module.getValue());
         }
 
-        name = name + "|" + application.getApplication() + "|" + application.getModule();
-
         try {
-            AccessStatisticItem item = getStatisticItem(name, currentTimeMillis);
+            AccessStatisticItem item = getStatisticItem(name, application);
 
             item.statistic(currentTimeMillis, costTimeMillis, bizProcessTime, accessStatus);
         } catch (Exception e) {
         }
     }
 
+    /**
+     * 获取统计项，返回值可以由调用方缓存，之后直接调用AccessStatisticItem.statistic
+     *
+     * @param name
+     * @param application
+     * @return
+     */
+    public static AccessStatisticItem getStatisticItem(String name, Application application) {
+        if (application == null) {
+            application = new Application(URLParamType.application.getValue(), URLParamType.module.getValue());
+        }
+        String key = name + "|" + application.getApplication() + "|" + application.getModule();
+        AccessStatisticItem item = accessStatistics.get(key);
+
+        if (item == null) {
+            accessStatistics.putIfAbsent(key, new AccessStatisticItem(name, application.getApplication(), application.getModule()));
+            item = accessStatistics.get(key);
+        }
+
+        return item;
+    }
+
+    /**
+     * @param name name|application|module
+     * @param currentTime
+     * @return
+     */
     public static AccessStatisticItem getStatisticItem(String name, long currentTime) {
         AccessStatisticItem item = accessStatistics.get(name);
 
         if (item == null) {
-            accessStatistics.putIfAbsent(name, new AccessStatisticItem(name, currentTime));
-            item = accessStatistics.get(name);
+            String[] keys = name.split(SEPARATE);
+            if (keys.length != 3) {
+                return null;
+            }
+            item = getStatisticItem(keys[0], new Application(keys[1], keys[2]));
         }
 
         return item;
     }
 
+    /**
+     * 获取分阶段耗时统计项，返回值可以由调用方缓存
+     *
+     * @param name
+     * @return
+     */
+    public static StageStatisticItem getStageStatisticItem(String name) {
+        StageStatisticItem item = stageStatistics.get(name);
+        if (item == null) {
+            stageStatistics.putIfAbsent(name, new StageStatisticItem(name));
+            item = stageStatistics.get(name);
+        }
+        return item;
+    }
+
+    static LatencyRecorder getAppLatencyRecorder(String application, String module) {
+        String key = application + "|" + module;
+        LatencyRecorder recorder = appLatencyRecorders.get(key);
+        if (recorder == null) {
+            appLatencyRecorders.putIfAbsent(key, new LatencyRecorder());
+            recorder = appLatencyRecorders.get(key);
+        }
+        return recorder;
+    }
+
+    /**
+     * 设置周期延迟分布的输出，null表示不输出
+     *
+     * @param writer
+     */
+    public static void setHistogramLogWriter(HistogramLogWriter writer) {
+        if (writer != null) {
+            writer.outputLogFormatVersion();
+            writer.outputStartTime(System.currentTimeMillis());
+            writer.outputLegend();
+        }
+        histogramLogWriter = writer;
+    }
+
     public static ConcurrentMap<String, AccessStatisticResult> getTotalAccessStatistic() {
         return getTotalAccessStatistic(MotanConstants.STATISTIC_PEROID);
     }
@@ -153,14 +231,9 @@ public class StatsUtil {
 
             AccessStatisticResult result = item.getStatisticResult(currentTimeMillis, MotanConstants.STATISTIC_PEROID);
 
-            String key = entry.getKey();
-            String[] keys = key.split(SEPARATE);
-            if (keys.length != 3) {
-                continue;
-            }
-            String application = keys[1];
-            String module = keys[2];
-            key = application + "|" + module;
+            String application = item.getApplication();
+            String module = item.getModule();
+            String key = application + "|" + module;
             AccessStatisticResult appResult = totalResults.get(key);
             if (appResult == null) {
                 totalResults.putIfAbsent(key, new AccessStatisticResult());
@@ -184,6 +257,7 @@ public class StatsUtil {
     public static void logAccessStatistic(boolean clear) {
         DecimalFormat mbFormat = new DecimalFormat("#0.00");
         long currentTimeMillis = System.currentTimeMillis();
+        HistogramLogWriter logWriter = getHistogramLogWriter(currentTimeMillis);
 
         ConcurrentMap<String, AccessStatisticResult> totalResults = new ConcurrentHashMap<String, AccessStatisticResult>();
 
@@ -196,14 +270,9 @@ public class StatsUtil {
                 item.clearStatistic(currentTimeMillis, MotanConstants.STATISTIC_PEROID);
             }
 
-            String key = entry.getKey();
-            String[] keys = key.split(SEPARATE);
-            if (keys.length != 3) {
-                continue;
-            }
-            String application = keys[1];
-            String module = keys[2];
-            key = application + "|" + module;
+            String application = item.getApplication();
+            String module = item.getModule();
+            String key = application + "|" + module;
             AccessStatisticResult appResult = totalResults.get(key);
             if (appResult == null) {
                 totalResults.putIfAbsent(key, new AccessStatisticResult());
@@ -218,9 +287,7 @@ public class StatsUtil {
             appResult.bizTime += result.bizTime;
             appResult.otherExceptionCount += result.otherExceptionCount;
 
-            Snapshot snapshot =
-                    InternalMetricsFactory.getRegistryInstance(entry.getKey())
-                            .histogram(MetricRegistry.name(AccessStatisticItem.class, "costTimeMillis")).getSnapshot();
+            LatencyHistogram histogram = getHistogram(item.getLastLatencyInterval(currentTimeMillis), entry.getKey(), logWriter);
 
             if (application.equals(ApplicationInfo.STATISTIC)) {
                 continue;
@@ -232,16 +299,16 @@ public class StatsUtil {
                                 + " module: "
                                 + module
                                 + " item: "
-                                + keys[0]
+                                + item.getName()
                                 + " total_count: 0 slow_count: 0 biz_excp: 0 other_excp: 0 avg_time: 0.00ms biz_time: 0.00ms avg_tps: 0 max_tps: 0 min_tps: 0");
             } else {
                 LoggerUtil
                         .accessStatsLog(
                                 "[motan-accessStatistic] app: {} module: {} item: {} total_count: {} slow_count: {} p75: {} p95: {} p98: {} p99: {} p999: {} biz_excp: {} other_excp: {} avg_time: {}ms biz_time: {}ms avg_tps: {} max_tps: {} min_tps: {} ",
-                                application, module, keys[0], result.totalCount, result.slowCount,
-                                mbFormat.format(snapshot.get75thPercentile()), mbFormat.format(snapshot.get95thPercentile()),
-                                mbFormat.format(snapshot.get98thPercentile()), mbFormat.format(snapshot.get99thPercentile()),
-                                mbFormat.format(snapshot.get999thPercentile()), result.bizExceptionCount, result.otherExceptionCount,
+                                application, module, item.getName(), result.totalCount, result.slowCount,
+                                formatMillis(mbFormat, histogram, 75), formatMillis(mbFormat, histogram, 95),
+                                formatMillis(mbFormat, histogram, 98), formatMillis(mbFormat, histogram, 99),
+                                formatMillis(mbFormat, histogram, 99.9), result.bizExceptionCount, result.otherExceptionCount,
                                 mbFormat.format(result.costTime / result.totalCount), mbFormat.format(result.bizTime / result.totalCount),
                                 (result.totalCount / MotanConstants.STATISTIC_PEROID), result.maxCount, result.minCount);
             }
@@ -253,17 +320,17 @@ public class StatsUtil {
                 String application = entry.getKey().split(SEPARATE)[0];
                 String module = entry.getKey().split(SEPARATE)[1];
                 AccessStatisticResult totalResult = entry.getValue();
-                Snapshot snapshot =
-                        InternalMetricsFactory.getRegistryInstance(entry.getKey())
-                                .histogram(MetricRegistry.name(AccessStatisticItem.class, "costTimeMillis")).getSnapshot();
+                LatencyHistogram histogram =
+                        getHistogram(getAppLatencyRecorder(application, module).getLastInterval(currentTimeMillis), entry.getKey(),
+                                logWriter);
                 if (totalResult.totalCount > 0) {
                     LoggerUtil
                             .accessStatsLog(
                                     "[motan-totalAccessStatistic] app: {} module: {} total_count: {} slow_count: {} p75: {} p95: {} p98: {} p99: {} p999: {} biz_excp: {} other_excp: {} avg_time: {}ms biz_time: {}ms avg_tps: {}",
                                     application, module, totalResult.totalCount, totalResult.slowCount,
-                                    mbFormat.format(snapshot.get75thPercentile()), mbFormat.format(snapshot.get95thPercentile()),
-                                    mbFormat.format(snapshot.get98thPercentile()), mbFormat.format(snapshot.get99thPercentile()),
-                                    mbFormat.format(snapshot.get999thPercentile()), totalResult.bizExceptionCount,
+                                    formatMillis(mbFormat, histogram, 75), formatMillis(mbFormat, histogram, 95),
+                                    formatMillis(mbFormat, histogram, 98), formatMillis(mbFormat, histogram, 99),
+                                    formatMillis(mbFormat, histogram, 99.9), totalResult.bizExceptionCount,
                                     totalResult.otherExceptionCount, mbFormat.format(totalResult.costTime / totalResult.totalCount),
                                     mbFormat.format(totalResult.bizTime / totalResult.totalCount),
                                     (totalResult.totalCount / MotanConstants.STATISTIC_PEROID));
@@ -281,6 +348,114 @@ public class StatsUtil {
 
     }
 
+    /**
+     * 输出上一个统计周期各阶段耗时的p50/p99(ms)
+     */
+    public static void logStageStatistic() {
+        DecimalFormat mbFormat = new DecimalFormat("#0.000");
+        long currentTimeMillis = System.currentTimeMillis();
+
+        for (StageStatisticItem item : stageStatistics.values()) {
+            StringBuilder sb = new StringBuilder();
+            long count = 0;
+            for (StageTimes.Stage stage : StageTimes.STAGES) {
+                IntervalHistogram interval = item.getLastInterval(stage, currentTimeMillis);
+                if (interval == null) {
+                    continue;
+                }
+                LatencyHistogram histogram = interval.getHistogram();
+                count = Math.max(count, histogram.getTotalCount());
+                sb.append(' ').append(stage.getName()).append(": ").append(formatMillis(mbFormat, histogram, 50)).append('/')
+                        .append(formatMillis(mbFormat, histogram, 99)).append("ms");
+            }
+            if (count > 0) {
+                LoggerUtil.accessStatsLog("[motan-stageStatistic] item: {} count: {} p50/p99:{}", item.getName(), count, sb.toString());
+            }
+        }
+    }
+
+    /**
+     * 每个统计周期只输出一次延迟分布
+     */
+    private static HistogramLogWriter getHistogramLogWriter(long currentTimeMillis) {
+        HistogramLogWriter writer = histogramLogWriter;
+        long interval = currentTimeMillis / (MotanConstants.STATISTIC_PEROID * 1000L);
+        if (writer == null || interval == lastHistogramLogInterval) {
+            return null;
+        }
+        lastHistogramLogInterval = interval;
+        return writer;
+    }
+
+    private static LatencyHistogram getHistogram(IntervalHistogram interval, String name, HistogramLogWriter logWriter) {
+        if (interval == null) {
+            return null;
+        }
+        if (logWriter != null) {
+            try {
+                logWriter.outputIntervalHistogram(name, interval);
+            } catch (Exception e) {
+                LoggerUtil.warn("StatsUtil output histogram log Error: " + e.getMessage());
+            }
+        }
+        return interval.getHistogram();
+    }
+
+    private static String formatMillis(DecimalFormat format, LatencyHistogram histogram, double percentile) {
+        return format.format(histogram == null ? 0 : histogram.getValueAtPercentile(percentile) / 1000.0);
+    }
+
+    /**
+     * 以OpenMetrics格式收集指标：统计周期内的访问统计与延迟分布、RpcStats、实现了MetricsCallback的统计回调
+     *
+     * @param writer
+     */
+    public static void collectMetrics(OpenMetricsWriter writer) {
+        // 计数使用不受统计日志清理影响的累计值，可以使用rate()
+        OpenMetricsWriter.Family requests = writer.counter("motan_access_requests", "Requests since start.");
+        OpenMetricsWriter.Family slows = writer.counter("motan_access_slow_requests", "Slow requests since start.");
+        OpenMetricsWriter.Family bizExceptions = writer.counter("motan_access_biz_exceptions", "Biz exceptions since start.");
+        OpenMetricsWriter.Family otherExceptions = writer.counter("motan_access_other_exceptions", "Other exceptions since start.");
+        OpenMetricsWriter.Family latency =
+                writer.histogram("motan_access_latency_seconds", "Latency of completed statistic periods.");
+
+        for (AccessStatisticItem item : accessStatistics.values()) {
+            if (ApplicationInfo.STATISTIC.equals(item.getApplication())) {
+                continue;
+            }
+            long[] counts = item.getTotalCounts();
+            String name = item.getName();
+            String application = item.getApplication();
+            String module = item.getModule();
+            requests.sample(counts[0], "item", name, "application", application, "module", module);
+            slows.sample(counts[1], "item", name, "application", application, "module", module);
+            bizExceptions.sample(counts[2], "item", name, "application", application, "module", module);
+            otherExceptions.sample(counts[3], "item", name, "application", application, "module", module);
+
+            item.writeLatencyHistogram(latency, "item", name, "application", application, "module", module);
+        }
+
+        OpenMetricsWriter.Family stages =
+                writer.histogram("motan_stage_latency_seconds", "Client observed latency of each rpc stage.");
+        for (StageStatisticItem item : stageStatistics.values()) {
+            for (StageTimes.Stage stage : StageTimes.STAGES) {
+                item.writeHistogram(stage, stages, "item", item.getName(), "stage", stage.getName());
+            }
+        }
+
+        RpcStats.collectMetrics(writer);
+
+        for (StatisticCallback callback : statisticCallbacks) {
+            if (callback instanceof MetricsCallback) {
+                try {
+                    ((MetricsCallback) callback).collectMetrics(writer);
+                } catch (Exception e) {
+                    LoggerUtil.warn("StatsUtil collectMetrics Error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
     public static void logMemoryStatistic() {
         LoggerUtil.accessStatsLog("[motan-memoryStatistic] {} ", memoryStatistic());
     }
@@ -324,142 +499,3 @@ public class StatsUtil {
     }
 }
 
-
-class AccessStatisticItem {
-    private String name;
-    private int currentIndex;
-    private AtomicInteger[] costTimes = null;
-    private AtomicInteger[] bizProcessTimes = null;
-    private AtomicInteger[] totalCounter = null;
-    private AtomicInteger[] slowCounter = null;
-    private AtomicInteger[] bizExceptionCounter = null;
-    private AtomicInteger[] otherExceptionCounter = null;
-
-    private Histogram histogram = null;
-
-
-    private int length;
-
-    public AccessStatisticItem(String name, long currentTimeMillis) {
-        this(name, currentTimeMillis, MotanConstants.STATISTIC_PEROID * 2);
-    }
-
-    public AccessStatisticItem(String name, long currentTimeMillis, int length) {
-        this.name = name;
-        this.costTimes = initAtomicIntegerArr(length);
-        this.bizProcessTimes = initAtomicIntegerArr(length);
-        this.totalCounter = initAtomicIntegerArr(length);
-        this.slowCounter = initAtomicIntegerArr(length);
-        this.bizExceptionCounter = initAtomicIntegerArr(length);
-        this.otherExceptionCounter = initAtomicIntegerArr(length);
-        this.length = length;
-        this.currentIndex = getIndex(currentTimeMillis, length);
-        this.histogram =
-                InternalMetricsFactory.getRegistryInstance(name)
-                        .histogram(MetricRegistry.name(AccessStatisticItem.class, "costTimeMillis"));
-    }
-
-    private AtomicInteger[] initAtomicIntegerArr(int size) {
-        AtomicInteger[] arrs = new AtomicInteger[size];
-        for (int i = 0; i < arrs.length; i++) {
-            arrs[i] = new AtomicInteger(0);
-        }
-
-        return arrs;
-    }
-
-    /**
-     * currentTimeMillis: 此刻记录的时间 (ms) costTimeMillis: 这次操作的耗时 (ms)
-     *
-     * @param currentTimeMillis
-     * @param costTimeMillis
-     * @param bizProcessTime
-     * @param accessStatus
-     */
-    void statistic(long currentTimeMillis, long costTimeMillis, long bizProcessTime, AccessStatus accessStatus) {
-        int tempIndex = getIndex(currentTimeMillis, length);
-
-        if (currentIndex != tempIndex) {
-            synchronized (this) {
-                // 这一秒的第一条统计，把对应的存储位的数据置0
-                if (currentIndex != tempIndex) {
-                    reset(tempIndex);
-                    currentIndex = tempIndex;
-                }
-            }
-        }
-
-        costTimes[currentIndex].addAndGet((int) costTimeMillis);
-        bizProcessTimes[currentIndex].addAndGet((int) bizProcessTime);
-        totalCounter[currentIndex].incrementAndGet();
-
-        if (costTimeMillis >= MotanConstants.SLOW_COST) {
-            slowCounter[currentIndex].incrementAndGet();
-        }
-
-        if (accessStatus == AccessStatus.BIZ_EXCEPTION) {
-            bizExceptionCounter[currentIndex].incrementAndGet();
-        } else if (accessStatus == AccessStatus.OTHER_EXCEPTION) {
-            otherExceptionCounter[currentIndex].incrementAndGet();
-        }
-        histogram.update(costTimeMillis);
-        String[] names = name.split("\\|");
-        String appName = names[1] + "|" + names[2];
-        InternalMetricsFactory.getRegistryInstance(appName).histogram(MetricRegistry.name(AccessStatisticItem.class, "costTimeMillis"))
-                .update(costTimeMillis);
-    }
-
-    private int getIndex(long currentTimeMillis, int periodSecond) {
-        return (int) ((currentTimeMillis / 1000) % periodSecond);
-    }
-
-    private void reset(int index) {
-        costTimes[index].set(0);
-        totalCounter[index].set(0);
-        bizProcessTimes[index].set(0);
-        slowCounter[index].set(0);
-        bizExceptionCounter[index].set(0);
-        otherExceptionCounter[index].set(0);
-    }
-
-    AccessStatisticResult getStatisticResult(long currentTimeMillis, int peroidSecond) {
-        long currentTimeSecond = currentTimeMillis / 1000;
-        currentTimeSecond--; // 当前这秒还没完全结束，因此数据不全，统计从上一秒开始，往前推移peroidSecond
-
-        int startIndex = getIndex(currentTimeSecond * 1000, length);
-
-        AccessStatisticResult result = new AccessStatisticResult();
-
-        for (int i = 0; i < peroidSecond; i++) {
-            int currentIndex = (startIndex - i + length) % length;
-
-            result.costTime += costTimes[currentIndex].get();
-            result.bizTime += bizProcessTimes[currentIndex].get();
-            result.totalCount += totalCounter[currentIndex].get();
-            result.slowCount += slowCounter[currentIndex].get();
-            result.bizExceptionCount += bizExceptionCounter[currentIndex].get();
-            result.otherExceptionCount += otherExceptionCounter[currentIndex].get();
-
-            if (totalCounter[currentIndex].get() > result.maxCount) {
-                result.maxCount = totalCounter[currentIndex].get();
-            } else if (totalCounter[currentIndex].get() < result.minCount || result.minCount == -1) {
-                result.minCount = totalCounter[currentIndex].get();
-            }
-        }
-
-        return result;
-    }
-
-    void clearStatistic(long currentTimeMillis, int peroidSecond) {
-        long currentTimeSecond = currentTimeMillis / 1000;
-        currentTimeSecond--; // 当前这秒还没完全结束，因此数据不全，统计从上一秒开始，往前推移peroidSecond
-
-        int startIndex = getIndex(currentTimeSecond * 1000, length);
-
-        for (int i = 0; i < peroidSecond; i++) {
-            int currentIndex = (startIndex - i + length) % length;
-
-            reset(currentIndex);
-        }
-    }
-}
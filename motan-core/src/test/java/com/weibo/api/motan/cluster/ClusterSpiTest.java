@@ -110,6 +110,48 @@ public class ClusterSpiTest extends BaseTestCase {
 
     }
 
+    @SuppressWarnings("unchecked")
+    public void testIncrementalRefresh() {
+        referers = new ArrayList<Referer<IHello>>();
+        for (int i = 0; i < 10; i++) {
+            referers.add(mockery.mock(Referer.class, "ref_" + i));
+        }
+        mockery.checking(new Expectations() {
+            {
+                for (Referer<IHello> ref : referers) {
+                    allowing(ref).destroy();
+                    allowing(ref).getUrl();
+                    will(returnValue(new URL(MotanConstants.PROTOCOL_MOTAN, "localhost", 0, IHello.class.getName())));
+                }
+            }
+        });
+        final List<Referer<IHello>> added = new ArrayList<Referer<IHello>>();
+        final List<Referer<IHello>> removed = new ArrayList<Referer<IHello>>();
+        clusterSpi.setHaStrategy(new FailoverHaStrategy<IHello>());
+        clusterSpi.setLoadBalance(new RandomLoadBalance<IHello>() {
+            @Override
+            public void onRefresh(List<Referer<IHello>> referers, List<Referer<IHello>> addedReferers,
+                    List<Referer<IHello>> removedReferers) {
+                super.onRefresh(referers, addedReferers, removedReferers);
+                added.clear();
+                added.addAll(addedReferers);
+                removed.clear();
+                removed.addAll(removedReferers);
+            }
+        });
+        clusterSpi.setUrl(new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.getLocalAddress().getHostAddress(), 0, RegistryService.class
+                .getName()));
+
+        clusterSpi.onRefresh(new ArrayList<Referer<IHello>>(referers.subList(0, 5)));
+        assertEquals(referers.subList(0, 5), added);
+        assertTrue(removed.isEmpty());
+
+        clusterSpi.onRefresh(new ArrayList<Referer<IHello>>(referers.subList(3, 10)));
+        assertEquals(referers.subList(5, 10), added);
+        assertEquals(referers.subList(0, 3), removed);
+        assertEquals(7, clusterSpi.getReferers().size());
+    }
+
     @SuppressWarnings("unchecked")
     private void initCluster(boolean throwException) {
         referers = new ArrayList<Referer<IHello>>();
@@ -70,8 +70,11 @@ public class ClusterSupportTest {
     public void initCluster() {
         clusterSupport = new ClusterSupportMask<IHello>(IHello.class, mockRegistryUrls());
 
-        registries.put(regProtocol1, mockery.mock(Registry.class, regProtocol1));
-        registries.put(regProtocol2, mockery.mock(Registry.class, regProtocol2));
+        // mockery是静态的，同名的mock只能创建一次
+        if (registries.isEmpty()) {
+            registries.put(regProtocol1, mockery.mock(Registry.class, regProtocol1));
+            registries.put(regProtocol2, mockery.mock(Registry.class, regProtocol2));
+        }
 
         mockery.checking(new Expectations() {
             {
@@ -178,6 +181,58 @@ public class ClusterSupportTest {
 
     }
 
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Test
+    public void testNotifyUnchanged() {
+        final int urlsCount = 3;
+        final List<URL> serviceUrls = new ArrayList<URL>();
+        for (int i = 0; i < urlsCount; i++) {
+            URL url = new URL(MotanConstants.PROTOCOL_MOTAN, localAddress, 2000 + i, IHello.class.getName());
+            url.addParameter(URLParamType.nodeType.getName(), MotanConstants.NODE_TYPE_SERVICE);
+            serviceUrls.add(url);
+        }
+        final URL regUrl = new URL("reg_protocol_1", localAddress, 0, RegistryService.class.getName());
+
+        mockery.checking(new Expectations() {
+            {
+                for (int i = 0; i < urlsCount; i++) {
+                    URL serviceUrl = serviceUrls.get(i).createCopy();
+                    URL refererUrl = serviceUrls.get(i).createCopy();
+                    refererUrl.addParameters(serviceUrl.getParameters());
+                    refererUrl.addParameter(URLParamType.application.getName(), URLParamType.application.getValue());
+                    refererUrl.addParameter(URLParamType.module.getName(), URLParamType.module.getValue());
+                    refererUrl.addParameter(URLParamType.check.getName(), "false");
+
+                    // 每个provider只创建一次referer
+                    exactly(1).of(protocol).refer(IHello.class, refererUrl, serviceUrl);
+                    will(returnValue(mockReferer(refererUrl)));
+                    allowing(mockReferer(refererUrl)).getUrl();
+                    will(returnValue(serviceUrls.get(i)));
+                    allowing(mockReferer(refererUrl)).getServiceUrl();
+                    will(returnValue(serviceUrls.get(i)));
+                    allowing(mockReferer(refererUrl)).isAvailable();
+                    will(returnValue(true));
+                }
+            }
+        });
+        List copy = new ArrayList<URL>();
+
+        clusterSupport.notify(regUrl, copy(copy, serviceUrls.subList(0, 2)));
+        List<Referer<IHello>> referers = clusterSupport.getCluster().getReferers();
+        Assert.assertEquals(2, referers.size());
+
+        // provider没有变化时不刷新cluster
+        clusterSupport.notify(regUrl, copy(copy, serviceUrls.subList(0, 2)));
+        Assert.assertSame(referers, clusterSupport.getCluster().getReferers());
+
+        // 新增provider时刷新，已有的referer被复用
+        clusterSupport.notify(regUrl, copy(copy, serviceUrls.subList(0, 3)));
+        List<Referer<IHello>> refreshed = clusterSupport.getCluster().getReferers();
+        Assert.assertNotSame(referers, refreshed);
+        Assert.assertEquals(3, refreshed.size());
+        Assert.assertTrue(refreshed.containsAll(referers));
+    }
+
     private static List<URL> mockRegistryUrls() {
         URL refUrl = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.getLocalAddress().getHostAddress(), 0, IHello.class.getName());
         refUrl.addParameter(URLParamType.check.getName(), "false");
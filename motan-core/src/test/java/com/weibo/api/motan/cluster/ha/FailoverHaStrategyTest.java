@@ -27,13 +27,19 @@ import com.weibo.api.motan.BaseTestCase;
 import com.weibo.api.motan.cluster.LoadBalance;
 import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.exception.MotanBizException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.mock.MockReferer;
 import com.weibo.api.motan.protocol.example.IHello;
 import com.weibo.api.motan.protocol.example.IWorld;
 import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.rpc.RpcContext;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.util.NetUtils;
 
@@ -57,6 +63,8 @@ public class FailoverHaStrategyTest extends BaseTestCase {
     @SuppressWarnings("unchecked")
     public void setUp() throws Exception {
         super.setUp();
+        // 其他测试可能在当前线程留下异步调用标记
+        RpcContext.destroy();
         loadBalance = mockery.mock(LoadBalance.class);
         final Referer<IWorld> referer1 = mockery.mock(Referer.class, "ref1");
         final Referer<IWorld> referer2 = mockery.mock(Referer.class, "ref2");
@@ -106,6 +114,38 @@ public class FailoverHaStrategyTest extends BaseTestCase {
         failoverHaStrategy.call(request, loadBalance);
     }
 
+    public void testNoRetryAfterDeadline() {
+        final DefaultRequest request = new DefaultRequest();
+        request.setMethodName(IWorld.class.getMethods()[0].getName());
+        request.setArguments(new Object[] {});
+        request.setInterfaceName(IHello.class.getSimpleName());
+        request.setParamtersDesc("void");
+        final URL url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName());
+        url.addParameter(URLParamType.retries.getName(), String.valueOf(retries));
+
+        mockery.checking(new Expectations() {
+            {
+                for (Referer<IWorld> ref : referers) {
+                    atLeast(0).of(ref).getUrl();
+                    will(returnValue(url));
+                }
+                // 截止时间已过，失败后不再重试其他referer
+                one(referers.get(0)).call(request);
+                will(throwException(new MotanServiceException("mock deadline exceeded")));
+                never(referers.get(1)).call(request);
+            }
+        });
+        RpcContext.getContext().setDeadline(System.currentTimeMillis() - 1);
+        try {
+            failoverHaStrategy.call(request, loadBalance);
+            fail();
+        } catch (MotanServiceException e) {
+            Assert.assertTrue(e.getMessage().contains("mock deadline exceeded"));
+        } finally {
+            RpcContext.destroy();
+        }
+    }
+
     public void testCallWithOneError() {
         final DefaultRequest request = new DefaultRequest();
         request.setMethodName(IWorld.class.getMethods()[0].getName());
@@ -170,4 +210,129 @@ public class FailoverHaStrategyTest extends BaseTestCase {
             Assert.assertTrue(false); // should not run to here
         } catch (Exception e) {}
     }
+
+    public void testRetryBudgetDisabledByDefault() {
+        failoverHaStrategy.setUrl(new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName()));
+        Assert.assertNull(failoverHaStrategy.getRetryBudget());
+        Assert.assertNull(failoverHaStrategy.statisticCallback());
+    }
+
+    public void testRetryBudgetExhausted() {
+        final DefaultRequest request = new DefaultRequest();
+        request.setMethodName(IWorld.class.getMethods()[0].getName());
+        request.setArguments(new Object[] {});
+        request.setInterfaceName(IHello.class.getSimpleName());
+        request.setParamtersDesc("void");
+        URL url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName());
+        url.addParameter(URLParamType.retries.getName(), String.valueOf(retries));
+        url.addParameter(URLParamType.retryBudgetPercent.getName(), "1");
+        url.addParameter(URLParamType.minRetriesPerSecond.getName(), "0");
+        failoverHaStrategy.setUrl(url);
+        RequestBudget budget = failoverHaStrategy.getRetryBudget();
+        while (budget.tryWithdraw()) {
+        }
+        final long exhaustedCount = budget.getExhaustedCount();
+        final URL refUrl = url;
+
+        mockery.checking(new Expectations() {
+            {
+                for (Referer<IWorld> ref : referers) {
+                    atLeast(0).of(ref).getUrl();
+                    will(returnValue(refUrl));
+                }
+                oneOf(referers.get(0)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 1th call")));
+                never(referers.get(1)).call(request);
+            }
+        });
+
+        try {
+            failoverHaStrategy.call(request, loadBalance);
+            fail("Should throw exception before!");
+        } catch (MotanServiceException e) {}
+        Assert.assertEquals(exhaustedCount + 1, budget.getExhaustedCount());
+        Assert.assertNotNull(failoverHaStrategy.statisticCallback());
+    }
+
+    public void testAsyncRetry() {
+        DefaultRequest request = createAsyncRequest();
+        DefaultResponseFuture first = new DefaultResponseFuture(request, 1000);
+        DefaultResponseFuture second = new DefaultResponseFuture(request, 1000);
+        FutureReferer referer1 = new FutureReferer(first);
+        FutureReferer referer2 = new FutureReferer(second);
+        referers.clear();
+        referers.add(referer1);
+        referers.add(referer2);
+
+        RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, true);
+        try {
+            Response response = failoverHaStrategy.call(request, loadBalance);
+            Assert.assertTrue(response instanceof ResponseFuture);
+            Assert.assertFalse(((ResponseFuture) response).isDone());
+            Assert.assertEquals(0, referer2.callCount);
+
+            second.onSuccess(new DefaultResponse("ok"));
+            // 第一次请求失败后在回调中重试
+            DefaultResponse error = new DefaultResponse();
+            error.setException(new MotanServiceException("mock timeout"));
+            first.onFailure(error);
+
+            Assert.assertEquals("ok", response.getValue());
+            Assert.assertEquals(1, referer1.callCount);
+            Assert.assertEquals(1, referer2.callCount);
+            Assert.assertEquals(1, request.getRetries());
+        } finally {
+            RpcContext.destroy();
+        }
+    }
+
+    public void testAsyncBizException() {
+        DefaultRequest request = createAsyncRequest();
+        DefaultResponseFuture first = new DefaultResponseFuture(request, 1000);
+        FutureReferer referer1 = new FutureReferer(first);
+        FutureReferer referer2 = new FutureReferer(new DefaultResponseFuture(request, 1000));
+        referers.clear();
+        referers.add(referer1);
+        referers.add(referer2);
+
+        RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, true);
+        try {
+            Response response = failoverHaStrategy.call(request, loadBalance);
+            DefaultResponse error = new DefaultResponse();
+            error.setException(new MotanBizException("biz", new IllegalArgumentException()));
+            first.onFailure(error);
+
+            Assert.assertTrue(((ResponseFuture) response).isDone());
+            Assert.assertTrue(response.getException() instanceof MotanBizException);
+            Assert.assertEquals(0, referer2.callCount);
+        } finally {
+            RpcContext.destroy();
+        }
+    }
+
+    private DefaultRequest createAsyncRequest() {
+        DefaultRequest request = new DefaultRequest();
+        request.setMethodName("world");
+        request.setArguments(new Object[] {});
+        request.setInterfaceName(IWorld.class.getName());
+        request.setParamtersDesc("void");
+        return request;
+    }
+
+    static class FutureReferer extends MockReferer<IWorld> {
+        private final ResponseFuture future;
+        volatile int callCount = 0;
+
+        FutureReferer(ResponseFuture future) {
+            this.future = future;
+            this.url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName());
+            this.url.addParameter(URLParamType.retries.getName(), "2");
+        }
+
+        @Override
+        public Response call(Request request) {
+            callCount++;
+            return future;
+        }
+    }
 }
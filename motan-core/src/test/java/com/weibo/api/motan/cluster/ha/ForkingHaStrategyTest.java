@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Before;
+
+import com.weibo.api.motan.BaseTestCase;
+import com.weibo.api.motan.cluster.LoadBalance;
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.protocol.example.IWorld;
+import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.util.NetUtils;
+
+/**
+ * Forking ha strategy test.
+ */
+public class ForkingHaStrategyTest extends BaseTestCase {
+
+    private ForkingHaStrategy<IWorld> forkingHaStrategy;
+    private List<Referer<IWorld>> referers = null;
+    private LoadBalance<IWorld> loadBalance = null;
+    private URL url;
+    private DefaultRequest request;
+
+    @Before
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        super.setUp();
+        loadBalance = mockery.mock(LoadBalance.class);
+        referers = new ArrayList<Referer<IWorld>>();
+        referers.add(mockery.mock(Referer.class, "ref1"));
+        referers.add(mockery.mock(Referer.class, "ref2"));
+        referers.add(mockery.mock(Referer.class, "ref3"));
+        forkingHaStrategy = new ForkingHaStrategy<IWorld>() {
+            @Override
+            protected List<Referer<IWorld>> selectReferers(Request request, LoadBalance<IWorld> loadBalance) {
+                return referers;
+            }
+        };
+        url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName());
+        url.addParameter("methodconfig.world(void)." + URLParamType.requestTimeout.getName(), "500");
+        forkingHaStrategy.setUrl(url);
+
+        request = new DefaultRequest();
+        request.setRequestId(1);
+        request.setMethodName("world");
+        request.setArguments(new Object[] {});
+        request.setInterfaceName(IWorld.class.getName());
+        request.setParamtersDesc("void");
+        RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, false);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        RpcContext.destroy();
+        super.tearDown();
+    }
+
+    public void testFirstSuccessWins() {
+        final DefaultResponseFuture slow = new DefaultResponseFuture(request, 500);
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(slow));
+                one(referers.get(1)).call(request);
+                will(returnValue(new DefaultResponse("second")));
+                never(referers.get(2)).call(request);
+            }
+        });
+
+        assertEquals("second", forkingHaStrategy.call(request, loadBalance).getValue());
+        assertTrue(slow.isCancelled());
+        assertEquals(Boolean.FALSE, RpcContext.getContext().getAttribute(MotanConstants.ASYNC_SUFFIX));
+    }
+
+    public void testForksFromMethodConfig() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.forks.getName(), "3");
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 1th call")));
+                one(referers.get(1)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 2th call")));
+                one(referers.get(2)).call(request);
+                will(returnValue(new DefaultResponse("third")));
+            }
+        });
+
+        assertEquals("third", forkingHaStrategy.call(request, loadBalance).getValue());
+    }
+
+    public void testAllFailed() {
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 1th call")));
+                one(referers.get(1)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 2th call")));
+            }
+        });
+
+        try {
+            forkingHaStrategy.call(request, loadBalance).getValue();
+            fail("Should throw exception before!");
+        } catch (MotanServiceException e) {}
+    }
+
+    public void testAsyncCall() {
+        RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, true);
+        final DefaultResponseFuture first = new DefaultResponseFuture(request, 500);
+        final DefaultResponseFuture second = new DefaultResponseFuture(request, 500);
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(first));
+                one(referers.get(1)).call(request);
+                will(returnValue(second));
+            }
+        });
+
+        Response response = forkingHaStrategy.call(request, loadBalance);
+        assertTrue(response instanceof ResponseFuture);
+        assertFalse(((ResponseFuture) response).isDone());
+
+        DefaultResponse result = new DefaultResponse("first");
+        first.onSuccess(result);
+        assertEquals("first", response.getValue());
+        assertTrue(second.isCancelled());
+    }
+
+    public void testNoFork() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.forks.getName(), "1");
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(new DefaultResponse("first")));
+                never(referers.get(1)).call(request);
+                never(referers.get(2)).call(request);
+            }
+        });
+
+        assertEquals("first", forkingHaStrategy.call(request, loadBalance).getValue());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+
+import com.weibo.api.motan.BaseTestCase;
+import com.weibo.api.motan.cluster.LoadBalance;
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.protocol.example.IWorld;
+import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.util.NetUtils;
+
+/**
+ * Hedged ha strategy test.
+ */
+public class HedgedHaStrategyTest extends BaseTestCase {
+
+    private HedgedHaStrategy<IWorld> hedgedHaStrategy;
+    private List<Referer<IWorld>> referers = null;
+    private LoadBalance<IWorld> loadBalance = null;
+    private URL url;
+    private DefaultRequest request;
+
+    @Before
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        super.setUp();
+        loadBalance = mockery.mock(LoadBalance.class);
+        final Referer<IWorld> referer1 = mockery.mock(Referer.class, "ref1");
+        final Referer<IWorld> referer2 = mockery.mock(Referer.class, "ref2");
+        referers = new ArrayList<Referer<IWorld>>();
+        referers.add(referer1);
+        referers.add(referer2);
+        hedgedHaStrategy = new HedgedHaStrategy<IWorld>() {
+            @Override
+            protected List<Referer<IWorld>> selectReferers(Request request, LoadBalance<IWorld> loadBalance) {
+                return referers;
+            }
+        };
+        url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, IWorld.class.getName());
+        url.addParameter("methodconfig.world(void)." + URLParamType.hedgeDelay.getName(), "20");
+        url.addParameter("methodconfig.world(void)." + URLParamType.requestTimeout.getName(), "500");
+        hedgedHaStrategy.setUrl(url);
+
+        request = new DefaultRequest();
+        request.setRequestId(1);
+        request.setMethodName("world");
+        request.setArguments(new Object[] {});
+        request.setInterfaceName(IWorld.class.getName());
+        request.setParamtersDesc("void");
+    }
+
+    public void testNotIdempotent() {
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(new DefaultResponse("first")));
+                never(referers.get(1)).call(request);
+            }
+        });
+
+        assertEquals("first", hedgedHaStrategy.call(request, loadBalance).getValue());
+    }
+
+    public void testHedgeWhenSlow() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.idempotent.getName(), "true");
+        final DefaultResponseFuture slow = new DefaultResponseFuture(request, 500);
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(slow));
+                one(referers.get(1)).call(request);
+                will(returnValue(new DefaultResponse("second")));
+            }
+        });
+
+        assertEquals("second", hedgedHaStrategy.call(request, loadBalance).getValue());
+        assertTrue(slow.isCancelled());
+    }
+
+    public void testNoHedgeWhenFast() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.idempotent.getName(), "true");
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(new DefaultResponse("first")));
+                never(referers.get(1)).call(request);
+            }
+        });
+
+        assertEquals("first", hedgedHaStrategy.call(request, loadBalance).getValue());
+    }
+
+    public void testHedgeWhenFirstFailed() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.idempotent.getName(), "true");
+        url.addParameter("methodconfig.world(void)." + URLParamType.hedgeDelay.getName(), "10000");
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(throwException(new MotanServiceException("mock throw exception when 1th call")));
+                one(referers.get(1)).call(request);
+                will(returnValue(new DefaultResponse("second")));
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        assertEquals("second", hedgedHaStrategy.call(request, loadBalance).getValue());
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    public void testNoHedgeWithoutSamples() {
+        url.addParameter("methodconfig.world(void)." + URLParamType.idempotent.getName(), "true");
+        url.addParameter("methodconfig.world(void)." + URLParamType.hedgeDelay.getName(), "0");
+        final DefaultResponse failure = new DefaultResponse(request.getRequestId());
+        failure.setException(new MotanServiceException("mock fail"));
+        mockery.checking(new Expectations() {
+            {
+                allowing(referers.get(0)).getUrl();
+                will(returnValue(url));
+                one(referers.get(0)).call(request);
+                will(returnValue(failure));
+                never(referers.get(1)).call(request);
+            }
+        });
+
+        assertSame(failure, hedgedHaStrategy.call(request, loadBalance));
+    }
+
+    public void testAwaitAnyKeepsInterrupt() {
+        RaceResponseFuture race = new RaceResponseFuture(request, 500);
+        race.addCandidate(new DefaultResponseFuture(request, 500));
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(race.awaitAny(1000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    public void testBudgetExhausted() {
+        RequestBudget budget = new RequestBudget(10, 2);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+        assertEquals(1, budget.getExhaustedCount());
+        for (int i = 0; i < 10; i++) {
+            budget.deposit();
+        }
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+}
@@ -24,7 +24,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.weibo.api.motan.mock.MockReferer;
+import com.weibo.api.motan.rpc.AvailabilityVersion;
 import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.URL;
 
 /**
  * @author maijunsheng
@@ -60,6 +62,48 @@ public class ActiveWeightLoadBalanceTest {
         }
     }
 
+    @Test
+    public void testAvailableSnapshot() {
+        ActiveWeightLoadBalance balance = createBalance(smallSize, 0);
+        List<Referer> referers = balance.getReferers();
+
+        Referer[] snapshot = balance.getAvailableReferers();
+        Assert.assertEquals(smallSize, snapshot.length);
+        Assert.assertSame(snapshot, balance.getAvailableReferers());
+
+        // 可用状态变化通知后重建快照
+        ((MockReferer) referers.get(0)).available = false;
+        AvailabilityVersion.of(null).increment();
+        snapshot = balance.getAvailableReferers();
+        Assert.assertEquals(smallSize - 1, snapshot.length);
+        for (Referer referer : snapshot) {
+            Assert.assertNotSame(referers.get(0), referer);
+        }
+
+        // refresh后重建快照
+        balance.onRefresh(new ArrayList<Referer>(referers.subList(0, 2)));
+        Assert.assertEquals(1, balance.getAvailableReferers().length);
+    }
+
+    @Test
+    public void testAvailableSnapshotPerService() {
+        ActiveWeightLoadBalance balance = createBalance(2, 0);
+        List<Referer> referers = balance.getReferers();
+        Referer[] snapshot = balance.getAvailableReferers();
+
+        // 其他服务的状态变化不影响快照
+        AvailabilityVersion.of(new URL("motan", "localhost", 8001, "com.weibo.OtherService")).increment();
+        Assert.assertSame(snapshot, balance.getAvailableReferers());
+
+        // 没有通知版本号的状态变化，select时重新检查选中的referer
+        int low = referers.get(0).activeRefererCount() < referers.get(1).activeRefererCount() ? 0 : 1;
+        ((MockReferer) referers.get(low)).available = false;
+        for (int i = 0; i < testLoop; i++) {
+            Assert.assertSame(referers.get(1 - low), balance.select(null));
+        }
+        Assert.assertEquals(1, balance.getAvailableReferers().length);
+    }
+
     private void allAvailableCluster(int refererSize) {
         ActiveWeightLoadBalance balance = createBalance(refererSize, 0);
 
@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.mock.MockReferer;
+import com.weibo.api.motan.protocol.example.IHello;
+import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * Affinity load balance test.
+ */
+public class AffinityLoadBalanceTest {
+
+    private static final int KEY_COUNT = 1000;
+
+    @Test
+    public void testSameKeySameReferer() {
+        List<Referer<IHello>> referers = createReferers(0, 5);
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+
+        Map<Referer<IHello>, Integer> counts = new HashMap<Referer<IHello>, Integer>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Referer<IHello> referer = balance.select(createRequest("user" + i));
+            Assert.assertSame(referer, balance.select(createRequest("user" + i)));
+            Integer count = counts.get(referer);
+            counts.put(referer, count == null ? 1 : count + 1);
+        }
+        // 所有referer都分到key
+        Assert.assertEquals(5, counts.size());
+        for (Integer count : counts.values()) {
+            Assert.assertTrue(count > KEY_COUNT / 10);
+        }
+    }
+
+    @Test
+    public void testStableOnMembershipChange() {
+        List<Referer<IHello>> referers = createReferers(0, 5);
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+        Map<String, Referer<IHello>> before = new HashMap<String, Referer<IHello>>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            before.put("user" + i, balance.select(createRequest("user" + i)));
+        }
+
+        // 下线一个referer，其余key的映射不变
+        Referer<IHello> removed = referers.remove(2);
+        balance.onRefresh(new ArrayList<Referer<IHello>>(referers));
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Referer<IHello> old = before.get("user" + i);
+            Referer<IHello> now = balance.select(createRequest("user" + i));
+            if (old != removed) {
+                Assert.assertSame(old, now);
+            }
+        }
+
+        // 新增referer时，key只会迁移到新referer上
+        List<Referer<IHello>> added = createReferers(5, 1);
+        referers.add(added.get(0));
+        balance.onRefresh(new ArrayList<Referer<IHello>>(referers));
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Referer<IHello> old = before.get("user" + i);
+            Referer<IHello> now = balance.select(createRequest("user" + i));
+            if (old != removed && now != added.get(0)) {
+                Assert.assertSame(old, now);
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalRefresh() {
+        List<Referer<IHello>> referers = createReferers(0, 6);
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+
+        // 增量合并后的hash环与全量重建的结果一致
+        List<Referer<IHello>> removed = new ArrayList<Referer<IHello>>(referers.subList(1, 3));
+        List<Referer<IHello>> added = createReferers(6, 2);
+        List<Referer<IHello>> current = new ArrayList<Referer<IHello>>(referers);
+        current.removeAll(removed);
+        current.addAll(added);
+        balance.onRefresh(current, added, removed);
+
+        AffinityLoadBalance<IHello> full = new AffinityLoadBalance<IHello>();
+        full.onRefresh(current);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Referer<IHello> referer = balance.select(createRequest("user" + i));
+            Assert.assertSame(full.select(createRequest("user" + i)), referer);
+            Assert.assertFalse(removed.contains(referer));
+        }
+    }
+
+    @Test
+    public void testHotKeySpillover() {
+        List<Referer<IHello>> referers = createReferers(0, 4);
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+
+        MockReferer<IHello> owner = (MockReferer<IHello>) balance.select(createRequest("hot"));
+        owner.active = 10;
+        Referer<IHello> spill = balance.select(createRequest("hot"));
+        Assert.assertNotSame(owner, spill);
+        // 溢出的目标也是确定的
+        Assert.assertSame(spill, balance.select(createRequest("hot")));
+
+        List<Referer<IHello>> holder = new ArrayList<Referer<IHello>>();
+        balance.selectToHolder(createRequest("hot"), holder);
+        Assert.assertEquals(4, holder.size());
+        Assert.assertSame(spill, holder.get(0));
+        Assert.assertSame(owner, holder.get(3));
+
+        // 并发恢复后回到原referer
+        owner.active = 0;
+        Assert.assertSame(owner, balance.select(createRequest("hot")));
+    }
+
+    @Test
+    public void testUnavailable() {
+        List<Referer<IHello>> referers = createReferers(0, 3);
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+
+        MockReferer<IHello> owner = (MockReferer<IHello>) balance.select(createRequest("key"));
+        owner.available = false;
+        Referer<IHello> other = balance.select(createRequest("key"));
+        Assert.assertNotSame(owner, other);
+        Assert.assertTrue(other.isAvailable());
+    }
+
+    @Test
+    public void testProbeEachRefererOnce() {
+        final AtomicInteger probes = new AtomicInteger();
+        List<Referer<IHello>> referers = new ArrayList<Referer<IHello>>();
+        for (int i = 0; i < 10; i++) {
+            MockReferer<IHello> referer = new MockReferer<IHello>() {
+                @Override
+                public boolean isAvailable() {
+                    probes.incrementAndGet();
+                    return super.isAvailable();
+                }
+            };
+            referer.url = new URL(MotanConstants.PROTOCOL_MOTAN, "10.0.0." + i, 8001, IHello.class.getName());
+            // 全部达到并发上限或不可用时需要检查所有referer
+            referer.active = 10;
+            referer.available = i % 2 == 0;
+            referers.add(referer);
+        }
+        AffinityLoadBalance<IHello> balance = new AffinityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+        Referer<IHello> first = balance.select(createRequest("key"));
+
+        probes.set(0);
+        Assert.assertSame(first, balance.select(createRequest("key")));
+        // 每个referer最多检查一次，另有select对选中referer的一次检查
+        Assert.assertTrue(probes.get() <= referers.size() + 1);
+
+        probes.set(0);
+        List<Referer<IHello>> holder = new ArrayList<Referer<IHello>>();
+        balance.selectToHolder(createRequest("key"), holder);
+        Assert.assertEquals(5, holder.size());
+        Assert.assertTrue(probes.get() <= referers.size() + holder.size());
+    }
+
+    private List<Referer<IHello>> createReferers(int from, int count) {
+        List<Referer<IHello>> referers = new ArrayList<Referer<IHello>>();
+        for (int i = from; i < from + count; i++) {
+            MockReferer<IHello> referer = new MockReferer<IHello>();
+            referer.url = new URL(MotanConstants.PROTOCOL_MOTAN, "10.0.0." + i, 8001, IHello.class.getName());
+            referers.add(referer);
+        }
+        return referers;
+    }
+
+    private DefaultRequest createRequest(String routingKey) {
+        DefaultRequest request = new DefaultRequest();
+        request.setAttachment(MotanConstants.ROUTING_KEY, routingKey);
+        return request;
+    }
+}
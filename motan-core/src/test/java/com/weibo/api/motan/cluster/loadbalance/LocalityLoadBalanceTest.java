@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.mock.MockReferer;
+import com.weibo.api.motan.protocol.example.IHello;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.URL;
+import com.weibo.api.motan.util.NetUtils;
+
+/**
+ * Locality load balance test.
+ */
+public class LocalityLoadBalanceTest {
+
+    private List<Referer<IHello>> referers = new ArrayList<Referer<IHello>>();
+    private List<MockReferer<IHello>> zoneReferers = new ArrayList<MockReferer<IHello>>();
+    private List<MockReferer<IHello>> idcReferers = new ArrayList<MockReferer<IHello>>();
+    private List<MockReferer<IHello>> remoteReferers = new ArrayList<MockReferer<IHello>>();
+
+    @Test
+    public void testNearestTier() {
+        LocalityLoadBalance<IHello> balance = createBalance(null);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(zoneReferers.contains(balance.select(null)));
+        }
+
+        List<Referer<IHello>> holder = new ArrayList<Referer<IHello>>();
+        balance.selectToHolder(null, holder);
+        Assert.assertEquals(6, holder.size());
+        Assert.assertTrue(zoneReferers.containsAll(holder.subList(0, 2)));
+        Assert.assertTrue(idcReferers.containsAll(holder.subList(2, 4)));
+        Assert.assertTrue(remoteReferers.containsAll(holder.subList(4, 6)));
+    }
+
+    @Test
+    public void testSameHost() {
+        MockReferer<IHello> local = createReferer(NetUtils.getLocalAddress().getHostAddress(), "", "", null);
+        LocalityLoadBalance<IHello> balance = createBalance(null);
+        referers.add(local);
+        balance.onRefresh(referers);
+        Assert.assertSame(local, balance.select(null));
+    }
+
+    @Test
+    public void testOverflowWhenUnhealthy() {
+        LocalityLoadBalance<IHello> balance = createBalance(null);
+        zoneReferers.get(0).available = false;
+        balance.onRefresh(referers);
+        // 可用比例50%，满足缺省阈值
+        Assert.assertSame(zoneReferers.get(1), balance.select(null));
+
+        balance = createBalance(URLParamType.localityMinHealthyPercent.getName() + "=60");
+        zoneReferers.get(0).available = false;
+        balance.onRefresh(referers);
+        Assert.assertTrue(idcReferers.contains(balance.select(null)));
+
+        List<Referer<IHello>> holder = new ArrayList<Referer<IHello>>();
+        balance.selectToHolder(null, holder);
+        Assert.assertEquals(5, holder.size());
+        Assert.assertTrue(idcReferers.containsAll(holder.subList(0, 2)));
+        Assert.assertSame(zoneReferers.get(1), holder.get(4));
+    }
+
+    @Test
+    public void testOverflowWhenSaturated() {
+        LocalityLoadBalance<IHello> balance = createBalance(URLParamType.localityMaxActive.getName() + "=5");
+        zoneReferers.get(0).active = 5;
+        zoneReferers.get(1).active = 6;
+        Assert.assertTrue(idcReferers.contains(balance.select(null)));
+
+        // 所有层级都饱和时选择并发最小的referer
+        for (MockReferer<IHello> referer : idcReferers) {
+            referer.active = 7;
+        }
+        for (MockReferer<IHello> referer : remoteReferers) {
+            referer.active = 8;
+        }
+        Assert.assertSame(zoneReferers.get(0), balance.select(null));
+    }
+
+    @Test
+    public void testIpPrefix() {
+        String localIp = NetUtils.getLocalAddress().getHostAddress();
+        String[] segments = localIp.split("\\.");
+        Assert.assertEquals(4, segments.length);
+        String sameZoneIp = segments[0] + "." + segments[1] + "." + segments[2] + "." + ((Integer.parseInt(segments[3]) + 1) % 256);
+        String otherIp = ((Integer.parseInt(segments[0]) + 1) % 256) + ".0.0.1";
+
+        MockReferer<IHello> sameZone = createReferer(sameZoneIp, "", "", null);
+        MockReferer<IHello> other = createReferer(otherIp, "", "", null);
+        other.active = -1;
+        List<Referer<IHello>> list = new ArrayList<Referer<IHello>>();
+        list.add(other);
+        list.add(sameZone);
+        LocalityLoadBalance<IHello> balance = new LocalityLoadBalance<IHello>();
+        balance.onRefresh(list);
+        Assert.assertSame(sameZone, balance.select(null));
+    }
+
+    private LocalityLoadBalance<IHello> createBalance(String extraParam) {
+        referers.clear();
+        zoneReferers.clear();
+        idcReferers.clear();
+        remoteReferers.clear();
+        for (int i = 0; i < 2; i++) {
+            zoneReferers.add(createReferer("1.1.1." + i, "z1", "idc1", extraParam));
+            idcReferers.add(createReferer("1.1.2." + i, "z2", "idc1", extraParam));
+            remoteReferers.add(createReferer("1.1.3." + i, "z3", "idc2", extraParam));
+        }
+        // 远程referer并发最低，验证层级优先于并发数
+        for (MockReferer<IHello> referer : remoteReferers) {
+            referer.active = 0;
+        }
+        for (MockReferer<IHello> referer : idcReferers) {
+            referer.active = 1;
+        }
+        for (MockReferer<IHello> referer : zoneReferers) {
+            referer.active = 2;
+        }
+        referers.addAll(remoteReferers);
+        referers.addAll(idcReferers);
+        referers.addAll(zoneReferers);
+
+        LocalityLoadBalance<IHello> balance = new LocalityLoadBalance<IHello>();
+        balance.onRefresh(referers);
+        return balance;
+    }
+
+    private MockReferer<IHello> createReferer(String host, String zone, String idc, String extraParam) {
+        URL url = new URL(MotanConstants.PROTOCOL_MOTAN, host, 8001, IHello.class.getName());
+        url.addParameter(URLParamType.zone.getName(), zone);
+        url.addParameter(URLParamType.idc.getName(), idc);
+        url.addParameter(URLParamType.localZone.getName(), "z1");
+        url.addParameter(URLParamType.localIdc.getName(), "idc1");
+        if (extraParam != null) {
+            String[] kv = extraParam.split("=");
+            url.addParameter(kv[0], kv[1]);
+        }
+        MockReferer<IHello> referer = new MockReferer<IHello>(url);
+        referer.url = url;
+        return referer;
+    }
+}
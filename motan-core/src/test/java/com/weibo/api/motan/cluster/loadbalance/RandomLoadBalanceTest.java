@@ -49,6 +49,8 @@ public class RandomLoadBalanceTest extends AbstractLoadBalanceTest {
                     boolean rs = i++ >= falseCount;
                     atLeast(0).of(ref).isAvailable();
                     will(returnValue(rs));
+                    atLeast(0).of(ref).getUrl();
+                    will(returnValue(null));
                 }
             }
         });
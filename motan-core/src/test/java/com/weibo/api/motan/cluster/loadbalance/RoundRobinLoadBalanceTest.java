@@ -48,6 +48,8 @@ public class RoundRobinLoadBalanceTest extends AbstractLoadBalanceTest {
         mockery.checking(new Expectations() {
             {
                 for (int i = 0; i < referers.size(); i++) {
+                    atLeast(0).of(referers.get(i)).getUrl();
+                    will(returnValue(null));
                     if (i % 2 == 0) {
                         atLeast(0).of(referers.get(i)).isAvailable();
                         will(returnValue(true));
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.loadbalance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.mock.MockReferer;
+import com.weibo.api.motan.protocol.example.IHello;
+import com.weibo.api.motan.rpc.AvailabilityVersion;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.ServerLoadAware;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * Server load load balance test.
+ */
+public class ServerLoadLoadBalanceTest {
+
+    @Test
+    public void testAvoidHotServer() {
+        List<Referer<IHello>> referers = new ArrayList<Referer<IHello>>();
+        LoadReferer hot = new LoadReferer(0, 90);
+        LoadReferer busy = new LoadReferer(3, 50);
+        LoadReferer idle = new LoadReferer(3, 10);
+        LoadReferer unknown = new LoadReferer(5, -1);
+        referers.add(hot);
+        referers.add(busy);
+        referers.add(idle);
+        referers.add(unknown);
+
+        ServerLoadLoadBalance<IHello> balance = new ServerLoadLoadBalance<IHello>();
+        balance.onRefresh(referers);
+        // hot虽然本地并发最低，但server负载超过阈值
+        Assert.assertSame(idle, balance.select(null));
+
+        List<Referer<IHello>> holder = new ArrayList<Referer<IHello>>();
+        balance.selectToHolder(null, holder);
+        Assert.assertEquals(4, holder.size());
+        Assert.assertSame(idle, holder.get(0));
+        Assert.assertSame(hot, holder.get(3));
+
+        // 只剩繁忙的server时仍然可以选择
+        idle.available = false;
+        busy.available = false;
+        unknown.available = false;
+        // mock referer的状态变化需要手动通知
+        AvailabilityVersion.of(hot.getUrl()).increment();
+        Assert.assertSame(hot, balance.select(null));
+    }
+
+    @Test
+    public void testThreshold() {
+        List<Referer<IHello>> referers = new ArrayList<Referer<IHello>>();
+        LoadReferer first = new LoadReferer(0, 90);
+        LoadReferer second = new LoadReferer(1, 10);
+        first.url.addParameter(URLParamType.serverLoadThreshold.getName(), "100");
+        referers.add(first);
+        referers.add(second);
+
+        ServerLoadLoadBalance<IHello> balance = new ServerLoadLoadBalance<IHello>();
+        balance.onRefresh(referers);
+        // 没有server超过阈值时按 (active + 1) * (100 + load) 选择: 190 < 220
+        Assert.assertSame(first, balance.select(null));
+    }
+
+    static class LoadReferer extends MockReferer<IHello> implements ServerLoadAware {
+        int load;
+
+        LoadReferer(int active, int load) {
+            this.active = active;
+            this.load = load;
+            this.url = new URL(MotanConstants.PROTOCOL_MOTAN, "localhost", 8001, IHello.class.getName());
+        }
+
+        @Override
+        public int getServerLoad() {
+            return load;
+        }
+    }
+}
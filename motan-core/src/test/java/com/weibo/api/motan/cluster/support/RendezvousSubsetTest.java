@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.cluster.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.protocol.example.IHello;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * Rendezvous subset test.
+ */
+public class RendezvousSubsetTest {
+
+    @Test
+    public void testSelect() {
+        List<URL> urls = mockUrls(100);
+        List<URL> subset = RendezvousSubset.select("10.0.0.1", urls, 10);
+        assertEquals(10, subset.size());
+        assertEquals(subset, RendezvousSubset.select("10.0.0.1", new ArrayList<URL>(urls), 10));
+
+        // 保持原有顺序
+        int lastIndex = -1;
+        for (URL u : subset) {
+            int index = urls.indexOf(u);
+            assertTrue(index > lastIndex);
+            lastIndex = index;
+        }
+
+        assertSame(urls, RendezvousSubset.select("10.0.0.1", urls, 0));
+        assertSame(urls, RendezvousSubset.select("10.0.0.1", urls, 100));
+    }
+
+    @Test
+    public void testStable() {
+        List<URL> urls = mockUrls(100);
+        List<URL> subset = RendezvousSubset.select("10.0.0.1", urls, 10);
+
+        // 移除子集外的provider，子集不变
+        List<URL> removeOther = new ArrayList<URL>(urls);
+        for (URL u : urls) {
+            if (!subset.contains(u)) {
+                removeOther.remove(u);
+                break;
+            }
+        }
+        assertEquals(subset, RendezvousSubset.select("10.0.0.1", removeOther, 10));
+
+        // 移除子集内的provider，其余成员保持不变
+        URL removed = subset.get(0);
+        List<URL> removeMember = new ArrayList<URL>(urls);
+        removeMember.remove(removed);
+        List<URL> newSubset = RendezvousSubset.select("10.0.0.1", removeMember, 10);
+        assertEquals(10, newSubset.size());
+        assertFalse(newSubset.contains(removed));
+        for (int i = 1; i < subset.size(); i++) {
+            assertTrue(newSubset.contains(subset.get(i)));
+        }
+    }
+
+    @Test
+    public void testCoverage() {
+        int providers = 100;
+        int clients = 2000;
+        int subsetSize = 10;
+        List<URL> urls = mockUrls(providers);
+        Map<URL, Integer> counts = new HashMap<URL, Integer>();
+        for (int i = 0; i < clients; i++) {
+            for (URL u : RendezvousSubset.select("10.1." + (i / 256) + "." + (i % 256), urls, subsetSize)) {
+                Integer count = counts.get(u);
+                counts.put(u, count == null ? 1 : count + 1);
+            }
+        }
+        // 每个provider平均被200个client选中
+        int expected = clients * subsetSize / providers;
+        assertEquals(providers, counts.size());
+        for (Integer count : counts.values()) {
+            assertTrue("count=" + count, count > expected / 2 && count < expected * 3 / 2);
+        }
+    }
+
+    private List<URL> mockUrls(int count) {
+        List<URL> urls = new ArrayList<URL>();
+        for (int i = 0; i < count; i++) {
+            urls.add(new URL(MotanConstants.PROTOCOL_MOTAN, "192.168." + (i / 200) + "." + (i % 200), 8001, IHello.class.getName()));
+        }
+        return urls;
+    }
+}
@@ -67,6 +67,8 @@ public class AccessLogFilterTest extends BaseTestCase {
                 will(returnValue(url));
                 exactly(1).of(caller).call(request);
                 will(returnValue(response));
+                exactly(1).of(response).getException();
+                will(returnValue(null));
                 exactly(1).of(request).getInterfaceName();
                 will(returnValue(IHello.class.getName()));
                 exactly(1).of(request).getMethodName();
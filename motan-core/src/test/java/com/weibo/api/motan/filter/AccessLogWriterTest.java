@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.filter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.util.NetUtils;
+
+/**
+ * Access log writer test.
+ */
+public class AccessLogWriterTest {
+
+    @Test
+    public void testWrite() throws Exception {
+        CollectingWriter writer = new CollectingWriter(16, null);
+        try {
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(writer.offer("service", "app", "module", "com.weibo.Hello", "hello", "java.lang.String,int",
+                        "10.0.0.1", "remoteApp", null, i % 2 == 0, "" + i, i, true));
+            }
+            waitWritten(writer, 100);
+            Assert.assertEquals(100, writer.lines.size());
+            Assert.assertEquals(0, writer.getDroppedCount());
+            Assert.assertEquals("service|app|module|" + NetUtils.getLocalAddress().getHostAddress()
+                    + "|com.weibo.Hello|hello|java.lang.String%2Cint|10.0.0.1|remoteApp||true|0|0", writer.lines.get(0));
+            Assert.assertTrue(writer.lines.get(99).endsWith("|false|99|99"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        CollectingWriter writer = new CollectingWriter(4, latch);
+        try {
+            // 后台线程阻塞在第一条日志上，缓冲区最多再容纳4条
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                if (writer.offer("service", null, null, "com.weibo.Hello", "hello", null, null, null, null, true, null, i, false)) {
+                    accepted++;
+                }
+            }
+            Assert.assertTrue(accepted >= 4 && accepted <= 5);
+            Assert.assertEquals(10 - accepted, writer.getDroppedCount());
+            Assert.assertNotNull(writer.statisticCallback());
+
+            latch.countDown();
+            waitWritten(writer, accepted);
+            Assert.assertEquals(accepted, writer.lines.size());
+            Assert.assertEquals(0, writer.getPendingCount());
+        } finally {
+            latch.countDown();
+            writer.close();
+        }
+    }
+
+    private static void waitWritten(AccessLogWriter writer, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    static class CollectingWriter extends AccessLogWriter {
+        final List<String> lines = new CopyOnWriteArrayList<String>();
+        private final CountDownLatch latch;
+
+        CollectingWriter(int bufferSize, CountDownLatch latch) {
+            super(bufferSize);
+            this.latch = latch;
+        }
+
+        @Override
+        protected void write(String line) {
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            lines.add(line);
+        }
+    }
+}
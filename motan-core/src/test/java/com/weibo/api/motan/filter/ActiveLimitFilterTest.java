@@ -78,6 +78,8 @@ public class ActiveLimitFilterTest extends BaseTestCase {
         });
 
         activeLimitFilter.filter(caller, request);
+        // 缓存的方法统计项与RpcStats中的一致
+        assertEquals(1, RpcStats.getMethodStat(url, request).getTotalCountTime().getCount());
 
         for (int i = 0; i < 4; i++) {
             RpcStats.beforeCall(url, request);
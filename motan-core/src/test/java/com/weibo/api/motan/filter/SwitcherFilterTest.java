@@ -57,6 +57,8 @@ public class SwitcherFilterTest extends BaseTestCase {
         attachments.put(URLParamType.host.getName(), URLParamType.host.getValue());
         attachments.put(URLParamType.application.getName(), URLParamType.application.getValue());
         attachments.put(URLParamType.module.getName(), URLParamType.module.getValue());
+        // 开关是全局状态，避免受其他用例执行顺序的影响
+        MotanSwitcherUtil.setSwitcherValue("mock_class_name", false);
     }
 
     @SuppressWarnings("unchecked")
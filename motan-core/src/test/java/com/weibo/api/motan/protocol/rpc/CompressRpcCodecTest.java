@@ -28,10 +28,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.weibo.api.motan.codec.Codec;
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.mock.MockChannel;
 import com.weibo.api.motan.protocol.rpc.CompressRpcCodec.MethodInfo;
 import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
 import com.weibo.api.motan.rpc.URL;
@@ -124,6 +126,22 @@ public class CompressRpcCodecTest extends DefaultRpcCodecTest {
 
 
 
+    // 测试response回传server负载
+    @Test
+    public void testServerLoad() throws Exception {
+        DefaultResponse response = new DefaultResponse();
+        response.setValue("ok");
+        response.setRpcProtocolVersion(RpcProtocolVersion.VERSION_2.getVersion());
+        response.setAttachment(MotanConstants.ATTACHMENT_SERVER_LOAD, "35");
+        response.setAttachment("other", "value");
+        byte[] bytes = rpcCodec.encode(channel, response);
+        Response result = (Response) rpcCodec.decode(channel, "", bytes);
+
+        assertEquals("ok", result.getValue());
+        assertEquals("35", result.getAttachments().get(MotanConstants.ATTACHMENT_SERVER_LOAD));
+        assertFalse(result.getAttachments().containsKey("other"));
+    }
+
     public void testCodecRequest(Request request) throws Exception {
         byte[] bytes = rpcCodec.encode(channel, request);
         assertTrue(isCompressVersion(bytes));
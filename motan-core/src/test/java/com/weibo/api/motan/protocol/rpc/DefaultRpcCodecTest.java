@@ -24,6 +24,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.weibo.api.motan.codec.Codec;
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.mock.MockChannel;
@@ -32,6 +33,7 @@ import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.DefaultResponse;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.transport.Channel;
 
@@ -172,6 +174,57 @@ public class DefaultRpcCodecTest extends TestCase {
         Assert.assertTrue(result.getException().getClass().equals(response.getException().getClass()));
     }
 
+    @Test
+    public void testStageTrailer() throws Exception {
+        StageTimes stageTimes = new StageTimes();
+        stageTimes.set(StageTimes.Stage.SERVER_DECODE, 10);
+        stageTimes.set(StageTimes.Stage.SERVER_QUEUE, 20);
+        stageTimes.set(StageTimes.Stage.SERVER_BIZ, 3000);
+        // client端阶段不回传
+        stageTimes.set(StageTimes.Stage.CLIENT_ENCODE, 40);
+
+        DefaultResponse response = new DefaultResponse();
+        response.setValue("result");
+        response.setStageTimes(stageTimes);
+        DefaultResponse result = (DefaultResponse) rpcCodec.decode(channel, "", rpcCodec.encode(channel, response));
+        Assert.assertEquals("result", result.getValue());
+        StageTimes decoded = result.getStageTimes();
+        Assert.assertTrue(decoded.hasServerStages());
+        Assert.assertEquals(10, decoded.get(StageTimes.Stage.SERVER_DECODE));
+        Assert.assertEquals(20, decoded.get(StageTimes.Stage.SERVER_QUEUE));
+        Assert.assertEquals(3000, decoded.get(StageTimes.Stage.SERVER_BIZ));
+        Assert.assertEquals(stageTimes.get(StageTimes.Stage.SERVER_ENCODE), decoded.get(StageTimes.Stage.SERVER_ENCODE));
+        Assert.assertEquals(0, decoded.get(StageTimes.Stage.CLIENT_ENCODE));
+
+        decoded.set(StageTimes.Stage.CLIENT_ENCODE, 40);
+        decoded.set(StageTimes.Stage.CLIENT_DECODE, 50);
+        decoded.computeNetwork(10000);
+        Assert.assertEquals(10000 - 10 - 20 - 3000 - 40 - 50 - decoded.get(StageTimes.Stage.SERVER_ENCODE),
+                decoded.get(StageTimes.Stage.NETWORK));
+
+        // void和异常响应同样回传
+        response = new DefaultResponse();
+        response.setStageTimes(stageTimes);
+        result = (DefaultResponse) rpcCodec.decode(channel, "", rpcCodec.encode(channel, response));
+        Assert.assertNull(result.getValue());
+        Assert.assertEquals(3000, result.getStageTimes().get(StageTimes.Stage.SERVER_BIZ));
+
+        response = new DefaultResponse();
+        response.setException(new MotanServiceException("biz error"));
+        response.setStageTimes(stageTimes);
+        result = (DefaultResponse) rpcCodec.decode(channel, "", rpcCodec.encode(channel, response));
+        Assert.assertNotNull(result.getException());
+        Assert.assertEquals(3000, result.getStageTimes().get(StageTimes.Stage.SERVER_BIZ));
+
+        // 没有阶段耗时时不附带trailer
+        response = new DefaultResponse();
+        response.setValue("result");
+        byte[] bytes = rpcCodec.encode(channel, response);
+        Assert.assertEquals(0, bytes[3] & MotanConstants.FLAG_STAGE_TRAILER);
+        result = (DefaultResponse) rpcCodec.decode(channel, "", bytes);
+        Assert.assertNull(result.getStageTimes());
+    }
+
     @Test
     public void testCodecResponse(Response respose) throws Exception {
         byte[] bytes = rpcCodec.encode(channel, respose);
@@ -19,8 +19,12 @@ package com.weibo.api.motan.proxy;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Test;
 
 import com.weibo.api.motan.BaseTestCase;
@@ -30,6 +34,8 @@ import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.exception.MotanBizException;
 import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.DefaultResponseFuture;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.ResponseFuture;
 import com.weibo.api.motan.rpc.RpcContext;
@@ -141,9 +147,143 @@ public class RefererInvocationHandlerTest extends BaseTestCase {
 
     }
 
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void testRequestMetadata() throws Throwable {
+        final Cluster cluster = mockery.mock(Cluster.class);
+        final URL u = new URL("motan", "local", 80, "test");
+        u.addParameter(URLParamType.nodeType.getName(), MotanConstants.NODE_TYPE_REFERER);
+        final List<Request> requests = new ArrayList<Request>();
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(cluster).call(with(any(Request.class)));
+                will(new CustomAction("record request") {
+                    @Override
+                    public Object invoke(Invocation invocation) throws Throwable {
+                        requests.add((Request) invocation.getParameter(0));
+                        DefaultResponse response = new DefaultResponse();
+                        response.setValue("ok");
+                        return response;
+                    }
+                });
+                allowing(cluster).getUrl();
+                will(returnValue(u));
+            }
+        });
+
+        RefererInvocationHandler handler = new RefererInvocationHandler(TestService.class, cluster);
+        Method method = TestService.class.getMethod("hello", new Class<?>[] {String.class, int.class});
+        assertEquals("ok", handler.invoke(null, method, new Object[] {"motan", 1}));
+        // 同一方法的元数据只生成一次，多次调用结果一致
+        assertEquals("ok", handler.invoke(null, method, new Object[] {"motan", 2}));
+        for (Request request : requests) {
+            assertEquals("hello", request.getMethodName());
+            assertEquals("java.lang.String,int", request.getParamtersDesc());
+            assertEquals(TestService.class.getName(), request.getInterfaceName());
+        }
+        assertEquals(2, requests.get(1).getArguments()[1]);
+        assertFalse((Boolean) RpcContext.getContext().getAttribute(MotanConstants.ASYNC_SUFFIX));
+    }
+
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void testSharedAttachments() throws Throwable {
+        final Cluster cluster = mockery.mock(Cluster.class);
+        final URL u = new URL("motan", "local", 80, "test");
+        u.addParameter(URLParamType.nodeType.getName(), MotanConstants.NODE_TYPE_REFERER);
+        u.addParameter(URLParamType.version.getName(), "2.0");
+        final List<Request> requests = new ArrayList<Request>();
+        mockery.checking(new Expectations() {
+            {
+                exactly(3).of(cluster).call(with(any(Request.class)));
+                will(new CustomAction("record request") {
+                    @Override
+                    public Object invoke(Invocation invocation) throws Throwable {
+                        requests.add((Request) invocation.getParameter(0));
+                        return new DefaultResponse("ok");
+                    }
+                });
+                allowing(cluster).getUrl();
+                will(returnValue(u));
+            }
+        });
+
+        RefererInvocationHandler handler = new RefererInvocationHandler(TestService.class, cluster);
+        Method method = TestService.class.getMethod("hello", new Class<?>[] {});
+        handler.invoke(null, method, null);
+        handler.invoke(null, method, null);
+        // 同一cluster的调用共享attachment模板
+        assertSame(requests.get(0).getAttachments(), requests.get(1).getAttachments());
+        assertEquals("2.0", requests.get(0).getAttachments().get(URLParamType.version.getName()));
+        assertEquals("default_rpc", requests.get(0).getAttachments().get(URLParamType.clientGroup.getName()));
+        assertEquals("0", requests.get(0).getAttachments().get(URLParamType.requestIdFromClient.getName()));
+
+        // 值相同时不复制
+        requests.get(0).setAttachment(URLParamType.group.getName(), "default_rpc");
+        assertSame(requests.get(0).getAttachments(), requests.get(1).getAttachments());
+
+        // 本次调用特有的attachment只修改复制后的map，不影响模板
+        RpcContext.getContext().putAttribute(MotanConstants.ROUTING_KEY, "user1");
+        handler.invoke(null, method, null);
+        assertEquals("user1", requests.get(2).getAttachments().get(MotanConstants.ROUTING_KEY));
+        assertEquals("2.0", requests.get(2).getAttachments().get(URLParamType.version.getName()));
+        assertNull(requests.get(0).getAttachments().get(MotanConstants.ROUTING_KEY));
+        RpcContext.destroy();
+    }
+
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void testCompletableFuture() throws Throwable {
+        final Cluster cluster = mockery.mock(Cluster.class);
+        final URL u = new URL("motan", "local", 80, "test");
+        u.addParameter(URLParamType.nodeType.getName(), MotanConstants.NODE_TYPE_REFERER);
+        final DefaultResponseFuture success = new DefaultResponseFuture(null, 1000);
+        final DefaultResponseFuture bizFailure = new DefaultResponseFuture(null, 1000);
+        mockery.checking(new Expectations() {
+            {
+                exactly(3).of(cluster).call(with(any(Request.class)));
+                will(onConsecutiveCalls(returnValue(success), returnValue(bizFailure),
+                        throwException(new MotanServiceException("no referer"))));
+                allowing(cluster).getUrl();
+                will(returnValue(u));
+            }
+        });
+
+        RefererInvocationHandler handler = new RefererInvocationHandler(TestService.class, cluster);
+        Method method = TestService.class.getMethod("helloFuture", new Class<?>[] {});
+
+        // 调用不阻塞，response返回后完成
+        CompletableFuture<String> future = (CompletableFuture<String>) handler.invoke(null, method, null);
+        assertTrue((Boolean) RpcContext.getContext().getAttribute(MotanConstants.ASYNC_SUFFIX));
+        assertFalse(future.isDone());
+        success.onSuccess(new DefaultResponse("hello"));
+        assertEquals("hello", future.get());
+
+        // 业务异常以原始异常完成
+        future = (CompletableFuture<String>) handler.invoke(null, method, null);
+        DefaultResponse error = new DefaultResponse();
+        error.setException(new MotanBizException("biz", new IllegalStateException("state")));
+        bizFailure.onFailure(error);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // 框架异常也通过future返回，不抛给调用方
+        future = (CompletableFuture<String>) handler.invoke(null, method, null);
+        assertTrue(future.isCompletedExceptionally());
+        RpcContext.destroy();
+    }
+
     interface TestService {
         String hello();
 
+        CompletableFuture<String> helloFuture();
+
+        String hello(String name, int times);
+
         ResponseFuture helloAsync();
 
         boolean equals(Object o);
@@ -155,6 +295,16 @@ public class RefererInvocationHandlerTest extends BaseTestCase {
             return "hello";
         }
 
+        @Override
+        public String hello(String name, int times) {
+            return "hello";
+        }
+
+        @Override
+        public CompletableFuture<String> helloFuture() {
+            return null;
+        }
+
         @Override
         public ResponseFuture helloAsync() {
             return null;
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.exception.MotanBizException;
+import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.protocol.example.Hello;
+import com.weibo.api.motan.protocol.example.IHello;
+import com.weibo.api.motan.util.ReflectUtil;
+
+/**
+ * DefaultProvider test
+ */
+public class DefaultProviderTest extends TestCase {
+
+    private DefaultProvider<IHello> provider = new DefaultProvider<IHello>(new Hello(), new URL(MotanConstants.PROTOCOL_MOTAN,
+            "localhost", 8001, IHello.class.getName()), IHello.class);
+
+    public void testOverloadLookup() {
+        assertEquals("null: void", provider.call(createRequest("hello", ReflectUtil.EMPTY_PARAM)).getValue());
+        assertEquals("null: 18", provider.call(createRequest("hello", "int", 18)).getValue());
+        assertEquals("null: 1", provider.call(createRequest("hello", "byte", (byte) 1)).getValue());
+        assertEquals("null: motan", provider.call(createRequest("hello", "java.lang.String", "motan")).getValue());
+    }
+
+    public void testMethodNotExist() {
+        Response response = provider.call(createRequest("hello", "long", 1L));
+        assertTrue(response.getException() instanceof MotanServiceException);
+        response = provider.call(createRequest("notExist", ReflectUtil.EMPTY_PARAM));
+        assertTrue(response.getException() instanceof MotanServiceException);
+    }
+
+    public void testCompletableMethod() {
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        DefaultProvider<AsyncService> asyncProvider = new DefaultProvider<AsyncService>(new AsyncService() {
+            @Override
+            public CompletableFuture<String> hello(String name) {
+                return result;
+            }
+        }, new URL(MotanConstants.PROTOCOL_MOTAN, "localhost", 8001, AsyncService.class.getName()), AsyncService.class);
+
+        DefaultRequest request = createRequest("hello", "java.lang.String", "motan");
+        request.setAttachment("M_s", "sign");
+        Response response = asyncProvider.call(request);
+        // 服务方法返回后立即返回future，完成时才有结果
+        assertTrue(response instanceof ResponseFuture);
+        assertFalse(((ResponseFuture) response).isDone());
+        assertEquals("sign", response.getAttachments().get("M_s"));
+
+        result.complete("async");
+        assertTrue(((ResponseFuture) response).isDone());
+        assertEquals("async", response.getValue());
+
+        final CompletableFuture<String> failed = new CompletableFuture<String>();
+        asyncProvider = new DefaultProvider<AsyncService>(new AsyncService() {
+            @Override
+            public CompletableFuture<String> hello(String name) {
+                return failed;
+            }
+        }, new URL(MotanConstants.PROTOCOL_MOTAN, "localhost", 8001, AsyncService.class.getName()), AsyncService.class);
+        response = asyncProvider.call(createRequest("hello", "java.lang.String", "motan"));
+        failed.completeExceptionally(new IllegalStateException("async error"));
+        assertTrue(response.getException() instanceof MotanBizException);
+        assertTrue(response.getException().getCause() instanceof IllegalStateException);
+    }
+
+    public interface AsyncService {
+        CompletableFuture<String> hello(String name);
+    }
+
+    private DefaultRequest createRequest(String methodName, String paramDesc, Object... args) {
+        DefaultRequest request = new DefaultRequest();
+        request.setInterfaceName(IHello.class.getName());
+        request.setMethodName(methodName);
+        request.setParamtersDesc(paramDesc);
+        request.setArguments(args.length == 0 ? null : args);
+        return request;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
+
+/**
+ * RpcContext test
+ */
+public class RpcContextTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        RpcContext.destroy();
+    }
+
+    public void testPerRequestInstance() {
+        DefaultRequest request = new DefaultRequest();
+        request.setRequestId(1);
+        request.setAttachment(URLParamType.requestIdFromClient.getName(), "100");
+        RpcContext context = RpcContext.init(request);
+        context.putAttribute("key", "value");
+        context.setDeadline(1000);
+        assertEquals("100", context.getRequestId());
+
+        // 用户持有的context引用不受之后请求的影响
+        RpcContext.destroy();
+        RpcContext next = RpcContext.getContext();
+        assertNotSame(context, next);
+        assertNull(next.getAttribute("key"));
+        assertNull(next.getRequestId());
+        assertEquals(0, next.getDeadline());
+        assertEquals("value", context.getAttribute("key"));
+        assertEquals(1000, context.getDeadline());
+
+        request.setAttachments(null);
+        RpcContext other = RpcContext.init(request);
+        assertNotSame(context, other);
+        assertEquals("1", other.getRequestId());
+        assertEquals("100", context.getRequestId());
+    }
+
+    public void testAsyncAttribute() {
+        RpcContext context = RpcContext.getContext();
+        assertFalse(context.isAsync());
+        // 兼容通过attribute设置async标记
+        context.putAttribute(MotanConstants.ASYNC_SUFFIX, true);
+        assertTrue(context.isAsync());
+        assertEquals(Boolean.TRUE, context.getAttribute(MotanConstants.ASYNC_SUFFIX));
+        context.revomeAttribute(MotanConstants.ASYNC_SUFFIX);
+        assertFalse(context.isAsync());
+        context.setAsync(true);
+        RpcContext.destroy();
+        assertFalse(RpcContext.getContext().isAsync());
+    }
+
+    public void testPropagation() throws Exception {
+        RpcContext context = RpcContext.getContext();
+        context.setDeadline(12345);
+        context.setClientRequestId("100");
+        context.putAttribute("key", "value");
+        final RpcContext snapshot = context.snapshot();
+        RpcContext.destroy();
+        // snapshot与线程无关，原线程重置后不受影响
+        assertEquals(12345, snapshot.getDeadline());
+
+        final AtomicReference<RpcContext> restored = new AtomicReference<RpcContext>();
+        final AtomicReference<String> value = new AtomicReference<String>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RpcContext.restore(snapshot);
+                try {
+                    restored.set(RpcContext.getContext());
+                    value.set((String) RpcContext.getContext().getAttribute("key"));
+                    assertEquals(12345, RpcContext.getContext().getDeadline());
+                    assertEquals("100", RpcContext.getContext().getRequestId());
+                } finally {
+                    RpcContext.destroy();
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals("value", value.get());
+        // 恢复为目标线程的新实例，不共享snapshot实例
+        assertNotSame(snapshot, restored.get());
+        assertEquals(12345, restored.get().getDeadline());
+    }
+}
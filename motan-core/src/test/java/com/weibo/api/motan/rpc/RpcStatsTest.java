@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.rpc;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.util.SlidingWindowStat;
+
+/**
+ * RpcStats test.
+ */
+public class RpcStatsTest {
+
+    @Test
+    public void testStat() {
+        URL url = new URL("motan", "localhost", 18081, "com.weibo.RpcStatsService", new HashMap<String, String>());
+        DefaultRequest request = new DefaultRequest();
+        request.setMethodName("hello");
+        request.setParamtersDesc("int");
+
+        RpcStats.ServiceStat serviceStat = RpcStats.getServiceStat(url);
+        RpcStats.StatInfo methodStat = serviceStat.getMethodStat("hello", "int");
+        Assert.assertSame(serviceStat, RpcStats.getServiceStat(url));
+        Assert.assertSame(methodStat, RpcStats.getMethodStat(url, request));
+
+        RpcStats.beforeCall(url, request);
+        RpcStats.beforeCall(url, request);
+        Assert.assertEquals(2, serviceStat.getActiveCount());
+        Assert.assertEquals(2, methodStat.getActiveCount());
+        RpcStats.afterCall(url, request, true, 10);
+        RpcStats.afterCall(url, request, false, 30);
+        Assert.assertEquals(0, methodStat.getActiveCount());
+        Assert.assertEquals(1, methodStat.getFailCount());
+        Assert.assertEquals(2, methodStat.getTotalCountTime().getCount());
+        Assert.assertEquals(40, methodStat.getTotalCountTime().getTimeMills());
+
+        SlidingWindowStat.Snapshot snapshot = methodStat.getWindowSnapshot();
+        Assert.assertEquals(2, snapshot.getCount());
+        Assert.assertEquals(0.5, snapshot.getSuccessRate(), 0);
+        Assert.assertEquals(20, snapshot.getMeanMills(), 0);
+        Assert.assertEquals(2, serviceStat.getLatestCountTime().getCount());
+
+        // 有调用的统计项不会被清理
+        RpcStats.cleanIdleStats(System.currentTimeMillis());
+        Assert.assertFalse(serviceStat.isRemoved());
+        Assert.assertSame(serviceStat, RpcStats.getServiceStat(url));
+
+        RpcStats.cleanIdleStats(System.currentTimeMillis() + RpcStats.IDLE_EXPIRE_MILLIS + 1);
+        Assert.assertTrue(methodStat.isRemoved());
+        Assert.assertTrue(serviceStat.isRemoved());
+        RpcStats.ServiceStat newStat = RpcStats.getServiceStat(url);
+        Assert.assertNotSame(serviceStat, newStat);
+        Assert.assertNotSame(methodStat, newStat.getMethodStat("hello", "int"));
+    }
+}
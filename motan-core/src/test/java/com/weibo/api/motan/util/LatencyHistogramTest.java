@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
+
+/**
+ * Latency histogram test.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordValue(i * 10);
+        }
+        Assert.assertEquals(10000, histogram.getTotalCount());
+        Assert.assertEquals(100000, histogram.getMaxValue());
+        // 相对误差不超过1%
+        assertClose(50000, histogram.getValueAtPercentile(50));
+        assertClose(99000, histogram.getValueAtPercentile(99));
+        assertClose(99900, histogram.getValueAtPercentile(99.9));
+        Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+        assertClose(50005, (long) histogram.getMean());
+
+        // 超过最大值按最大值统计
+        histogram.recordValue(LatencyHistogram.HIGHEST_TRACKABLE_VALUE * 2);
+        Assert.assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testMerge() {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 900; i++) {
+            fast.recordValue(100);
+        }
+        for (int i = 0; i < 100; i++) {
+            slow.recordValue(10000);
+        }
+        LatencyHistogram merged = fast.copy();
+        merged.add(slow);
+        Assert.assertEquals(1000, merged.getTotalCount());
+        assertClose(100, merged.getValueAtPercentile(90));
+        assertClose(10000, merged.getValueAtPercentile(91));
+        Assert.assertEquals(10000, merged.getMaxValue());
+        Assert.assertEquals(900, fast.getTotalCount());
+    }
+
+    @Test
+    public void testIndex() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram coarse = new LatencyHistogram(1);
+        for (long value : new long[] {0, 1, 127, 255, 256, 257, 1000, 123456, LatencyHistogram.HIGHEST_TRACKABLE_VALUE}) {
+            long lowest = histogram.valueFromIndex(histogram.countsIndex(value));
+            Assert.assertTrue(lowest <= value);
+            Assert.assertTrue(value - lowest <= Math.max(1, value / 100));
+
+            lowest = coarse.valueFromIndex(coarse.countsIndex(value));
+            Assert.assertTrue(lowest <= value);
+            Assert.assertTrue(value - lowest <= Math.max(1, value / 10));
+        }
+    }
+
+    @Test
+    public void testEncodeCompressed() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(1);
+        histogram.recordValue(1);
+        histogram.recordValue(1000);
+        histogram.recordValue(500000);
+
+        ByteBuffer compressed = ByteBuffer.wrap(histogram.encodeCompressed());
+        Assert.assertEquals(0x1c849314, compressed.getInt());
+        int length = compressed.getInt();
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed.array(), 8, length);
+        byte[] buffer = new byte[4096];
+        int size = inflater.inflate(buffer);
+        inflater.end();
+
+        ByteBuffer encoded = ByteBuffer.wrap(buffer, 0, size);
+        Assert.assertEquals(0x1c849313, encoded.getInt());
+        int payloadLength = encoded.getInt();
+        Assert.assertEquals(0, encoded.getInt());
+        Assert.assertEquals(LatencyHistogram.SIGNIFICANT_DIGITS, encoded.getInt());
+        Assert.assertEquals(1, encoded.getLong());
+        Assert.assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, encoded.getLong());
+        Assert.assertEquals(1.0, encoded.getDouble(), 0);
+        Assert.assertEquals(size - 40, payloadLength);
+
+        // 解码计数，与记录的值一致
+        long[] counts = new long[histogram.countsIndex(500000) + 1];
+        int index = 0;
+        while (encoded.hasRemaining()) {
+            long count = getZigZag(encoded);
+            if (count < 0) {
+                index += (int) -count;
+            } else {
+                counts[index++] = count;
+            }
+        }
+        Assert.assertEquals(counts.length, index);
+        Assert.assertEquals(2, counts[histogram.countsIndex(1)]);
+        Assert.assertEquals(1, counts[histogram.countsIndex(1000)]);
+        Assert.assertEquals(1, counts[histogram.countsIndex(500000)]);
+    }
+
+    @Test
+    public void testRecorder() {
+        LatencyRecorder recorder = new LatencyRecorder(1000);
+        long time = 100000L;
+        recorder.record(time, 100);
+        recorder.record(time + 500, 200);
+        Assert.assertNull(recorder.getLastInterval(time));
+
+        recorder.record(time + 1000, 300);
+        IntervalHistogram interval = recorder.getLastInterval(time + 1000);
+        Assert.assertEquals(time, interval.getStartTimeMillis());
+        Assert.assertEquals(1000, interval.getIntervalMillis());
+        Assert.assertEquals(2, interval.getHistogram().getTotalCount());
+
+        // 两个周期后同一直方图重置，过旧的记录被丢弃
+        recorder.record(time + 2000, 400);
+        recorder.record(time, 100);
+        Assert.assertNull(recorder.getLastInterval(time + 1000));
+        Assert.assertEquals(1, recorder.getLastInterval(time + 3000).getHistogram().getTotalCount());
+        Assert.assertEquals(400, recorder.getLastInterval(time + 3000).getHistogram().getMaxValue());
+    }
+
+    @Test
+    public void testRecorderStripes() throws Exception {
+        final LatencyRecorder recorder = new LatencyRecorder(1000);
+        final long time = 100000L;
+        final int threads = AccessStatisticItem.STRIPES * 2;
+        final int count = 1000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int value = (i + 1) * 100;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        recorder.record(time, value);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // 各stripe的直方图在读取时合并
+        LatencyHistogram histogram = recorder.getLastInterval(time + 1000).getHistogram();
+        Assert.assertEquals(threads * count, histogram.getTotalCount());
+        Assert.assertEquals(threads * 100, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testRecorderHistogram() {
+        LatencyRecorder recorder = new LatencyRecorder(1000, 2, new long[] {1000, 10000});
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        long time = 100000L;
+        recorder.record(time, 500);
+        recorder.record(time, 2000);
+        recorder.record(time, 20000);
+        // 未结束的周期不计入
+        recorder.writeHistogram(writer.histogram("test_latency_seconds", "Test histogram."), 1000000.0, "item", "a");
+        Assert.assertTrue(writer.toString().contains("test_latency_seconds_bucket{item=\"a\",le=\"+Inf\"} 0\n"));
+
+        // 周期被读取时累加，重复读取不会重复累加
+        recorder.getLastInterval(time + 1000);
+        recorder.getLastInterval(time + 1000);
+        // 没有被读取的周期在直方图重置时累加
+        recorder.record(time + 1000, 700);
+        recorder.record(time + 3000, 100);
+
+        writer.reset();
+        recorder.writeHistogram(writer.histogram("test_latency_seconds", "Test histogram."), 1000000.0, "item", "a");
+        String text = writer.toString();
+        Assert.assertTrue(text.startsWith("# TYPE test_latency_seconds histogram\n"));
+        Assert.assertTrue(text.contains("test_latency_seconds_bucket{item=\"a\",le=\"0.001\"} 2\n"));
+        Assert.assertTrue(text.contains("test_latency_seconds_bucket{item=\"a\",le=\"0.01\"} 3\n"));
+        Assert.assertTrue(text.contains("test_latency_seconds_bucket{item=\"a\",le=\"+Inf\"} 4\n"));
+        Assert.assertTrue(text.contains("test_latency_seconds_count{item=\"a\"} 4\n"));
+        Assert.assertTrue(text.contains("test_latency_seconds_sum{item=\"a\"} 0.02"));
+    }
+
+    @Test
+    public void testLogWriter() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistogramLogWriter writer = new HistogramLogWriter(new PrintStream(out));
+        writer.outputLogFormatVersion();
+        writer.outputStartTime(1000);
+        writer.outputLegend();
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(2500);
+        writer.outputIntervalHistogram("motan://g_a.B.c(int,long)|app|module", new IntervalHistogram(30000, 30000, histogram));
+
+        String[] lines = out.toString().split("\n");
+        Assert.assertEquals("#[Histogram log format version 1.3]", lines[0]);
+        Assert.assertTrue(lines[1].startsWith("#[StartTime: 1.000 (seconds since epoch)"));
+        Assert.assertEquals("#[BaseTime: 0.000 (seconds since epoch)]", lines[2]);
+        String[] fields = lines[4].trim().split(",");
+        Assert.assertEquals(5, fields.length);
+        Assert.assertEquals("Tag=motan://g_a.B.c(int;long)|app|module", fields[0]);
+        Assert.assertEquals("30.000", fields[1]);
+        Assert.assertEquals("30.000", fields[2]);
+        Assert.assertEquals("2.500", fields[3]);
+        Assert.assertArrayEquals(histogram.encodeCompressed(), BaseEncoding.base64().decode(fields[4]));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + " but " + actual, Math.abs(expected - actual) <= expected / 100 + 1);
+    }
+
+    private static long getZigZag(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            long b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (value >>> 1) ^ (-(value & 1));
+            }
+        }
+        value |= ((long) buffer.get() & 0xFF) << 56;
+        return (value >>> 1) ^ (-(value & 1));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weibo.api.motan.rpc.Application;
+import com.weibo.api.motan.util.StatsUtil.AccessStatus;
+
+/**
+ * OpenMetrics output test.
+ */
+public class OpenMetricsWriterTest {
+
+    @Test
+    public void testWriter() {
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        writer.gauge("test_gauge", "Test gauge.").sample(1, "identity", "a");
+        writer.counter("test_requests", "Test counter.").sample(10, "service", "s\"1\\", "method", null);
+        // 同名family的样本输出在一起
+        writer.gauge("test_gauge", "Test gauge.").sample(0.5, "identity", "b\nc");
+        writer.gauge("test_empty", "No samples.");
+
+        String expected =
+                "# TYPE test_gauge gauge\n" + "# HELP test_gauge Test gauge.\n" + "test_gauge{identity=\"a\"} 1\n"
+                        + "test_gauge{identity=\"b\\nc\"} 0.5\n" + "# TYPE test_requests counter\n"
+                        + "# HELP test_requests Test counter.\n" + "test_requests_total{service=\"s\\\"1\\\\\"} 10\n" + "# EOF\n";
+        Assert.assertEquals(expected, writer.toString());
+
+        writer.reset();
+        writer.gauge("test_gauge", "Test gauge.").sample(Double.NaN);
+        Assert.assertEquals("# TYPE test_gauge gauge\n# HELP test_gauge Test gauge.\ntest_gauge NaN\n# EOF\n", writer.toString());
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        StatsUtil.accessStatistic("com.weibo.OpenMetricsService.hello(int)", new Application("metricsApp", "metricsModule"),
+                System.currentTimeMillis(), 3, 2, AccessStatus.NORMAL);
+
+        OpenMetricsServer server = new OpenMetricsServer(0);
+        server.start();
+        try {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + OpenMetricsServer.PATH).openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertEquals(OpenMetricsWriter.CONTENT_TYPE, connection.getContentType());
+            String body = read(connection.getInputStream());
+            Assert.assertTrue(body.contains("# TYPE motan_access_requests counter\n"));
+            Assert.assertTrue(body.contains("motan_access_requests_total{item=\"com.weibo.OpenMetricsService.hello(int)\","
+                    + "application=\"metricsApp\",module=\"metricsModule\"} 1\n"));
+            Assert.assertTrue(body.endsWith("# EOF\n"));
+
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + OpenMetricsServer.PATH).openConnection();
+            connection.setRequestMethod("POST");
+            Assert.assertEquals(405, connection.getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -4,6 +4,9 @@
 package com.weibo.api.motan.util;
 
 import com.google.common.collect.Lists;
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.RpcContext;
 import junit.framework.Assert;
 import org.junit.Test;
 
@@ -75,4 +78,54 @@ public class RequestIdGeneratorTest {
 
     }
 
+    @Test
+    public void testNoCollideAcrossThreads() throws Exception {
+        int threadNum = 8;
+        final int count = 100000;
+        final ConcurrentMap<Long, Object> memory = new ConcurrentHashMap<Long, Object>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        List<Future<Boolean>> futureList = Lists.newArrayList();
+        for (int i = 0; i < threadNum; i++) {
+            futureList.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    long last = 0;
+                    boolean result = true;
+                    for (int j = 0; j < count; j++) {
+                        long id = RequestIdGenerator.getRequestId();
+                        // 同一线程内单调递增
+                        result &= id > last;
+                        last = id;
+                        result &= memory.putIfAbsent(id, "") == null;
+                    }
+                    return result;
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<Boolean> future : futureList) {
+            Assert.assertTrue(future.get());
+        }
+        Assert.assertEquals(threadNum * count, memory.size());
+    }
+
+    @Test
+    public void testRequestIdFromClient() {
+        RpcContext.destroy();
+        Assert.assertEquals(0, RequestIdGenerator.getRequestIdFromClient());
+
+        // 上游没有传递时使用当前处理的请求的requestId
+        DefaultRequest request = new DefaultRequest();
+        request.setRequestId(123L);
+        request.setAttachment(URLParamType.requestIdFromClient.getName(), URLParamType.requestIdFromClient.getValue());
+        RpcContext.init(request);
+        Assert.assertEquals(123L, RequestIdGenerator.getRequestIdFromClient());
+
+        // 继续传递上游的requestIdFromClient
+        request.setAttachment(URLParamType.requestIdFromClient.getName(), "100");
+        RpcContext.init(request);
+        Assert.assertEquals(100L, RequestIdGenerator.getRequestIdFromClient());
+        RpcContext.destroy();
+    }
+
 }
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Rpc JFR events test. 依赖jdk.jfr，构建JDK不支持JFR时由no-jfr profile排除。
+ */
+public class RpcEventsTest {
+
+    @Test
+    public void testEvents() throws Exception {
+        Assume.assumeTrue(isJfrAvailable());
+        // 没有recording时不创建事件
+        Assert.assertNull(RpcEvents.begin(RpcEvents.Type.CLIENT_CALL));
+
+        Recording recording = new Recording();
+        recording.enable("motan.ClientCall").withThreshold(java.time.Duration.ZERO);
+        recording.enable("motan.Timeout");
+        recording.enable("motan.QueueWait");
+        // 未启用的事件不创建
+        recording.disable("motan.Decode");
+        recording.start();
+        File file = File.createTempFile("motan-rpc-events", ".jfr");
+        try {
+            Assert.assertNull(RpcEvents.begin(RpcEvents.Type.DECODE));
+            Object event = RpcEvents.begin(RpcEvents.Type.CLIENT_CALL);
+            Assert.assertNotNull(event);
+            RpcEvents.commit(event, "com.weibo.RpcEventsService", "hello", new InetSocketAddress("127.0.0.1", 8002), 123L, 10);
+            RpcEvents.emit(RpcEvents.Type.TIMEOUT, "com.weibo.RpcEventsService", "hello", null, 124L, 0);
+            // 跨线程的阶段通过elapsed提交，小于阈值的不提交
+            RpcEvents.emit(RpcEvents.Type.QUEUE_WAIT, TimeUnit.MILLISECONDS.toNanos(5), "com.weibo.RpcEventsService", "hello",
+                    null, 125L, 0);
+            RpcEvents.emit(RpcEvents.Type.QUEUE_WAIT, TimeUnit.MICROSECONDS.toNanos(100), "com.weibo.RpcEventsService", "hello",
+                    null, 126L, 0);
+            recording.stop();
+            recording.dump(file.toPath());
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+            Assert.assertEquals(3, events.size());
+            RecordedEvent call = findEvent(events, "motan.ClientCall");
+            Assert.assertEquals("com.weibo.RpcEventsService", call.getString("service"));
+            Assert.assertEquals("hello", call.getString("method"));
+            Assert.assertEquals("/127.0.0.1:8002", call.getString("remoteAddress"));
+            Assert.assertEquals(123L, call.getLong("requestId"));
+            Assert.assertEquals(10L, call.getLong("size"));
+            RecordedEvent timeout = findEvent(events, "motan.Timeout");
+            Assert.assertEquals(124L, timeout.getLong("requestId"));
+            Assert.assertNull(timeout.getString("remoteAddress"));
+            RecordedEvent queueWait = findEvent(events, "motan.QueueWait");
+            Assert.assertEquals(125L, queueWait.getLong("requestId"));
+            Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(5), queueWait.getDuration("elapsed").toNanos());
+        } finally {
+            recording.close();
+            file.delete();
+        }
+        Assert.assertFalse(RpcEvents.isEnabled(RpcEvents.Type.CLIENT_CALL));
+    }
+
+    private static RecordedEvent findEvent(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (name.equals(event.getEventType().getName())) {
+                return event;
+            }
+        }
+        Assert.fail("event not found: " + name);
+        return null;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return !"false".equalsIgnoreCase(System.getProperty(RpcEvents.ENABLE_KEY));
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
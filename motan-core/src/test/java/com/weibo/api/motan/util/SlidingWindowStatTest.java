@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Sliding window stat test.
+ */
+public class SlidingWindowStatTest {
+
+    @Test
+    public void testWindow() {
+        SlidingWindowStat stat = new SlidingWindowStat(10, 1000);
+        long start = 1000000L;
+        for (int i = 0; i < 100; i++) {
+            // 每秒10次调用，每秒最后一次失败
+            stat.record(start + i * 100, i % 10 != 9, i < 99 ? 10 : 1000);
+        }
+
+        SlidingWindowStat.Snapshot snapshot = stat.getSnapshot(start + 9999);
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(10, snapshot.getFailCount());
+        Assert.assertEquals(0.9, snapshot.getSuccessRate(), 0.0001);
+        Assert.assertEquals((99 * 10 + 1000) / 100.0, snapshot.getMeanMills(), 0.0001);
+        Assert.assertEquals(10, snapshot.getPercentileMills(50), 1);
+        Assert.assertEquals(10, snapshot.getP99Mills(), 1);
+        Assert.assertEquals(1000, snapshot.getPercentileMills(100), 100);
+        // 同一个bucket内复用快照
+        Assert.assertSame(snapshot, stat.getSnapshot(start + 9000));
+
+        // 窗口滑过第一秒
+        snapshot = stat.getSnapshot(start + 10000);
+        Assert.assertEquals(90, snapshot.getCount());
+        Assert.assertEquals(9, snapshot.getFailCount());
+
+        // 写入新的一秒时重用最旧的bucket
+        stat.record(start + 10500, true, 20);
+        // 快照按bucket缓存
+        Assert.assertEquals(90, stat.getSnapshot(start + 10999).getCount());
+        snapshot = stat.getSnapshot(start + 11000);
+        Assert.assertEquals(81, snapshot.getCount());
+
+        snapshot = stat.getSnapshot(start + 30000);
+        Assert.assertEquals(0, snapshot.getCount());
+        Assert.assertEquals(1, snapshot.getSuccessRate(), 0);
+        Assert.assertEquals(0, snapshot.getMeanMills(), 0);
+
+        // 过旧的记录被丢弃
+        stat.record(start, false, 10);
+        Assert.assertEquals(81, stat.getSnapshot(start + 11000).getCount());
+
+        stat.reset();
+        Assert.assertEquals(0, stat.getSnapshot(start + 12000).getCount());
+    }
+}
@@ -17,11 +17,16 @@
 package com.weibo.api.motan.util;
 
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.weibo.api.motan.cluster.ha.FailoverHaStrategy;
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.rpc.Application;
+import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.util.StatsUtil.AccessStatus;
 
 /**
@@ -66,4 +71,81 @@ public class StatsUtilTest {
         }
 
     }
+
+    @Test
+    public void testConcurrentStatistic() throws Exception {
+        final AccessStatisticItem item = StatsUtil.getStatisticItem("concurrent", new Application("application3", "module3"));
+        final long time = System.currentTimeMillis() / 1000 * 1000 - 1000;
+        final int threads = 8;
+        final int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        item.statistic(time, MotanConstants.SLOW_COST, 1, j % 10 == 0 ? AccessStatus.BIZ_EXCEPTION : AccessStatus.NORMAL);
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+
+        AccessStatisticResult result = item.getStatisticResult(time + 1000, MotanConstants.STATISTIC_PEROID);
+        Assert.assertEquals(threads * count, result.totalCount);
+        Assert.assertEquals(threads * count, result.slowCount);
+        Assert.assertEquals(threads * count / 10, result.bizExceptionCount);
+        Assert.assertEquals(threads * count, (long) result.bizTime);
+        Assert.assertEquals(threads * count, result.maxCount);
+        Assert.assertEquals(0, result.minCount);
+    }
+
+    @Test
+    public void testRollover() {
+        AccessStatisticItem item = new AccessStatisticItem("rollover", "application4", "module4", 4);
+        long time = 100000L;
+        item.statistic(time, 1, 1, AccessStatus.NORMAL);
+        item.statistic(time + 1000, 1, 1, AccessStatus.OTHER_EXCEPTION);
+        AccessStatisticResult result = item.getStatisticResult(time + 2000, 2);
+        Assert.assertEquals(2, result.totalCount);
+        Assert.assertEquals(1, result.otherExceptionCount);
+
+        // 环上同一位置进入新的一秒时重置，过期的记录被丢弃
+        item.statistic(time + 4000, 1, 1, AccessStatus.NORMAL);
+        item.statistic(time, 1, 1, AccessStatus.NORMAL);
+        result = item.getStatisticResult(time + 5000, 4);
+        Assert.assertEquals(2, result.totalCount);
+        Assert.assertEquals(0, item.getStatisticResult(time + 1000, 1).totalCount);
+
+        item.clearStatistic(time + 5000, 4);
+        Assert.assertEquals(0, item.getStatisticResult(time + 5000, 4).totalCount);
+        item.statistic(time + 5000, 1, 1, AccessStatus.NORMAL);
+        Assert.assertEquals(1, item.getStatisticResult(time + 6000, 1).totalCount);
+
+        // 累计计数不受过期和clearStatistic影响
+        long[] totals = item.getTotalCounts();
+        Assert.assertEquals(5, totals[0]);
+        Assert.assertEquals(1, totals[3]);
+    }
+
+    @Test
+    public void testRetryBudgetCallback() {
+        FailoverHaStrategy<Object> strategy = new FailoverHaStrategy<Object>();
+        URL url = new URL(MotanConstants.PROTOCOL_MOTAN, NetUtils.LOCALHOST, 0, "com.weibo.RetryBudgetService");
+        strategy.setUrl(url);
+        // 未启用重试预算时不注册
+        Assert.assertFalse(StatsUtil.statisticCallbacks.contains(strategy));
+
+        URL budgetUrl = url.createCopy();
+        budgetUrl.addParameter(URLParamType.retryBudgetPercent.getName(), "10");
+        strategy.setUrl(budgetUrl);
+        strategy.setUrl(budgetUrl);
+        Assert.assertTrue(StatsUtil.statisticCallbacks.contains(strategy));
+        Assert.assertEquals(StatsUtil.statisticCallbacks.indexOf(strategy), StatsUtil.statisticCallbacks.lastIndexOf(strategy));
+
+        // 关闭重试预算时注销
+        strategy.setUrl(url);
+        Assert.assertFalse(StatsUtil.statisticCallbacks.contains(strategy));
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009-2016 Weibo, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.weibo.api.motan.filter.opentracing;
+
+import io.opentracing.Span;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.weibo.api.motan.util.LoggerUtil;
+
+/**
+ * 
+ * @Description 异步finish span。
+ * 
+ *              <pre>
+ * 		1) 请求线程只记录结束时间并放入有界队列，span.finish()（tracer在其中序列化、上报span）在后台线程中批量执行；
+ * 		2) 队列满时丢弃该span并计数，不阻塞请求线程；
+ * 		3) close时finish队列中剩余的span。
+ * </pre>
+ *
+ */
+public class AsyncSpanReporter {
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    private static final int BATCH_SIZE = 256;
+
+    private final BlockingQueue<FinishedSpan> queue;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong reportedCount = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean stopped;
+
+    public AsyncSpanReporter() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    public AsyncSpanReporter(int queueSize) {
+        queue = new ArrayBlockingQueue<FinishedSpan>(queueSize);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "motan-span-reporter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 在请求线程中调用
+     * 
+     * @param finishMicros span的结束时间（微秒）
+     * @return 是否放入队列
+     */
+    public boolean report(Span span, long finishMicros) {
+        if (stopped || !queue.offer(new FinishedSpan(span, finishMicros))) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void work() {
+        List<FinishedSpan> batch = new ArrayList<FinishedSpan>(BATCH_SIZE);
+        while (!stopped) {
+            try {
+                FinishedSpan first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                finish(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        queue.drainTo(batch);
+        finish(batch);
+    }
+
+    private void finish(List<FinishedSpan> batch) {
+        for (FinishedSpan finishedSpan : batch) {
+            try {
+                finishedSpan.span.finish(finishedSpan.finishMicros);
+            } catch (Exception e) {
+                LoggerUtil.error("opentracing span finish error!", e);
+            }
+        }
+        reportedCount.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    /**
+     * 停止后台线程，队列中的span会finish
+     */
+    public void close() {
+        stopped = true;
+        try {
+            worker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getReportedCount() {
+        return reportedCount.get();
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private static class FinishedSpan {
+        final Span span;
+        final long finishMicros;
+
+        FinishedSpan(Span span, long finishMicros) {
+            this.span = span;
+            this.finishMicros = finishMicros;
+        }
+    }
+}
@@ -16,6 +16,8 @@ package com.weibo.api.motan.filter.opentracing;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import com.weibo.api.motan.rpc.RpcContext;
 
 /**
@@ -30,11 +32,30 @@ public class OpenTracingContext {
     // replace TracerFactory with any tracer implementation
     public static TracerFactory tracerFactory = TracerFactory.DEFAULT;
     public static final String ACTIVE_SPAN = "ot_active_span";
+    // 采样决策在请求attachment中传递的key，值为1（采样）或0（不采样）
+    public static final String SAMPLED_KEY = "motan-trace-sampled";
+    public static final String SAMPLE_RATE_KEY = "motan.trace.sampleRate";
+    private static final String SAMPLED_ATTRIBUTE = "ot_sampled";
+
+    // 头部采样率，取值[0, 1]，默认全部采样
+    private static volatile double sampleRate = parseSampleRate(System.getProperty(SAMPLE_RATE_KEY), 1.0);
+    // 为null时在请求线程中同步finish span
+    public static volatile AsyncSpanReporter spanReporter;
+    // span起止时间使用的时钟：以启动时的墙上时间为基准，按nanoTime推进，保证同一span的起止时间单调
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
 
     public static Tracer getTracer() {
         return tracerFactory.getTracer();
     }
 
+    /**
+     * span的开始、结束时间（微秒），开始和结束必须都使用该时钟
+     */
+    public static long currentMicros() {
+        return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
     public static Span getActiveSpan() {
         Object span = RpcContext.getContext().getAttribute(ACTIVE_SPAN);
         if (span != null && span instanceof Span) {
@@ -47,7 +68,68 @@ public class OpenTracingContext {
         RpcContext.getContext().putAttribute(ACTIVE_SPAN, span);
     }
 
+    /**
+     * 当前请求的采样决策，由server端从上游请求中获得，本次请求中的下游调用沿用该决策
+     * 
+     * @return 没有决策时返回null
+     */
+    public static Boolean getSampled() {
+        Object sampled = RpcContext.getContext().getAttribute(SAMPLED_ATTRIBUTE);
+        if (sampled instanceof Boolean) {
+            return (Boolean) sampled;
+        }
+        return null;
+    }
+
+    public static void setSampled(boolean sampled) {
+        RpcContext.getContext().putAttribute(SAMPLED_ATTRIBUTE, sampled);
+    }
+
+    /**
+     * 头部采样：按采样率决定一个新的trace是否采样
+     */
+    public static boolean sample() {
+        double rate = sampleRate;
+        if (rate >= 1.0) {
+            return true;
+        }
+        if (rate <= 0.0) {
+            return false;
+        }
+        return ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    public static void setSampleRate(double sampleRate) {
+        OpenTracingContext.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+    }
+
+    static double parseSampleRate(String value, double defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0.0, Math.min(1.0, Double.parseDouble(value.trim())));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public void setTracerFactory(TracerFactory tracerFactory) {
         OpenTracingContext.tracerFactory = tracerFactory;
     }
+
+    public void setTraceSampleRate(double sampleRate) {
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * 设置异步span上报队列，为null时同步finish
+     */
+    public void setSpanReporter(AsyncSpanReporter spanReporter) {
+        OpenTracingContext.spanReporter = spanReporter;
+    }
 }
@@ -40,6 +40,14 @@ import com.weibo.api.motan.util.MotanFrameworkUtil;
  * @Description This filter enables distributed tracing in Motan clients and servers via @see <a
  *              href="http://opentracing.io">The OpenTracing Project </a> : a set of consistent,
  *              expressive, vendor-neutral APIs for distributed tracing and context propagation.
+ * 
+ *              <pre>
+ * 		1) 头部采样：trace的起点（没有父span的client，或未收到采样决策的server）按OpenTracingContext的采样率决定是否采样；
+ * 		2) 采样决策通过attachment（motan-trace-sampled）传递给下游，下游遵循上游的决策；
+ * 		3) 不采样的请求不创建span、不注入trace信息，直接调用；
+ * 		4) 设置了OpenTracingContext.spanReporter时，span.finish()在后台线程中执行；
+ * 		5) span的起止时间都取自OpenTracingContext.currentMicros()，不依赖tracer自身的时钟。
+ * </pre>
  * @author zhanglei
  * @date Dec 8, 2016
  *
@@ -47,6 +55,8 @@ import com.weibo.api.motan.util.MotanFrameworkUtil;
 @SpiMeta(name = "opentracing")
 @Activation(sequence = 30)
 public class OpenTracingFilter implements Filter {
+    private static final String SAMPLED = "1";
+    private static final String UNSAMPLED = "0";
 
     @Override
     public Response filter(Caller<?> caller, Request request) {
@@ -73,13 +83,19 @@ public class OpenTracingFilter implements Filter {
      * @return
      */
     protected Response processRefererTrace(Tracer tracer, Caller<?> caller, Request request) {
+        Span activeSpan = OpenTracingContext.getActiveSpan();
+        if (activeSpan == null && !isRefererSampled()) {
+            // 不采样时不创建span，只向下游传递决策
+            request.setAttachment(OpenTracingContext.SAMPLED_KEY, UNSAMPLED);
+            return caller.call(request);
+        }
         String operationName = buildOperationName(request);
         SpanBuilder spanBuilder = tracer.buildSpan(operationName);
-        Span activeSpan = OpenTracingContext.getActiveSpan();
         if (activeSpan != null) {
             spanBuilder.asChildOf(activeSpan);
         }
-        Span span = spanBuilder.start();
+        Span span = spanBuilder.withStartTimestamp(OpenTracingContext.currentMicros()).start();
+        request.setAttachment(OpenTracingContext.SAMPLED_KEY, SAMPLED);
         span.setTag("requestId", request.getRequestId());
 
         attachTraceInfo(tracer, span, request);
@@ -87,6 +103,34 @@ public class OpenTracingFilter implements Filter {
 
     }
 
+    /**
+     * client端没有父span时的采样决策：沿用当前请求从上游获得的决策，否则按采样率决定
+     */
+    protected boolean isRefererSampled() {
+        Boolean sampled = OpenTracingContext.getSampled();
+        if (sampled != null) {
+            return sampled;
+        }
+        return OpenTracingContext.sample();
+    }
+
+    /**
+     * server端的采样决策：上游传递了决策时遵循上游；没有决策但带有父span（如上游未使用该filter）时采样；都没有时按采样率决定
+     */
+    protected boolean isProviderSampled(Request request, SpanContext parent) {
+        String sampled = request.getAttachments().get(OpenTracingContext.SAMPLED_KEY);
+        if (SAMPLED.equals(sampled)) {
+            return true;
+        }
+        if (UNSAMPLED.equals(sampled)) {
+            return false;
+        }
+        if (parent != null) {
+            return true;
+        }
+        return OpenTracingContext.sample();
+    }
+
     protected Response process(Caller<?> caller, Request request, Span span) {
         Exception ex = null;
         boolean exception = true;
@@ -108,13 +152,23 @@ public class OpenTracingFilter implements Filter {
                 } else {
                     span.log("request success.");
                 }
-                span.finish();
+                finish(span);
             } catch (Exception e) {
                 LoggerUtil.error("opentracing span finish error!", e);
             }
         }
     }
 
+    protected void finish(Span span) {
+        AsyncSpanReporter reporter = OpenTracingContext.spanReporter;
+        long finishMicros = OpenTracingContext.currentMicros();
+        if (reporter == null) {
+            span.finish(finishMicros);
+        } else {
+            reporter.report(span, finishMicros);
+        }
+    }
+
     protected String buildOperationName(Request request) {
         return "Motan_" + MotanFrameworkUtil.getGroupMethodString(request);
     }
@@ -142,24 +196,34 @@ public class OpenTracingFilter implements Filter {
      * @return
      */
     protected Response processProviderTrace(Tracer tracer, Caller<?> caller, Request request) {
-        Span span = extractTraceInfo(request, tracer);
+        String extractError = null;
+        SpanContext parent = null;
+        try {
+            parent = tracer.extract(Format.Builtin.TEXT_MAP, new TextMapExtractAdapter(request.getAttachments()));
+        } catch (Exception e) {
+            extractError = String.valueOf(e.getMessage());
+        }
+        boolean sampled = isProviderSampled(request, parent);
+        OpenTracingContext.setSampled(sampled);
+        if (!sampled) {
+            return caller.call(request);
+        }
+        Span span = extractTraceInfo(request, tracer, parent, extractError);
         span.setTag("requestId", request.getRequestId());
         OpenTracingContext.setActiveSpan(span);
         return process(caller, request, span);
     }
 
-    protected Span extractTraceInfo(Request request, Tracer tracer) {
+    protected Span extractTraceInfo(Request request, Tracer tracer, SpanContext parent, String extractError) {
         String operationName = buildOperationName(request);
         SpanBuilder span = tracer.buildSpan(operationName);
-        try {
-            SpanContext spanContext = tracer.extract(Format.Builtin.TEXT_MAP, new TextMapExtractAdapter(request.getAttachments()));
-            if (spanContext != null) {
-                span.asChildOf(spanContext);
-            }
-        } catch (Exception e) {
-            span.withTag("Error", "extract from request fail, error msg:" + e.getMessage());
+        if (parent != null) {
+            span.asChildOf(parent);
+        }
+        if (extractError != null) {
+            span.withTag("Error", "extract from request fail, error msg:" + extractError);
         }
-        return span.start();
+        return span.withStartTimestamp(OpenTracingContext.currentMicros()).start();
     }
 
 }
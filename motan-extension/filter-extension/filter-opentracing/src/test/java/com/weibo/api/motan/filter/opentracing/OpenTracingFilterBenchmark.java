@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2016 Weibo, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.weibo.api.motan.filter.opentracing;
+
+import io.opentracing.NoopTracerFactory;
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockTracer;
+
+import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.rpc.AbstractReferer;
+import com.weibo.api.motan.rpc.DefaultRequest;
+import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Referer;
+import com.weibo.api.motan.rpc.Request;
+import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.URL;
+
+/**
+ * 
+ * @Description 比较不同采样率（0%、1%、100%）下OpenTracingFilter在client端的开销，分别使用NoopTracer和内存中的MockTracer。
+ *              直接运行main方法，输出每次调用的平均耗时（ns）。
+ *
+ */
+public class OpenTracingFilterBenchmark {
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+    private static final double[] SAMPLE_RATES = {0, 0.01, 1.0};
+
+    public static void main(String[] args) {
+        final DefaultResponse response = new DefaultResponse();
+        Referer<HelloService> refer = new AbstractReferer<HelloService>(HelloService.class, new URL("motan", "localhost", 8002,
+                "HelloService")) {
+            @Override
+            public void destroy() {}
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            protected Response doCall(Request request) {
+                return response;
+            }
+
+            @Override
+            protected boolean doInit() {
+                return true;
+            }
+        };
+        refer.init();
+        OpenTracingFilter filter = new OpenTracingFilter();
+
+        System.out.println(String.format("%-16s %-12s %12s", "tracer", "sampleRate", "ns/op"));
+        System.out.println(String.format("%-16s %-12s %12.1f", "none", "-", run(null, refer, WARMUP, ITERATIONS)));
+        try {
+            for (Tracer tracer : new Tracer[] {NoopTracerFactory.create(), new MockTracer()}) {
+                setTracer(tracer);
+                for (double rate : SAMPLE_RATES) {
+                    OpenTracingContext.setSampleRate(rate);
+                    double nanos = run(filter, refer, WARMUP, ITERATIONS);
+                    System.out.println(String.format("%-16s %-12s %12.1f", tracer.getClass().getSimpleName(), rate, nanos));
+                }
+            }
+        } finally {
+            OpenTracingContext.tracerFactory = TracerFactory.DEFAULT;
+            OpenTracingContext.setSampleRate(1.0);
+        }
+    }
+
+    private static void setTracer(final Tracer tracer) {
+        OpenTracingContext.tracerFactory = new TracerFactory() {
+            @Override
+            public Tracer getTracer() {
+                return tracer;
+            }
+        };
+    }
+
+    private static double run(OpenTracingFilter filter, Referer<HelloService> refer, int warmup, int iterations) {
+        call(filter, refer, warmup);
+        long start = System.nanoTime();
+        call(filter, refer, iterations);
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static void call(OpenTracingFilter filter, Referer<HelloService> refer, int count) {
+        for (int i = 0; i < count; i++) {
+            DefaultRequest request = new DefaultRequest();
+            request.setRequestId(i);
+            request.setInterfaceName("HelloService");
+            request.setAttachment(URLParamType.group.name(), "test");
+            request.setMethodName("sayHello");
+            request.setParamtersDesc("java.lang.String");
+            if (filter == null) {
+                refer.call(request);
+            } else {
+                filter.filter(refer, request);
+            }
+            // MockTracer在内存中保存所有finish的span，定期清理避免内存持续增长
+            if ((i & 0xFFFF) == 0) {
+                Tracer tracer = OpenTracingContext.getTracer();
+                if (tracer instanceof MockTracer) {
+                    ((MockTracer) tracer).reset();
+                }
+            }
+            RpcContext.destroy();
+        }
+    }
+}
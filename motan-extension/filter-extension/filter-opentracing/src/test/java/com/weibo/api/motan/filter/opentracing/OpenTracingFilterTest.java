@@ -14,12 +14,15 @@
 package com.weibo.api.motan.filter.opentracing;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import io.opentracing.Tracer;
 //import io.opentracing.impl.BraveTracer;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 
+import java.util.Map;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,6 +37,7 @@ import com.weibo.api.motan.rpc.Provider;
 import com.weibo.api.motan.rpc.Referer;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.RpcContext;
 import com.weibo.api.motan.rpc.URL;
 
 /**
@@ -102,6 +106,12 @@ public class OpenTracingFilterTest {
     @After
     public void tearDown() throws Exception {
         OpenTracingContext.tracerFactory = TracerFactory.DEFAULT;
+        OpenTracingContext.setSampleRate(1.0);
+        if (OpenTracingContext.spanReporter != null) {
+            OpenTracingContext.spanReporter.close();
+            OpenTracingContext.spanReporter = null;
+        }
+        RpcContext.destroy();
     }
 
     @Test
@@ -136,6 +146,103 @@ public class OpenTracingFilterTest {
         }
     }
 
+    @Test
+    public void testUnsampled() {
+        OpenTracingContext.setSampleRate(0);
+        Response res = OTFilter.filter(refer, request);
+        assertEquals(response, res);
+        assertEquals(0, ((MockTracer) tracer).finishedSpans().size());
+        assertEquals("0", request.getAttachments().get(OpenTracingContext.SAMPLED_KEY));
+        assertNull(request.getAttachments().get("traceid"));
+
+        // server端遵循上游的决策
+        RpcContext.destroy();
+        res = OTFilter.filter(provider, request);
+        assertEquals(response, res);
+        assertEquals(0, ((MockTracer) tracer).finishedSpans().size());
+    }
+
+    @Test
+    public void testProviderFollowsUpstream() {
+        OpenTracingContext.setSampleRate(0);
+        request.setAttachment(OpenTracingContext.SAMPLED_KEY, "1");
+        Response res = OTFilter.filter(provider, request);
+        assertEquals(response, res);
+        checkMockTracer();
+
+        // 上游不采样时，本次请求中的下游调用也不采样
+        RpcContext.destroy();
+        ((MockTracer) tracer).reset();
+        OpenTracingContext.setSampleRate(1.0);
+        request.setAttachment(OpenTracingContext.SAMPLED_KEY, "0");
+        final DefaultRequest downstream = new DefaultRequest();
+        downstream.setInterfaceName("HelloService");
+        downstream.setMethodName("sayHello");
+        downstream.setParamtersDesc("java.lang.String");
+        Provider<HelloService> nestedProvider = new DefaultProvider<HelloService>(new HelloServiceImpl(), provider.getUrl(),
+                HelloService.class) {
+            @Override
+            public Response call(Request request) {
+                return OTFilter.filter(refer, downstream);
+            }
+        };
+        res = OTFilter.filter(nestedProvider, request);
+        assertEquals(response, res);
+        assertEquals(0, ((MockTracer) tracer).finishedSpans().size());
+        assertEquals("0", downstream.getAttachments().get(OpenTracingContext.SAMPLED_KEY));
+    }
+
+    @Test
+    public void testProviderFollowsParentSpan() {
+        // client端注入trace信息
+        Response res = OTFilter.filter(refer, request);
+        assertEquals(response, res);
+        RpcContext.destroy();
+        ((MockTracer) tracer).reset();
+
+        // 上游只传递了trace信息、没有采样决策时，有父span就采样
+        OpenTracingContext.setSampleRate(0);
+        DefaultRequest serverRequest = new DefaultRequest();
+        serverRequest.setInterfaceName("HelloService");
+        serverRequest.setMethodName("sayHello");
+        serverRequest.setParamtersDesc("java.lang.String");
+        for (Map.Entry<String, String> entry : request.getAttachments().entrySet()) {
+            if (!OpenTracingContext.SAMPLED_KEY.equals(entry.getKey())) {
+                serverRequest.setAttachment(entry.getKey(), entry.getValue());
+            }
+        }
+        res = OTFilter.filter(provider, serverRequest);
+        assertEquals(response, res);
+        assertEquals(1, ((MockTracer) tracer).finishedSpans().size());
+        assertTrue(((MockTracer) tracer).finishedSpans().get(0).parentId() != 0);
+
+        // 既没有决策也没有父span时按采样率决定
+        RpcContext.destroy();
+        ((MockTracer) tracer).reset();
+        serverRequest = new DefaultRequest();
+        serverRequest.setInterfaceName("HelloService");
+        serverRequest.setMethodName("sayHello");
+        serverRequest.setParamtersDesc("java.lang.String");
+        res = OTFilter.filter(provider, serverRequest);
+        assertEquals(response, res);
+        assertEquals(0, ((MockTracer) tracer).finishedSpans().size());
+    }
+
+    @Test
+    public void testAsyncReporter() throws Exception {
+        AsyncSpanReporter reporter = new AsyncSpanReporter(16);
+        OpenTracingContext.spanReporter = reporter;
+        Response res = OTFilter.filter(refer, request);
+        assertEquals(response, res);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reporter.getReportedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, reporter.getReportedCount());
+        assertEquals(0, reporter.getDroppedCount());
+        checkMockTracer();
+    }
+
     private void checkMockTracer() {
         if (tracer instanceof MockTracer) {
             MockTracer mt = (MockTracer) tracer;
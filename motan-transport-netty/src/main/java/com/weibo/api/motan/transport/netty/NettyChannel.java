@@ -20,16 +20,22 @@ import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
 
 import com.weibo.api.motan.common.ChannelState;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.Future;
 import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.transport.TransportException;
 import com.weibo.api.motan.util.ExceptionUtil;
@@ -64,10 +70,35 @@ public class NettyChannel implements com.weibo.api.motan.transport.Channel {
                throw new MotanFrameworkException("NettyClient init Error: timeout(" + timeout + ") <= 0 is forbid.",
                        MotanErrorMsgConstant.FRAMEWORK_INIT_ERROR);
            }
+		// 调用方设置了截止时间时，请求超时时间不超过剩余时间；已过期的请求在NettyClient借出连接前拒绝
+		long deadline = RpcContext.getContext().getDeadline();
+		if (deadline > 0) {
+			timeout = (int) Math.max(1, Math.min(timeout, deadline - System.currentTimeMillis()));
+		}
 		NettyResponseFuture response = new NettyResponseFuture(request, timeout, this.nettyClient);
 		this.nettyClient.registerCallback(request.getRequestId(), response);
 
-		ChannelFuture writeFuture = this.channel.write(request);
+		final StageTimes stageTimes = request instanceof DefaultRequest ? ((DefaultRequest) request).getStageTimes()
+				: null;
+		final long writeStart = stageTimes == null ? 0 : System.nanoTime();
+		// 先注册listener再发送，保证写出完成的回调早于response的处理
+		ChannelFuture writeFuture = Channels.future(this.channel);
+		if (stageTimes != null) {
+			// 在写出完成时记录耗时，此时response还不可能返回；由responseFuture安全发布给处理response的IO线程
+			final NettyResponseFuture stageFuture = response;
+			writeFuture.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception {
+					if (future.isSuccess()) {
+						// 编码在write调用中完成，写出等待时间不包括编码
+						long encodeMicros = stageTimes.get(StageTimes.Stage.CLIENT_ENCODE);
+						long writeMicros = (System.nanoTime() - writeStart) / 1000 - encodeMicros;
+						stageFuture.onWritten(encodeMicros, Math.max(writeMicros, 0));
+					}
+				}
+			});
+		}
+		this.channel.getPipeline().sendDownstream(new DownstreamMessageEvent(this.channel, writeFuture, request, null));
 
 		boolean result = writeFuture.awaitUninterruptibly(timeout, TimeUnit.MILLISECONDS);
 
@@ -78,6 +109,8 @@ public class NettyChannel implements com.weibo.api.motan.transport.Channel {
 					if (future.isSuccess() || (future.isDone() && ExceptionUtil.isBizException(future.getException()))) {
 						// 成功的调用 
 						nettyClient.resetErrorCount();
+					} else if (future.isCancelled() && ExceptionUtil.isCancelException(future.getException())) {
+						// 调用方主动取消（如hedged请求中较慢的一方），不计入错误
 					} else {
 						// 失败的调用 
 						nettyClient.incrErrorCount();
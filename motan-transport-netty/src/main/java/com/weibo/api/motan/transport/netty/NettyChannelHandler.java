@@ -16,6 +16,7 @@
 
 package com.weibo.api.motan.transport.netty;
 
+import java.util.HashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -24,19 +25,27 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
 
+import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
 import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Future;
+import com.weibo.api.motan.rpc.FutureListener;
+import com.weibo.api.motan.rpc.ResponseFuture;
 import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.transport.Channel;
 import com.weibo.api.motan.transport.MessageHandler;
 import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.NetUtils;
+import com.weibo.api.motan.util.RpcEvents;
 
 /**
  * 
@@ -48,6 +57,7 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 	private ThreadPoolExecutor threadPoolExecutor;
 	private MessageHandler messageHandler;
 	private Channel serverChannel;
+	private TransportStats transportStats;
 
 	public NettyChannelHandler(Channel serverChannel) {
 		this.serverChannel = serverChannel;
@@ -65,10 +75,19 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 		this.threadPoolExecutor = threadPoolExecutor;
 	}
 
+	public NettyChannelHandler(Channel serverChannel, MessageHandler messageHandler,
+			ThreadPoolExecutor threadPoolExecutor, TransportStats transportStats) {
+		this(serverChannel, messageHandler, threadPoolExecutor);
+		this.transportStats = transportStats;
+	}
+
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		LoggerUtil.info("NettyChannelHandler channelConnected: remote=" + ctx.getChannel().getRemoteAddress()
 				+ " local=" + ctx.getChannel().getLocalAddress() + " event=" + e.getClass().getSimpleName());
+		if (transportStats != null) {
+			TransportStats.attachConnectionStats(ctx, transportStats);
+		}
 	}
 
 	@Override
@@ -77,6 +96,18 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 				+ " local=" + ctx.getChannel().getLocalAddress() + " event=" + e.getClass().getSimpleName());
 	}
 
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		TransportStats.removeConnectionStats(ctx.getChannel());
+	}
+
+	@Override
+	public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
+		if (transportStats != null) {
+			TransportStats.getConnectionStats(ctx, transportStats).written(e.getWrittenAmount());
+		}
+	}
+
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
 		Object message = e.getMessage();
@@ -105,15 +136,19 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 		request.setAttachment(URLParamType.host.getName(), NetUtils.getHostName(ctx.getChannel().getRemoteAddress()));
 
 		final long processStartTime = System.currentTimeMillis();
+		final long receiveNanos = System.nanoTime();
 
 		// 使用线程池方式处理
 		try {
 			threadPoolExecutor.execute(new Runnable() {
 				@Override
                 public void run() {
+				    // 排队在IO线程开始、在工作线程结束，使用入队时记录的时间
+				    RpcEvents.emit(RpcEvents.Type.QUEUE_WAIT, System.nanoTime() - receiveNanos, request.getInterfaceName(),
+				            request.getMethodName(), ctx.getChannel().getRemoteAddress(), request.getRequestId(), 0);
 				    try{
 				        RpcContext.init(request);
-	                    processRequest(ctx, request, processStartTime);
+	                    processRequest(ctx, request, processStartTime, receiveNanos);
 				    }finally{
 				        RpcContext.destroy();
 				    }
@@ -126,6 +161,8 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 					MotanErrorMsgConstant.SERVICE_REJECT));
 			response.setProcessTime(System.currentTimeMillis() - processStartTime);
 			e.getChannel().write(response);
+			RpcEvents.emit(RpcEvents.Type.REJECT, request.getInterfaceName(), request.getMethodName(),
+					ctx.getChannel().getRemoteAddress(), request.getRequestId(), 0);
 
 			LoggerUtil
 					.debug("process thread pool is full, reject, active={} poolSize={} corePoolSize={} maxPoolSize={} taskCount={} requestId={}",
@@ -135,9 +172,63 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 		}
 	}
 
-	private void processRequest(ChannelHandlerContext ctx, Request request, long processStartTime) {
-		Object result = messageHandler.handle(serverChannel, request);
+	private void processRequest(final ChannelHandlerContext ctx, final Request request, final long processStartTime,
+			long receiveNanos) {
+		final long bizStartNanos = System.nanoTime();
+		if (transportStats != null) {
+			transportStats.queueWait(bizStartNanos - receiveNanos);
+		}
+		StageTimes stageTimes = getStageTimes(request);
+		if (stageTimes != null) {
+			stageTimes.set(StageTimes.Stage.SERVER_QUEUE, (bizStartNanos - receiveNanos) / 1000);
+		}
+		Object dispatchEvent = RpcEvents.begin(RpcEvents.Type.SERVER_DISPATCH);
+		Object result;
+		try {
+			result = messageHandler.handle(serverChannel, request);
+		} finally {
+			RpcEvents.commit(dispatchEvent, request.getInterfaceName(), request.getMethodName(),
+					ctx.getChannel().getRemoteAddress(), request.getRequestId(), 0);
+		}
 
+		if (result instanceof ResponseFuture) {
+			// 异步服务方法：工作线程直接返回，完成时在回调线程中写回response
+			final ResponseFuture future = (ResponseFuture) result;
+			future.addListener(new FutureListener() {
+				@Override
+				public void operationComplete(Future f) throws Exception {
+					sendResponse(ctx, request, toResponse(future), processStartTime, bizStartNanos);
+				}
+			});
+			return;
+		}
+
+		sendResponse(ctx, request, result, processStartTime, bizStartNanos);
+	}
+
+	/**
+	 * 只有server开启stageTimes且client要求回传时，decoder才会为request创建StageTimes
+	 */
+	private StageTimes getStageTimes(Request request) {
+		return request instanceof DefaultRequest ? ((DefaultRequest) request).getStageTimes() : null;
+	}
+
+	private DefaultResponse toResponse(ResponseFuture future) {
+		DefaultResponse response = new DefaultResponse();
+		if (future.getException() != null) {
+			response.setException(future.getException());
+		} else {
+			response.setValue(future.getValue());
+		}
+		if (!future.getAttachments().isEmpty()) {
+			response.setAttachments(new HashMap<String, String>(future.getAttachments()));
+		}
+		response.setRpcProtocolVersion(future.getRpcProtocolVersion());
+		return response;
+	}
+
+	private void sendResponse(ChannelHandlerContext ctx, Request request, Object result, long processStartTime,
+			long bizStartNanos) {
 		DefaultResponse response = null;
 
 		if (!(result instanceof DefaultResponse)) {
@@ -149,6 +240,20 @@ public class NettyChannelHandler extends SimpleChannelHandler {
 		response.setRequestId(request.getRequestId());
 		response.setProcessTime(System.currentTimeMillis() - processStartTime);
 
+		StageTimes stageTimes = getStageTimes(request);
+		if (stageTimes != null) {
+			// 各阶段耗时在编码response时回传给client
+			stageTimes.set(StageTimes.Stage.SERVER_BIZ, (System.nanoTime() - bizStartNanos) / 1000);
+			response.setStageTimes(stageTimes);
+		}
+
+		if (threadPoolExecutor instanceof StandardThreadExecutor
+				&& request.getAttachments().containsKey(MotanConstants.ATTACHMENT_SERVER_LOAD)) {
+			// client要求时回传server负载，client端负载均衡据此避开繁忙的server
+			response.setAttachment(MotanConstants.ATTACHMENT_SERVER_LOAD,
+					String.valueOf(((StandardThreadExecutor) threadPoolExecutor).getLoadPercent()));
+		}
+
 		if (ctx.getChannel().isConnected()) {
 			ctx.getChannel().write(response);
 		}
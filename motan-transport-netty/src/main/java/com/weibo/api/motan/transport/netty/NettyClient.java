@@ -41,17 +41,23 @@ import com.weibo.api.motan.exception.MotanAbstractException;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.AvailabilityVersion;
+import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.DefaultResponse;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
 import com.weibo.api.motan.rpc.RpcContext;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.rpc.URL;
 import com.weibo.api.motan.transport.AbstractPoolClient;
 import com.weibo.api.motan.transport.Channel;
 import com.weibo.api.motan.transport.MessageHandler;
 import com.weibo.api.motan.transport.TransportException;
 import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.MetricsCallback;
 import com.weibo.api.motan.util.MotanFrameworkUtil;
+import com.weibo.api.motan.util.OpenMetricsWriter;
+import com.weibo.api.motan.util.StageStatisticItem;
 import com.weibo.api.motan.util.StatisticCallback;
 import com.weibo.api.motan.util.StatsUtil;
 
@@ -71,7 +77,7 @@ import com.weibo.api.motan.util.StatsUtil;
  * @version 创建时间：2013-5-31
  * 
  */
-public class NettyClient extends AbstractPoolClient implements StatisticCallback {
+public class NettyClient extends AbstractPoolClient implements StatisticCallback, MetricsCallback {
     //这里采用默认的CPU数*2
 	private static final ChannelFactory channelFactory = new NioClientSocketChannelFactory(
 			Executors.newCachedThreadPool(new DefaultThreadFactory("nettyClientBoss", true)),
@@ -83,6 +89,9 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 	// 异步的request，需要注册callback future
 	// 触发remove的操作有： 1) service的返回结果处理。 2) timeout thread cancel
 	protected ConcurrentMap<Long, NettyResponseFuture> callbackMap = new ConcurrentHashMap<Long, NettyResponseFuture>();
+	// 方法名 -> 参数描述 -> 分阶段耗时统计项
+	private ConcurrentMap<String, ConcurrentMap<String, StageStatistic>> stageStatistics =
+			new ConcurrentHashMap<String, ConcurrentMap<String, StageStatistic>>();
 
 	private ScheduledFuture<?> timeMonitorFuture = null;
 
@@ -93,12 +102,24 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 	private int maxClientConnection = 0;
 
 	private ClientBootstrap bootstrap;
+	// 所有连接共用的传输层统计
+	private TransportStats transportStats;
+	// 是否要求server在response中回传负载
+	private boolean loadFeedback;
+	// 是否统计各阶段耗时并要求server回传
+	private boolean stageTimes;
+	// 可用状态变化时通知所属服务的loadbalance重建快照
+	private final AvailabilityVersion availabilityVersion;
 
 	public NettyClient(URL url) {
 		super(url);
 
+		availabilityVersion = AvailabilityVersion.of(url);
 		maxClientConnection = url.getIntParameter(URLParamType.maxClientConnection.getName(),
 				URLParamType.maxClientConnection.getIntValue());
+		loadFeedback = url.getBooleanParameter(URLParamType.loadFeedback.getName(), URLParamType.loadFeedback.getBooleanValue())
+				|| "serverLoad".equals(url.getParameter(URLParamType.loadbalance.getName()));
+		stageTimes = url.getBooleanParameter(URLParamType.stageTimes.getName(), URLParamType.stageTimes.getBooleanValue());
 
 		timeMonitorFuture = scheduledExecutor.scheduleWithFixedDelay(
 				new TimeoutMonitor("timeout_monitor_" + url.getHost() + "_" + url.getPort()),
@@ -112,12 +133,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 			throw new MotanServiceException("NettyChannel is unavaliable: url=" + url.getUri()
 					+ MotanFrameworkUtil.toString(request));
 		}
-		boolean isAsync = false;
-		Object async = RpcContext.getContext().getAttribute(MotanConstants.ASYNC_SUFFIX);
-		if(async != null && async instanceof Boolean){
-		    isAsync = (Boolean)async;
-		}
-		return request(request, isAsync);
+		return request(request, RpcContext.getContext().isAsync());
 	}
 
 	@Override
@@ -128,7 +144,12 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 			return;
 		}
 
-		LoggerUtil.info("NettyClient heartbeat request: url={}", url.getUri());
+		if (isAvailable()) {
+			// 可用节点的心跳只用于获取server负载
+			LoggerUtil.debug("NettyClient load feedback heartbeat request: url={}", url.getUri());
+		} else {
+			LoggerUtil.info("NettyClient heartbeat request: url={}", url.getUri());
+		}
 
 		try {
 			// async request后，如果service is
@@ -155,6 +176,13 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 	 * @throws TransportException
 	 */
 	private Response request(Request request, boolean async) throws TransportException {
+		// 截止时间已过时直接失败，不借出连接，避免异常路径回收正常的连接
+		long deadline = RpcContext.getContext().getDeadline();
+		if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+			throw new MotanServiceException("NettyClient request deadline exceeded: url=" + url.getUri() + " "
+					+ MotanFrameworkUtil.toString(request), MotanErrorMsgConstant.SERVICE_TIMEOUT);
+		}
+
 		Channel channel = null;
 
 		Response response = null;
@@ -169,6 +197,15 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 				return null;
 			}
 
+			if (loadFeedback) {
+				// 只有client需要时server才回传负载
+				request.setAttachment(MotanConstants.ATTACHMENT_SERVER_LOAD, "1");
+			}
+			if (stageTimes && request instanceof DefaultRequest) {
+				((DefaultRequest) request).setStageTimes(new StageTimes());
+				request.setAttachment(MotanConstants.ATTACHMENT_STAGE_TIMES, "1");
+			}
+
 			// async request
 			response = channel.request(request);
 			// return channel to pool
@@ -227,6 +264,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 
 		// 设置可用状态
 		state = ChannelState.ALIVE;
+		availabilityVersion.increment();
 		return state.isAliveState();
 	}
 
@@ -252,15 +290,17 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 		final int maxContentLength = url.getIntParameter(URLParamType.maxContentLength.getName(),
 				URLParamType.maxContentLength.getIntValue());
 
+		transportStats = new TransportStats(url.getIdentity());
 		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 			public ChannelPipeline getPipeline() {
 				ChannelPipeline pipeline = Channels.pipeline();
-				pipeline.addLast("decoder", new NettyDecoder(codec, NettyClient.this, maxContentLength));
-				pipeline.addLast("encoder", new NettyEncoder(codec, NettyClient.this));
+				pipeline.addLast("decoder", new NettyDecoder(codec, NettyClient.this, maxContentLength, transportStats));
+				pipeline.addLast("encoder", new NettyEncoder(codec, NettyClient.this, transportStats));
 				pipeline.addLast("handler", new NettyChannelHandler(NettyClient.this, new MessageHandler() {
 					@Override
 					public Object handle(Channel channel, Object message) {
 						Response response = (Response) message;
+						NettyClient.this.onResponse(response);
 
 						NettyResponseFuture responseFuture = NettyClient.this.removeCallback(response.getRequestId());
 
@@ -276,10 +316,11 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 						} else {
 							responseFuture.onSuccess(response);
 						}
+						stageStatistic(responseFuture);
 
 						return null;
 					}
-				}));
+				}, null, transportStats));
 				return pipeline;
 			}
 		});
@@ -317,6 +358,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 
 			// 设置close状态
 			state = ChannelState.CLOSE;
+			availabilityVersion.increment();
 			// 解除统计回调的注册
 			StatsUtil.unRegistryStatisticCallback(this);
 			LoggerUtil.info("NettyClient close Success: url={}", url.getUri());
@@ -369,6 +411,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 					LoggerUtil.error("NettyClient unavailable Error: url=" + url.getIdentity() + " "
 							+ url.getServerPortStr());
 					state = ChannelState.UNALIVE;
+					availabilityVersion.increment();
 				}
 			}
 		}
@@ -401,6 +444,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 				// 过程中有其他并发更新errorCount的，因此这里需要进行一次判断
 				if (count < maxClientConnection) {
 					state = ChannelState.ALIVE;
+					availabilityVersion.increment();
 					LoggerUtil.info("NettyClient recover available: url=" + url.getIdentity() + " "
 							+ url.getServerPortStr());
 				}
@@ -441,8 +485,49 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 			return null;
 		}
 
-		return String.format("identity: %s available: %s concurrent_count: %s", url.getIdentity(), isAvailable(),
-				callbackMap.size());
+		return String.format("identity: %s available: %s concurrent_count: %s %s", url.getIdentity(), isAvailable(),
+				callbackMap.size(), transportStats.statisticString());
+	}
+
+	@Override
+	public void collectMetrics(OpenMetricsWriter writer) {
+		String identity = url.getIdentity();
+		writer.gauge("motan_client_callbacks", "Pending response callbacks of the netty client.")
+				.sample(callbackMap.size(), "identity", identity);
+		writer.gauge("motan_client_available", "Whether the netty client is available.")
+				.sample(isAvailable() ? 1 : 0, "identity", identity);
+		transportStats.collectMetrics(writer, identity, "client");
+	}
+
+	private void stageStatistic(NettyResponseFuture responseFuture) {
+		StageTimes stageTimes = responseFuture.getStageTimes();
+		if (stageTimes == null) {
+			return;
+		}
+		try {
+			getStageStatistic((Request) responseFuture.getRequestObj()).item.statistic(System.currentTimeMillis(), stageTimes);
+		} catch (Exception e) {
+			LoggerUtil.warn("NettyClient stageStatistic Error: " + e.getMessage());
+		}
+	}
+
+	private StageStatistic getStageStatistic(Request request) {
+		ConcurrentMap<String, StageStatistic> statistics = stageStatistics.get(request.getMethodName());
+		if (statistics == null) {
+			statistics = new ConcurrentHashMap<String, StageStatistic>();
+			ConcurrentMap<String, StageStatistic> old = stageStatistics.putIfAbsent(request.getMethodName(), statistics);
+			if (old != null) {
+				statistics = old;
+			}
+		}
+		String paramDesc = request.getParamtersDesc() == null ? "" : request.getParamtersDesc();
+		String group = MotanFrameworkUtil.getGroupFromRequest(request);
+		StageStatistic statistic = statistics.get(paramDesc);
+		if (statistic == null || !statistic.matches(request.getInterfaceName(), group)) {
+			statistic = new StageStatistic(request, group);
+			statistics.put(paramDesc, statistic);
+		}
+		return statistic;
 	}
 
 	/**
@@ -459,6 +544,34 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 		return bootstrap;
 	}
 
+	public TransportStats getTransportStats() {
+		return transportStats;
+	}
+
+	/**
+	 * 预先解析的分阶段耗时统计项，与AccessStatisticFilter使用相同的统计名
+	 */
+	private class StageStatistic {
+		private final String interfaceName;
+		private final String group;
+		private final StageStatisticItem item;
+
+		StageStatistic(Request request, String group) {
+			this.interfaceName = request.getInterfaceName();
+			this.group = group;
+			this.item = StatsUtil.getStageStatisticItem(url.getProtocol() + MotanConstants.PROTOCOL_SEPARATOR
+					+ MotanFrameworkUtil.getGroupMethodString(request));
+		}
+
+		boolean matches(String interfaceName, String group) {
+			return equals(this.interfaceName, interfaceName) && equals(this.group, group);
+		}
+
+		private boolean equals(String s1, String s2) {
+			return s1 == null ? s2 == null : s1.equals(s2);
+		}
+	}
+
 	/**
 	 * 回收超时任务
 	 * 
@@ -483,7 +596,7 @@ public class NettyClient extends AbstractPoolClient implements StatisticCallback
 					if (future.getCreateTime() + future.getTimeout() < currentTime) {
 						// timeout: remove from callback list, and then cancel
 						removeCallback(entry.getKey());
-						future.cancel();
+						future.timeoutSoCancel();
 					} 
 				} catch (Exception e) {
 					LoggerUtil.error(
@@ -27,11 +27,16 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import com.weibo.api.motan.codec.Codec;
 import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.common.URLParamType;
 import com.weibo.api.motan.exception.MotanFrameworkException;
 import com.weibo.api.motan.exception.MotanServiceException;
+import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.DefaultResponse;
+import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.RpcEvents;
 
 /**
  * netty client decode
@@ -45,11 +50,22 @@ public class NettyDecoder extends FrameDecoder {
 	private Codec codec;
 	private com.weibo.api.motan.transport.Channel client;
 	private int maxContentLength = 0;
+	private TransportStats transportStats;
+	private boolean stageTimes;
 
 	public NettyDecoder(Codec codec, com.weibo.api.motan.transport.Channel client, int maxContentLength) {
+		this(codec, client, maxContentLength, null);
+	}
+
+	public NettyDecoder(Codec codec, com.weibo.api.motan.transport.Channel client, int maxContentLength,
+			TransportStats transportStats) {
 		this.codec = codec;
 		this.client = client;
 		this.maxContentLength = maxContentLength;
+		this.transportStats = transportStats;
+		this.stageTimes = client != null && client.getUrl() != null
+				&& client.getUrl().getBooleanParameter(URLParamType.stageTimes.getName(),
+						URLParamType.stageTimes.getBooleanValue());
 	}
 
 	@Override
@@ -100,9 +116,21 @@ public class NettyDecoder extends FrameDecoder {
 
 		buffer.readBytes(data);
 
+		String remoteIp = getRemoteIp(channel);
+		long decodeStart = System.nanoTime();
+		Object decodeEvent = RpcEvents.begin(RpcEvents.Type.DECODE);
 		try {
-		    String remoteIp = getRemoteIp(channel);
-			return codec.decode(client, remoteIp, data);
+			Object message = codec.decode(client, remoteIp, data);
+			if (stageTimes) {
+				recordDecodeTime(message, (System.nanoTime() - decodeStart) / 1000);
+			}
+			if (decodeEvent != null) {
+				Request request = message instanceof Request ? (Request) message : null;
+				RpcEvents.commit(decodeEvent, request == null ? null : request.getInterfaceName(),
+						request == null ? null : request.getMethodName(), channel.getRemoteAddress(), requestId,
+						MotanConstants.NETTY_HEADER + dataLength);
+			}
+			return message;
 		} catch (Exception e) {
 			if (messageType == MotanConstants.FLAG_REQUEST) {
 				Response resonse = buildExceptionResponse(requestId, e);
@@ -113,6 +141,29 @@ public class NettyDecoder extends FrameDecoder {
 				
 				return resonse;
 			}
+		} finally {
+			if (transportStats != null) {
+				TransportStats.getConnectionStats(ctx, transportStats).frameIn(MotanConstants.NETTY_HEADER + dataLength,
+						System.nanoTime() - decodeStart);
+			}
+		}
+	}
+
+	private void recordDecodeTime(Object message, long decodeMicros) {
+		if (message instanceof DefaultRequest) {
+			// client要求回传时才统计server端各阶段耗时
+			DefaultRequest request = (DefaultRequest) message;
+			if (request.getAttachments().containsKey(MotanConstants.ATTACHMENT_STAGE_TIMES)) {
+				StageTimes requestStages = new StageTimes();
+				requestStages.set(StageTimes.Stage.SERVER_DECODE, decodeMicros);
+				request.setStageTimes(requestStages);
+			}
+		} else if (message instanceof DefaultResponse) {
+			DefaultResponse response = (DefaultResponse) message;
+			if (response.getStageTimes() == null) {
+				response.setStageTimes(new StageTimes());
+			}
+			response.getStageTimes().set(StageTimes.Stage.CLIENT_DECODE, decodeMicros);
 		}
 	}
 
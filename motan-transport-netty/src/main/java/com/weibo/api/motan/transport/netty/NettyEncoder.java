@@ -23,11 +23,14 @@ import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 
 import com.weibo.api.motan.codec.Codec;
 import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.rpc.DefaultRequest;
 import com.weibo.api.motan.rpc.DefaultResponse;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.util.ByteUtil;
 import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.RpcEvents;
 
 /**
  * @author maijunsheng
@@ -37,10 +40,16 @@ import com.weibo.api.motan.util.LoggerUtil;
 public class NettyEncoder extends OneToOneEncoder {
 	private Codec codec;
 	private com.weibo.api.motan.transport.Channel client;
+	private TransportStats transportStats;
 
 	public NettyEncoder(Codec codec, com.weibo.api.motan.transport.Channel client) {
+		this(codec, client, null);
+	}
+
+	public NettyEncoder(Codec codec, com.weibo.api.motan.transport.Channel client, TransportStats transportStats) {
 		this.codec = codec;
 		this.client = client;
+		this.transportStats = transportStats;
 	}
 
 	@Override
@@ -48,6 +57,8 @@ public class NettyEncoder extends OneToOneEncoder {
 		
 		long requestId = getRequestId(message);
 		byte[] data = null;
+		long encodeStart = System.nanoTime();
+		Object encodeEvent = RpcEvents.begin(RpcEvents.Type.ENCODE);
 		
 		if (message instanceof Response) {
 			try {
@@ -57,6 +68,11 @@ public class NettyEncoder extends OneToOneEncoder {
 				Response response = buildExceptionResponse(requestId, e);
 				data = codec.encode(client, response);
 			}
+		} else if (message instanceof DefaultRequest && ((DefaultRequest) message).getStageTimes() != null) {
+			// client开启stageTimes时由NettyClient创建
+			data = codec.encode(client, message);
+			((DefaultRequest) message).getStageTimes().set(StageTimes.Stage.CLIENT_ENCODE,
+					(System.nanoTime() - encodeStart) / 1000);
 		} else {
 			data = codec.encode(client, message);
 		}
@@ -67,6 +83,17 @@ public class NettyEncoder extends OneToOneEncoder {
 		ByteUtil.long2bytes(getRequestId(message), transportHeader, 4);
 		ByteUtil.int2bytes(data.length, transportHeader, 12);
 
+		if (encodeEvent != null) {
+			Request request = message instanceof Request ? (Request) message : null;
+			RpcEvents.commit(encodeEvent, request == null ? null : request.getInterfaceName(),
+					request == null ? null : request.getMethodName(), nettyChannel.getRemoteAddress(), requestId,
+					transportHeader.length + data.length);
+		}
+		if (transportStats != null) {
+			TransportStats.getConnectionStats(ctx, transportStats).frameOut(
+					MotanConstants.NETTY_HEADER + data.length, System.nanoTime() - encodeStart);
+		}
+
 		return ChannelBuffers.wrappedBuffer(transportHeader, data);
 	}
 
@@ -25,13 +25,16 @@ import com.weibo.api.motan.common.FutureState;
 import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.protocol.rpc.RpcProtocolVersion;
+import com.weibo.api.motan.rpc.DefaultResponse;
 import com.weibo.api.motan.rpc.FutureListener;
 import com.weibo.api.motan.rpc.Request;
 import com.weibo.api.motan.rpc.Response;
 import com.weibo.api.motan.rpc.ResponseFuture;
+import com.weibo.api.motan.rpc.StageTimes;
 import com.weibo.api.motan.transport.Channel;
 import com.weibo.api.motan.util.LoggerUtil;
 import com.weibo.api.motan.util.MotanFrameworkUtil;
+import com.weibo.api.motan.util.RpcEvents;
 
 /**
  * netty response
@@ -66,10 +69,16 @@ public class NettyResponseFuture implements ResponseFuture {
 	private Exception exception = null;
 
 	private long createTime = System.currentTimeMillis();
+	private long createNanos = System.nanoTime();
 	private int timeout = 0;
 	private long processTime = 0;
 
 	private Request request;
+	private StageTimes stageTimes;
+	// client编码、写出耗时，由写出完成的回调线程设置，written为true后可见
+	private long encodeMicros;
+	private long writeMicros;
+	private volatile boolean written = false;
 	private List<FutureListener> listeners;
 	private Channel channel;
 
@@ -82,6 +91,7 @@ public class NettyResponseFuture implements ResponseFuture {
 	public void onSuccess(Response response) {
 		this.result = response.getValue();
 		this.processTime = response.getProcessTime();
+		initStageTimes(response);
 
 		done();
 	}
@@ -89,10 +99,39 @@ public class NettyResponseFuture implements ResponseFuture {
 	public void onFailure(Response response) {
 		this.exception = response.getException();
 		this.processTime = response.getProcessTime();
+		initStageTimes(response);
 
 		done();
 	}
 
+	/**
+	 * 请求写出完成时记录client端编码与写出耗时
+	 */
+	public void onWritten(long encodeMicros, long writeMicros) {
+		this.encodeMicros = encodeMicros;
+		this.writeMicros = writeMicros;
+		this.written = true;
+	}
+
+	/**
+	 * 合并client端与server回传的阶段耗时
+	 */
+	private void initStageTimes(Response response) {
+		if (!(response instanceof DefaultResponse)) {
+			return;
+		}
+		StageTimes responseStages = ((DefaultResponse) response).getStageTimes();
+		if (responseStages == null) {
+			return;
+		}
+		if (written) {
+			responseStages.set(StageTimes.Stage.CLIENT_ENCODE, encodeMicros);
+			responseStages.set(StageTimes.Stage.CLIENT_WRITE, writeMicros);
+		}
+		responseStages.computeNetwork((System.nanoTime() - createNanos) / 1000);
+		this.stageTimes = responseStages;
+	}
+
 	@Override
 	public Object getValue() {
 		synchronized (lock) {
@@ -150,7 +189,7 @@ public class NettyResponseFuture implements ResponseFuture {
 	public boolean cancel() {
 		Exception e = new MotanServiceException("NettyResponseFuture task cancel: serverPort="
 				+ channel.getUrl().getServerPortStr() + " " + MotanFrameworkUtil.toString(request) + " cost="
-				+ (System.currentTimeMillis() - createTime));
+				+ (System.currentTimeMillis() - createTime), MotanErrorMsgConstant.SERVICE_TASK_CANCEL);
 		return cancel(e);
 	}
 	
@@ -218,11 +257,18 @@ public class NettyResponseFuture implements ResponseFuture {
 		return request;
 	}
 
+	/**
+	 * 收到响应后的各阶段耗时，超时、取消或没有阶段信息时为null
+	 */
+	public StageTimes getStageTimes() {
+		return stageTimes;
+	}
+
 	public FutureState getState() {
 		return state;
 	}
 
-	private void timeoutSoCancel() {
+	void timeoutSoCancel() {
 		this.processTime = System.currentTimeMillis() - createTime;
 
 		synchronized (lock) {
@@ -237,6 +283,8 @@ public class NettyResponseFuture implements ResponseFuture {
 			
 			lock.notifyAll();
 		}
+		RpcEvents.emit(RpcEvents.Type.TIMEOUT, request.getInterfaceName(), request.getMethodName(),
+				channel.getRemoteAddress(), request.getRequestId(), 0);
 
 		notifyListeners();
 	}
@@ -38,6 +38,8 @@ import com.weibo.api.motan.transport.AbstractServer;
 import com.weibo.api.motan.transport.MessageHandler;
 import com.weibo.api.motan.transport.TransportException;
 import com.weibo.api.motan.util.LoggerUtil;
+import com.weibo.api.motan.util.MetricsCallback;
+import com.weibo.api.motan.util.OpenMetricsWriter;
 import com.weibo.api.motan.util.StatisticCallback;
 import com.weibo.api.motan.util.StatsUtil;
 
@@ -59,7 +61,7 @@ import com.weibo.api.motan.util.StatsUtil;
  * @author maijunsheng
  * 
  */
-public class NettyServer extends AbstractServer implements StatisticCallback {
+public class NettyServer extends AbstractServer implements StatisticCallback, MetricsCallback {
 	// default io thread is Runtime.getRuntime().availableProcessors() * 2
 	private final static ChannelFactory channelFactory = new NioServerSocketChannelFactory(
 			Executors.newCachedThreadPool(new DefaultThreadFactory("nettyServerBoss", true)),
@@ -72,6 +74,7 @@ public class NettyServer extends AbstractServer implements StatisticCallback {
 	private org.jboss.netty.channel.Channel serverChannel;
 	private ServerBootstrap bootstrap;
 	private MessageHandler messageHandler;
+	private TransportStats transportStats;
 
 	public NettyServer(URL url, MessageHandler messageHandler) {
 		super(url);
@@ -140,16 +143,18 @@ public class NettyServer extends AbstractServer implements StatisticCallback {
 		bootstrap.setOption("child.tcpNoDelay", true);
 		bootstrap.setOption("child.keepAlive", true);
 
+		transportStats = transportStats != null ? transportStats : new TransportStats(url.getIdentity());
 		final NettyChannelHandler handler = new NettyChannelHandler(NettyServer.this, messageHandler,
-				standardThreadExecutor);
+				standardThreadExecutor, transportStats);
 
 		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 			// FrameDecoder非线程安全，每个连接一个 Pipeline
 			public ChannelPipeline getPipeline() {
 				ChannelPipeline pipeline = Channels.pipeline();
 				pipeline.addLast("channel_manage", channelManage);
-				pipeline.addLast("decoder", new NettyDecoder(codec, NettyServer.this, maxContentLength));
-				pipeline.addLast("encoder", new NettyEncoder(codec, NettyServer.this));
+				pipeline.addLast("decoder", new NettyDecoder(codec, NettyServer.this, maxContentLength,
+						transportStats));
+				pipeline.addLast("encoder", new NettyEncoder(codec, NettyServer.this, transportStats));
 				pipeline.addLast("handler", handler);
 				return pipeline;
 			}
@@ -212,10 +217,28 @@ public class NettyServer extends AbstractServer implements StatisticCallback {
 	@Override
 	public String statisticCallback() {
 		return String.format(
-				"identity: %s connectionCount: %s taskCount: %s queueCount: %s maxThreadCount: %s maxTaskCount: %s",
+				"identity: %s connectionCount: %s taskCount: %s queueCount: %s maxThreadCount: %s maxTaskCount: %s %s",
 				url.getIdentity(), channelManage.getChannels().size(), standardThreadExecutor.getSubmittedTasksCount(),
 				standardThreadExecutor.getQueue().size(), standardThreadExecutor.getMaximumPoolSize(),
-				standardThreadExecutor.getMaxSubmittedTaskCount());
+				standardThreadExecutor.getMaxSubmittedTaskCount(), transportStats.statisticString());
+	}
+
+	@Override
+	public void collectMetrics(OpenMetricsWriter writer) {
+		String identity = url.getIdentity();
+		writer.gauge("motan_server_connections", "Connections of the netty server.")
+				.sample(channelManage.getChannels().size(), "identity", identity);
+		writer.gauge("motan_server_submitted_tasks", "Submitted tasks of the server executor.")
+				.sample(standardThreadExecutor.getSubmittedTasksCount(), "identity", identity);
+		writer.gauge("motan_server_queue_size", "Queued tasks of the server executor.")
+				.sample(standardThreadExecutor.getQueue().size(), "identity", identity);
+		writer.gauge("motan_server_active_threads", "Active threads of the server executor.")
+				.sample(standardThreadExecutor.getActiveCount(), "identity", identity);
+		writer.gauge("motan_server_max_threads", "Max threads of the server executor.")
+				.sample(standardThreadExecutor.getMaximumPoolSize(), "identity", identity);
+		writer.gauge("motan_server_max_tasks", "Max submitted tasks of the server executor.")
+				.sample(standardThreadExecutor.getMaxSubmittedTaskCount(), "identity", identity);
+		transportStats.collectMetrics(writer, identity, "server");
 	}
 
 	/**
@@ -233,4 +256,8 @@ public class NettyServer extends AbstractServer implements StatisticCallback {
 	public void setMessageHandler(MessageHandler messageHandler) {
 		this.messageHandler = messageHandler;
 	}
+
+	public TransportStats getTransportStats() {
+		return transportStats;
+	}
 }
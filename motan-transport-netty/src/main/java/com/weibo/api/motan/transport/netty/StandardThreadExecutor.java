@@ -126,6 +126,13 @@ public class StandardThreadExecutor extends ThreadPoolExecutor {
 		return maxSubmittedTaskCount;
 	}
 
+	/**
+	 * 正在处理的任务数占最大允许任务数的百分比
+	 */
+	public int getLoadPercent() {
+		return (int) Math.min(100, submittedTasksCount.get() * 100L / maxSubmittedTaskCount);
+	}
+
 	protected void afterExecute(Runnable r, Throwable t) {
 		submittedTasksCount.decrementAndGet();
 	}
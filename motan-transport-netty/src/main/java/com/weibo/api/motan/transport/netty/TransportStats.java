@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2009-2016 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.api.motan.transport.netty;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+
+import com.weibo.api.motan.common.MotanConstants;
+import com.weibo.api.motan.util.ConcurrentHashSet;
+import com.weibo.api.motan.util.LatencyRecorder;
+import com.weibo.api.motan.util.LatencyRecorder.IntervalHistogram;
+import com.weibo.api.motan.util.OpenMetricsWriter;
+
+/**
+ * 传输层统计：收发字节数、帧数、编解码耗时、业务线程池排队耗时、写缓冲积压。
+ *
+ * <pre>
+ * 		1) 每个NettyServer/NettyClient一个endpoint级统计，每个连接一个连接级统计，连接的更新同时累加到所属endpoint；
+ * 		2) 连接级统计按channel保存在ChannelLocal中，连接建立时缓存到decoder、encoder、handler的context attachment，
+ * 		   每帧不再查找ChannelLocal；连接关闭时从endpoint移除，未写出的积压同时从endpoint扣除；
+ * 		3) 计数器均为AtomicLong，io线程上只有几次原子加；帧大小分布只在endpoint级记录，直方图使用1位有效数字；
+ * 		4) 写缓冲积压 = 已编码字节数 - 已写入socket的字节数；
+ * 		5) 连接数不受限，指标只导出连接数与单连接最大积压，不按连接导出，避免指标基数随连接增长。
+ * </pre>
+ */
+public class TransportStats {
+	private static final int SIGNIFICANT_DIGITS = 1;
+	// 帧大小分布的上界（字节）
+	private static final long[] FRAME_SIZE_BUCKETS = new long[] {128, 512, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304,
+			16777216};
+
+	// decoder、encoder、handler在同一连接上共享连接级统计
+	private static final ChannelLocal<TransportStats> CONNECTION_STATS = new ChannelLocal<TransportStats>();
+
+	private final String name;
+	private final TransportStats endpoint;
+
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong framesIn = new AtomicLong();
+	private final AtomicLong framesOut = new AtomicLong();
+	private final AtomicLong decodeNanos = new AtomicLong();
+	private final AtomicLong encodeNanos = new AtomicLong();
+	private final AtomicLong queueWaits = new AtomicLong();
+	private final AtomicLong queueWaitNanos = new AtomicLong();
+	private final AtomicLong writeBacklog = new AtomicLong();
+
+	// 以下只在endpoint级使用
+	private final LatencyRecorder frameInSizes;
+	private final LatencyRecorder frameOutSizes;
+	private final Set<TransportStats> connections;
+
+	/**
+	 * endpoint级统计
+	 */
+	public TransportStats(String name) {
+		this.name = name;
+		this.endpoint = null;
+		this.frameInSizes = new LatencyRecorder(MotanConstants.STATISTIC_PEROID * 1000L, SIGNIFICANT_DIGITS, FRAME_SIZE_BUCKETS);
+		this.frameOutSizes = new LatencyRecorder(MotanConstants.STATISTIC_PEROID * 1000L, SIGNIFICANT_DIGITS, FRAME_SIZE_BUCKETS);
+		this.connections = new ConcurrentHashSet<TransportStats>();
+	}
+
+	private TransportStats(String name, TransportStats endpoint) {
+		this.name = name;
+		this.endpoint = endpoint;
+		this.frameInSizes = null;
+		this.frameOutSizes = null;
+		this.connections = null;
+	}
+
+	/**
+	 * 获取连接级统计，首次获取时创建
+	 */
+	public static TransportStats getConnectionStats(Channel channel, TransportStats endpoint) {
+		TransportStats stats = CONNECTION_STATS.get(channel);
+		if (stats != null) {
+			return stats;
+		}
+		stats = new TransportStats(channel.getLocalAddress() + "-" + channel.getRemoteAddress(), endpoint);
+		TransportStats old = CONNECTION_STATS.setIfAbsent(channel, stats);
+		if (old != null) {
+			return old;
+		}
+		endpoint.connections.add(stats);
+		return stats;
+	}
+
+	/**
+	 * 获取连接级统计并缓存到handler的context attachment，之后同一连接上直接从attachment获取
+	 */
+	public static TransportStats getConnectionStats(ChannelHandlerContext ctx, TransportStats endpoint) {
+		Object attachment = ctx.getAttachment();
+		if (attachment instanceof TransportStats) {
+			return (TransportStats) attachment;
+		}
+		TransportStats stats = getConnectionStats(ctx.getChannel(), endpoint);
+		ctx.setAttachment(stats);
+		return stats;
+	}
+
+	/**
+	 * 连接建立时由handler调用，同时为同一pipeline中的decoder、encoder缓存连接级统计
+	 */
+	public static void attachConnectionStats(ChannelHandlerContext ctx, TransportStats endpoint) {
+		TransportStats stats = getConnectionStats(ctx, endpoint);
+		attach(ctx.getPipeline().getContext(NettyDecoder.class), stats);
+		attach(ctx.getPipeline().getContext(NettyEncoder.class), stats);
+	}
+
+	private static void attach(ChannelHandlerContext ctx, TransportStats stats) {
+		if (ctx != null) {
+			ctx.setAttachment(stats);
+		}
+	}
+
+	/**
+	 * 连接关闭时调用，没有连接级统计时什么也不做
+	 */
+	public static void removeConnectionStats(Channel channel) {
+		TransportStats stats = CONNECTION_STATS.remove(channel);
+		if (stats != null && stats.endpoint.connections.remove(stats)) {
+			// 连接关闭后不会再写出，积压不再计入endpoint
+			stats.endpoint.writeBacklog.addAndGet(-stats.writeBacklog.get());
+		}
+	}
+
+	public void frameIn(int bytes, long decodeNanos) {
+		framesIn.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+		this.decodeNanos.addAndGet(decodeNanos);
+		if (frameInSizes != null) {
+			frameInSizes.record(System.currentTimeMillis(), bytes);
+		}
+		if (endpoint != null) {
+			endpoint.frameIn(bytes, decodeNanos);
+		}
+	}
+
+	public void frameOut(int bytes, long encodeNanos) {
+		framesOut.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+		this.encodeNanos.addAndGet(encodeNanos);
+		writeBacklog.addAndGet(bytes);
+		if (frameOutSizes != null) {
+			frameOutSizes.record(System.currentTimeMillis(), bytes);
+		}
+		if (endpoint != null) {
+			endpoint.frameOut(bytes, encodeNanos);
+		}
+	}
+
+	public void written(long bytes) {
+		writeBacklog.addAndGet(-bytes);
+		if (endpoint != null) {
+			endpoint.written(bytes);
+		}
+	}
+
+	/**
+	 * 请求在业务线程池中的排队耗时，只在endpoint级统计
+	 */
+	public void queueWait(long nanos) {
+		queueWaits.incrementAndGet();
+		queueWaitNanos.addAndGet(nanos);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getFramesIn() {
+		return framesIn.get();
+	}
+
+	public long getFramesOut() {
+		return framesOut.get();
+	}
+
+	public long getDecodeNanos() {
+		return decodeNanos.get();
+	}
+
+	public long getEncodeNanos() {
+		return encodeNanos.get();
+	}
+
+	public long getQueueWaits() {
+		return queueWaits.get();
+	}
+
+	public long getQueueWaitNanos() {
+		return queueWaitNanos.get();
+	}
+
+	public long getWriteBacklog() {
+		return writeBacklog.get();
+	}
+
+	public Set<TransportStats> getConnections() {
+		return connections;
+	}
+
+	/**
+	 * 各连接中最大的写缓冲积压
+	 */
+	public long getMaxConnectionWriteBacklog() {
+		long max = 0;
+		if (connections != null) {
+			for (TransportStats connection : connections) {
+				max = Math.max(max, connection.getWriteBacklog());
+			}
+		}
+		return max;
+	}
+
+	public IntervalHistogram getLastFrameInSizes(long currentTimeMillis) {
+		return frameInSizes == null ? null : frameInSizes.getLastInterval(currentTimeMillis);
+	}
+
+	public IntervalHistogram getLastFrameOutSizes(long currentTimeMillis) {
+		return frameOutSizes == null ? null : frameOutSizes.getLastInterval(currentTimeMillis);
+	}
+
+	/**
+	 * 统计日志中的传输层部分
+	 */
+	public String statisticString() {
+		return String.format(
+				"bytesIn: %s bytesOut: %s framesIn: %s framesOut: %s avgDecodeUs: %s avgEncodeUs: %s avgQueueWaitUs: %s writeBacklog: %s maxConnectionBacklog: %s",
+				getBytesIn(), getBytesOut(), getFramesIn(), getFramesOut(), avgMicros(getDecodeNanos(), getFramesIn()),
+				avgMicros(getEncodeNanos(), getFramesOut()), avgMicros(getQueueWaitNanos(), getQueueWaits()),
+				getWriteBacklog(), getMaxConnectionWriteBacklog());
+	}
+
+	/**
+	 * 导出endpoint的统计，连接级统计只以连接数和最大积压的形式导出
+	 *
+	 * @param side server或client
+	 */
+	public void collectMetrics(OpenMetricsWriter writer, String identity, String side) {
+		writer.counter("motan_transport_bytes_in", "Bytes read by the netty endpoint.")
+				.sample(getBytesIn(), "identity", identity, "side", side);
+		writer.counter("motan_transport_bytes_out", "Bytes encoded by the netty endpoint.")
+				.sample(getBytesOut(), "identity", identity, "side", side);
+		writer.counter("motan_transport_frames_in", "Frames decoded by the netty endpoint.")
+				.sample(getFramesIn(), "identity", identity, "side", side);
+		writer.counter("motan_transport_frames_out", "Frames encoded by the netty endpoint.")
+				.sample(getFramesOut(), "identity", identity, "side", side);
+		writer.counter("motan_transport_decode_seconds", "Time spent decoding frames.")
+				.sample(getDecodeNanos() / 1e9, "identity", identity, "side", side);
+		writer.counter("motan_transport_encode_seconds", "Time spent encoding frames.")
+				.sample(getEncodeNanos() / 1e9, "identity", identity, "side", side);
+		writer.counter("motan_transport_queue_waits", "Requests queued in the server executor.")
+				.sample(getQueueWaits(), "identity", identity, "side", side);
+		writer.counter("motan_transport_queue_wait_seconds", "Time requests waited in the server executor queue.")
+				.sample(getQueueWaitNanos() / 1e9, "identity", identity, "side", side);
+		writer.gauge("motan_transport_write_backlog_bytes", "Encoded bytes not yet written to the socket.")
+				.sample(getWriteBacklog(), "identity", identity, "side", side);
+
+		if (frameInSizes != null) {
+			OpenMetricsWriter.Family frameSizes =
+					writer.histogram("motan_transport_frame_bytes", "Frame sizes of completed statistic periods.");
+			frameInSizes.writeHistogram(frameSizes, 1, "identity", identity, "side", side, "direction", "in");
+			frameOutSizes.writeHistogram(frameSizes, 1, "identity", identity, "side", side, "direction", "out");
+		}
+
+		if (connections == null) {
+			return;
+		}
+		writer.gauge("motan_transport_connections", "Open connections of the netty endpoint.")
+				.sample(connections.size(), "identity", identity, "side", side);
+		writer.gauge("motan_transport_connection_write_backlog_max_bytes", "Largest write backlog among the connections.")
+				.sample(getMaxConnectionWriteBacklog(), "identity", identity, "side", side);
+	}
+
+	private static long avgMicros(long nanos, long count) {
+		return count == 0 ? 0 : nanos / count / 1000;
+	}
+}
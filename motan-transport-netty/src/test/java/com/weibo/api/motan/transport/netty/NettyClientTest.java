@@ -18,10 +18,12 @@ package com.weibo.api.motan.transport.netty;
 
 import com.weibo.api.motan.common.MotanConstants;
 import com.weibo.api.motan.common.URLParamType;
+import com.weibo.api.motan.exception.MotanErrorMsgConstant;
 import com.weibo.api.motan.exception.MotanServiceException;
 import com.weibo.api.motan.rpc.*;
 import com.weibo.api.motan.transport.Channel;
 import com.weibo.api.motan.transport.MessageHandler;
+import com.weibo.api.motan.util.OpenMetricsWriter;
 import com.weibo.api.motan.util.RequestIdGenerator;
 
 import junit.framework.Assert;
@@ -30,7 +32,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -50,6 +54,7 @@ public class NettyClientTest {
     public void setUp() {
         Map<String, String> parameters = new HashMap<String, String>();
         parameters.put("requestTimeout", "500");
+        parameters.put("stageTimes", "true");
 
         url = new URL("netty", "localhost", 18080, "com.weibo.api.motan.procotol.example.IHello", parameters);
 
@@ -100,6 +105,84 @@ public class NettyClientTest {
 
     }
     
+    @Test
+    public void testStageTimes() throws Exception {
+        nettyClient = new NettyClient(url);
+        nettyClient.open();
+
+        RpcContext.getContext().setAsync(true);
+        NettyResponseFuture response;
+        try {
+            response = (NettyResponseFuture) nettyClient.request(request);
+        } finally {
+            RpcContext.destroy();
+        }
+        Assert.assertNotNull(response.getValue());
+        StageTimes stageTimes = response.getStageTimes();
+        Assert.assertNotNull(stageTimes);
+        Assert.assertTrue(stageTimes.hasServerStages());
+        Assert.assertTrue(stageTimes.get(StageTimes.Stage.CLIENT_ENCODE) > 0);
+        Assert.assertTrue(stageTimes.get(StageTimes.Stage.SERVER_DECODE) > 0);
+        Assert.assertTrue(stageTimes.get(StageTimes.Stage.SERVER_ENCODE) > 0);
+        Assert.assertTrue(stageTimes.get(StageTimes.Stage.CLIENT_DECODE) > 0);
+    }
+
+    @Test
+    public void testStageTimesDisabled() throws Exception {
+        // client未开启时不要求server回传，也不统计client端阶段
+        URL clientUrl = url.createCopy();
+        clientUrl.removeParameter("stageTimes");
+        nettyClient = new NettyClient(clientUrl);
+        nettyClient.open();
+
+        RpcContext.getContext().setAsync(true);
+        NettyResponseFuture response;
+        try {
+            response = (NettyResponseFuture) nettyClient.request(request);
+        } finally {
+            RpcContext.destroy();
+        }
+        Assert.assertNotNull(response.getValue());
+        Assert.assertNull(response.getStageTimes());
+        Assert.assertNull(request.getStageTimes());
+        Assert.assertFalse(request.getAttachments().containsKey(MotanConstants.ATTACHMENT_STAGE_TIMES));
+    }
+
+    @Test
+    public void testTransportStats() throws Exception {
+        nettyClient = new NettyClient(url);
+        nettyClient.open();
+
+        Response response = nettyClient.request(request);
+        Assert.assertNotNull(response.getValue());
+
+        TransportStats clientStats = nettyClient.getTransportStats();
+        Assert.assertEquals(1, clientStats.getFramesOut());
+        Assert.assertEquals(1, clientStats.getFramesIn());
+        Assert.assertTrue(clientStats.getBytesOut() > MotanConstants.NETTY_HEADER);
+        Assert.assertTrue(clientStats.getBytesIn() > MotanConstants.NETTY_HEADER);
+        Assert.assertTrue(clientStats.getEncodeNanos() > 0);
+        Assert.assertTrue(clientStats.getDecodeNanos() > 0);
+        Assert.assertFalse(clientStats.getConnections().isEmpty());
+
+        // client发出的帧与server收到的帧一致
+        TransportStats serverStats = nettyServer.getTransportStats();
+        Assert.assertEquals(1, serverStats.getFramesIn());
+        Assert.assertEquals(clientStats.getBytesOut(), serverStats.getBytesIn());
+        Assert.assertEquals(1, serverStats.getQueueWaits());
+
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        nettyServer.collectMetrics(writer);
+        String metrics = writer.toString();
+        Assert.assertTrue(metrics.contains("motan_transport_bytes_in_total{identity=\"" + url.getIdentity()
+                + "\",side=\"server\"} " + serverStats.getBytesIn()));
+        // 连接级统计只以连接数和最大积压导出，不按连接展开
+        Assert.assertTrue(metrics.contains("motan_transport_connections{identity=\"" + url.getIdentity()
+                + "\",side=\"server\"} " + serverStats.getConnections().size()));
+        Assert.assertTrue(metrics.contains("motan_transport_connection_write_backlog_max_bytes{"));
+        Assert.assertFalse(metrics.contains("connection=\""));
+    }
+
     @Test
     public void testAsync() {
         nettyClient = new NettyClient(url);
@@ -152,4 +235,72 @@ public class NettyClientTest {
 
     }
 
+    @Test
+    public void testDeadline() throws Exception {
+        nettyClient = new NettyClient(url);
+        nettyClient.open();
+        int connections = nettyClient.getTransportStats().getConnections().size();
+        // 截止时间已过时不发送请求，也不借出连接
+        RpcContext.getContext().setDeadline(System.currentTimeMillis() - 1);
+        try {
+            nettyClient.request(request);
+            fail();
+        } catch (MotanServiceException e) {
+            assertEquals(MotanErrorMsgConstant.SERVICE_TIMEOUT_ERROR_CODE, e.getErrorCode());
+        } finally {
+            RpcContext.destroy();
+        }
+        assertTrue(nettyClient.isAvailable());
+        // 不会因此关闭池中的连接
+        Thread.sleep(100);
+        assertEquals(connections, nettyClient.getTransportStats().getConnections().size());
+
+        RpcContext.getContext().setDeadline(System.currentTimeMillis() + 1000);
+        try {
+            Response response = nettyClient.request(request);
+            assertEquals("method: " + request.getMethodName() + " requestId: " + request.getRequestId(), response.getValue());
+        } finally {
+            RpcContext.destroy();
+        }
+    }
+
+    @Test
+    public void testAsyncServerResponse() throws Exception {
+        URL asyncUrl = new URL("netty", "localhost", 18081, "com.weibo.api.motan.procotol.example.IHello", url.getParameters());
+        final List<DefaultResponseFuture> pending = new ArrayList<DefaultResponseFuture>();
+        NettyServer asyncServer = new NettyServer(asyncUrl, new MessageHandler() {
+            @Override
+            public Object handle(Channel channel, Object message) {
+                // 返回未完成的future，工作线程不等待结果
+                DefaultResponseFuture future = new DefaultResponseFuture((Request) message, 0);
+                synchronized (pending) {
+                    pending.add(future);
+                    pending.notifyAll();
+                }
+                return future;
+            }
+        });
+        asyncServer.open();
+        nettyClient = new NettyClient(asyncUrl);
+        nettyClient.open();
+        try {
+            RpcContext.getContext().putAttribute(MotanConstants.ASYNC_SUFFIX, true);
+            ResponseFuture response = (ResponseFuture) nettyClient.request(request);
+            RpcContext.destroy();
+
+            DefaultResponseFuture future;
+            synchronized (pending) {
+                while (pending.isEmpty()) {
+                    pending.wait(500);
+                }
+                future = pending.get(0);
+            }
+            assertFalse(response.isDone());
+            future.onSuccess(new DefaultResponse("async value"));
+            assertEquals("async value", response.getValue());
+        } finally {
+            asyncServer.close();
+        }
+    }
+
 }